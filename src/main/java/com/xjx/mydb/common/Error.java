@@ -17,6 +17,8 @@ public class Error {
     //dm
     public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
+    public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
+    public static final Exception BadPageLayoutException = new RuntimeException("Unsupported page layout!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
     public static final Exception DatabaseConnectFailedException = new RuntimeException("Database connection failed!");
@@ -26,6 +28,12 @@ public class Error {
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
 
+    // im
+    public static final Exception InvalidNodeSizeException = new RuntimeException("Invalid index node size!");
+    public static final Exception InvalidFillFactorException = new RuntimeException("Invalid fill factor!");
+    public static final Exception UnsortedBulkLoadException = new RuntimeException("Bulk load input is not sorted!");
+    public static final Exception KeyTooLargeException = new RuntimeException("Index key is too large!");
+
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
     public static final Exception FieldNotFoundException = new RuntimeException("Field not found!");
@@ -37,7 +45,6 @@ public class Error {
 
     // parser
     public static final Exception InvalidCommandException = new RuntimeException("Invalid command!");
-    public static final Exception TableNoIndexException = new RuntimeException("Table has no index!");
 
     // transport
     public static final Exception InvalidPkgDataException = new RuntimeException("Invalid package data!");
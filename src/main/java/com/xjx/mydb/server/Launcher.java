@@ -2,6 +2,7 @@ package com.xjx.mydb.server;
 
 import com.xjx.mydb.common.Error;
 import com.xjx.mydb.server.dm.DataManager;
+import com.xjx.mydb.server.dm.pageCache.PageCache;
 import com.xjx.mydb.server.tbm.TableManager;
 import com.xjx.mydb.server.tm.TransactionManager;
 import com.xjx.mydb.server.utils.Panic;
@@ -26,42 +27,54 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("xidmmap", false, "-xidmmap");
+        options.addOption("clog", false, "-clog");
+        options.addOption("pagesize", true, "-pagesize 16KB");
         //然后开启一个命令行解析器解析这个类启动时的配置
         CommandLineParser parser = new DefaultParser();
         //将当前方法参数和之前定义的选项一起解析
         CommandLine cmd = parser.parse(options, args);
         //判断方法参数有哪些以此来看是新建数据库文件还是打开某个建好的数据库
         if (cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.hasOption("xidmmap"));
             return;
         }
         if (cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), cmd.hasOption("clog"), parsePageSize(cmd.getOptionValue("pagesize")));
             return;
         }
         System.out.println("Usage: launcher (open|create) DBPath");
-//        createDB("D:\\JavaProject\\MyDB\\tmp\\mydb");
-//        openDB("D:\\JavaProject\\MyDB\\tmp\\mydb",parseMem("128MB"));
+//        createDB("D:\\JavaProject\\MyDB\\tmp\\mydb", false, PageCache.PAGE_SIZE);
+//        openDB("D:\\JavaProject\\MyDB\\tmp\\mydb",parseMem("128MB"), false);
     }
 
-    //根据路径创建一个数据库文件
-    private static void createDB(String path) throws Exception {
-        TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFAULT_MEM, tm);
+    //根据路径创建一个数据库文件，clog为true时事务状态使用CLOG格式保存，页面大小创建之后不能修改
+    private static void createDB(String path, boolean clog, int pageSize) throws Exception {
+        TransactionManager tm = clog ? TransactionManager.createClog(path) : TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, DEFAULT_MEM, tm, pageSize);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
         tm.close();
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
-        TransactionManager tm = TransactionManager.open(path);
+    //xidMmap为true时事务状态文件使用内存映射方式读写
+    private static void openDB(String path, long mem, boolean xidMmap) {
+        TransactionManager tm = TransactionManager.open(path, xidMmap);
         DataManager dm = DataManager.open(path, mem, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
         new Server(port, tbm).start();
     }
 
+    //页面大小和内存大小的写法相同，比如4KB、64KB，合法性由PageCache检查
+    private static int parsePageSize(String pageSizeStr) {
+        if(pageSizeStr == null || "".equals(pageSizeStr)) {
+            return PageCache.PAGE_SIZE;
+        }
+        return (int) parseMem(pageSizeStr);
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFAULT_MEM;
@@ -1,122 +1,153 @@
 package com.xjx.mydb.server.common;
 
 import com.xjx.mydb.common.Error;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @Author: Xjx
  * @Create: 2022/12/22 - 14:29
  * AbstractCache实现了一个引用计数策略的缓存框架，管理缓存用的。泛型类，泛型是缓存的数据类型
+ * 缓存表使用ConcurrentHashMap，每个key对应一个CacheHolder，其中保存了该key的加载future和引用计数。
+ * 不同key的加载互不阻塞，同一个key的并发请求会阻塞在同一个future上等待，而不是睡眠轮询。
  */
 public abstract class AbstractCache<T> {
     // 实际缓存的数据，key的意义并不明确，因为这是一个框架，其实现类可能很多，那么key的意义也就不同（比如对于PageCache来说key就是页号）
-    // value为缓存真实数据
-    private HashMap<Long, T> cache;
-    // 具体某个缓存数据的引用个数
-    private HashMap<Long, Integer> references;
-    // 记录哪些资源正在从数据源中获取。因为从数据源获取资源是一个相对费时的操作
-    private HashMap<Long, Boolean> getting;
-    // 缓存的最大缓存个数
-    private int maxResource;
-    // 缓存中缓存数据的个数
-    private int count = 0;
-    private Lock lock;
+    // value为该key的缓存槽，保存了资源的加载结果和引用计数
+    private final ConcurrentHashMap<Long, CacheHolder<T>> cache;
+    // 缓存的最大缓存个数，0表示不限制
+    private final int maxResource;
+    // 缓存中缓存数据的个数（包括正在从数据源加载中的）
+    private final AtomicInteger count;
+
+    /**
+     * 单个key的缓存槽：future在资源加载完成时被完成，加载失败时以异常完成
+     * 引用计数与驱逐标志由holder自身的监视器保护，只锁这一个key
+     */
+    private static class CacheHolder<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        // 驱逐完成（已写回并从缓存表中删除）后放行等待者
+        final CountDownLatch removed = new CountDownLatch(1);
+        int references = 1;
+        boolean evicted = false;
+
+        //引用计数+1，如果这个槽已经开始驱逐则失败，调用者需要等待驱逐完成后重新加载
+        synchronized boolean retain() {
+            if(evicted) {
+                return false;
+            }
+            references++;
+            return true;
+        }
+
+        //引用计数-1，减到0时标记为驱逐并返回true
+        synchronized boolean unRetain() {
+            references--;
+            if(references == 0) {
+                evicted = true;
+                return true;
+            }
+            return false;
+        }
+    }
 
     public AbstractCache(int maxResource){
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        cache = new ConcurrentHashMap<>();
+        count = new AtomicInteger(0);
     }
 
-    protected synchronized T get(long key) throws Exception {
-        //通过 get() 方法获取资源时，首先进入一个死循环，来无限尝试从缓存里获取
+    protected T get(long key) throws Exception {
+        //通过 get() 方法获取资源时，首先进入一个循环，来尝试从缓存里获取
         while (true) {
-            //获取资源时为了多线程安全
-//            lock.lock();
-            //请求的资源是否正在被其他线程获取
-            if(getting.containsKey(key)){
-                //放弃锁并且睡一秒然后再次进入循环
-//                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
+            CacheHolder<T> holder = cache.get(key);
+            if(holder == null) {
+                //缓存中没有这个资源，先占一个缓存位置，缓存已满则报错，因为我们是引用计数实现的缓存，是手动释放缓存数据
+                if(!reserve()) {
+                    throw Error.CacheFullException;
                 }
+                CacheHolder<T> newHolder = new CacheHolder<>();
+                holder = cache.putIfAbsent(key, newHolder);
+                if(holder == null) {
+                    //抢到了这个key的加载权，由当前线程去数据源获取资源
+                    return load(key, newHolder);
+                }
+                //其他线程抢先开始加载这个key，归还刚才占用的位置，转而等待它的加载结果
+                count.decrementAndGet();
+            }
+            //请求的资源已在缓存中或者正在被其他线程获取，阻塞在future上直到加载完成
+            T obj;
+            try {
+                obj = holder.future.get();
+            } catch (ExecutionException e) {
+                //其他线程加载失败，它会把这个槽从缓存表中删除，重新尝试由自己加载
                 continue;
             }
-            //执行到此处表示没有线程正在获取要获取的缓存数据
-            if(cache.containsKey(key)){
-                //进入if中表示资源在缓存中，直接返回
-                T obj = cache.get(key);
-                //获取到缓存资源之后要将这个缓存的引用次数+1
-                references.put(key, references.get(key) + 1);
-//                lock.unlock();
+            //获取到缓存资源之后要将这个缓存的引用次数+1
+            if(holder.retain()) {
                 return obj;
             }
-            //执行到此表示缓存中没有要获取的资源
-            //判断缓存是否已经存满，如果存满就报错，因为我们是引用计数实现的缓存，是手动释放缓存数据
-            if(maxResource > 0 && count == maxResource){
-//                lock.unlock();
-                throw Error.CacheFullException;
-            }
-            //执行到此处表示缓存无要获取的数据且缓存未满，此时尝试从数据源获取该资源
-            count++;
-            //修改这个数据的获取信息，表示此资源正在被某一个线程获取。
-            getting.put(key, true);
-//            lock.unlock();
-            //退出循环，去数据源中获取资源并写入缓存
-            break;
+            //这个资源正在被驱逐，等驱逐（写回）结束后重新从数据源获取，避免读到未写回的旧数据
+            holder.removed.await();
         }
-        T obj = null;
+    }
+
+    //从数据源获取资源并完成future，成功失败都要通知等待者
+    private T load(long key, CacheHolder<T> holder) throws Exception {
+        T obj;
         try {
-            //从数据源获取资源，成功失败都要把从 getting 中删除 key
             obj = getForCache(key);
-        } catch (Exception e){
-            //获取失败时要回滚之前的缓存大小，此时要保证线程安全避免多减
-//            lock.lock();
-            count--;
-            getting.remove(key);
-//            lock.unlock();
+        } catch (Exception e) {
+            //获取失败时要回滚之前的缓存大小并删除这个槽
+            cache.remove(key, holder);
+            count.decrementAndGet();
+            holder.future.completeExceptionally(e);
             throw e;
         }
-//        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-//        lock.unlock();
+        holder.future.complete(obj);
         return obj;
     }
 
+    //尝试在缓存中占用一个位置，maxResource为0时不做限制
+    private boolean reserve() {
+        if(maxResource <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int c = count.get();
+            if(c >= maxResource) {
+                return false;
+            }
+            if(count.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
     /**
      * 根据key强行释放一个其对应的缓存数据。key对于PageCache来说=页号
      */
     protected void release(long key) {
-        lock.lock();
-        try {
-            //更新缓存数据的引用次数
-            int ref = references.get(key) - 1;
-            //一旦没有引用指向这个缓存，就需要驱逐这个缓存
-            if(ref == 0){
-                T obj = cache.get(key);
-                //释放这个缓存所占的内存并将数据写入磁盘
-                releaseForCache(obj);
-                //引用表中除去这个缓存
-                references.remove(key);
-                //缓存表中删除这个缓存
-                cache.remove(key);
-                count--;
-            } else {
-                references.put(key, ref);
+        CacheHolder<T> holder = cache.get(key);
+        if(holder == null) {
+            return;
+        }
+        //一旦没有引用指向这个缓存，就需要驱逐这个缓存
+        if(holder.unRetain()) {
+            try {
+                //释放这个缓存所占的内存并将数据写回磁盘，写回完成前这个槽仍在缓存表中，新的请求会等待
+                releaseForCache(holder.future.getNow(null));
+            } finally {
+                cache.remove(key, holder);
+                count.decrementAndGet();
+                holder.removed.countDown();
             }
-        } finally {
-            //保证锁的释放，以免阻塞其他线程
-            lock.unlock();
         }
     }
 
@@ -124,20 +155,17 @@ public abstract class AbstractCache<T> {
      * 关闭缓存，写回所有资源
      */
     protected void close(){
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys){
-                T obj = cache.get(key);
-                //写回数据
+        for(Map.Entry<Long, CacheHolder<T>> entry : cache.entrySet()) {
+            CacheHolder<T> holder = entry.getValue();
+            T obj = holder.future.getNow(null);
+            //写回数据
+            if(obj != null) {
                 releaseForCache(obj);
-                //删除缓存中所有属性中引用的对象
-                references.remove(key);
-                cache.remove(key);
             }
-        } finally {
-            lock.unlock();
+            cache.remove(entry.getKey(), holder);
+            holder.removed.countDown();
         }
+        count.set(0);
     }
     /**
      * 当资源不在缓存时的获取行为
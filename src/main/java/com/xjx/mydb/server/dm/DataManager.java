@@ -4,6 +4,8 @@ import com.xjx.mydb.server.dm.dataItem.DataItem;
 import com.xjx.mydb.server.dm.logger.Logger;
 import com.xjx.mydb.server.dm.page.PageOne;
 import com.xjx.mydb.server.dm.pageCache.PageCache;
+import com.xjx.mydb.server.dm.pageIndex.FreeSpaceMap;
+import com.xjx.mydb.server.dm.pageIndex.OwnerMap;
 import com.xjx.mydb.server.tm.TransactionManager;
 
 /**
@@ -17,14 +19,32 @@ public interface DataManager {
     DataItem read(long uid) throws Exception;
     //插入数据涉及修改，需要传入事务id和插入的数据
     long insert(long xid, byte[] data) throws Exception;
+    //插入到属于owner的页面中，同一个所有者的数据项集中存放在它自己的页面里，可以用scan按页面顺序找出来。owner为0时放在公共页面中
+    long insert(long xid, long owner, byte[] data) throws Exception;
+    //按页号顺序扫描属于owner的所有有效数据项，只读属于owner的页面
+    HeapCursor scan(long owner) throws Exception;
+    //回收一个数据项：把它标记为无效并写日志，它占用的空间交还给页面索引，之后整理页面时重用。回收不能撤销
+    void free(long uid) throws Exception;
+    //数据库文件的页面大小，上层据此决定一条记录或一个索引节点最大能有多大
+    int getPageSize();
+    //做一次检查点：写回所有脏页面，记录恢复的起点，并回收不再需要的日志
+    void checkpoint();
     void close();
 
     //从空文件创建 DataManager 首先需要对第一页进行初始化。因为数据库第一页不保存数据，只是做启动检查的
     public static DataManager create(String path, long mem, TransactionManager tm) throws Exception {
-        PageCache pc = PageCache.create(path, mem);
+        return create(path, mem, tm, PageCache.PAGE_SIZE);
+    }
+
+    //以指定的页面大小创建数据库，页面大小记录在第一页中，之后打开时自动读出
+    public static DataManager create(String path, long mem, TransactionManager tm, int pageSize) throws Exception {
+        PageCache pc = PageCache.create(path, mem, pageSize);
         Logger lg = Logger.create(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        FreeSpaceMap fsm = FreeSpaceMap.create(path, pageSize);
+        OwnerMap owners = OwnerMap.create(path);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, fsm, owners);
         dm.initPageOne();
+        dm.startCheckpointer();
         return dm;
     }
 
@@ -32,15 +52,20 @@ public interface DataManager {
     //且需要对第一页进行校验，来判断是否需要执行恢复流程。并重新对第一页生成随机字节。
     public static DataManager open(String path, long mem, TransactionManager tm) {
         PageCache pc = PageCache.open(path, mem);
+        //先检查页面布局再打开日志和空闲空间地图，旧布局的数据库被拒绝时它的日志还没有被迁移，也不会多出地图文件
+        DataManagerImpl.checkLayout(pc);
         Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        FreeSpaceMap fsm = FreeSpaceMap.open(path, pc.getPageSize());
+        OwnerMap owners = OwnerMap.open(path);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, fsm, owners);
         if(!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+            Recover.recover(tm, lg, pc, PageOne.getCheckpointLsn(dm.pageOne));
         }
         dm.fillPageIndex();
         //校验完毕之后把第一页数据修改成异常退出的格式，如果正常退出我们会将其改为正常退出格式
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        dm.startCheckpointer();
         return dm;
     }
 }
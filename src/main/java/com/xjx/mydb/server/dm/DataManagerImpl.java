@@ -9,39 +9,163 @@ import com.xjx.mydb.server.dm.page.Page;
 import com.xjx.mydb.server.dm.page.PageOne;
 import com.xjx.mydb.server.dm.page.PageX;
 import com.xjx.mydb.server.dm.pageCache.PageCache;
+import com.xjx.mydb.server.dm.pageCache.PageCacheImpl;
+import com.xjx.mydb.server.dm.pageIndex.FreeSpaceMap;
+import com.xjx.mydb.server.dm.pageIndex.OwnerMap;
 import com.xjx.mydb.server.dm.pageIndex.PageIndex;
 import com.xjx.mydb.server.dm.pageIndex.PageInfo;
 import com.xjx.mydb.server.tm.TransactionManager;
 import com.xjx.mydb.server.utils.Panic;
 import com.xjx.mydb.server.utils.Types;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * @Author: Xjx
  * @Create: 2023/1/9 - 13:57
  */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
+    //后台检查点的间隔
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 60 * 1000;
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
+    //属于各个所有者的页面的索引，公共页面在pIndex中
+    private final ConcurrentHashMap<Long, PageIndex> ownedIndex;
+    FreeSpaceMap fsm;
+    //每个页面的所有者
+    OwnerMap owners;
+    //打开数据库时空闲空间地图中记录过的页面数，各个索引从地图中按需加载其中属于自己的页面
+    private int fsmRecorded;
     Page pageOne;
+    //修改页面（写日志+改页面）时持有读锁，检查点拷贝脏页面时持有写锁，保证拷贝出的页面和日志一致
+    private final ReadWriteLock modifyLock;
+    //同一时间只做一个检查点
+    private final Lock checkpointLock;
+    //写过日志的事务 -> 它的第一条日志的LSN，检查点时去掉已经结束的事务，剩下的事务的日志不能回收
+    private final ConcurrentHashMap<Long, Long> firstLsn;
+    private Thread checkpointer;
+    private final CountDownLatch stopCheckpointer;
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, FreeSpaceMap fsm, OwnerMap owners) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.fsm = fsm;
+        this.owners = owners;
+        this.pIndex = new PageIndex(pc.getPageSize(), fsm);
+        this.ownedIndex = new ConcurrentHashMap<>();
+        this.modifyLock = new ReentrantReadWriteLock();
+        this.checkpointLock = new ReentrantLock();
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.stopCheckpointer = new CountDownLatch(1);
+        //页面写回前要先让修改它的日志落盘
+        pc.setLogger(logger);
+    }
+
+    //启动后台检查点线程，恢复完成之后才能启动
+    void startCheckpointer() {
+        checkpointer = new Thread(() -> {
+            try {
+                while (!stopCheckpointer.await(CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    checkpoint();
+                }
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }, "mydb-checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
     }
 
-    //根据一个处理过的数据项的uid解析为对应的页号+偏移量并得到该数据转移成数据项返回
+    public void enterModify() {
+        modifyLock.readLock().lock();
+    }
+
+    public void exitModify() {
+        modifyLock.readLock().unlock();
+    }
+
+    /**
+     * 模糊检查点：只在拷贝脏页面和写检查点日志时短暂阻塞修改，页面写回在锁外进行。
+     * 写回完成后检查点日志之前已经结束的事务的修改都在数据库文件中了，恢复只需要从检查点开始重做，
+     * 所以检查点之前的日志除了仍然活跃的事务的日志（撤销时需要）之外都可以回收
+     */
+    @Override
+    public void checkpoint() {
+        checkpointLock.lock();
+        try {
+            Map<Integer, byte[]> dirtyPages;
+            Map<Long, Long> activeXids;
+            long checkpointLsn;
+            int noPages;
+            //已经结束的事务的日志会被回收，先让它们的状态落盘，否则崩溃后它们是没有日志的active事务
+            Set<Long> finished = new HashSet<>();
+            for(long xid : firstLsn.keySet()) {
+                if(!tm.isActive(xid)) {
+                    finished.add(xid);
+                }
+            }
+            tm.flush();
+            modifyLock.writeLock().lock();
+            try {
+                firstLsn.keySet().removeAll(finished);
+                activeXids = new HashMap<>(firstLsn);
+                dirtyPages = pc.snapshotDirtyPages();
+                //新建页面和登记所有者都在修改区内进行，这里的页面都已经有所有者
+                noPages = pc.getPageNumber();
+                byte[] log = Recover.checkpointLog(noPages, activeXids, dirtyPages.keySet());
+                checkpointLsn = logger.append(log);
+            } finally {
+                modifyLock.writeLock().unlock();
+            }
+            //拷贝出的页面中所有修改的日志都在检查点日志之前，先让它们落盘再写页面
+            logger.flush(checkpointLsn);
+            pc.writeSnapshot(dirtyPages);
+            //恢复只会重做检查点之后的插入日志，之前新建的页面的所有者要在移动恢复起点之前落盘
+            owners.flush(noPages);
+            //页面都写回之后才把恢复起点移到这个检查点
+            PageOne.setCheckpointLsn(pageOne, checkpointLsn);
+            pc.flushPage(pageOne);
+            fsm.flush();
+            long keep = checkpointLsn;
+            for(long lsn : activeXids.values()) {
+                keep = Math.min(keep, lsn);
+            }
+            logger.truncateBefore(keep);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    //写一条日志并等待落盘，记录事务的第一条日志，返回日志的LSN
+    private long log(long xid, byte[] log) {
+        long lsn = logger.append(log);
+        firstLsn.putIfAbsent(xid, lsn);
+        logger.flush(lsn);
+        return lsn;
+    }
+
+    //根据一个处理过的数据项的uid解析为对应的页号+槽号并得到该数据转移成数据项返回
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short)(uid & ((1L << 16)) - 1);
+        short slot = (short)(uid & ((1L << 16)) - 1);
         uid >>>= 32;
         int pgno = (int)(uid & ((1L << 32) - 1));
         Page page = pc.getPage(pgno);
-        return DataItem.parseDataItem(page, offset, this);
+        return DataItem.parseDataItem(page, slot, this);
     }
 
     //因为数据都是以页为单位处理的，所以释放数据项缓存释放其数据页缓存就可以了
@@ -50,7 +174,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         di.page().release();
     }
 
-    //通过一个uid即页号+偏移量读取对应位置的数据，并返回这个数据对应的数据项
+    //通过一个uid即页号+槽号读取对应位置的数据，并返回这个数据对应的数据项
     @Override
     public DataItem read(long uid) throws Exception {
         //先从缓存中取取不到才去数据库
@@ -62,62 +186,177 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return di;
     }
 
-    //插入操作，返回值是一个uid即页号+偏移量
+    //插入操作，返回值是一个uid即页号+槽号
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, 0, data);
+    }
+
+    //插入到属于owner的页面中，只从owner自己的页面索引中找页面，找不到时新建一个属于它的页面
+    @Override
+    public long insert(long xid, long owner, byte[] data) throws Exception {
+        PageIndex index = pageIndex(owner);
         //将一个要插入的数据包装成数据库中数据格式
         byte[] raw = DataItem.wrapDataItemRaw(data);
         //如果要插入的数据比数据页最大空闲内存都大则报错
-        if(raw.length > PageX.MAX_FREE_SPACE) {
+        int maxFreeSpace = PageX.maxFreeSpace(pc.getPageSize());
+        if(raw.length > maxFreeSpace) {
             throw Error.DataTooLargeException;
         }
 
         //为要插入的数据去页面索引中找到能容下这个数据的页面
         PageInfo pi = null;
+        Page page = null;
         //一共查找5次，都找不到则说明目前数据库比较繁忙，没有空闲内存。
         for(int i = 0; i < 5; i++) {
             //找可存储的页面
-            pi = pIndex.select(raw.length);
-            if(pi != null){
+            pi = index.select(raw.length);
+            if(pi == null){
+                //找不到则新建页面，新页面直接给这次插入使用，用完和其他页面一样放回索引
+                pi = new PageInfo(newPage(owner), maxFreeSpace);
+            }
+            //从空闲空间地图加载的页面在崩溃后可能记录了比实际更大的空闲空间，以页面本身为准
+            try {
+                page = pc.getPage(pi.pgno);
+            } catch (Exception e) {
+                index.add(pi.pgno, pi.freeSpace);
+                throw e;
+            }
+            if(prepareInsert(page, raw.length)) {
                 break;
-            } else {
-                //则不到则新建页面
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
             }
+            //页面放不下时按实际能直接使用的空间放回索引，避免马上又被选中
+            int free = PageX.getFreeSpace(page);
+            index.add(pi.pgno, free < raw.length ? free : PageX.getContiguousFreeSpace(page));
+            page.release();
+            page = null;
+            pi = null;
         }
         //如果还是null则数据库繁忙错误
         if(pi == null) {
             throw Error.DatabaseBusyException;
         }
         //执行到此处表示找到一个可以存储新插入数据的页面
-        Page page = null;
-        int freeSpace = 0;
+        enterModify();
         try {
-            //通过找到的页面信息找到这个数据缓存页
-            page = pc.getPage(pi.pgno);
             //插入操作之前需要先写日志，将此次操作的事务id和要插入的数据页以及要插入的数据传进去
-            byte[] log = Recover.insertLog(xid, page, raw);
-            logger.log(log);
-            //插入操作返回其在页内偏移量
-            short offset = PageX.insert(page, raw);
+            //属于所有者的页面的日志中带上所有者，新页面不需要马上刷盘
+            byte[] log = Recover.insertLog(xid, page, owner, raw);
+            page.setLsn(log(xid, log));
+            //新建后没来得及写回就崩溃的页面读出来是全0，和重做一样补上所有者
+            if(PageX.getOwner(page) != owner) {
+                PageX.setOwner(page, owner);
+            }
+            //插入操作返回其在页内的槽号
+            short slot = PageX.insert(page, raw);
             //插入之后要及时释放缓存
             page.release();
             //返回这个插入数据的uid
-            return Types.addressToUid(pi.pgno, offset);
+            return Types.addressToUid(pi.pgno, slot);
         } finally {
+            exitModify();
             //将取出的page重新插入pIndex,因为页面索引中取得页面是从中删除了，用完需要加回去
-            if(page != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(page));
-            } else {
-                pIndex.add(pi.pgno, freeSpace);
+            index.add(pi.pgno, PageX.getFreeSpace(page));
+        }
+    }
+
+    //owner的页面索引，第一次用到时创建，空闲空间地图中属于owner的页面按需加载
+    private PageIndex pageIndex(long owner) {
+        if(owner == 0) {
+            return pIndex;
+        }
+        return ownedIndex.computeIfAbsent(owner, o -> {
+            PageIndex index = new PageIndex(pc.getPageSize(), fsm);
+            index.loadLazily(fsmRecorded, pgno -> owners.get(pgno) == o);
+            return index;
+        });
+    }
+
+    //新建一个属于owner的页面并登记所有者。页面交给后台写回，崩溃后没写回的页面由插入日志恢复所有者。
+    //在修改区内进行，检查点记录的页面数之内的页面都已经登记了所有者
+    private int newPage(long owner) {
+        enterModify();
+        try {
+            int pgno = pc.newPage(PageX.initRaw(pc.getPageSize(), owner));
+            owners.set(pgno, owner);
+            return pgno;
+        } finally {
+            exitModify();
+        }
+    }
+
+    @Override
+    public HeapCursor scan(long owner) throws Exception {
+        return new HeapCursor(this, owner);
+    }
+
+    @Override
+    public void free(long uid) throws Exception {
+        DataItemImpl di = (DataItemImpl)super.get(uid);
+        try {
+            if(!di.isValid()) {
+                return;
+            }
+            //和普通的修改一样先写日志，用超级事务写，恢复时不会被撤销
+            di.before();
+            DataItem.setDataItemRawInvalid(di.getRaw());
+            di.after(TransactionManager.SUPER_XID);
+            //碎片计数在页头中，和插入、整理页面一样在修改区内改，检查点不会拷贝到改了一半的页头
+            Page page = di.page();
+            enterModify();
+            page.lock();
+            try {
+                page.setDirty(true);
+                PageX.addFrag(page, (short)(uid & ((1L << 16) - 1)));
+            } finally {
+                page.unlock();
+                exitModify();
             }
+            pageIndex(owners.get(page.getPageNumber())).update(page.getPageNumber(), PageX.getFreeSpace(page));
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 保证页面能直接放下length大小的数据项：连续空间不够但算上碎片足够时整理页面。
+     * 整理会移动数据项，只有当前插入者是这一页唯一的持有者时才能整理（缓存中的数据项都pin着自己的页面），
+     * 并且要和检查点拷贝页面、解析数据项互斥；页面被其他调用者持有时放弃整理，返回false
+     */
+    private boolean prepareInsert(Page page, int length) {
+        if(PageX.fits(page, length)) {
+            return true;
+        }
+        if(PageX.getFreeSpace(page) < length) {
+            return false;
+        }
+        enterModify();
+        page.lock();
+        try {
+            if(pc.getPinCount(page.getPageNumber()) != 1) {
+                return false;
+            }
+            PageX.compact(page);
+            return PageX.fits(page, length);
+        } finally {
+            page.unlock();
+            exitModify();
         }
     }
 
     //关闭DM即代表着断开与数据库的连接了
     @Override
     public void close() {
+        stopCheckpointer.countDown();
+        if(checkpointer != null) {
+            try {
+                checkpointer.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+        //关闭前做一次检查点，回收日志
+        checkpoint();
         //关闭缓存
         super.close();
         logger.close();
@@ -125,13 +364,35 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         PageOne.setVcClose(pageOne);
         pageOne.release();
         pc.close();
+        fsm.close();
+        owners.close();
+    }
+
+    //停止所有后台线程，不做检查点也不写回页面，相当于进程在这里崩溃，用于测试崩溃恢复
+    void crash() {
+        stopCheckpointer.countDown();
+        if(checkpointer != null) {
+            try {
+                checkpointer.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+        if(pc instanceof PageCacheImpl) {
+            ((PageCacheImpl) pc).crash();
+        }
     }
 
     //为xid生成update日志
     //更新操作也要生成日志，因为涉及到了修改
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        di.page().setLsn(log(xid, log));
+    }
+
+    @Override
+    public int getPageSize() {
+        return pc.getPageSize();
     }
 
     //释放这个数据项对象的缓存，即引用计数减-1或者删除并写回磁盘
@@ -141,7 +402,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     //创建数据库文件时初始化PageOne
     void initPageOne() throws Exception {
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pc.getPageSize()));
         if(pgno != 1) {
             throw Error.DatabaseConnectFailedException;
         }
@@ -154,6 +415,23 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         pc.flushPage(pageOne);
     }
 
+    //检查数据库文件的页面布局，旧格式的数据页中uid是页内偏移，不能直接按槽页解析
+    static void checkLayout(PageCache pc) {
+        Page page = null;
+        try {
+            page = pc.getPage(1);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            if(!PageOne.checkLayout(page)) {
+                Panic.panic(Error.BadPageLayoutException);
+            }
+        } finally {
+            page.release();
+        }
+    }
+
     //在打开已有文件时读入PageOne，并验证正确性
     boolean loadCheckPageOne() {
         try {
@@ -164,17 +442,29 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return PageOne.checkVc(pageOne);
     }
 
-    //第一次连接数据库时需要初始化pageIndex即读取数据库全部的数据并缓存进页面索引
+    /**
+     * 打开数据库时初始化页面所有者和pageIndex：所有者地图中记录过的页面不需要读取，之后的页面从页头读出所有者；
+     * 空闲空间地图中记录过的页面之后由它所有者的索引按需从地图加载，只有地图最后一次写回之后新建的页面需要读取数据页。
+     * 恢复时截断的页面不再加载
+     */
     void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
-        for(int i = 2; i <= pageNumber; i++) {
+        int ownersRecorded = owners.load(pageNumber);
+        fsmRecorded = Math.min(fsm.getNoPages(), pageNumber);
+        pIndex.loadLazily(fsmRecorded, pgno -> owners.get(pgno) == 0);
+        for(int i = Math.max(2, Math.min(ownersRecorded, fsmRecorded) + 1); i <= pageNumber; i++) {
             Page page = null;
             try {
                 page = pc.getPage(i);
             } catch (Exception e) {
                 Panic.panic(e);
             }
-            pIndex.add(page.getPageNumber(), PageX.getFreeSpace(page));
+            if(i > ownersRecorded) {
+                owners.set(i, PageX.getOwner(page));
+            }
+            if(i > fsmRecorded) {
+                pageIndex(owners.get(i)).add(page.getPageNumber(), PageX.getFreeSpace(page));
+            }
             //每次读取数据之后因为都是把数据以对象形式放入内存即缓存中了，所以用完要记得释放
             page.release();
         }
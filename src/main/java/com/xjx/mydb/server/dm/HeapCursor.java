@@ -0,0 +1,98 @@
+package com.xjx.mydb.server.dm;
+
+import com.xjx.mydb.server.dm.page.Page;
+import com.xjx.mydb.server.dm.page.PageX;
+import com.xjx.mydb.server.utils.Types;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/24 - 10:15
+ * 按页号顺序扫描属于一个所有者的所有有效数据项。每次读一页，把其中有效数据项的uid取到数组中，两次next之间不持有页面。
+ * 页面的所有者从内存中的所有者地图查出，只读属于这个所有者的页面；每次从地图中找出后面READ_AHEAD个页面，页号连续的一段一起预读。
+ * 扫描范围是创建游标时数据库文件中已有的页面
+ */
+public class HeapCursor {
+    //每次预读的页数
+    static final int READ_AHEAD = 32;
+
+    private final DataManagerImpl dm;
+    private final long owner;
+    private final int lastPgno;
+    //下一个要在所有者地图中查看的页面，第一页不存放数据
+    private int nextPgno = 2;
+    //已经找出、还没有读的属于owner的页面
+    private final int[] ahead = new int[READ_AHEAD];
+    private int aheadCount, aheadPos;
+
+    private long[] uids = new long[0];
+    private int count, pos;
+    private long uid;
+
+    HeapCursor(DataManagerImpl dm, long owner) {
+        this.dm = dm;
+        this.owner = owner;
+        this.lastPgno = dm.pc.getPageNumber();
+    }
+
+    public boolean next() throws Exception {
+        while (pos >= count) {
+            if(aheadPos >= aheadCount && !fetchAhead()) {
+                return false;
+            }
+            scan(ahead[aheadPos++]);
+        }
+        uid = uids[pos++];
+        return true;
+    }
+
+    public long getUid() {
+        return uid;
+    }
+
+    //找出后面最多READ_AHEAD个属于owner的页面，页号连续的多个页面一起预读，没有页面了返回false
+    private boolean fetchAhead() {
+        aheadCount = 0;
+        aheadPos = 0;
+        while (nextPgno <= lastPgno && aheadCount < READ_AHEAD) {
+            if(dm.owners.get(nextPgno) == owner) {
+                ahead[aheadCount++] = nextPgno;
+            }
+            nextPgno++;
+        }
+        for(int i = 0; i < aheadCount; ) {
+            int j = i + 1;
+            while (j < aheadCount && ahead[j] == ahead[j - 1] + 1) {
+                j++;
+            }
+            if(j - i > 1) {
+                dm.pc.readAhead(ahead[i], j - i);
+            }
+            i = j;
+        }
+        return aheadCount > 0;
+    }
+
+    //把一页中有效数据项的uid读入数组
+    private void scan(int pgno) throws Exception {
+        count = 0;
+        pos = 0;
+        Page page = dm.pc.getPage(pgno);
+        try {
+            short[] slots;
+            page.lock();
+            try {
+                slots = PageX.validSlots(page);
+            } finally {
+                page.unlock();
+            }
+            if(uids.length < slots.length) {
+                uids = new long[slots.length];
+            }
+            for(short slot : slots) {
+                uids[count++] = Types.addressToUid(pgno, slot);
+            }
+        } finally {
+            page.release();
+        }
+    }
+}
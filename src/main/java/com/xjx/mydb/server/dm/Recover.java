@@ -1,6 +1,7 @@
 package com.xjx.mydb.server.dm;
 
 import com.google.common.primitives.Bytes;
+import com.xjx.mydb.common.Error;
 import com.xjx.mydb.server.common.SubArray;
 import com.xjx.mydb.server.dm.dataItem.DataItem;
 import com.xjx.mydb.server.dm.logger.Logger;
@@ -11,7 +12,13 @@ import com.xjx.mydb.server.tm.TransactionManager;
 import com.xjx.mydb.server.utils.Panic;
 import com.xjx.mydb.server.utils.Parser;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @Author: Xjx
@@ -20,6 +27,9 @@ import java.util.*;
 public class Recover {
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    //插入到属于某个所有者的页面，日志中多了页面的所有者
+    private static final byte LOG_TYPE_OWNED_INSERT = 3;
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
@@ -28,48 +38,104 @@ public class Recover {
         long xid;
         //操作的页号
         int pgno;
-        //操作数据的偏移量
-        short offset;
+        //数据项在页内的槽号
+        short slot;
+        //页面的所有者，公共页面为0
+        long owner;
         //新增的数据
         byte[] raw;
     }
 
+    static class CheckpointLogInfo {
+        //检查点时数据库文件的页数
+        int noPages;
+        //检查点时仍然活跃的事务 -> 它的第一条日志的LSN
+        Map<Long, Long> activeXids;
+        //检查点写回的脏页面
+        List<Integer> dirtyPages;
+    }
+
     static class UpdateLogInfo {
         long xid;
         int pgno;
-        //日志对象对应的日志数据在日志文件中的偏移量
-        short offset;
+        //数据项在页内的槽号
+        short slot;
         byte[] oldRaw;
         byte[] newRaw;
     }
 
-     //通过日志文件恢复数据库数据
-     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+    //通过日志文件恢复数据库数据，没有检查点时checkpointLsn为0，从日志文件开头开始恢复
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, long checkpointLsn) {
+        recover(tm, lg, pc, checkpointLsn, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 恢复分三个阶段：
+     * 1. 分析：只顺序读一遍日志，统计最大页号，未完成事务的日志按事务收集起来，已结束事务的日志按页号分发给重做线程
+     * 2. 重做：和分析同时进行，同一页的日志总是交给同一个线程，按日志顺序执行，不同页面之间互不影响
+     * 3. 撤销：每个未完成事务倒序撤销自己的日志，不同事务并行执行，最后把它们标记为回滚
+     */
+    static void recover(TransactionManager tm, Logger lg, PageCache pc, long checkpointLsn, int noWorkers) {
         System.out.println("Recovering...");
 
-        //将偏移量改为第一个日志的偏移量
-        lg.rewind();
-        //遍历日志文件中的所有日志，维护一个日志所操作的缓存数据页的最大页数
+        //检查点之前已经结束的事务，其修改在检查点完成时都已经写回数据库文件，重做只需要从检查点开始
+        //但检查点时仍然活跃、现在也没有提交的事务需要撤销，要从它的第一条日志开始读
+        long redoStart = 0;
+        long scanStart = 0;
         int maxPgno = 0;
+        if(checkpointLsn > 0) {
+            lg.rewind(checkpointLsn);
+            byte[] log = lg.next();
+            if(log == null || !isCheckpointLog(log)) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            CheckpointLogInfo ci = parseCheckpointLog(log);
+            redoStart = checkpointLsn;
+            scanStart = checkpointLsn;
+            for(Map.Entry<Long, Long> entry : ci.activeXids.entrySet()) {
+                if(tm.isActive(entry.getKey())) {
+                    scanStart = Math.min(scanStart, entry.getValue());
+                }
+            }
+            //检查点时数据库文件中已有的页面都已经写回，不能被截掉
+            maxPgno = ci.noPages;
+        }
+
+        RedoWorker[] workers = new RedoWorker[noWorkers];
+        for(int i = 0; i < noWorkers; i++) {
+            workers[i] = new RedoWorker(pc);
+            workers[i].start();
+        }
+        //未完成事务 -> 它的日志，按日志顺序
+        Map<Long, List<byte[]>> undoLogs = new HashMap<>();
+        //事务状态的缓存，避免每条日志都去读一次XID文件
+        Map<Long, Boolean> active = new HashMap<>();
+        //将偏移量改为第一个需要读取的日志的偏移量
+        rewind(lg, scanStart);
         while (true) {
+            long lsn = lg.position();
             //因为DM的日志遍历方式是迭代，不断获取下一个日志文件
             byte[] log = lg.next();
             //如果没有下一个日志了就表示当前日志文件所有可恢复的日志都以恢复完毕
             if(log == null) break;
-            //插入日志中插入数据的页号
-            int pgno;
-            //日志只有两种：1是插入2是更新。判断类型之后将日志解析为对应日志格式
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
-            }
+            if(isCheckpointLog(log)) continue;
+            long xid = getXid(log);
+            int pgno = getPgno(log);
             if(pgno > maxPgno) {
                 maxPgno = pgno;
             }
+            //至于是重做还是撤销由事务状态判断（tm.isActive(xid)判断对应事务状态）
+            if(active.computeIfAbsent(xid, tm::isActive)) {
+                undoLogs.computeIfAbsent(xid, k -> new ArrayList<>()).add(log);
+            } else if(lsn >= redoStart) {
+                workers[Math.floorMod(pgno, noWorkers)].dispatch(log);
+            }
+        }
+        for(RedoWorker worker : workers) {
+            worker.finish();
         }
+        System.out.println("Redo Transactions Over.");
+
         //这里如果是一个空日志文件则要设置最大页号为1，因为数据库文件第一页不保存数据，不能删除
         if(maxPgno == 0) {
             maxPgno = 1;
@@ -77,92 +143,215 @@ public class Recover {
         //然后根据所操作的最大数据页号获取其实际地址然后根据这个最大地址截断数据库文件
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to" + maxPgno + "pages.");
-        //开始恢复数据库，至于是重做还是撤销由恢复方法自行判断（tm.isActive(xid)判断对应事务状态）
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
-        undoTranscations(tm, lg, pc);
+
+        undoTranscations(tm, pc, undoLogs, noWorkers);
         System.out.println("Undo Transactions Over.");
         System.out.println("Recovery Over");
-     }
+    }
 
-    //恢复数据库操作中有两步，这是第一步重做所有已完成项目
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        //将偏移量转到日志文件的实际日志数据起始地址
-        lg.rewind();
-        while (true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
+    //lsn为0表示从日志文件开头读取
+    private static void rewind(Logger lg, long lsn) {
+        if(lsn > 0) {
+            lg.rewind(lsn);
+        } else {
+            lg.rewind();
+        }
+    }
+
+    /**
+     * 重做线程：只处理分给它的页面上的日志，连续的日志落在同一页时不重复获取页面
+     */
+    private static class RedoWorker extends Thread {
+        //一次交给重做线程的日志条数
+        private static final int BATCH = 256;
+        //最多积压的批数，重做跟不上读日志时让分析线程等待，避免把整个日志读进内存
+        private static final int MAX_BATCHES = 64;
+        private static final List<byte[]> END = new ArrayList<>();
+
+        private final PageCache pc;
+        private final BlockingQueue<List<byte[]>> queue;
+        private List<byte[]> batch;
+
+        RedoWorker(PageCache pc) {
+            super("mydb-redo");
+            this.pc = pc;
+            this.queue = new ArrayBlockingQueue<>(MAX_BATCHES);
+            this.batch = new ArrayList<>(BATCH);
+        }
+
+        //只由分析线程调用
+        void dispatch(byte[] log) {
+            batch.add(log);
+            if(batch.size() >= BATCH) {
+                put(batch);
+                batch = new ArrayList<>(BATCH);
+            }
+        }
+
+        //交出剩余的日志并等待重做完成
+        void finish() {
+            if(!batch.isEmpty()) {
+                put(batch);
+            }
+            put(END);
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+
+        private void put(List<byte[]> logs) {
+            try {
+                queue.put(logs);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            Page page = null;
+            try {
+                while (true) {
+                    List<byte[]> logs = queue.take();
+                    if(logs == END) {
+                        break;
+                    }
+                    for(byte[] log : logs) {
+                        int pgno = getPgno(log);
+                        if(page == null || page.getPageNumber() != pgno) {
+                            if(page != null) {
+                                page.release();
+                            }
+                            page = pc.getPage(pgno);
+                        }
+                        applyLog(page, log, REDO);
+                    }
                 }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
+            } catch (Exception e) {
+                Panic.panic(e);
+            } finally {
+                if(page != null) {
+                    page.release();
                 }
             }
         }
     }
 
-    //恢复数据库操作第二步：撤销所有未完成事务
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        //首先统计出所有的日志，以事务进行区分
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
-        while (true) {
-            //获取日志数据
-            byte[] log = lg.next();
-            if(log == null) break;
-            //判断日志数据的类型
-            if(isInsertLog(log)) {
-                //将日志数据转化为日志对象
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                //判断执行此操作的事务是否是未执行完的事务
-                if(tm.isActive(xid)) {
-                    if (logCache.containsKey(xid)) {
-                        //给之前没统计过的事务创建一个新集合
-                        logCache.put(xid, new ArrayList<>());
+    //恢复数据库操作第二步：撤销所有未完成事务，不同事务并行，每个事务内部倒序执行
+    private static void undoTranscations(TransactionManager tm, PageCache pc, Map<Long, List<byte[]>> undoLogs, int noWorkers) {
+        if(undoLogs.isEmpty()) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(noWorkers, undoLogs.size()));
+        List<Future<?>> futures = new ArrayList<>();
+        for(List<byte[]> logs : undoLogs.values()) {
+            futures.add(pool.submit(() -> {
+                //倒序执行日志
+                for(int i = logs.size() - 1; i >= 0; i--) {
+                    byte[] log = logs.get(i);
+                    Page page = null;
+                    try {
+                        page = pc.getPage(getPgno(log));
+                    } catch (Exception e) {
+                        Panic.panic(e);
                     }
-                    logCache.get(xid).add(log);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
+                    try {
+                        applyLog(page, log, UNDO);
+                    } finally {
+                        page.release();
                     }
-                    logCache.get(xid).add(log);
                 }
+            }));
+        }
+        for(Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                Panic.panic(e);
             }
         }
-        //对所有active log进行倒序undo
-        //将每一个集合的事务单独取出执行
-        for(Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            //执行当前事务的所有日志
-            List<byte[]> logs = entry.getValue();
-            //倒序执行日志
-            for(int i = logs.size() - 1; i >= 0; i--) {
-                byte[] log = logs.get(i);
-                //重做和撤销只需要更改一个标志位即可
-                if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
-                }
+        pool.shutdown();
+        for(long xid : undoLogs.keySet()) {
+            tm.abort(xid);
+        }
+    }
+
+    //在页面上执行一条日志，重做和撤销只需要更改一个标志位即可
+    //不同线程可能同时撤销同一页上不同事务的日志，修改页面时要加页面锁
+    private static void applyLog(Page page, byte[] log, int flag) {
+        page.lock();
+        try {
+            if(isInsertLog(log)) {
+                doInsertLog(page, log, flag);
+            } else {
+                doUpdateLog(page, log, flag);
             }
-            tm.abort(entry.getKey());
+        } finally {
+            page.unlock();
         }
     }
 
+    //日志数据中的事务id，两种日志的XID都在同一个位置
+    private static long getXid(byte[] log) {
+        return ByteBuffer.wrap(log, OF_XID, 8).getLong();
+    }
+
+    //日志所操作的页号
+    private static int getPgno(byte[] log) {
+        if(isInsertLog(log)) {
+            return ByteBuffer.wrap(log, OF_INSERT_PGNO, 4).getInt();
+        }
+        long uid = ByteBuffer.wrap(log, OF_UPDATE_UID, 8).getLong();
+        return (int)((uid >>> 32) & ((1L << 32) - 1));
+    }
+
     //传入日志数据判断是否为插入操作，这里log是实际日志数据不包含日志头信息的
     private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+        return log[0] == LOG_TYPE_INSERT || log[0] == LOG_TYPE_OWNED_INSERT;
+    }
+
+    private static boolean isCheckpointLog(byte[] log) {
+        return log[0] == LOG_TYPE_CHECKPOINT;
+    }
+
+    //下面是检查点日志的相关API
+    //检查点日志数据格式：[LogType][NoPages][NoXids][XID FirstLSN]*[NoDirtyPages][Pgno]*
+    //NoPages是检查点时数据库文件的页数；XID FirstLSN是检查点时仍然活跃的事务及其第一条日志的LSN；
+    //Pgno是检查点拷贝并写回的脏页面（脏页表），恢复时只用于诊断
+    public static byte[] checkpointLog(int noPages, Map<Long, Long> activeXids, Collection<Integer> dirtyPages) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 4 + activeXids.size() * 16 + 4 + dirtyPages.size() * 4);
+        buf.put(LOG_TYPE_CHECKPOINT);
+        buf.putInt(noPages);
+        buf.putInt(activeXids.size());
+        for(Map.Entry<Long, Long> entry : activeXids.entrySet()) {
+            buf.putLong(entry.getKey());
+            buf.putLong(entry.getValue());
+        }
+        buf.putInt(dirtyPages.size());
+        for(int pgno : dirtyPages) {
+            buf.putInt(pgno);
+        }
+        return buf.array();
+    }
+
+    static CheckpointLogInfo parseCheckpointLog(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log, 1, log.length - 1);
+        CheckpointLogInfo ci = new CheckpointLogInfo();
+        ci.noPages = buf.getInt();
+        int noXids = buf.getInt();
+        ci.activeXids = new HashMap<>();
+        for(int i = 0; i < noXids; i++) {
+            long xid = buf.getLong();
+            ci.activeXids.put(xid, buf.getLong());
+        }
+        int noDirty = buf.getInt();
+        ci.dirtyPages = new ArrayList<>(noDirty);
+        for(int i = 0; i < noDirty; i++) {
+            ci.dirtyPages.add(buf.getInt());
+        }
+        return ci;
     }
 
     //下面是更新操作的相关API
@@ -195,9 +384,9 @@ public class Recover {
         UpdateLogInfo li = new UpdateLogInfo();
         //获取日志数据中的xid并解析为long类型赋值给日志对象
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        //获取日志文件对应的偏移量,uid即日志记录数据对象的页号和偏移量组成
+        //uid由数据项所在的页号和槽号组成
         long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short)(uid & ((1L << 16) - 1));
+        li.slot = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
         //将更新日志中的新老值分别赋值给更新日志对象
@@ -208,84 +397,77 @@ public class Recover {
     }
 
     //用于恢复数据库执行日志文件中保存的更新日志信息
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
+    private static void doUpdateLog(Page page, byte[] log, int flag) {
+        UpdateLogInfo xi = parseUpdateLog(log);
         //通过标志位判断是重写操作还是撤销操作
-        if(flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
-        } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
-        }
-        Page page = null;
-        try {
-            //通过页缓存区根据页号获取对应缓存数据页对象
-            page = pc.getPage(pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        try {
-            //根据更新日志获取的新值更新缓存数据
-            PageX.recoverUpdate(page, raw, offset);
-        } finally {
-            //执行完这一更新操作之后把这个缓存对象释放，因为在上面更新这个缓存数据页的缓存数据之后
-            //这个页已经是脏页面，如果没有其他页面引用这个缓存数据，那么就会把这次更新之后的数据刷回数据库
-            page.release();
-        }
+        byte[] raw = flag == REDO ? xi.newRaw : xi.oldRaw;
+        //根据更新日志获取的值更新缓存数据，页面会被标记为脏页面，之后被驱逐或者关闭时写回数据库
+        PageX.recoverUpdate(page, raw, xi.slot);
     }
     //下面是插入操作的相关API
-    //插入操作日志数据格式：[LogType][XID][Pgno][Offset][Raw]
+    //插入操作日志数据格式：[LogType][XID][Pgno][Slot][Raw]
+    //插入到属于所有者的页面时：[LogType][XID][Pgno][Slot][Owner][Raw]，新页面不用马上刷盘，崩溃后读出全0的页面由重做恢复所有者
     private static final int OF_INSERT_PGNO = OF_XID + 8;
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
-    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
+    private static final int OF_INSERT_SLOT = OF_INSERT_PGNO + 4;
+    private static final int OF_INSERT_RAW = OF_INSERT_SLOT + 2;
+    private static final int OF_OWNED_INSERT_RAW = OF_INSERT_RAW + 8;
 
     //根据事务id，缓存数据页，新插入数据生成一个插入日志数据（这个数据可以直接存储在日志文件中）
+    //日志中记录的是数据项将要使用的槽号，调用者需保证写日志和插入之间没有其他线程插入这一页
     public static byte[] insertLog(long xid, Page page, byte[] raw) {
-        byte[] logTypeRaw = {LOG_TYPE_INSERT};
+        return insertLog(xid, page.getPageNumber(), PageX.nextSlot(page), raw);
+    }
+
+    //插入到属于owner的页面，owner为0时和普通的插入日志相同
+    public static byte[] insertLog(long xid, Page page, long owner, byte[] raw) {
+        if(owner == 0) {
+            return insertLog(xid, page, raw);
+        }
+        byte[] logTypeRaw = {LOG_TYPE_OWNED_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgnoRaw = Parser.int2Byte(page.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(page));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        byte[] slotRaw = Parser.short2Byte(PageX.nextSlot(page));
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw, Parser.long2Byte(owner), raw);
+    }
+
+    static byte[] insertLog(long xid, int pgno, short slot, byte[] raw) {
+        byte[] logTypeRaw = {LOG_TYPE_INSERT};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        byte[] slotRaw = Parser.short2Byte(slot);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw, raw);
     }
 
     //根据传入的插入日志数据解析成一个插入日志对象
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_SLOT, OF_INSERT_RAW));
+        if(log[OF_TYPE] == LOG_TYPE_OWNED_INSERT) {
+            li.owner = Parser.parseLong(Arrays.copyOfRange(log, OF_INSERT_RAW, OF_OWNED_INSERT_RAW));
+            li.raw = Arrays.copyOfRange(log, OF_OWNED_INSERT_RAW, log.length);
+        } else {
+            li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        }
         return li;
     }
 
     //用于恢复数据库时执行日志文件中保存的插入日志信息
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
+    private static void doInsertLog(Page page, byte[] log, int flag) {
         //将日志文件中对应的插入操作日志转化为插入日志对象
         InsertLogInfo li = parseInsertLog(log);
-        Page page = null;
-        try {
-            //获取该插入日志所插入数据的位置
-            page = pc.getPage(li.pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
+        //页面的所有者不会改变，新建后没来得及写回的页面读出来是全0，在这里补上
+        if(li.owner != 0 && PageX.getOwner(page) != li.owner) {
+            PageX.setOwner(page, li.owner);
         }
-        try {
-            //如果是撤销操作则需要把对应插入数据删除
-            if(flag == UNDO) {
-                //这里并非物理删除，而是逻辑删除
-                DataItem.setDataItemRawInvalid(li.raw);
-            }
-            //无论redo还是undo都会执行下面的方法，因为dm没有删除操作，删除只是利用更新操作将数据项有效位标志改为无效
-            //因此undo会将有效位改为无效，redo则不会，但最终这个数据都会插入到数据页中
-            PageX.recoverInsert(page, li.raw, li.offset);
-        } finally {
-          page.release();
+        //如果是撤销操作则需要把对应插入数据删除
+        if(flag == UNDO) {
+            //这里并非物理删除，而是逻辑删除
+            DataItem.setDataItemRawInvalid(li.raw);
         }
+        //无论redo还是undo都会执行下面的方法，因为dm没有删除操作，删除只是利用更新操作将数据项有效位标志改为无效
+        //因此undo会将有效位改为无效，redo则不会，但最终这个数据都会插入到数据页中
+        PageX.recoverInsert(page, li.raw, li.slot);
     }
 }
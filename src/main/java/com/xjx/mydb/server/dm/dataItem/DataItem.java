@@ -4,6 +4,7 @@ import com.google.common.primitives.Bytes;
 import com.xjx.mydb.server.common.SubArray;
 import com.xjx.mydb.server.dm.DataManagerImpl;
 import com.xjx.mydb.server.dm.page.Page;
+import com.xjx.mydb.server.dm.page.PageX;
 import com.xjx.mydb.server.utils.Parser;
 import com.xjx.mydb.server.utils.Types;
 
@@ -15,6 +16,9 @@ import java.util.Arrays;
  *  DM提供给上层模块的数据库数据的抽象，其实例就是数据库中的数据
  */
 public interface DataItem {
+    //数据项头部（有效位和数据长度）的大小，data()之前的字节数
+    int HEADER_SIZE = DataItemImpl.OF_DATA;
+
     //用于存储返回数据的数组是数据共享的，不是利用拷贝实现的
     SubArray data();
 
@@ -27,6 +31,9 @@ public interface DataItem {
     void unlock();
     void rLock();
     void rUnlock();
+    //乐观读：不加锁读取数据，返回一个戳，数据项正被修改时返回0；读完后用validate检查期间有没有被修改过
+    long tryOptimisticRead();
+    boolean validate(long stamp);
 
     Page page();
     long getUid();
@@ -40,19 +47,37 @@ public interface DataItem {
         return Bytes.concat(valid, size, raw);
     }
 
-    //从页面的offset处解析处dataItem
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    //从页面的slot槽解析出dataItem
+    public static DataItem parseDataItem(Page pg, short slot, DataManagerImpl dm) {
+        long uid = Types.addressToUid(pg.getPageNumber(), slot);
         byte[] raw = pg.getData();
-        //获取数据的长度
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
+        int start;
+        //整理页面会移动数据项，读取槽中的偏移量要和整理互斥
+        pg.lock();
+        try {
+            start = PageX.getOffset(pg, slot);
+        } finally {
+            pg.unlock();
+        }
+        //槽中的数据项已经失效并被整理掉，返回一个无效的数据项
+        if(start < 0) {
+            byte[] dead = wrapDataItemRaw(new byte[0]);
+            setDataItemRawInvalid(dead);
+            return new DataItemImpl(new SubArray(dead, 0, dead.length), new byte[dead.length], pg, uid, dm);
+        }
+        //数据长度按2字节无符号数读取
+        int size = Short.toUnsignedInt(Parser.parseShort(Arrays.copyOfRange(raw, start + DataItemImpl.OF_SIZE, start + DataItemImpl.OF_DATA)));
         //数据实际长度=数据长度+头信息
-        short length = (short)(size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
+        int length = size + DataItemImpl.OF_DATA;
         //返回的数据项中raw就是SubArray，即start就是偏移量，end就是数据项长度
-        return new DataItemImpl(new SubArray(raw, offset, offset + length), new byte[length], pg, uid, dm);
+        return new DataItemImpl(new SubArray(raw, start, start + length), new byte[length], pg, uid, dm);
     }
 
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte)1;
     }
+
+    public static void setDataItemRawInvalid(SubArray raw) {
+        raw.raw[raw.start + DataItemImpl.OF_VALID] = (byte)1;
+    }
 }
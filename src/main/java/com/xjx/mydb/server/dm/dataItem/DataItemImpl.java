@@ -6,9 +6,7 @@ import com.xjx.mydb.server.dm.logger.Logger;
 import com.xjx.mydb.server.dm.page.Page;
 
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * @Author: Xjx
@@ -25,6 +23,8 @@ public class DataItemImpl implements DataItem {
     //数据对象的数据与数据页中的内存数据共享同一段内存
     private SubArray raw;
     private byte[] oldRaw;
+    //读写锁不可重入，另外支持乐观读，读多的索引节点读取时不需要阻塞写者
+    private StampedLock lock;
     private Lock rLock;
     private Lock wLock;
     //一个引用指向了DM，通过DM来管理数据项，比如缓存DataItem和释放DataItem
@@ -39,9 +39,9 @@ public class DataItemImpl implements DataItem {
         this.dm = dm;
         this.uid = uid;
         this.pg = pg;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        this.rLock = lock.readLock();
-        this.wLock = lock.writeLock();
+        this.lock = new StampedLock();
+        this.rLock = lock.asReadLock();
+        this.wLock = lock.asWriteLock();
     }
     public boolean isValid() {
         return raw.raw[raw.start + OF_VALID] == (byte)0;
@@ -55,8 +55,10 @@ public class DataItemImpl implements DataItem {
 
     //对数据修改的前置操作，需要先加写锁，保证并发安全然后设置修改设计的页面为脏页面，
     //方便缓存数据页释放时将数据写回磁盘。然后保存旧数据
+    //修改期间持有检查点的读锁，保证检查点拷贝的页面中不会有还没写日志的修改
     @Override
     public void before() {
+        dm.enterModify();
         wLock.lock();
         pg.setDirty(true);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
@@ -67,12 +69,14 @@ public class DataItemImpl implements DataItem {
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
         wLock.unlock();
+        dm.exitModify();
     }
 
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);
         wLock.unlock();
+        dm.exitModify();
     }
 
     @Override
@@ -100,6 +104,16 @@ public class DataItemImpl implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return lock.validate(stamp);
+    }
+
     @Override
     public Page page() {
         return pg;
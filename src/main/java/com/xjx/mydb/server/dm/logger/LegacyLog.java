@@ -0,0 +1,145 @@
+package com.xjx.mydb.server.dm.logger;
+
+import com.xjx.mydb.common.Error;
+import com.xjx.mydb.server.utils.Panic;
+import com.xjx.mydb.server.utils.Parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/6 - 10:48
+ * 旧格式日志文件的读取与迁移。
+ * 第一版格式：[XChecksum] [Log1] [Log2] ... [LogN]，单条日志：[Size][Checksum][Data]
+ * 第二版格式：[Magic][2] [Log1] [Log2] ... [LogN]，单条日志：[Size][LSN][Data][CRC][Size]，文件头中没有StartLSN和PrevCRC
+ * 打开旧格式的日志时，先按旧规则读出所有完整的日志，再用新格式写到临时文件，force之后原子替换原文件
+ * 旧格式的日志只会出现在槽页布局之前的数据库中，DataManager打开这样的数据库时先检查页面布局并拒绝，不会走到迁移；迁移只对单独打开的日志文件生效
+ */
+class LegacyLog {
+    //一个种子常量，用于计算日志校验和
+    private static final int SEED = 123456;
+    private static final int OF_SIZE = 0;
+    private static final int OF_CHECKSUM = OF_SIZE + 4;
+    private static final int OF_DATA = OF_CHECKSUM + 4;
+    //迁移时使用的临时文件后缀
+    private static final String MIGRATE_SUFFIX = ".migrating";
+    //第二版格式的文件头长度和单条日志除数据以外的长度
+    private static final int V2_HEADER_SIZE = 8;
+    private static final int V2_OF_DATA = 12;
+    private static final int V2_OVERHEAD = V2_OF_DATA + 8;
+
+    //把旧格式的日志文件原地迁移为新格式
+    static void migrate(File file) {
+        List<byte[]> datas = readAll(file);
+        File tmp = new File(file.getPath() + MIGRATE_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            FileChannel fc = raf.getChannel();
+            fc.truncate(0);
+            ByteBuffer buf = LoggerImpl.encode(datas);
+            long pos = 0;
+            while (buf.hasRemaining()) {
+                pos += fc.write(buf, pos);
+            }
+            fc.force(true);
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+    }
+
+    private static List<byte[]> readAll(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if(raf.length() >= V2_HEADER_SIZE && raf.readInt() == LoggerImpl.MAGIC && raf.readInt() == 2) {
+                return readAllV2(file);
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        return readAllV1(file);
+    }
+
+    //第二版格式：按头尾两个Size一致读出日志，遇到不完整的日志就停止，迁移后由新格式的CRC链保护
+    private static List<byte[]> readAllV2(File file) {
+        List<byte[]> datas = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long fileSize = raf.length();
+            long position = V2_HEADER_SIZE;
+            while (position + V2_OVERHEAD <= fileSize) {
+                raf.seek(position);
+                int size = raf.readInt();
+                if(size < 0 || position + V2_OVERHEAD + size > fileSize) {
+                    break;
+                }
+                byte[] data = new byte[size];
+                raf.seek(position + V2_OF_DATA);
+                raf.readFully(data);
+                raf.readInt();
+                if((raf.readInt() & 0x7FFFFFFF) != size) {
+                    break;
+                }
+                datas.add(data);
+                position += V2_OVERHEAD + size;
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        return datas;
+    }
+
+    //第一版格式：按旧规则读出所有完整的日志数据，badtail之前的日志的总校验和必须和文件头一致
+    private static List<byte[]> readAllV1(File file) {
+        List<byte[]> datas = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long fileSize = raf.length();
+            if(fileSize < 4) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            int xChecksum = raf.readInt();
+            int xCheck = 0;
+            long position = 4;
+            while (position + OF_DATA < fileSize) {
+                raf.seek(position);
+                int size = raf.readInt();
+                if(size < 0 || position + size + OF_DATA > fileSize) {
+                    break;
+                }
+                byte[] log = new byte[OF_DATA + size];
+                raf.seek(position);
+                raf.readFully(log);
+                byte[] data = Arrays.copyOfRange(log, OF_DATA, log.length);
+                if(calChecksum(0, data) != Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA))) {
+                    break;
+                }
+                xCheck = calChecksum(xCheck, log);
+                datas.add(data);
+                position += log.length;
+            }
+            if(xCheck != xChecksum) {
+                Panic.panic(Error.BadLogFileException);
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        return datas;
+    }
+
+    private static int calChecksum(int xCheck, byte[] log) {
+        for(byte b : log) {
+            xCheck = xCheck * SEED + b;
+        }
+        return xCheck;
+    }
+}
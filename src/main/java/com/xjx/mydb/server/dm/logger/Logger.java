@@ -2,13 +2,11 @@ package com.xjx.mydb.server.dm.logger;
 
 import com.xjx.mydb.common.Error;
 import com.xjx.mydb.server.utils.Panic;
-import com.xjx.mydb.server.utils.Parser;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 /**
@@ -16,14 +14,31 @@ import java.nio.channels.FileChannel;
  * @Create: 2022/12/30 - 11:19
  */
 public interface Logger {
+    //写入一条日志并等待它落盘，等价于flush(append(data))
     void log(byte[] data);
+    //把一条日志放入组提交缓冲区，立即返回这条日志的LSN（日志起始位置的逻辑偏移），此时日志不一定已经落盘
+    long append(byte[] data);
+    //阻塞直到LSN为lsn的日志以及它之前的所有日志都已经写入并force到磁盘
+    void flush(long lsn);
     void truncate(long x) throws Exception;
+    //丢弃LSN小于lsn的所有日志，用于检查点之后回收不再需要的日志前缀
+    void truncateBefore(long lsn);
     byte[] next();
     void rewind();
+    //从LSN为lsn的日志开始读取
+    void rewind(long lsn);
+    //下一次next()将要读取的日志的LSN
+    long position();
     void close();
 
     //根据路径创建日志文件，并返回对这个日志文件的日志操作对象
     public static Logger create(String path) {
+        return create(path, LoggerImpl.DEFAULT_MAX_DELAY_MICROS, LoggerImpl.DEFAULT_MAX_BATCH);
+    }
+
+    //maxDelayMicros：刷盘线程为了攒一组日志最多等待的时间，0表示有日志就立即刷盘
+    //maxBatch：一组最多包含的日志条数，达到后不再等待直接刷盘
+    public static Logger create(String path, long maxDelayMicros, int maxBatch) {
         File file = new File(path + LoggerImpl.LOG_SUFFIX);
         try {
             if(!file.createNewFile()) {
@@ -43,20 +58,24 @@ public interface Logger {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        //因为日志文件前四个字节是固定的日志统计校验和，新建日志则其值为0,
-        ByteBuffer buffer = ByteBuffer.wrap(Parser.int2Byte(0));
+        //新日志文件只有文件头：魔数和版本号，之后不再修改
         try {
-            fc.position(0);
-            fc.write(buffer);
+            fc.write(LoggerImpl.header(), 0);
             fc.force(false);
         } catch (IOException ioException) {
             Panic.panic(ioException);
         }
-        return new LoggerImpl(raf, fc, 0);
+        LoggerImpl log = new LoggerImpl(file, raf, fc, maxDelayMicros, maxBatch);
+        log.init();
+        return log;
     }
 
     //打开指定目录下的日志文件，返回其日志操作对象
     public static Logger open(String path) {
+        return open(path, LoggerImpl.DEFAULT_MAX_DELAY_MICROS, LoggerImpl.DEFAULT_MAX_BATCH);
+    }
+
+    public static Logger open(String path, long maxDelayMicros, int maxBatch) {
         File file = new File(path + LoggerImpl.LOG_SUFFIX);
         if(!file.exists()){
             Panic.panic(Error.FileNotExistsException);
@@ -64,6 +83,10 @@ public interface Logger {
         if(!file.canRead() || !file.canWrite()) {
             Panic.panic(Error.FileCannotRWExcepiton);
         }
+        //旧格式的日志文件先迁移为新格式
+        if(!LoggerImpl.isCurrentFormat(file)) {
+            LegacyLog.migrate(file);
+        }
 
         FileChannel fc = null;
         RandomAccessFile raf = null;
@@ -73,8 +96,8 @@ public interface Logger {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        LoggerImpl log = new LoggerImpl(raf, fc);
-        //对日志文件进行安全性校验
+        LoggerImpl log = new LoggerImpl(file, raf, fc, maxDelayMicros, maxBatch);
+        //校验文件头并移除日志文件末尾的bad tail
         log.init();
         return log;
     }
@@ -1,59 +1,147 @@
 package com.xjx.mydb.server.dm.logger;
 
-import com.google.common.primitives.Bytes;
+import com.google.common.hash.Hashing;
 import com.xjx.mydb.common.Error;
 import com.xjx.mydb.server.utils.Panic;
-import com.xjx.mydb.server.utils.Parser;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Author: Xjx
  * @Create: 2022/12/30 - 16:35
+ * 日志写入采用组提交：log()的调用者只把日志放进共享缓冲区，由一个刷盘线程把攒到的一组日志一次性写入文件并force一次，
+ * 然后唤醒这一组里所有等待落盘的调用者。
+ * 日志文件格式：[Magic][Version][StartLSN][PrevCRC] [Log1] [Log2] ... [LogN]，文件头写入后不再修改，追加日志是纯顺序写
+ * 单条日志格式：[Size][LSN][Data][CRC][Size]
+ * LSN是这条日志起始位置的逻辑偏移，截掉日志前缀之后也不会改变；StartLSN是文件中第一条日志的LSN，
+ * PrevCRC是被截掉的最后一条日志的CRC（没有截过则为0）。
+ * CRC是CRC32C(上一条日志的CRC, Size, LSN, Data)，日志之间通过CRC串成链，
+ * 尾部的Size让日志可以从文件末尾向前解析，其最高位标记这条日志是否是一组的最后一条
  */
 public class LoggerImpl implements Logger {
     //日志文件的后缀名
     public static final String LOG_SUFFIX = ".log";
-    //一个种子常量，用于计算日志校验和
-    private static final int SEED = 123456;
+    //日志文件头：魔数"MYDL"、格式版本号、文件中第一条日志的LSN、它前一条日志的CRC
+    static final int MAGIC = 0x4D59444C;
+    static final int VERSION = 3;
+    static final int HEADER_SIZE = 20;
+    //截断日志前缀时使用的临时文件后缀
+    private static final String TRUNCATE_SUFFIX = ".truncating";
     //日志起始地址（以下皆是随即数组存取方式）
     private static final int OF_SIZE = 0;
-    //日志检验和数据存放地址
-    private static final int OF_CHECKSUM = OF_SIZE + 4;
+    //日志LSN存放地址
+    private static final int OF_LSN = OF_SIZE + 4;
     //日志数据起始地址
-    private static final int OF_DATA = OF_CHECKSUM + 4;
+    private static final int OF_DATA = OF_LSN + 8;
+    //日志尾部：CRC + Size
+    private static final int TRAILER_SIZE = 8;
+    //单条日志除数据以外占用的字节数
+    private static final int OVERHEAD = OF_DATA + TRAILER_SIZE;
+    //尾部Size的最高位：这条日志是一组的最后一条，之前的日志在这一组写入前已经force过
+    private static final int GROUP_END = 0x80000000;
+    //默认不额外等待：刷盘线程忙于上一组force时到达的日志自然组成下一组
+    public static final long DEFAULT_MAX_DELAY_MICROS = 0;
+    //默认一组最多的日志条数
+    public static final int DEFAULT_MAX_BATCH = 1024;
+    private final File file;
     private RandomAccessFile raf;
     private FileChannel fc;
     private Lock lock;
+    //文件中第一条日志的LSN，LSN = startLsn + (文件偏移 - HEADER_SIZE)
+    private long startLsn;
+    //文件中第一条日志的前一条日志的CRC
+    private int startPrevCrc;
+
+    //组提交相关的状态都由appendLock保护，和读日志用的lock分开，读写互不阻塞
+    private final Lock appendLock = new ReentrantLock();
+    //缓冲区中有新日志或者要关闭时通知刷盘线程
+    private final Condition hasWork = appendLock.newCondition();
+    //一组日志落盘后通知等待的调用者
+    private final Condition durable = appendLock.newCondition();
+    //等待写入文件的日志（已经包装好Size和LSN，CRC由刷盘线程按顺序计算）
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    //下一条append的日志的LSN，即所有已append日志的结束位置
+    private long appendLsn;
+    //已经落盘的日志的结束位置，LSN小于它的日志都已经落盘
+    private long durableLsn;
+    private boolean closed;
+    //等待刷盘线程处理的截断请求，0表示没有
+    private long truncateLsn;
+    private final long maxDelayNanos;
+    private final int maxBatch;
+    private Thread flusher;
     //当前日志指针的位置，指向的应该是单个日志的头部即记录data长度的第一个字节处=之前全部日志的长度（因为是数组访问）
     private long position;
+    //读指针前一条日志的CRC，用于校验读到的日志
+    private int prevCrc;
     //初始化时记录，log操作不更新
     private long fileSize;
-    //当前日志对象对应日志文件的校验和
-    private int xChecksum;
 
-    //根据传入的文件和文件访问通道返回这个文件的日志操作对象，用于读取日志文件时
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
+    //根据传入的文件和文件访问通道返回这个文件的日志操作对象，需要调用init()完成尾部校验并启动刷盘线程
+    LoggerImpl(File file, RandomAccessFile raf, FileChannel fc, long maxDelayMicros, int maxBatch) {
+        this.file = file;
         this.raf = raf;
         this.fc = fc;
         lock = new ReentrantLock();
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+        this.maxBatch = Math.max(1, maxBatch);
     }
 
-    //多传入一个日志文件的检验和，一般用于创建日志文件时
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.raf = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        lock = new ReentrantLock();
+    //从LSN为end的位置开始追加日志，lastCrc是文件中最后一条日志的CRC
+    private void startFlusher(long end, int lastCrc) {
+        appendLsn = end;
+        durableLsn = end;
+        flusher = new Thread(() -> flushLoop(end, lastCrc), "mydb-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    //生成新格式的文件头，新建的日志文件中LSN就等于文件偏移
+    static ByteBuffer header() {
+        return header(HEADER_SIZE, 0);
+    }
+
+    private static ByteBuffer header(long startLsn, int prevCrc) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.putInt(MAGIC).putInt(VERSION).putLong(startLsn).putInt(prevCrc);
+        buf.flip();
+        return buf;
     }
 
-    //初始化日志对象
+    private long offsetOf(long lsn) {
+        return lsn - startLsn + HEADER_SIZE;
+    }
+
+    private long lsnOf(long offset) {
+        return offset - HEADER_SIZE + startLsn;
+    }
+
+    //判断日志文件是否是当前格式，不是的话需要先从旧格式迁移
+    static boolean isCurrentFormat(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if(raf.length() < HEADER_SIZE) {
+                return false;
+            }
+            return raf.readInt() == MAGIC && raf.readInt() == VERSION;
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+            return false;
+        }
+    }
+
+    //初始化日志对象：校验文件头，找到最后一条完整的日志并截掉后面的bad tail
     void init() {
         //获取日志文件的长度
         long size = 0;
@@ -62,49 +150,112 @@ public class LoggerImpl implements Logger {
         } catch (IOException ioException) {
             Panic.panic(ioException);
         }
-        if(size < 4) {
+        if(size < HEADER_SIZE) {
             Panic.panic(Error.BadLogFileException);
         }
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException ioException) {
-            Panic.panic(ioException);
+        ByteBuffer raw = readAt(0, HEADER_SIZE);
+        if(raw.getInt() != MAGIC || raw.getInt() != VERSION) {
+            Panic.panic(Error.BadLogFileException);
         }
-        int xChecksum = Parser.parseInt(raw.array());
-        //获取日志文件大小和日志文件的校验和用于初始化日志对象
+        this.startLsn = raw.getLong();
+        this.startPrevCrc = raw.getInt();
         this.fileSize = size;
-        this.xChecksum = xChecksum;
         checkAndRemoveTail();
     }
 
-    //检查并移除bad tail
+    //检查并移除bad tail：正常情况下只从文件末尾向前校验最后一组日志，校验失败才从头扫描整个文件
     private void checkAndRemoveTail() {
+        long end;
+        int lastCrc;
+        if(fileSize == HEADER_SIZE) {
+            end = HEADER_SIZE;
+            lastCrc = startPrevCrc;
+        } else if(checkTailGroup()) {
+            end = fileSize;
+            lastCrc = readAt(fileSize - TRAILER_SIZE, 4).getInt();
+        } else {
+            rewind();
+            while (internNext() != null) {}
+            end = position;
+            lastCrc = prevCrc;
+        }
+        if(end < fileSize) {
+            try {
+                truncate(end);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            fileSize = end;
+        }
+        startFlusher(lsnOf(end), lastCrc);
         rewind();
-        int xCheck = 0;
+    }
+
+    //从文件末尾向前逐条校验，直到遇到上一组的最后一条日志：那一组在最后一组写入之前就已经force过了，不需要再校验
+    private boolean checkTailGroup() {
+        long end = fileSize;
         while (true) {
-            byte[] log = internNext();
-            if(log == null) break;
-            xCheck = calChecksum(xCheck, log);
+            if(end - HEADER_SIZE < OVERHEAD) {
+                return false;
+            }
+            ByteBuffer trailer = readAt(end - TRAILER_SIZE, TRAILER_SIZE);
+            int crc = trailer.getInt();
+            int size = trailer.getInt() & ~GROUP_END;
+            long start = end - OVERHEAD - size;
+            if(start < HEADER_SIZE) {
+                return false;
+            }
+            int prev = startPrevCrc;
+            boolean prevIsGroupEnd = true;
+            if(start > HEADER_SIZE) {
+                if(start - HEADER_SIZE < OVERHEAD) {
+                    return false;
+                }
+                ByteBuffer prevTrailer = readAt(start - TRAILER_SIZE, TRAILER_SIZE);
+                prev = prevTrailer.getInt();
+                prevIsGroupEnd = (prevTrailer.getInt() & GROUP_END) != 0;
+            }
+            byte[] log = readAt(start, OF_DATA + size).array();
+            if(!checkLog(log, size, lsnOf(start), prev, crc)) {
+                return false;
+            }
+            if(prevIsGroupEnd) {
+                return true;
+            }
+            end = start;
         }
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
-        }
-        try {
-            truncate(position);
-        } catch (Exception e) {
-            Panic.panic(e);
+    }
+
+    //校验一条日志的头部Size、LSN和CRC链
+    private boolean checkLog(byte[] head, int size, long lsn, int prev, int crc) {
+        ByteBuffer buf = ByteBuffer.wrap(head);
+        if(buf.getInt(OF_SIZE) != size || buf.getLong(OF_LSN) != lsn) {
+            return false;
         }
-        rewind();
+        return calCrc(prev, head, OF_DATA + size) == crc;
     }
 
-    //该方法用于计算单个日志的校验和，通过一个种子常量与每一个日志文件的字节进行计算
-    private int calChecksum(int xCheck, byte[] log) {
-        for(byte b : log) {
-            xCheck = xCheck * SEED + b;
+    //计算单条日志的CRC32C，把上一条日志的CRC也算进去，使日志串成链
+    private static int calCrc(int prev, byte[] log, int len) {
+        return Hashing.crc32c().newHasher()
+                .putInt(prev)
+                .putBytes(log, 0, len)
+                .hash().asInt();
+    }
+
+    private ByteBuffer readAt(long pos, int len) {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        try {
+            while (buf.hasRemaining()) {
+                if(fc.read(buf, pos + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
         }
-        return xCheck;
+        buf.flip();
+        return buf;
     }
 
     //Logger被实现成迭代器模式，通过 next() 方法不断地从文件中读取下一条日志
@@ -115,7 +266,7 @@ public class LoggerImpl implements Logger {
         try {
             byte[] log = internNext();
             if(log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            return Arrays.copyOfRange(log, OF_DATA, log.length - TRAILER_SIZE);
         } finally {
             lock.unlock();
         }
@@ -123,83 +274,264 @@ public class LoggerImpl implements Logger {
 
     //next方法的具体底层实现
     private byte[] internNext() {
-        //如果当前日志指针位置加上这个日志的通用属性（日志data长度4字节+检验和4字节）>=文件长度则返回null即没有下一个日志了
-        if(position + OF_DATA >= fileSize) {
+        //如果当前日志指针位置加上这个日志的通用属性长度>=文件长度则返回null即没有下一个日志了
+        if(position + OVERHEAD > fileSize) {
             return null;
         }
-        //执行到这里表示当前日志文件还有空闲空间即还有下一个日志
-        ByteBuffer tmp = ByteBuffer.allocate(4);
-        try {
-            //通过单个日志头部的data长度信息读取这个日志文件长度
-            fc.position(position);
-            fc.read(tmp);
-        } catch (IOException ioException) {
-            Panic.panic(ioException);
-        }
-        int size = Parser.parseInt(tmp.array());
+        //通过单个日志头部的data长度信息读取这个日志文件长度
+        int size = readAt(position, 4).getInt();
         //如果加上当前读取的下一个文件长度之后大于文件长度，那么也返回null
-        if(position + size + OF_DATA > fileSize){
+        if(size < 0 || position + OVERHEAD + size > fileSize){
             return null;
         }
         //执行到这里表示日志文件中满足再读取下一个日志的条件
-        //为下一个日志分配内存
-        ByteBuffer buffer = ByteBuffer.allocate(OF_DATA + size);
-        try {
-            fc.position(position);
-            fc.read(buffer);
-        } catch (IOException ioException) {
-            Panic.panic(ioException);
+        byte[] log = readAt(position, OVERHEAD + size).array();
+        ByteBuffer trailer = ByteBuffer.wrap(log, OF_DATA + size, TRAILER_SIZE);
+        int crc = trailer.getInt();
+        if((trailer.getInt() & ~GROUP_END) != size) {
+            return null;
         }
-        //将字节缓冲中读到的日志转化成字节数组
-        byte[] log = buffer.array();
-        //将日志中的日志数据部分取出来并计算校验和
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        //取出这个日志的检验和部分
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        //比对两个检验和，如果不一致则表示日志记录错误返回null
-        if(checkSum1 != checkSum2) {
+        //比对LSN和CRC链，如果不一致则表示日志记录错误返回null
+        if(!checkLog(log, size, lsnOf(position), prevCrc, crc)) {
             return null;
         }
-        //执行到此处表示下一个日志读取成功，改变日志偏移量并返回日志数据
+        //执行到此处表示下一个日志读取成功，改变日志偏移量并返回日志
+        prevCrc = crc;
         position += log.length;
         return log;
     }
 
-    //修改日志文件的总检验和
-    private void updateXChecksum(byte[] log) {
-        //传入的是之前的总校验和和这次要参与运算的一个日志
-        this.xChecksum = calChecksum(this.xChecksum, log);
-        try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            fc.force(false);
-        } catch (IOException ioException) {
-            Panic.panic(ioException);
+    //将一组sql操作包装成日志，LSN和CRC在确定日志位置之后再填入
+    private static byte[] wrapLog(byte[] data) {
+        byte[] log = new byte[OVERHEAD + data.length];
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        buf.putInt(OF_SIZE, data.length);
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        buf.putInt(OF_DATA + data.length + 4, data.length);
+        return log;
+    }
+
+    //按链计算一条日志的CRC并填入尾部，返回这条日志的CRC
+    private static int sealLog(byte[] log, int prev) {
+        int crc = calCrc(prev, log, log.length - TRAILER_SIZE);
+        ByteBuffer.wrap(log).putInt(log.length - TRAILER_SIZE, crc);
+        return crc;
+    }
+
+    //把一组日志数据按照新格式写成一个完整的日志文件内容，用于从旧格式迁移
+    static ByteBuffer encode(Iterable<byte[]> datas) {
+        ArrayDeque<byte[]> logs = new ArrayDeque<>();
+        long lsn = HEADER_SIZE;
+        int crc = 0;
+        for(byte[] data : datas) {
+            byte[] log = wrapLog(data);
+            ByteBuffer.wrap(log).putLong(OF_LSN, lsn);
+            lsn += log.length;
+            crc = sealLog(log, crc);
+            logs.addLast(log);
         }
+        if(!logs.isEmpty()) {
+            markGroupEnd(logs.peekLast());
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) lsn);
+        buf.put(header());
+        for(byte[] log : logs) {
+            buf.put(log);
+        }
+        buf.flip();
+        return buf;
     }
 
-    //将一组sql操作包装成日志
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+    private static void markGroupEnd(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        int pos = log.length - 4;
+        buf.putInt(pos, buf.getInt(pos) | GROUP_END);
     }
 
-    //将一组sql操作包装成日志并写入日志文件中
+    //将一组sql操作包装成日志并写入日志文件中，返回时日志已经落盘
     @Override
     public void log(byte[] data) {
+        flush(append(data));
+    }
+
+    @Override
+    public long append(byte[] data) {
         byte[] log = wrapLog(data);
-        ByteBuffer buffer = ByteBuffer.wrap(log);
+        appendLock.lock();
+        try {
+            if(closed) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            long lsn = appendLsn;
+            appendLsn += log.length;
+            ByteBuffer.wrap(log).putLong(OF_LSN, lsn);
+            pending.addLast(log);
+            //缓冲区由空变为非空或者攒满一组时才需要叫醒刷盘线程
+            if(pending.size() == 1 || pending.size() >= maxBatch) {
+                hasWork.signal();
+            }
+            return lsn;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public void flush(long lsn) {
+        appendLock.lock();
+        try {
+            while (durableLsn <= lsn) {
+                durable.await();
+            }
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    //刷盘线程：每次取出一组日志，按顺序串好CRC链，一次写入、一次force；日志前缀的截断也由刷盘线程完成
+    private void flushLoop(long end, int lastCrc) {
+        //写入位置和CRC链只由刷盘线程推进
+        long writeLsn = end;
+        int crc = lastCrc;
+        while (true) {
+            byte[][] batch = null;
+            long truncate;
+            appendLock.lock();
+            try {
+                while (pending.isEmpty() && truncateLsn == 0 && !closed) {
+                    hasWork.await();
+                }
+                truncate = truncateLsn;
+                if(pending.isEmpty() && truncate == 0) {
+                    //已关闭且没有剩余日志
+                    return;
+                }
+                if(!pending.isEmpty()) {
+                    //组不满时最多再等maxDelay，让更多并发的日志搭上这一次force
+                    long nanos = maxDelayNanos;
+                    while (nanos > 0 && pending.size() < maxBatch && !closed) {
+                        nanos = hasWork.awaitNanos(nanos);
+                    }
+                    batch = new byte[Math.min(pending.size(), maxBatch)][];
+                    for(int i = 0; i < batch.length; i++) {
+                        batch[i] = pending.pollFirst();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+                return;
+            } finally {
+                appendLock.unlock();
+            }
+
+            if(batch != null) {
+                for(byte[] log : batch) {
+                    crc = sealLog(log, crc);
+                }
+                markGroupEnd(batch[batch.length - 1]);
+                writeLsn = writeBatch(batch, writeLsn);
+            }
+            if(truncate != 0) {
+                rewriteFrom(Math.min(truncate, writeLsn), writeLsn);
+            }
+
+            appendLock.lock();
+            try {
+                durableLsn = writeLsn;
+                if(truncate != 0) {
+                    truncateLsn = 0;
+                }
+                durable.signalAll();
+            } finally {
+                appendLock.unlock();
+            }
+        }
+    }
+
+    //把一组日志拼成一个缓冲区顺序写到文件末尾并force，返回新的文件末尾的LSN
+    private long writeBatch(byte[][] batch, long writeLsn) {
+        int total = 0;
+        for(byte[] log : batch) {
+            total += log.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        for(byte[] log : batch) {
+            buffer.put(log);
+        }
+        buffer.flip();
+        try {
+            long pos = offsetOf(writeLsn);
+            while (buffer.hasRemaining()) {
+                pos += fc.write(buffer, pos);
+            }
+            fc.force(false);
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        return writeLsn + total;
+    }
+
+    //丢弃LSN小于lsn的日志：把[lsn, end)这段日志原样拷贝到一个新文件中，force之后原子替换旧文件
+    //日志本身的LSN和CRC链都不变，新文件头记录第一条日志的LSN和它前一条日志的CRC
+    private void rewriteFrom(long lsn, long end) {
+        if(lsn <= startLsn) {
+            return;
+        }
+        long from = offsetOf(lsn);
+        int prev = readAt(from - TRAILER_SIZE, 4).getInt();
+        File tmp = new File(file.getPath() + TRUNCATE_SUFFIX);
+        try (RandomAccessFile tmpRaf = new RandomAccessFile(tmp, "rw")) {
+            FileChannel tmpFc = tmpRaf.getChannel();
+            tmpFc.truncate(0);
+            ByteBuffer head = header(lsn, prev);
+            while (head.hasRemaining()) {
+                tmpFc.write(head, head.position());
+            }
+            long count = offsetOf(end) - from;
+            long copied = 0;
+            while (copied < count) {
+                copied += fc.transferTo(from + copied, count - copied, tmpFc.position(HEADER_SIZE + copied));
+            }
+            tmpFc.force(true);
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buffer);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fc.close();
+            raf.close();
+            raf = new RandomAccessFile(file, "rw");
+            fc = raf.getChannel();
+            startLsn = lsn;
+            startPrevCrc = prev;
+            fileSize = offsetOf(end);
+            position = HEADER_SIZE;
+            prevCrc = prev;
         } catch (IOException ioException) {
             Panic.panic(ioException);
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
+    }
+
+    //请求刷盘线程丢弃LSN小于lsn的日志并等待完成，只能在恢复完成之后调用
+    @Override
+    public void truncateBefore(long lsn) {
+        appendLock.lock();
+        try {
+            truncateLsn = lsn;
+            hasWork.signal();
+            while (truncateLsn != 0) {
+                durable.await();
+            }
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        } finally {
+            appendLock.unlock();
+        }
     }
 
     //截断指定长度的当前文件，用于移除日志文件末尾的badtail
@@ -213,14 +545,52 @@ public class LoggerImpl implements Logger {
         }
     }
 
-    //设置当前日志操作对象的偏移量为4，即开始操作第一个日志文件
+    //设置当前日志操作对象的偏移量为文件头之后，即开始操作第一个日志文件
     @Override
     public void rewind() {
-        position = 4;
+        position = HEADER_SIZE;
+        prevCrc = startPrevCrc;
+    }
+
+    //把读指针移动到LSN为lsn的日志处，lsn必须是一条日志的起始位置
+    @Override
+    public void rewind(long lsn) {
+        lock.lock();
+        try {
+            long offset = offsetOf(lsn);
+            if(offset < HEADER_SIZE || offset > fileSize) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            position = offset;
+            prevCrc = offset == HEADER_SIZE ? startPrevCrc : readAt(offset - TRAILER_SIZE, 4).getInt();
+        } finally {
+            lock.unlock();
+        }
     }
 
+    //下一次next()将要读取的日志的LSN
+    @Override
+    public long position() {
+        return lsnOf(position);
+    }
+
+    //关闭前先让刷盘线程写完缓冲区中剩余的日志
     @Override
     public void close() {
+        appendLock.lock();
+        try {
+            closed = true;
+            hasWork.signal();
+        } finally {
+            appendLock.unlock();
+        }
+        if(flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
         try {
             fc.close();
             raf.close();
@@ -19,4 +19,7 @@ public interface Page {
     int getPageNumber();
     //得到当前数据页的实际缓存数据
     byte[] getData();
+    //记录修改这一页的最后一条日志的LSN，页面写回前这条日志必须已经落盘，0表示没有需要等待的日志
+    void setLsn(long lsn);
+    long getLsn();
 }
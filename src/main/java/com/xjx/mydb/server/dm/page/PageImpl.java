@@ -17,6 +17,8 @@ public class PageImpl implements Page {
     private byte[] data;
     //标记一个页是否为脏页面。缓存驱逐的时候，脏页面需要被写回磁盘.比如设计到更新插入操作时都需要设置数据页为脏页面
     private boolean dirty;
+    //修改这一页的最后一条日志的LSN，只保存在内存中
+    private volatile long lsn;
     private Lock lock;
     //指向当前缓存数据页的缓存数据，方便在拿到 Page 的引用时可以快速对这个页面的缓存进行释放操作。
     private PageCache pc;
@@ -65,6 +67,19 @@ public class PageImpl implements Page {
     public byte[] getData() {
         return data;
     }
+
+    //同一页可能被多个线程修改，只保留较大的LSN
+    @Override
+    public synchronized void setLsn(long lsn) {
+        if(lsn > this.lsn) {
+            this.lsn = lsn;
+        }
+    }
+
+    @Override
+    public long getLsn() {
+        return lsn;
+    }
 }
 
 
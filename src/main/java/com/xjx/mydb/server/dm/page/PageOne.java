@@ -1,6 +1,7 @@
 package com.xjx.mydb.server.dm.page;
 
 import com.xjx.mydb.server.dm.pageCache.PageCache;
+import com.xjx.mydb.server.utils.Parser;
 import com.xjx.mydb.server.utils.RandomUtil;
 import java.util.Arrays;
 
@@ -11,20 +12,49 @@ import java.util.Arrays;
  * ValidCheck
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据库是否正常关闭
+ * CheckpointLSN
+ * 116~123字节处保存最近一次完成的检查点日志的LSN，0表示还没有做过检查点，恢复时从这里开始
+ * PageSize
+ * 124~127字节处保存创建数据库时指定的页面大小，0表示旧版本创建的文件，页面大小为默认的16KB
+ * PageLayout
+ * 128~131字节处保存普通页的格式版本，旧版本的普通页用页内偏移作为uid，没有记录版本，不能用槽页格式打开；
+ * 版本1的槽页没有记录页面的所有者，也不能用现在的格式打开
+ * 这些字段都在最小页面大小之内，打开数据库时先读出页面大小再按它划分页面
  */
 public class PageOne {
     //数据库文件中启动检查的起始地址
     private static final int OF_VC = 100;
     //数据库文件中启动检查的数据长度
     private static final int LEN_VC = 8;
+    //最近一次检查点日志的LSN的存放地址
+    private static final int OF_CKPT = OF_VC + 2 * LEN_VC;
+    //页面大小的存放地址
+    public static final int OF_PAGE_SIZE = OF_CKPT + 8;
+    //普通页格式版本的存放地址
+    private static final int OF_LAYOUT = OF_PAGE_SIZE + 4;
+    //当前的普通页格式：页头记录了所有者的槽页
+    private static final int LAYOUT_SLOTTED = 2;
 
-    public static byte[] InitRaw() {
+    public static byte[] InitRaw(int pageSize) {
         //数据库文件启动时首先模拟出第一页缓存数据页
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+        byte[] raw = new byte[pageSize];
         setVcOpen(raw);
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
+        System.arraycopy(Parser.int2Byte(LAYOUT_SLOTTED), 0, raw, OF_LAYOUT, 4);
         return raw;
     }
 
+    //从第一页的前若干字节中解析出页面大小，旧文件没有记录时返回默认页面大小
+    public static int parsePageSize(byte[] head) {
+        int pageSize = Parser.parseInt(Arrays.copyOfRange(head, OF_PAGE_SIZE, OF_PAGE_SIZE + 4));
+        return pageSize == 0 ? PageCache.PAGE_SIZE : pageSize;
+    }
+
+    //数据库文件的普通页是否是当前的槽页格式
+    public static boolean checkLayout(Page page) {
+        return Parser.parseInt(Arrays.copyOfRange(page.getData(), OF_LAYOUT, OF_LAYOUT + 4)) == LAYOUT_SLOTTED;
+    }
+
     //启动检查失败时调用此方法即上次数据库异常关闭，标记此数据页为脏数据并重新生成随机字节数组
     public static void setVcOpen(Page page){
         page.setDirty(true);
@@ -49,6 +79,16 @@ public class PageOne {
         System.arraycopy(raw, OF_VC, raw, OF_VC + LEN_VC, LEN_VC);
     }
 
+    //检查点的页面全部写回之后记录它的LSN，调用者负责把第一页刷回磁盘
+    public static void setCheckpointLsn(Page page, long lsn) {
+        page.setDirty(true);
+        System.arraycopy(Parser.long2Byte(lsn), 0, page.getData(), OF_CKPT, 8);
+    }
+
+    public static long getCheckpointLsn(Page page) {
+        return Parser.parseLong(Arrays.copyOfRange(page.getData(), OF_CKPT, OF_CKPT + 8));
+    }
+
     //因为Page是数据缓存页，它还包含了一些页相关信息，真正缓存数据都在data字节数组中
     public static boolean checkVc(Page page) {
         return checkVc(page.getData());
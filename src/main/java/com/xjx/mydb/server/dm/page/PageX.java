@@ -1,82 +1,285 @@
 package com.xjx.mydb.server.dm.page;
 
-import com.xjx.mydb.server.dm.pageCache.PageCache;
 import com.xjx.mydb.server.utils.Parser;
 import java.util.Arrays;
 
 /**
  * @Author: Xjx
  * @Create: 2022/12/26 - 10:19
- * 管理数据库文件中除第一页之外的所有其他普通页
- * 普通页面以一个 2 字节无符号数起始，表示这一页的空闲位置的偏移。剩下的部分都是实际存储的数据。
+ * 管理数据库文件中除第一页之外的所有其他普通页，普通页是槽页结构：
+ * [NoSlots][Upper][Frag][Owner][Slot0][Slot1]...[SlotN] ...空闲空间... [DataN]...[Data1][Data0]
+ * Owner是这一页的所有者，0表示公共页面，任何数据都可以放进来；不为0时是某张表的uid，这一页只存放这张表的记录，顺序扫描表时只读这些页面。
+ * 页头之后是槽目录，从前往后增长；数据项从页尾往前存放，Upper是最前面一个数据项的位置。
+ * 每个槽是 [Offset][Length]，uid中保存的是槽号而不是页内偏移，整理页面移动数据项时只需要修改槽，uid保持不变。
+ * Offset为0表示槽空闲，可以分配给新数据项；为1表示槽对应的数据项已经失效并被整理掉，这个槽不再使用（索引中可能还有它的uid）。
+ * 数据项的第一个字节是DataItem的有效位，不为0的数据项在整理页面时被回收，Frag记录已经失效但还没有回收的字节数。
+ * 页内偏移和长度都是2字节无符号数，64KB页面的最后一个字节无法表示，不使用
  */
 public class PageX {
-    //空闲空间偏移量的起始地址
-    private static final short OF_FREE = 0;
-    //空闲空间偏移量大小为两个字节也代表着实际数据的起始地址
-    private static final short OF_DATA = 2;
-    //最大空闲空间大小
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
-
-    //初始化一个新的普通页
-    public static byte[] initRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+    private static final int OF_NO_SLOTS = 0;
+    private static final int OF_UPPER = 2;
+    private static final int OF_FRAG = 4;
+    private static final int OF_OWNER = 6;
+    //槽目录的起始地址
+    private static final int OF_SLOTS = OF_OWNER + 8;
+    //每个槽的大小：数据项偏移2字节+长度2字节
+    private static final int SLOT_SIZE = 4;
+    //槽的两种特殊状态
+    private static final int SLOT_UNUSED = 0;
+    private static final int SLOT_DEAD = 1;
+    //2字节无符号偏移量能表示的最大位置
+    private static final int MAX_OFFSET = 0xFFFF;
+
+    //页面大小为pageSize时一个数据项最大的大小，即空页面减去页头和一个槽
+    public static int maxFreeSpace(int pageSize) {
+        return Math.min(pageSize, MAX_OFFSET) - OF_SLOTS - SLOT_SIZE;
+    }
+
+    //初始化一个新的公共页面，没有槽，Upper指向页尾
+    public static byte[] initRaw(int pageSize) {
+        return initRaw(pageSize, 0);
+    }
+
+    //初始化一个属于owner的新页面
+    public static byte[] initRaw(int pageSize, long owner) {
+        byte[] raw = new byte[pageSize];
+        setUpper(raw, limit(raw));
+        System.arraycopy(Parser.long2Byte(owner), 0, raw, OF_OWNER, 8);
         return raw;
     }
 
-    //设置当前数据页的空闲空间偏移量
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    //这一页的所有者，页面初始化之后不会改变
+    public static long getOwner(Page page) {
+        return Parser.parseLong(Arrays.copyOfRange(page.getData(), OF_OWNER, OF_OWNER + 8));
+    }
+
+    //补上新建后没来得及写回、读出来是全0的页面的所有者，插入这一页和重做插入日志时调用
+    public static void setOwner(Page page, long owner) {
+        page.setDirty(true);
+        System.arraycopy(Parser.long2Byte(owner), 0, page.getData(), OF_OWNER, 8);
+    }
+
+    //数据页能使用的末尾位置
+    private static int limit(byte[] raw) {
+        return Math.min(raw.length, MAX_OFFSET);
+    }
+
+    private static int getU16(byte[] raw, int pos) {
+        return Short.toUnsignedInt(Parser.parseShort(Arrays.copyOfRange(raw, pos, pos + 2)));
+    }
+
+    private static void setU16(byte[] raw, int pos, int value) {
+        System.arraycopy(Parser.short2Byte((short) value), 0, raw, pos, 2);
+    }
+
+    private static int getNoSlots(byte[] raw) {
+        return getU16(raw, OF_NO_SLOTS);
+    }
+
+    //新建页面不会立即刷盘，崩溃后可能读出全0的页面，Upper为0时当作刚初始化的空页面
+    private static int getUpper(byte[] raw) {
+        int upper = getU16(raw, OF_UPPER);
+        return upper == 0 ? limit(raw) : upper;
+    }
+
+    private static void setUpper(byte[] raw, int upper) {
+        setU16(raw, OF_UPPER, upper);
+    }
+
+    private static int slotPos(int slot) {
+        return OF_SLOTS + slot * SLOT_SIZE;
+    }
+
+    private static int getSlotOffset(byte[] raw, int slot) {
+        return getU16(raw, slotPos(slot));
+    }
+
+    private static int getSlotLength(byte[] raw, int slot) {
+        return getU16(raw, slotPos(slot) + 2);
+    }
+
+    private static void setSlot(byte[] raw, int slot, int offset, int length) {
+        setU16(raw, slotPos(slot), offset);
+        setU16(raw, slotPos(slot) + 2, length);
     }
 
-    //获取一个数据页的当前空闲空间偏移量FSO
-    public static short getFSO(Page page) {
-        return getFSO(page.getData());
+    //槽目录之后、Upper之前的连续空闲空间
+    private static int contiguous(byte[] raw) {
+        return getUpper(raw) - slotPos(getNoSlots(raw));
     }
 
-    //一个数据页的实际数据存储在其data中
-    private static short getFSO(byte[] raw) {
-        //获取其实际数据中起始两个字节的数据并转化为short类型返回，即空闲空间偏移量
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    //下一个插入会使用的槽：第一个空闲槽，没有则在槽目录末尾新建一个
+    public static short nextSlot(Page page) {
+        byte[] raw = page.getData();
+        int noSlots = getNoSlots(raw);
+        for(int i = 0; i < noSlots; i++) {
+            if(getSlotOffset(raw, i) == SLOT_UNUSED) {
+                return (short) i;
+            }
+        }
+        return (short) noSlots;
+    }
+
+    //插入slot需要的空间：数据项本身，以及新建槽时的槽大小
+    private static int required(byte[] raw, int slot, int length) {
+        return slot < getNoSlots(raw) ? length : length + (slot - getNoSlots(raw) + 1) * SLOT_SIZE;
+    }
+
+    //页面的空闲空间，包括整理页面后可以回收的字节，并预留一个新槽的位置
+    public static int getFreeSpace(Page page) {
+        byte[] raw = page.getData();
+        return Math.max(0, contiguous(raw) + getU16(raw, OF_FRAG) - SLOT_SIZE);
+    }
+
+    //不整理页面时能直接使用的空闲空间，同样预留一个新槽的位置
+    public static int getContiguousFreeSpace(Page page) {
+        return Math.max(0, contiguous(page.getData()) - SLOT_SIZE);
+    }
+
+    //不整理页面时能否直接放下一个length大小的数据项
+    public static boolean fits(Page page, int length) {
+        byte[] raw = page.getData();
+        return contiguous(raw) >= required(raw, nextSlot(page), length);
     }
 
-    //将raw插入page中， 返回插入位置
+    //将raw插入page中，返回它的槽号，调用者需保证空间足够（必要时先整理页面）
     public static short insert(Page page, byte[] raw) {
         //新增操作，设置该缓存数据页为脏页面，缓存释放时需要写回
         page.setDirty(true);
-        //获取当前页的空闲空间偏移量
-        short offset = getFSO(page.getData());
-        //将新插入的数据raw根据获得的偏移量复制到页实际数据的空闲空间中
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
-        //插入完数据之后更新空闲空间偏移量
-        setFSO(page.getData(), (short)(offset + raw.length));
-        //返回新插入数据的地址
-        return offset;
+        short slot = nextSlot(page);
+        put(page.getData(), slot, raw);
+        return slot;
     }
 
-    //获取页面的空闲空间大小
-    public static int getFreeSpace(Page page) {
-        return PageCache.PAGE_SIZE - (int)getFSO(page.getData());
+    //在Upper之前分配空间存放数据项，并让slot指向它，槽目录不够长时扩展，中间的槽都是空闲槽
+    private static void put(byte[] data, int slot, byte[] raw) {
+        int noSlots = getNoSlots(data);
+        if(slot >= noSlots) {
+            for(int i = noSlots; i <= slot; i++) {
+                setSlot(data, i, SLOT_UNUSED, 0);
+            }
+            setU16(data, OF_NO_SLOTS, slot + 1);
+        }
+        int offset = getUpper(data) - raw.length;
+        System.arraycopy(raw, 0, data, offset, raw.length);
+        setUpper(data, offset);
+        setSlot(data, slot, offset, raw.length);
+    }
+
+    //得到slot对应数据项的页内偏移，槽不存在、空闲或已失效时返回-1
+    public static int getOffset(Page page, short slot) {
+        byte[] raw = page.getData();
+        int s = Short.toUnsignedInt(slot);
+        if(s >= getNoSlots(raw)) {
+            return -1;
+        }
+        int offset = getSlotOffset(raw, s);
+        return offset == SLOT_UNUSED || offset == SLOT_DEAD ? -1 : offset;
+    }
+
+    //页面中所有有效数据项的槽号，按槽号从小到大。整理页面会修改槽，调用者需持有页面锁
+    public static short[] validSlots(Page page) {
+        byte[] raw = page.getData();
+        int noSlots = getNoSlots(raw);
+        short[] slots = new short[noSlots];
+        int count = 0;
+        for(int i = 0; i < noSlots; i++) {
+            int offset = getSlotOffset(raw, i);
+            if(offset != SLOT_UNUSED && offset != SLOT_DEAD && raw[offset] == 0) {
+                slots[count++] = (short) i;
+            }
+        }
+        return Arrays.copyOf(slots, count);
+    }
+
+    //slot对应的数据项被标记为无效之后调用，它的空间计入碎片，等待整理回收
+    public static void addFrag(Page page, short slot) {
+        byte[] raw = page.getData();
+        int length = getSlotLength(raw, Short.toUnsignedInt(slot));
+        setU16(raw, OF_FRAG, getU16(raw, OF_FRAG) + length);
+    }
+
+    /**
+     * 整理页面：把有效的数据项紧凑地移动到页尾，回收无效数据项的空间，无效数据项的槽标记为失效。
+     * 会移动数据项，调用者必须保证没有其他线程持有指向这一页数据的引用
+     */
+    public static void compact(Page page) {
+        page.setDirty(true);
+        byte[] raw = page.getData();
+        byte[] copy = Arrays.copyOf(raw, raw.length);
+        int noSlots = getNoSlots(raw);
+        int upper = limit(raw);
+        for(int i = 0; i < noSlots; i++) {
+            int offset = getSlotOffset(copy, i);
+            if(offset == SLOT_UNUSED || offset == SLOT_DEAD) {
+                continue;
+            }
+            int length = getSlotLength(copy, i);
+            if(copy[offset] != 0) {
+                setSlot(raw, i, SLOT_DEAD, 0);
+                continue;
+            }
+            upper -= length;
+            System.arraycopy(copy, offset, raw, upper, length);
+            setSlot(raw, i, upper, length);
+        }
+        Arrays.fill(raw, slotPos(noSlots), upper, (byte) 0);
+        setUpper(raw, upper);
+        setU16(raw, OF_FRAG, 0);
     }
 
-    //此方法实现覆盖插入数据操作：将raw插入page中的offset位置，并将page的offset设置为较大的offset即空闲空间偏移量
-    public static void recoverInsert(Page page, byte[] raw, short offset) {
+    //恢复时重做或撤销插入：把raw放到slot中，槽中已经有同样长度的数据项时直接覆盖
+    public static void recoverInsert(Page page, byte[] raw, short slot) {
         //修改操作，设置该缓存数据页为脏页面，缓存释放时需要写回
         page.setDirty(true);
-        //将传入的数据覆盖数据页中offset位置上的数据
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
-        //获取该数据页的空闲空间偏移量
-        short rawFSO = getFSO(page.getData());
-        //如果修改数据的地址大于原有空闲空间偏移量，则将FSO设置为修改数据之后的地址
-        if(rawFSO < offset + raw.length) {
-            setFSO(page.getData(), (short)(offset + raw.length));
+        byte[] data = page.getData();
+        int s = Short.toUnsignedInt(slot);
+        if(s < getNoSlots(data)) {
+            int offset = getSlotOffset(data, s);
+            //已经失效并被整理掉的数据项不再恢复
+            if(offset == SLOT_DEAD) {
+                return;
+            }
+            if(offset != SLOT_UNUSED) {
+                int length = getSlotLength(data, s);
+                if(length == raw.length) {
+                    //撤销插入会把数据项改为无效，它占用的空间计入碎片，等待整理回收
+                    if(data[offset] == 0 && raw[0] != 0) {
+                        setU16(data, OF_FRAG, getU16(data, OF_FRAG) + length);
+                    }
+                    System.arraycopy(raw, 0, data, offset, raw.length);
+                    return;
+                }
+                //长度不同说明槽中是旧的数据项，旧数据项的空间之后整理回收
+                setU16(data, OF_FRAG, getU16(data, OF_FRAG) + length);
+                setSlot(data, s, SLOT_UNUSED, 0);
+            }
+        }
+        if(contiguous(data) < required(data, s, raw.length)) {
+            compact(page);
+        }
+        put(data, s, raw);
+        if(raw[0] != 0) {
+            setU16(data, OF_FRAG, getU16(data, OF_FRAG) + raw.length);
         }
     }
 
-    //此方法实现修改数据操作：将raw插入pg中的offset位置，不更新update
-    public static void recoverUpdate(Page page, byte[] raw, short offset) {
+    //此方法实现修改数据操作：将raw写入slot对应的数据项，不改变数据项的位置
+    //修改改变了数据项的有效位时（清理回收了数据项）同时维护碎片字节数
+    public static void recoverUpdate(Page page, byte[] raw, short slot) {
+        int offset = getOffset(page, slot);
+        if(offset < 0) {
+            return;
+        }
         page.setDirty(true);
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
+        byte[] data = page.getData();
+        int length = getSlotLength(data, Short.toUnsignedInt(slot));
+        int frag = getU16(data, OF_FRAG);
+        if(data[offset] == 0 && raw[0] != 0) {
+            setU16(data, OF_FRAG, frag + length);
+        } else if(data[offset] != 0 && raw[0] == 0) {
+            setU16(data, OF_FRAG, Math.max(0, frag - length));
+        }
+        System.arraycopy(raw, 0, data, offset, raw.length);
     }
 }
@@ -1,14 +1,18 @@
 package com.xjx.mydb.server.dm.pageCache;
 
 import com.xjx.mydb.common.Error;
+import com.xjx.mydb.server.dm.logger.Logger;
 import com.xjx.mydb.server.dm.page.Page;
+import com.xjx.mydb.server.dm.page.PageOne;
 import com.xjx.mydb.server.utils.Panic;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Map;
 
 /**
  * @Author: Xjx
@@ -16,8 +20,10 @@ import java.nio.channels.FileChannel;
  */
 //页缓存数据接口，指向缓存数据页中真正的缓存数据
 public interface PageCache {
-    //定义每个数据缓存页大小为16KB
+    //默认的数据页大小为16KB，创建数据库时可以指定MIN_PAGE_SIZE到MAX_PAGE_SIZE之间2的幂大小，保存在第一页中
     public static final int PAGE_SIZE = 1 << 14;
+    public static final int MIN_PAGE_SIZE = 1 << 12;
+    public static final int MAX_PAGE_SIZE = 1 << 16;
 
     //根据传入的字节数据创建一个新缓存数据页
     int newPage(byte[] initData);
@@ -33,9 +39,30 @@ public interface PageCache {
     int getPageNumber();
     //根据传入的数据页刷新缓存数据
     void flushPage(Page pg);
+    //检查点：拷贝出缓冲池中所有脏页面的当前内容并清除脏标记，返回页号到页面内容的映射
+    //调用者需要保证拷贝期间没有进行中的修改，并且之后必须调用writeSnapshot写回，写回完成前重新读取这些页面的线程会等待
+    Map<Integer, byte[]> snapshotDirtyPages();
+    //把snapshotDirtyPages拷贝出的页面按页号顺序写回数据库文件，最后force一次
+    void writeSnapshot(Map<Integer, byte[]> pages);
+    //设置页面写回前需要先落盘的日志，写回一页前先把日志刷到这一页的LSN
+    void setLogger(Logger logger);
+    //获取这个数据库文件的页面大小
+    int getPageSize();
+    //获取当前有多少调用者持有这一页，页面不在缓冲池中时为0
+    int getPinCount(int pgno);
+    //预读从pgno开始的count页，已经在缓冲池中的页面跳过，预读的页面不被pin住
+    void readAhead(int pgno, int count);
 
     //该方法用于根据传入的地址及内存大小创建出新的缓存数据页并返回缓存数据对象，对应的是数据库DB文件
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, PAGE_SIZE);
+    }
+
+    //以指定的页面大小创建数据库文件，页面大小之后不能再修改
+    public static PageCacheImpl create(String path, long memory, int pageSize) {
+        if(pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
         File file = new File(path + PageCacheImpl.DB_SUFFIX);
         try {
             if(!file.createNewFile()){
@@ -56,7 +83,7 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory / PAGE_SIZE);
+        return new PageCacheImpl(raf, fc, (int)(memory / pageSize), pageSize);
     }
     //根据传入的地址读取磁盘上的数据并写入缓存
     public static PageCacheImpl open(String path, long memory) {
@@ -75,6 +102,26 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory / PAGE_SIZE);
+        int pageSize = readPageSize(fc);
+        return new PageCacheImpl(raf, fc, (int)(memory / pageSize), pageSize);
+    }
+
+    //从第一页中读出页面大小，文件为空时（创建后还没写入第一页）使用默认大小
+    static int readPageSize(FileChannel fc) {
+        ByteBuffer head = ByteBuffer.allocate(PageOne.OF_PAGE_SIZE + 4);
+        try {
+            while (head.hasRemaining()) {
+                if(fc.read(head, head.position()) < 0) {
+                    return PAGE_SIZE;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        int pageSize = PageOne.parsePageSize(head.array());
+        if(pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        return pageSize;
     }
 }
@@ -1,7 +1,7 @@
 package com.xjx.mydb.server.dm.pageCache;
 
 import com.xjx.mydb.common.Error;
-import com.xjx.mydb.server.common.AbstractCache;
+import com.xjx.mydb.server.dm.logger.Logger;
 import com.xjx.mydb.server.dm.page.Page;
 import com.xjx.mydb.server.dm.page.PageImpl;
 import com.xjx.mydb.server.utils.Panic;
@@ -10,29 +10,106 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Author: Xjx
  * @Create: 2022/12/24 - 09:40
+ * 页缓存实现为一个固定帧数的缓冲池：页面引用计数（pin）归零后仍然常驻内存，
+ * 只有在需要为新页面腾出帧时，才由CLOCK算法挑选一个未被pin的帧驱逐，脏页面在驱逐前写回。
+ * 所有帧都被pin住时才会抛出CacheFullException
+ * 页面的读写都使用带位置的FileChannel.read/write(buf, pos)，不修改也不依赖fc的position，
+ * 不同页面的读写不需要互斥，可以同时交给磁盘。
+ * 驱逐和新建页面时的写回都不force，由后台写线程按页号顺序把没有被pin住的脏页面成批写回，
+ * 相邻页面合并成一次聚集写，每批只force一次；页面的持久化只在检查点时才需要保证。
+ * 写回一页之前先把日志刷到这一页的LSN，保证日志先于数据落盘。
  */
-public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
+public class PageCacheImpl implements PageCache{
     //一个缓存数据区中最少的缓存数据页页数
     private static final int MEM_MIN_LEN = 10;
     //数据库文件的后缀
     public static final String DB_SUFFIX = ".db";
+    //空闲帧的页号
+    private static final int NO_PAGE = -1;
+    //所有帧都被pin住时，最多等待这么久让其他线程释放页面，超时才报CacheFullException
+    private static final long FRAME_WAIT_MILLIS = 1000;
+    //后台写线程每轮的间隔，以及每轮最多写回的页数
+    private static final long WRITER_INTERVAL_MILLIS = 100;
+    private static final int WRITER_BATCH = 256;
     //该文件指向的是磁盘上的数据库文件即数据文件不是缓存文件，因为缓存是存在内存中的
     private RandomAccessFile raf;
     private FileChannel fc;
-    private Lock fileLock;
     //AtomicInteger原子类来记录当前打开的数据库文件有多少页。这个数字在数据库文件被打开时就会被计算，并在新建页面时自增。
     private AtomicInteger pageNumbers;
+    //这个数据库文件的页面大小，创建时确定并记录在第一页中
+    private final int pageSize;
 
-    public PageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource) {
-        //执行父类AbstractCache的有参构造，设定最大缓存数据个数
-        super(maxResource);
+    //缓冲池中的所有帧，CLOCK指针在这个数组上循环扫描
+    private final Frame[] frames;
+    //页号到帧的映射，命中时只需要查这张表并锁住对应的帧
+    private final ConcurrentHashMap<Integer, Frame> pageTable;
+    //正在写回的脏页面，写回完成前不允许从磁盘重新读取这一页，避免读到旧数据
+    private final ConcurrentHashMap<Integer, CompletableFuture<Void>> writing;
+    //成批写回时拷贝出来、还没有写回的页面在writing中登记的future，以拷贝出的数组本身为key（数组按引用比较）
+    private final ConcurrentHashMap<byte[], CompletableFuture<Void>> snapshotWrites;
+    //同一时间只写一批，保证同一页的多次拷贝按拷贝的先后顺序落盘；聚集写要用fc的position，也由这把锁保护
+    private final Lock batchLock;
+    //检查点拷贝脏页面时仍在进行的驱逐写回，检查点force之前要等它们写完
+    private List<CompletableFuture<Void>> checkpointEvictions;
+    //写回页面前需要先落盘的日志，单独使用页缓存时没有日志
+    private volatile Logger logger;
+    //后台写线程下一轮从这个页号开始找脏页面，按页号顺序循环推进
+    private int writerCursor;
+    private final Thread writer;
+    private final CountDownLatch stopWriter;
+    //挑选牺牲帧时需要持有的锁，只保护CLOCK指针的移动和帧的重新分配，磁盘IO都在锁外进行
+    private final Lock poolLock;
+    //有帧的pin计数归零时通知等待空闲帧的线程
+    private final Condition frameFreed;
+    //正在等待空闲帧的线程数，没有等待者时unpin不需要去拿poolLock
+    private final AtomicInteger frameWaiters;
+    //CLOCK指针
+    private int hand;
+
+    /**
+     * 缓冲池中的一个帧，所有字段都由帧自身的监视器保护
+     */
+    private static class Frame {
+        int pgno = NO_PAGE;
+        PageImpl page;
+        //当前有多少调用者持有这个页面，>0时不能被驱逐
+        int pins;
+        //CLOCK的访问位，被访问时置位，指针扫过时清零，给页面第二次机会
+        boolean ref;
+        //页面的加载结果，加载完成前命中这个帧的调用者在这里等待
+        CompletableFuture<PageImpl> loaded;
+    }
+
+    //成批写回的一批页面：页号 -> 拷贝出的页面内容，以及这些页面的最大LSN
+    private static class Batch {
+        final TreeMap<Integer, byte[]> pages = new TreeMap<>();
+        long maxLsn;
+    }
+
+    //挑选出的牺牲帧以及它原来缓存的需要写回的脏页面
+    private static class Victim {
+        Frame frame;
+        PageImpl dirtyPage;
+        //这次写回登记的future，以及之前还没完成的写回（检查点写回），要等它完成后再写，保证新数据不被旧数据覆盖
+        CompletableFuture<Void> write;
+        CompletableFuture<Void> prevWrite;
+    }
+
+    public PageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource, int pageSize) {
         //如果分配的数据缓存页小于最小的缓存页则退出
         if(maxResource < MEM_MIN_LEN) {
             Panic.panic(Error.MemTooSmallException);
@@ -45,15 +122,291 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         }
         this.raf = raf;
         this.fc = fc;
-        this.fileLock = new ReentrantLock();
+        this.pageSize = pageSize;
         //根据读取文件的长度/每个数据页大小获取当前这个数据库文件一共多少页数据
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger((int)(length / pageSize));
+        this.frames = new Frame[maxResource];
+        for(int i = 0; i < maxResource; i++) {
+            frames[i] = new Frame();
+        }
+        this.pageTable = new ConcurrentHashMap<>();
+        this.writing = new ConcurrentHashMap<>();
+        this.snapshotWrites = new ConcurrentHashMap<>();
+        this.poolLock = new ReentrantLock();
+        this.frameFreed = poolLock.newCondition();
+        this.frameWaiters = new AtomicInteger(0);
+        this.batchLock = new ReentrantLock();
+        this.checkpointEvictions = new ArrayList<>();
+        this.writerCursor = 1;
+        this.stopWriter = new CountDownLatch(1);
+        this.writer = new Thread(this::writerLoop, "mydb-page-writer");
+        writer.setDaemon(true);
+        writer.start();
     }
 
-    //根据页号获取数据页，调用的是缓存框架AbstractCache的方法，如果缓存中有从缓存取，如果缓存没有去数据库取。
+    @Override
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    //后台写线程：每隔一段时间按页号顺序挑出一批没有被pin住的脏页面成批写回
+    private void writerLoop() {
+        try {
+            while (!stopWriter.await(WRITER_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                Batch batch = snapshot(true, WRITER_BATCH);
+                if(!batch.pages.isEmpty()) {
+                    writerCursor = batch.pages.lastKey() + 1;
+                    writeBatch(batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    //根据页号获取数据页，命中缓冲池则直接pin住返回，未命中则挑选一个牺牲帧从数据库文件中读入
     @Override
     public Page getPage(int pgno) throws Exception {
-        return get((long) pgno);
+        while (true) {
+            Frame frame = pageTable.get(pgno);
+            if(frame != null) {
+                CompletableFuture<PageImpl> loaded;
+                synchronized (frame) {
+                    //查表和锁帧之间这个帧可能已经被重新分配给其他页面
+                    if(frame.pgno != pgno) {
+                        continue;
+                    }
+                    frame.pins++;
+                    frame.ref = true;
+                    loaded = frame.loaded;
+                }
+                try {
+                    return loaded.get();
+                } catch (ExecutionException e) {
+                    unpin(frame, pgno);
+                    throw (Exception) e.getCause();
+                }
+            }
+            Victim victim = allocateFrame(pgno);
+            if(victim == null) {
+                //其他线程抢先为这一页分配了帧，重新查表等待它的加载结果
+                continue;
+            }
+            return loadIntoFrame(victim, pgno);
+        }
+    }
+
+    //CLOCK扫描挑选一个未被pin的帧，并在锁内把它映射到新页号上，返回时这个帧已经被当前调用者pin住
+    private Victim allocateFrame(int pgno) throws Exception {
+        poolLock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FRAME_WAIT_MILLIS);
+            while (true) {
+                if(pageTable.containsKey(pgno)) {
+                    return null;
+                }
+                Victim victim = clockSweep(pgno);
+                if(victim != null) {
+                    return victim;
+                }
+                //所有帧都被pin住，等其他线程释放页面后再扫一遍
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    throw Error.CacheFullException;
+                }
+                frameWaiters.incrementAndGet();
+                try {
+                    frameFreed.awaitNanos(remaining);
+                } finally {
+                    frameWaiters.decrementAndGet();
+                }
+            }
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    //扫两圈：第一圈清掉访问位，第二圈一定能找到未被pin的帧，找不到说明所有帧都被pin住了，返回null
+    private Victim clockSweep(int pgno) {
+        for(int i = 0; i < frames.length * 2; i++) {
+            Frame frame = frames[hand];
+            hand = (hand + 1) % frames.length;
+            synchronized (frame) {
+                if(frame.pins > 0) {
+                    continue;
+                }
+                if(frame.ref) {
+                    frame.ref = false;
+                    continue;
+                }
+                Victim victim = new Victim();
+                victim.frame = frame;
+                if(frame.pgno != NO_PAGE) {
+                    if(frame.page != null && frame.page.isDirty()) {
+                        //先登记正在写回，再解除映射，保证之后读这一页的线程一定能看到写回标记
+                        victim.dirtyPage = frame.page;
+                        victim.write = new CompletableFuture<>();
+                        victim.prevWrite = writing.put(frame.pgno, victim.write);
+                    }
+                    pageTable.remove(frame.pgno, frame);
+                }
+                frame.pgno = pgno;
+                frame.page = null;
+                frame.pins = 1;
+                frame.ref = true;
+                frame.loaded = new CompletableFuture<>();
+                pageTable.put(pgno, frame);
+                return victim;
+            }
+        }
+        return null;
+    }
+
+    //写回牺牲帧上原来的脏页面，然后从数据库文件中读入新页面
+    private Page loadIntoFrame(Victim victim, int pgno) throws Exception {
+        Frame frame = victim.frame;
+        writeVictim(victim);
+        PageImpl page;
+        try {
+            //这一页可能刚刚作为牺牲页被其他线程驱逐，需要等它写回完成
+            waitWriting(pgno);
+            page = readPage(pgno);
+        } catch (Exception e) {
+            failFrame(frame, pgno, e);
+            throw e;
+        }
+        installPage(frame, page);
+        return page;
+    }
+
+    //牺牲帧上原来缓存的是脏页面时先把它写回
+    private void writeVictim(Victim victim) {
+        if(victim.dirtyPage == null) {
+            return;
+        }
+        int oldPgno = victim.dirtyPage.getPageNumber();
+        try {
+            if(victim.prevWrite != null) {
+                victim.prevWrite.join();
+            }
+            //驱逐只需要写进操作系统，持久化由之后的检查点保证
+            write(victim.dirtyPage);
+            victim.dirtyPage.setDirty(false);
+        } finally {
+            writing.remove(oldPgno, victim.write);
+            victim.write.complete(null);
+        }
+    }
+
+    private void waitWriting(int pgno) throws Exception {
+        CompletableFuture<Void> pending = writing.get(pgno);
+        if(pending != null) {
+            pending.get();
+        }
+    }
+
+    //加载完成，唤醒等待这一页的调用者
+    private void installPage(Frame frame, PageImpl page) {
+        CompletableFuture<PageImpl> loaded;
+        synchronized (frame) {
+            frame.page = page;
+            loaded = frame.loaded;
+        }
+        loaded.complete(page);
+    }
+
+    //加载失败则把这个帧还给空闲状态，并通知等待者
+    private void failFrame(Frame frame, int pgno, Exception e) {
+        CompletableFuture<PageImpl> loaded;
+        synchronized (frame) {
+            pageTable.remove(pgno, frame);
+            frame.pgno = NO_PAGE;
+            frame.pins = 0;
+            frame.ref = false;
+            loaded = frame.loaded;
+        }
+        loaded.completeExceptionally(e);
+        signalFrameFreed();
+    }
+
+    private void signalFrameFreed() {
+        if(frameWaiters.get() > 0) {
+            poolLock.lock();
+            try {
+                frameFreed.signalAll();
+            } finally {
+                poolLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 预读：顺序扫描时提前把从pgno开始的count页读入缓冲池，连续的不在缓冲池中的页面合并成一次读。
+     * 预读最多占用缓冲池的四分之一，避免把还没用到的预读页面挤出去；没有空闲帧时不等待，直接放弃剩下的页面
+     */
+    @Override
+    public void readAhead(int pgno, int count) {
+        int last = Math.min(pgno + Math.min(count, Math.max(1, frames.length / 4)) - 1, getPageNumber());
+        List<Victim> run = new ArrayList<>();
+        int runStart = pgno;
+        for(int i = pgno; i <= last; i++) {
+            if(pageTable.containsKey(i)) {
+                //已经在缓冲池中的页面把前后分成两次读
+                loadRun(runStart, run);
+                run.clear();
+                runStart = i + 1;
+                continue;
+            }
+            Victim victim;
+            poolLock.lock();
+            try {
+                victim = pageTable.containsKey(i) ? null : clockSweep(i);
+            } finally {
+                poolLock.unlock();
+            }
+            if(victim == null) {
+                break;
+            }
+            run.add(victim);
+        }
+        loadRun(runStart, run);
+    }
+
+    //把从first开始、已经分配好帧的连续若干页一次读入，读完后解除预读持有的pin
+    private void loadRun(int first, List<Victim> run) {
+        if(run.isEmpty()) {
+            return;
+        }
+        for(Victim victim : run) {
+            writeVictim(victim);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(run.size() * pageSize);
+        try {
+            for(int i = 0; i < run.size(); i++) {
+                waitWriting(first + i);
+            }
+            long offset = pageOffset(first);
+            //超出文件末尾的部分保持为0
+            while (buffer.hasRemaining()) {
+                int n = fc.read(buffer, offset);
+                if(n < 0) {
+                    break;
+                }
+                offset += n;
+            }
+        } catch (Exception e) {
+            for(int i = 0; i < run.size(); i++) {
+                failFrame(run.get(i).frame, first + i, e);
+            }
+            return;
+        }
+        byte[] raw = buffer.array();
+        for(int i = 0; i < run.size(); i++) {
+            int pgno = first + i;
+            Frame frame = run.get(i).frame;
+            installPage(frame, new PageImpl(pgno, Arrays.copyOfRange(raw, i * pageSize, (i + 1) * pageSize), this));
+            unpin(frame, pgno);
+        }
     }
 
     //给当前缓存页新增的缓存数据创建新的缓存页，即新建的缓存数据在原有页中存不下了，需要新建数据页
@@ -63,8 +416,8 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         int pgno = pageNumbers.incrementAndGet();
         //这个page对象就是缓存数据页，放在JVM堆中即计算机内存中
         Page page = new PageImpl(pgno, initData, null);
-        //需要把缓存数据刷回磁盘上的数据库文件中
-        flush(page);
+        //写进数据库文件但不force，崩溃后没写到的新页面读出来是全0，PageX会把它当作空页面
+        write(page);
         return pgno;
     }
 
@@ -73,32 +426,182 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         flush(pg);
     }
 
-    //将参数传来的缓存数据页刷回数据库文件
+    //将参数传来的缓存数据页刷回数据库文件并force
     private void flush(Page page) {
-        int pgno = page.getPageNumber();
+        write(page);
+        try {
+            fc.force(false);
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+    }
+
+    //把一页写进数据库文件，写之前先让修改它的日志落盘
+    private void write(Page page) {
+        flushLog(page.getLsn());
         //缓存数据页所在偏移就是数据库文件中对应数据偏移量
-        long offset = pageOffset(pgno);
-        fileLock.lock();
+        long offset = pageOffset(page.getPageNumber());
         try {
             //得到缓存数据页中真正的缓存数据，并写回磁盘中的数据库文件
             ByteBuffer buffer = ByteBuffer.wrap(page.getData());
-            fc.position(offset);
-            fc.write(buffer);
+            while (buffer.hasRemaining()) {
+                offset += fc.write(buffer, offset);
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+    }
+
+    private void flushLog(long lsn) {
+        Logger lg = logger;
+        if(lg != null && lsn > 0) {
+            lg.flush(lsn);
+        }
+    }
+
+    @Override
+    public Map<Integer, byte[]> snapshotDirtyPages() {
+        //此时仍在进行的驱逐写回的页面不在拷贝中，检查点force之前要等它们写完
+        List<CompletableFuture<Void>> evictions = new ArrayList<>(writing.values());
+        Batch batch = snapshot(false, Integer.MAX_VALUE);
+        checkpointEvictions = evictions;
+        return batch.pages;
+    }
+
+    @Override
+    public void writeSnapshot(Map<Integer, byte[]> pages) {
+        for(CompletableFuture<Void> eviction : checkpointEvictions) {
+            eviction.join();
+        }
+        checkpointEvictions = new ArrayList<>();
+        Batch batch = new Batch();
+        batch.pages.putAll(pages);
+        writeBatch(batch);
+    }
+
+    /**
+     * 拷贝出一批脏页面并清除脏标记，在writing中登记，写回完成前重新读取这些页面的线程会等待。
+     * unpinnedOnly为true时只拷贝没有被pin住的页面，这些页面上不会有进行中的修改；
+     * 否则拷贝所有脏页面，调用者需要保证拷贝期间没有进行中的修改。
+     * 从writerCursor开始按页号顺序最多拷贝limit页
+     */
+    private Batch snapshot(boolean unpinnedOnly, int limit) {
+        TreeSet<Integer> dirty = new TreeSet<>();
+        for(Frame frame : frames) {
+            synchronized (frame) {
+                if(isWritable(frame, unpinnedOnly)) {
+                    dirty.add(frame.pgno);
+                }
+            }
+        }
+        List<Integer> chosen = new ArrayList<>();
+        for(Integer pgno : dirty.tailSet(writerCursor)) {
+            if(chosen.size() >= limit) break;
+            chosen.add(pgno);
+        }
+        for(Integer pgno : dirty.headSet(writerCursor)) {
+            if(chosen.size() >= limit) break;
+            chosen.add(pgno);
+        }
+        Batch batch = new Batch();
+        for(int pgno : chosen) {
+            Frame frame = pageTable.get(pgno);
+            if(frame == null) {
+                continue;
+            }
+            synchronized (frame) {
+                //两次扫描之间这个帧可能已经被驱逐或者写回
+                if(frame.pgno != pgno || !isWritable(frame, unpinnedOnly)) {
+                    continue;
+                }
+                PageImpl page = frame.page;
+                byte[] data = Arrays.copyOf(page.getData(), pageSize);
+                batch.pages.put(pgno, data);
+                batch.maxLsn = Math.max(batch.maxLsn, page.getLsn());
+                page.setDirty(false);
+                //脏标记清除后这一页可能不写回就被驱逐，登记正在写回，让重新读取它的线程等这一批写完
+                CompletableFuture<Void> write = new CompletableFuture<>();
+                writing.put(pgno, write);
+                snapshotWrites.put(data, write);
+            }
+        }
+        return batch;
+    }
+
+    private static boolean isWritable(Frame frame, boolean unpinnedOnly) {
+        return frame.pgno != NO_PAGE && frame.page != null && frame.page.isDirty()
+                && (!unpinnedOnly || frame.pins == 0);
+    }
+
+    //成批写回：先把日志刷到这批页面的最大LSN，相邻的页面合并成一次聚集写，最后force一次
+    private void writeBatch(Batch batch) {
+        flushLog(batch.maxLsn);
+        batchLock.lock();
+        try {
+            Iterator<Map.Entry<Integer, byte[]>> it = batch.pages.entrySet().iterator();
+            Map.Entry<Integer, byte[]> next = it.hasNext() ? it.next() : null;
+            List<ByteBuffer> run = new ArrayList<>();
+            while (next != null) {
+                int first = next.getKey();
+                int last = first;
+                run.clear();
+                run.add(ByteBuffer.wrap(next.getValue()));
+                next = null;
+                while (it.hasNext()) {
+                    Map.Entry<Integer, byte[]> entry = it.next();
+                    if(entry.getKey() == last + 1) {
+                        last++;
+                        run.add(ByteBuffer.wrap(entry.getValue()));
+                    } else {
+                        next = entry;
+                        break;
+                    }
+                }
+                ByteBuffer[] buffers = run.toArray(new ByteBuffer[0]);
+                fc.position(pageOffset(first));
+                while (buffers[buffers.length - 1].hasRemaining()) {
+                    fc.write(buffers);
+                }
+            }
             fc.force(false);
         } catch (IOException ioException) {
             Panic.panic(ioException);
         } finally {
-            fileLock.unlock();
+            for(Map.Entry<Integer, byte[]> entry : batch.pages.entrySet()) {
+                CompletableFuture<Void> write = snapshotWrites.remove(entry.getValue());
+                if(write != null) {
+                    writing.remove(entry.getKey(), write);
+                    write.complete(null);
+                }
+            }
+            batchLock.unlock();
         }
     }
 
-    private static long pageOffset(int pgno) {
-        return (pgno - 1) * PAGE_SIZE;
+    private long pageOffset(int pgno) {
+        return (long)(pgno - 1) * pageSize;
     }
 
+    //停止后台写线程，缓冲池中的脏页面不再写回，相当于进程在这里崩溃，用于测试崩溃恢复
+    public void crash() {
+        stopWriter.countDown();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    //关闭缓存时停止后台写线程，把缓冲池中所有脏页面成批写回
     @Override
     public void close() {
-        super.close();
+        stopWriter.countDown();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        writeBatch(snapshot(false, Integer.MAX_VALUE));
         try {
             fc.close();
             raf.close();
@@ -110,42 +613,67 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     /**
      * 根据pageNumber从数据库文件(通过NIO操作文件)中读取页数据，并包裹成Page
      */
-    @Override
-    protected Page getForCache(long key) throws Exception {
-        int pgno = (int)key;
-        long offset = PageCacheImpl.pageOffset(pgno);
-        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+    private PageImpl readPage(int pgno) {
+        long offset = pageOffset(pgno);
+        ByteBuffer buffer = ByteBuffer.allocate(pageSize);
         try {
-            fc.position(offset);
-            fc.read(buffer);
+            //超出文件末尾的部分保持为0
+            while (buffer.hasRemaining()) {
+                int n = fc.read(buffer, offset);
+                if(n < 0) {
+                    break;
+                }
+                offset += n;
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
         return new PageImpl(pgno, buffer.array(), this);
     }
 
-    //释放某个缓存数据页的在内存中的缓存数据
+    //释放页面只是减少它的pin计数，页面继续常驻在缓冲池中，直到被CLOCK选为牺牲页
     @Override
-    protected void releaseForCache(Page page) {
-        //如果是脏页面则要将缓存数据刷回磁盘在释放
-        if(page.isDirty()) {
-            flush(page);
-            page.setDirty(false);
+    public void release(Page page) {
+        int pgno = page.getPageNumber();
+        Frame frame = pageTable.get(pgno);
+        if(frame != null) {
+            unpin(frame, pgno);
         }
     }
 
-    //根据传入的缓存数据页得到其页号，然后使用AbsractCache父类的release方法释放这个缓存数据页的缓存
-    //但我们项目中使用的缓存框架是引用计数框架，所以释放缓存数据实际操作是减少这个缓存数据的被引用次数，当=0时才会真正释放掉缓存数据
-    @Override
-    public synchronized void release(Page page) {
-        release((long)page.getPageNumber());
+    private void unpin(Frame frame, int pgno) {
+        boolean freed = false;
+        synchronized (frame) {
+            if(frame.pgno == pgno && frame.pins > 0) {
+                frame.pins--;
+                freed = frame.pins == 0;
+            }
+        }
+        //在帧的监视器之外通知，避免和allocateFrame的加锁顺序相反
+        if(freed) {
+            signalFrameFreed();
+        }
     }
 
     //根据传入的最大缓存数据页数对数据库文件进行截断，也就是说这个数据库文件最多存放maxPgno页缓存数据
     @Override
     public void truncateByBgno(int maxPgno) {
+        //截断只在恢复时调用，缓冲池中超出范围的页面直接丢弃，不需要写回
+        poolLock.lock();
+        try {
+            for(Frame frame : frames) {
+                synchronized (frame) {
+                    if(frame.pgno > maxPgno && frame.pins == 0) {
+                        pageTable.remove(frame.pgno, frame);
+                        frame.pgno = NO_PAGE;
+                        frame.page = null;
+                        frame.ref = false;
+                    }
+                }
+            }
+        } finally {
+            poolLock.unlock();
+        }
         //根据传入的最大页号算缓存最大内存容量
         long size = pageOffset(maxPgno + 1);
         try {
@@ -162,4 +690,20 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     public int getPageNumber() {
         return pageNumbers.intValue();
     }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public int getPinCount(int pgno) {
+        Frame frame = pageTable.get(pgno);
+        if(frame == null) {
+            return 0;
+        }
+        synchronized (frame) {
+            return frame.pgno == pgno ? frame.pins : 0;
+        }
+    }
 }
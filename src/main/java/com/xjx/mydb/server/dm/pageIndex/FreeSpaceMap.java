@@ -0,0 +1,202 @@
+package com.xjx.mydb.server.dm.pageIndex;
+
+import com.xjx.mydb.common.Error;
+import com.xjx.mydb.server.utils.Panic;
+import com.xjx.mydb.server.utils.Parser;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/14 - 10:20
+ * 空闲空间地图：把每个数据页的空闲空间持久化在单独的.fsm文件中，打开数据库时不需要读遍所有数据页
+ * 文件由和数据页同样大小的FSM页组成：
+ * 第0页是文件头 [NoPages]，记录地图中记录过的最大页号
+ * 第k页（k>=1）每个字节对应一个数据页，依次是第(k-1)*pageSize+1到第k*pageSize个数据页
+ * 每个字节保存空闲空间除以pageSize/256的值，读出来的是实际空闲空间的下限
+ * 地图只是提示，不写日志：写回时机和数据页无关，崩溃后记录的空闲空间可能比实际大，使用前要以页面为准
+ * 每次插入都会修改地图，所以修改不加锁，只有写回时加锁
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX = ".fsm";
+    //一个字节能表示的最大等级
+    private static final int MAX_CATEGORY = 0xFF;
+
+    private final RandomAccessFile file;
+    private final FileChannel fc;
+    private final int pageSize;
+    //一个等级代表的空闲空间大小
+    private final int unit;
+    //写回时持有，保证文件头和FSM页不会被两个线程同时写
+    private final Lock flushLock;
+    //已经加载进内存的FSM页号 -> FSM页
+    private final ConcurrentHashMap<Integer, byte[]> pages;
+    //修改过还没写回的FSM页号，修改FSM页之后才加入，写回前先移出，保证修改不会丢失
+    private final Set<Integer> dirty;
+    //地图中记录过的最大数据页号
+    private final AtomicInteger noPages;
+    //打开时文件中已有的FSM页数，超出的FSM页不需要从文件读取
+    private final int pagesOnDisk;
+
+    private FreeSpaceMap(RandomAccessFile file, FileChannel fc, int pageSize) {
+        this.file = file;
+        this.fc = fc;
+        this.pageSize = pageSize;
+        this.unit = pageSize / (MAX_CATEGORY + 1);
+        this.flushLock = new ReentrantLock();
+        this.pages = new ConcurrentHashMap<>();
+        this.dirty = ConcurrentHashMap.newKeySet();
+        long length = 0;
+        try {
+            length = fc.size();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        this.pagesOnDisk = (int)(length / pageSize) - 1;
+        this.noPages = new AtomicInteger(pagesOnDisk < 0 ? 0 : Parser.parseInt(read(0)));
+    }
+
+    //创建空的空闲空间地图，地图可以从数据页重新算出来，遗留的同名文件直接覆盖
+    public static FreeSpaceMap create(String path, int pageSize) {
+        File f = new File(path + FSM_SUFFIX);
+        try {
+            f.createNewFile();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        RandomAccessFile raf = openFile(f);
+        try {
+            raf.setLength(0);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return new FreeSpaceMap(raf, raf.getChannel(), pageSize);
+    }
+
+    //打开空闲空间地图，旧版本的数据库没有这个文件时创建一个空的，所有页面都按没有记录处理
+    public static FreeSpaceMap open(String path, int pageSize) {
+        File f = new File(path + FSM_SUFFIX);
+        if(!f.exists()) {
+            return create(path, pageSize);
+        }
+        RandomAccessFile raf = openFile(f);
+        return new FreeSpaceMap(raf, raf.getChannel(), pageSize);
+    }
+
+    private static RandomAccessFile openFile(File f) {
+        if(!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWExcepiton);
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        return raf;
+    }
+
+    //地图中记录过的最大数据页号，之后新建的页面没有记录
+    public int getNoPages() {
+        return noPages.get();
+    }
+
+    //每个FSM页记录的数据页数
+    public int pagesPerFsmPage() {
+        return pageSize;
+    }
+
+    //记录数据页pgno的空闲空间
+    public void set(int pgno, int freeSpace) {
+        int fsmPgno = fsmPgno(pgno);
+        byte[] page = load(fsmPgno);
+        page[(pgno - 1) % pageSize] = (byte) Math.min(MAX_CATEGORY, freeSpace / unit);
+        dirty.add(fsmPgno);
+        noPages.accumulateAndGet(pgno, Math::max);
+    }
+
+    //读出数据页pgno的空闲空间的下限，没有记录过的页面为0
+    public int get(int pgno) {
+        byte[] page = load(fsmPgno(pgno));
+        return Byte.toUnsignedInt(page[(pgno - 1) % pageSize]) * unit;
+    }
+
+    //把修改过的FSM页和文件头写回文件，不force，丢失的修改只会让地图变旧
+    public void flush() {
+        flushLock.lock();
+        try {
+            for(int fsmPgno : new TreeSet<>(dirty)) {
+                dirty.remove(fsmPgno);
+                write(fsmPgno, pages.get(fsmPgno));
+            }
+            byte[] header = new byte[pageSize];
+            System.arraycopy(Parser.int2Byte(noPages.get()), 0, header, 0, 4);
+            write(0, header);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    public void close() {
+        flush();
+        try {
+            fc.force(false);
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private int fsmPgno(int pgno) {
+        return (pgno - 1) / pageSize + 1;
+    }
+
+    //取得内存中的FSM页，没有加载过就从文件读入，文件中还没有的FSM页是全0的新页
+    private byte[] load(int fsmPgno) {
+        byte[] page = pages.get(fsmPgno);
+        if(page != null) {
+            return page;
+        }
+        return pages.computeIfAbsent(fsmPgno, k -> k <= pagesOnDisk ? read(k) : new byte[pageSize]);
+    }
+
+    private byte[] read(int fsmPgno) {
+        ByteBuffer buf = ByteBuffer.allocate(pageSize);
+        long offset = (long) fsmPgno * pageSize;
+        try {
+            while (buf.hasRemaining()) {
+                int n = fc.read(buf, offset + buf.position());
+                if(n < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return buf.array();
+    }
+
+    private void write(int fsmPgno, byte[] page) {
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        long offset = (long) fsmPgno * pageSize;
+        try {
+            while (buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.xjx.mydb.server.dm.pageIndex;
+
+import com.xjx.mydb.common.Error;
+import com.xjx.mydb.server.utils.Panic;
+import com.xjx.mydb.server.utils.Parser;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/24 - 15:30
+ * 页面所有者地图：和空闲空间地图一起保存在单独的.own文件中，记录每个数据页属于哪个所有者，打开数据库时不需要读遍所有数据页就能知道表有哪些页面
+ * 文件格式：[NoPages][Owner1][Owner2]...[OwnerN]，第i个Owner是第i页的所有者，8字节
+ * 页面的所有者在新建页面时决定，之后不会改变，所以地图只需要追加新页面。和空闲空间地图不同，所有者不能是提示：
+ * 检查点在记录恢复起点之前把它写回并force，检查点之前的页面的所有者都在地图中；之后新建的页面由插入日志中的所有者在恢复时重做到页头，
+ * 打开时地图记录之外的页面从页头读出所有者
+ */
+public class OwnerMap {
+    public static final String OWNER_SUFFIX = ".own";
+    private static final int HEADER_SIZE = 4;
+    private static final int OWNER_SIZE = 8;
+
+    private final RandomAccessFile file;
+    private final FileChannel fc;
+    //页号 -> 所有者，增长时整体替换数组，修改由lock保护，读取不加锁
+    private volatile long[] owners;
+    private final Lock lock;
+    //文件中已经写好的页面数，只在flushLock下修改
+    private int flushed;
+    private final Lock flushLock;
+
+    private OwnerMap(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+        this.owners = new long[64];
+        this.lock = new ReentrantLock();
+        this.flushLock = new ReentrantLock();
+    }
+
+    //创建空的所有者地图，遗留的同名文件直接覆盖
+    public static OwnerMap create(String path) {
+        File f = new File(path + OWNER_SUFFIX);
+        try {
+            f.createNewFile();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        RandomAccessFile raf = openFile(f);
+        try {
+            raf.setLength(0);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return new OwnerMap(raf, raf.getChannel());
+    }
+
+    //打开所有者地图，没有这个文件时创建一个空的，所有页面的所有者都从页头读出
+    public static OwnerMap open(String path) {
+        File f = new File(path + OWNER_SUFFIX);
+        if(!f.exists()) {
+            return create(path);
+        }
+        RandomAccessFile raf = openFile(f);
+        return new OwnerMap(raf, raf.getChannel());
+    }
+
+    private static RandomAccessFile openFile(File f) {
+        if(!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWExcepiton);
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        return raf;
+    }
+
+    /**
+     * 读入文件中记录的所有者，最多读到第limit页（恢复时截掉的页面之后会被重新分配给别的所有者），返回读入的页面数。
+     * 打开数据库、恢复完成之后调用，之后第limit页以后的页面按新页面处理
+     */
+    public int load(int limit) {
+        int recorded = 0;
+        ByteBuffer buf = null;
+        try {
+            if(fc.size() >= HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                read(header, 0);
+                recorded = Math.min(Math.min(header.getInt(0), limit), (int)((fc.size() - HEADER_SIZE) / OWNER_SIZE));
+            }
+            buf = ByteBuffer.allocate(Math.max(recorded, 0) * OWNER_SIZE);
+            read(buf, HEADER_SIZE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        recorded = Math.max(recorded, 0);
+        long[] loaded = new long[Math.max(64, recorded + 1)];
+        buf.flip();
+        for(int pgno = 1; pgno <= recorded; pgno++) {
+            loaded[pgno] = buf.getLong();
+        }
+        lock.lock();
+        try {
+            owners = loaded;
+        } finally {
+            lock.unlock();
+        }
+        flushLock.lock();
+        try {
+            flushed = recorded;
+        } finally {
+            flushLock.unlock();
+        }
+        return recorded;
+    }
+
+    private void read(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if(fc.read(buf, pos + buf.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    //记录新页面pgno的所有者
+    public void set(int pgno, long owner) {
+        lock.lock();
+        try {
+            long[] arr = owners;
+            if(pgno >= arr.length) {
+                arr = Arrays.copyOf(arr, Math.max(arr.length * 2, pgno + 1));
+            }
+            arr[pgno] = owner;
+            owners = arr;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //页面pgno的所有者，没有记录过的页面属于公共页面
+    public long get(int pgno) {
+        long[] arr = owners;
+        return pgno < arr.length ? arr[pgno] : 0;
+    }
+
+    //把第noPages页之前还没写回的页面的所有者写回文件并force，调用者需保证这些页面都已经set过
+    public void flush(int noPages) {
+        flushLock.lock();
+        try {
+            if(noPages <= flushed) {
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.allocate((noPages - flushed) * OWNER_SIZE);
+            for(int pgno = flushed + 1; pgno <= noPages; pgno++) {
+                buf.putLong(get(pgno));
+            }
+            buf.flip();
+            //先让新的所有者落盘再改文件头，文件头记录的页面的所有者一定都在文件中
+            write(buf, HEADER_SIZE + (long) flushed * OWNER_SIZE);
+            fc.force(false);
+            write(ByteBuffer.wrap(Parser.int2Byte(noPages)), 0);
+            fc.force(false);
+            flushed = noPages;
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void write(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            fc.write(buf, pos + buf.position());
+        }
+    }
+
+    public void close() {
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
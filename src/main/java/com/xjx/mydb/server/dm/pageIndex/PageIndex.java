@@ -2,68 +2,176 @@ package com.xjx.mydb.server.dm.pageIndex;
 
 import com.xjx.mydb.server.dm.pageCache.PageCache;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
 
 /**
  * @Author: Xjx
  * @Create: 2023/1/6 - 14:05
  * 页面索引类：用于缓存每个缓存数据页的空闲空间，帮助Insert操作更快速查找一个合适空间的页面
+ * 有空闲空间地图时，加入索引的页面同时记录到地图中；打开数据库时地图中已有的页面不立即放入索引，
+ * 而是在索引中找不到合适页面时才一次加载一个FSM页覆盖的页面
+ * 每个区间是一个无锁的并发队列，add和select互不阻塞，只有从地图加载页面时才需要加锁
+ * 一个页面同一时间只有一个有效的页面信息在索引中：被select取出的页面由插入者独占，用完再add回来；
+ * update不从队列中间删除，而是作废旧的页面信息再放入新的，作废的页面信息留在队列里，select取到时跳过
  */
 public class PageIndex {
     //每一个页面的空间分为40个区间
     private static final int INTERVALS_NO = 40;
     //根据页面大小和区间总数计算单个区间的内存大小，同时也是空闲空间的单位大小
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    private final int threshold;
 
-    private Lock lock;
-    //使用一个类似于哈希表的形式即一个集合数组存放所有页面的空闲大小
-    //数组中每一个集合都存放着空闲空间>=该下标位置*THRESHOLD的页面
-    //数组大小为41，下标的含义就是区间号,区间号从1开始。比如1代表所有空闲空间能存储一个THRESHOLD大小的页面
-    private List<PageInfo>[] lists;
+    //使用一个类似于哈希表的形式即一个队列数组存放所有页面的空闲大小
+    //数组中每一个队列都存放着空闲空间>=该下标位置*threshold的页面
+    //数组大小为41，下标的含义就是区间号,区间号从1开始。比如1代表所有空闲空间能存储一个threshold大小的页面
+    private final ConcurrentLinkedQueue<PageInfo>[] lists;
+    //当前在队列中的页面：页号 -> 队列中有效的PageInfo，update时用来找到并作废它
+    private final ConcurrentHashMap<Integer, PageInfo> indexed;
+    //持久化的空闲空间地图，为null时只在内存中索引
+    private final FreeSpaceMap fsm;
+    //从地图加载页面时持有，保证每个FSM页只加载一次
+    private final Lock loadLock;
+    //地图中下一个还没有加载进索引的页号，以及需要从地图加载的最大页号，只在loadLock下修改
+    private int nextFsmPgno;
+    private int fsmLimit;
+    //地图中哪些页面属于这个索引，每个所有者的索引只加载自己的页面
+    private IntPredicate belongs;
+
+    public PageIndex() {
+        this(PageCache.PAGE_SIZE, null);
+    }
 
     @SuppressWarnings("unchecked")
-    public PageIndex(){
-        lock = new ReentrantLock();
+    public PageIndex(int pageSize, FreeSpaceMap fsm){
+        threshold = pageSize / INTERVALS_NO;
+        this.fsm = fsm;
+        //新建的数据库地图中没有需要加载的页面
+        nextFsmPgno = 2;
+        fsmLimit = 0;
+        belongs = pgno -> true;
+        loadLock = new ReentrantLock();
+        indexed = new ConcurrentHashMap<>();
         //实例化页面索引中存储页面索引位置的数组
-        lists = new List[INTERVALS_NO + 1];
+        lists = new ConcurrentLinkedQueue[INTERVALS_NO + 1];
         for(int i = 0; i < INTERVALS_NO + 1; i++) {
-            lists[i] = new ArrayList<>();
+            lists[i] = new ConcurrentLinkedQueue<>();
         }
     }
 
-    //向页面索引中存储新页面，根据其空闲空间大小放入对应数组下标的集合中
+    //向页面索引中存储新页面，根据其空闲空间大小放入对应数组下标的队列中
     public void add(int pgno, int freeSpace) {
-        lock.lock();
+        offer(new PageInfo(pgno, freeSpace));
+        if(fsm != null) {
+            fsm.set(pgno, freeSpace);
+        }
+    }
+
+    private void offer(PageInfo pi) {
+        indexed.put(pi.pgno, pi);
+        lists[number(pi.freeSpace)].offer(pi);
+    }
+
+    //这里判断其空闲空间大小时是向下取整，因为空闲空间是以threshold为单位的
+    private int number(int freeSpace) {
+        return Math.min(freeSpace / threshold, INTERVALS_NO);
+    }
+
+    /**
+     * 页面的空闲空间变大时（比如清理回收了页面中的数据项）调用，把页面移动到新的区间。
+     * 区间不变时只更新地图；页面正被插入者取出时不需要更新，插入者用完后会按页面实际的空闲空间放回；
+     * 还没从地图加载的页面只更新地图
+     */
+    public void update(int pgno, int freeSpace) {
+        PageInfo pi = indexed.get(pgno);
+        if(pi != null && number(pi.freeSpace) == number(freeSpace)) {
+            if(fsm != null) {
+                fsm.set(pgno, freeSpace);
+            }
+            return;
+        }
+        //作废成功说明没有被select取走，由当前线程放入新的页面信息
+        if(pi != null && pi.claim()) {
+            indexed.remove(pgno, pi);
+            add(pgno, freeSpace);
+            return;
+        }
+        if(fsm == null) {
+            return;
+        }
+        loadLock.lock();
         try {
-            //这里判断其空闲空间大小时是向下取整，因为空闲空间是以THRESHOLD为单位的
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
+            if(pgno >= nextFsmPgno && pgno <= fsmLimit) {
+                fsm.set(pgno, freeSpace);
+            }
         } finally {
-            lock.unlock();
+            loadLock.unlock();
         }
     }
 
-    //根据所需空闲空间大小即spaceSize算出其区间号，然后从对应数组下标的集合中取出页面即可
-    public PageInfo select (int spaceSize) {
-        lock.lock();
+    //打开数据库时调用，地图中第2页到第limit页的空闲空间之后按需从地图中加载，不再逐页读取数据页
+    public void loadLazily(int limit) {
+        loadLazily(limit, pgno -> true);
+    }
+
+    //只加载其中belongs为true的页面，其他页面属于别的索引
+    public void loadLazily(int limit, IntPredicate belongs) {
+        loadLock.lock();
+        try {
+            nextFsmPgno = 2;
+            fsmLimit = limit;
+            this.belongs = belongs;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    //从地图中加载下一个FSM页覆盖的页面，地图已经全部加载时返回false
+    private boolean loadNextFsmPage() {
+        if(fsm == null) {
+            return false;
+        }
+        loadLock.lock();
         try {
-            //计算能存储spaceSize大小的区间号时需要向上取整，因为可以页面内存只能大不能小
-            int number = (spaceSize + THRESHOLD - 1) / THRESHOLD;
-            //如果取整之后的number大于最大空闲内存能存储的大小，那么该数据无法存储在页面内
-            while (number <= INTERVALS_NO) {
-                if(lists[number].size() == 0){
-                    number++;
-                    continue;
+            if(nextFsmPgno > fsmLimit) {
+                return false;
+            }
+            int perPage = fsm.pagesPerFsmPage();
+            int end = Math.min(fsmLimit, (nextFsmPgno - 1) / perPage * perPage + perPage);
+            for(int pgno = nextFsmPgno; pgno <= end; pgno++) {
+                //没有空闲空间的页面也放进索引，之后回收了空间时可以通过update找到
+                if(belongs.test(pgno)) {
+                    offer(new PageInfo(pgno, fsm.get(pgno)));
                 }
-                //找到可以存储的页面后取出这个页面，意思是同一个页面是不允许并发写的。该页面用完后需重新插入页面索引
-                return lists[number].remove(0);
             }
-            return null;
+            nextFsmPgno = end + 1;
+            return true;
         } finally {
-            lock.unlock();
+            loadLock.unlock();
         }
     }
+
+    //根据所需空闲空间大小即spaceSize算出其区间号，然后从对应数组下标的队列中取出页面即可
+    public PageInfo select (int spaceSize) {
+        //从比spaceSize所在区间高一级的区间开始找，这些区间中的页面空闲空间一定大于spaceSize；
+        //最后一个区间的页面不一定放得下接近整页的数据，调用者取出页面后还会检查实际的空闲空间
+        int number = Math.min(spaceSize / threshold + 1, INTERVALS_NO);
+        do {
+            for(int i = number; i <= INTERVALS_NO; i++) {
+                //找到可以存储的页面后取出这个页面，意思是同一个页面是不允许并发写的。该页面用完后需重新插入页面索引
+                PageInfo pi;
+                while ((pi = lists[i].poll()) != null) {
+                    //被update作废的页面信息直接丢弃，页面已经以新的空闲空间放进了别的区间
+                    if(pi.claim()) {
+                        indexed.remove(pi.pgno, pi);
+                        return pi;
+                    }
+                }
+            }
+            //索引中没有合适的页面，再从空闲空间地图中加载一批
+        } while (loadNextFsmPage());
+        return null;
+    }
 }
@@ -1,16 +1,26 @@
 package com.xjx.mydb.server.dm.pageIndex;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * @Author: Xjx
  * @Create: 2023/1/6 - 15:21
  * 页面信息类，存储页号和这个页号对应数据页的空闲空间大小
+ * 队列中的页面信息只能被取走一次：select取出使用，或者被update作废后换成新的页面信息，两者通过claim竞争
  */
 public class PageInfo {
     public int pgno;
     public int freeSpace;
 
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
     public PageInfo(int pgno, int freeSpace) {
         this.pgno = pgno;
         this.freeSpace = freeSpace;
     }
+
+    //取得这个页面信息，返回false说明它已经被别人取走或作废了
+    boolean claim() {
+        return claimed.compareAndSet(false, true);
+    }
 }
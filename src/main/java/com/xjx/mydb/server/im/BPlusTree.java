@@ -1,5 +1,6 @@
 package com.xjx.mydb.server.im;
 
+import com.xjx.mydb.common.Error;
 import com.xjx.mydb.server.common.SubArray;
 import com.xjx.mydb.server.dm.DataManager;
 import com.xjx.mydb.server.dm.dataItem.DataItem;
@@ -15,6 +16,9 @@ import java.util.concurrent.locks.ReentrantLock;
 /**
  * @Author: Xjx
  * @Create: 2023/1/29 - 11:07
+ * 并发的B-link树：节点分裂后先通过兄弟指针就能找到新节点，之后才把新节点插入父节点，
+ * 所以查找和插入都是从上往下逐个节点进行，同一时刻最多锁住一个节点，读者不加锁。
+ * 根节点分裂时以“根节点没有变化”为条件更换根节点，条件不成立说明树已经被其他线程长高了，这时把新节点插入到上一层
  */
 public class BPlusTree {
     DataManager dm;
@@ -22,11 +26,25 @@ public class BPlusTree {
     //由于B+树在插入删除时，会动态调整，根节点不是固定节点，于是设置一个 bootDataItem
     //该 DataItem 中存储了根节点的 UID。可以注意到，IM 在操作 DM 时，使用的事务都是 SUPER_XID。
     DataItem bootDataItem;
+    //只在更换根节点时持有，保证两个线程不会同时给同一个旧根节点生成新根，读根节点不需要它
     Lock bootLock;
+    //新建根节点使用的平衡因子，和创建树时的根节点一致
+    int balance;
+    //解码后的索引节点，从根往下查找时优先使用
+    NodeCache nodeCache;
 
+    //创建一棵节点大小由页面大小决定的树
     public static long create(DataManager dm) throws Exception {
+        return create(dm, Node.balanceNumber(dm.getPageSize()));
+    }
+
+    //创建一棵平衡因子为balance的树，节点越宽树越矮，但节点不能超过一个页面能放下的大小
+    public static long create(DataManager dm, int balance) throws Exception {
+        if(balance < 2 || balance > Node.maxBalanceNumber(dm.getPageSize())) {
+            throw Error.InvalidNodeSizeException;
+        }
         //生成一个空根节点
-        byte[] rawRoot = Node.newNilRootRaw();
+        byte[] rawRoot = Node.newNilRootRaw(balance);
         //将生成的节点数据插入数据管理器DM中，这个插入的是节点数据
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
         //下面这个插入的根节点的uid即节点索引，返回的是索引的uid即页号加偏移量，可以通过此uid找到根节点数据的索引地址
@@ -43,48 +61,107 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        //节点的长度记录了平衡因子，之后新建的根节点和创建时保持一致
+        Node root = Node.loadNode(t, t.rootUid());
+        t.balance = Node.getRawBalanceNumber(root.raw);
+        root.release();
+        t.nodeCache = new NodeCache(NodeCache.DEFAULT_CAPACITY);
         return t;
     }
 
-    //获取根节点uid
-    private long rootUid() {
-        bootLock.lock();
-        try {
-            //获取B树中保存的根节点的引用指向的根节点数据项的数据
-            SubArray sa = bootDataItem.data();
+    //获取根节点uid，和读节点一样先乐观读，根节点正在更换时再加读锁
+    long rootUid() {
+        //获取B树中保存的根节点的引用指向的根节点数据项的数据
+        SubArray sa = bootDataItem.data();
+        long stamp = bootDataItem.tryOptimisticRead();
+        if(stamp != 0) {
             //取出数据项中的uid，因为根节点指向的Dataitem是一个索引数据项，保存的是存储真正根节点数据项的uid
+            long uid = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start + 8));
+            if(bootDataItem.validate(stamp)) {
+                return uid;
+            }
+        }
+        bootDataItem.rLock();
+        try {
             return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start + 8));
         } finally {
-            bootLock.unlock();
+            bootDataItem.rUnlock();
+        }
+    }
+
+    //left分裂出了right，把right插入到left的上一层。left仍是根节点时生成新根，否则插入已经长高的树中left上一层的节点
+    private void insertAbove(long left, long right, long rightKey) throws Exception {
+        while (true) {
+            long rootUid;
+            bootLock.lock();
+            try {
+                rootUid = rootUid();
+                if(rootUid == left) {
+                    updateRootUid(left, right, rightKey);
+                    return;
+                }
+            } finally {
+                bootLock.unlock();
+            }
+            //其他线程已经为left生成了新根，新根至少比left高一层，从新根往下找到left上一层中right所在的节点
+            long parent = searchLevel(rootUid, rightKey, nodeLevel(left) + 1);
+            InsertRes res = insertAndSplit(parent, right, rightKey);
+            if(res.newNode == 0) {
+                return;
+            }
+            //上一层的节点也分裂了，继续往上插入
+            left = parent;
+            right = res.newNode;
+            rightKey = res.newKey;
         }
     }
 
-    //更新根节点uid
+    //更新根节点uid，调用者需持有bootLock
     private void updateRootUid(long left, long right, long rightKey) throws Exception {
-        bootLock.lock();
+        byte[] rootRaw = Node.newRootRaw(balance, nodeLevel(left) + 1, left, right, rightKey);
+        //这里将刚生成的根节点数据插入dm中，返回的是新根节点的uid
+        long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
+        //下面涉及更新操作，所以需要保存旧数据
+        bootDataItem.before();
+        SubArray diRaw = bootDataItem.data();
+        //将刚才新根节点的uid插入B树中的对根节点的引用中，即更新根节点对应数据项中存储的uid，此uid对应的数据项保存真正的根节点数据
+        System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+        //执行到此处表示更新成功，记录更新后的新数据，保证原子性
+        bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+    }
+
+    //取得解码后的索引节点，先查节点缓存，没有时读出节点解码并放入缓存。叶子节点返回null
+    private NodeCache.Entry innerNode(long nodeUid) throws Exception {
+        NodeCache.Entry seen = nodeCache.slot(nodeUid);
+        if(seen != null && seen.uid == nodeUid) {
+            return seen;
+        }
+        Node node = Node.loadNode(this, nodeUid);
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-            //这里将刚生成的根节点数据插入dm中，返回的是新根节点的uid
-            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
-            //下面涉及更新操作，所以需要保存旧数据
-            bootDataItem.before();
-            SubArray diRaw = bootDataItem.data();
-            //将刚才新根节点的uid插入B树中的对根节点的引用中，即更新根节点对应数据项中存储的uid，此uid对应的数据项保存真正的根节点数据
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            //执行到此处表示更新成功，记录更新后的新数据，保证原子性
-            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            return node.decodeInner(seen);
         } finally {
-            bootLock.unlock();
+            node.release();
         }
     }
 
+    //节点所在的层
+    private int nodeLevel(long nodeUid) throws Exception {
+        NodeCache.Entry inner = innerNode(nodeUid);
+        return inner == null ? 0 : inner.level;
+    }
+
+    //从nodeUid往下找到第level层中key所在的节点
+    private long searchLevel(long nodeUid, long key, int level) throws Exception {
+        while (nodeLevel(nodeUid) > level) {
+            nodeUid = searchNext(nodeUid, key);
+        }
+        return nodeUid;
+    }
+
     //根据节点uid和要查找数据对应的键找存储该key的叶子节点，不是叶子节点也可能存在该key，因为索引节点也会存储相应的索引key
     private long searchLeaf(long nodeUid, long key) throws Exception {
         //根据要找的节点uid找节点
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-        if (isLeaf) {
+        if (innerNode(nodeUid) == null) {
             //如果当前这个根据uid找的节点是叶子节点就直接返回
             return nodeUid;
         } else {
@@ -99,15 +176,14 @@ public class BPlusTree {
     //找当前节点的下一个节点
     private long searchNext(long nodeUid, long key) throws Exception {
         while (true) {
-            //将当前节点取出
-            Node node = Node.loadNode(this, nodeUid);
+            //将当前节点取出，索引节点一般直接从节点缓存中得到
+            NodeCache.Entry inner = innerNode(nodeUid);
             //根据key去当前节点找key对应的下个节点地址，即索引查找
-            Node.SearchNextRes res = node.searchNext(key);
-            node.release();
+            long next = inner.searchNext(key);
             //不等于0则找到了
-            if(res.uid != 0) return res.uid;
+            if(next != 0) return next;
             //等于则返回其兄弟节点id
-            nodeUid = res.siblingUid;
+            nodeUid = inner.sibling;
         }
     }
 
@@ -116,27 +192,48 @@ public class BPlusTree {
         return searchRange(key, key);
     }
 
-    //根据左右key边界范围查找
+    //找到第一个可能存有key的叶子节点。节点分裂时相同的键可能分到两边，而索引节点把等于分隔键的key引向右边，
+    //所以按key-1查找，从分隔键左边的叶子节点开始，保证不会漏掉相同的键
+    long searchFirstLeaf(long key) throws Exception {
+        return searchLeaf(rootUid(), key == Long.MIN_VALUE ? key : key - 1);
+    }
+
+    //根据左右key边界范围查找，返回范围内所有数据项的uid
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        //找到叶子节点，因为数据保存在叶子节点中，这其实就是根据leftKey索引键找对应索引数据的一步，不断遍历索引节点找到数据节点
-        long leafUid = searchLeaf(rootUid, leftKey);
+        Cursor cursor = cursor(leftKey, rightKey);
         List<Long> uids = new ArrayList<>();
+        while (cursor.next()) {
+            uids.add(cursor.getUid());
+        }
+        //返回查找到的数据项的uid
+        return uids;
+    }
+
+    //按键从小到大遍历[leftKey, rightKey]范围的游标，逐个叶子节点读取，适合结果很多或者只需要前几项的查询
+    public Cursor cursor(long leftKey, long rightKey) throws Exception {
+        return new Cursor(this, leftKey, rightKey, false);
+    }
+
+    //按键从大到小遍历[leftKey, rightKey]范围的游标
+    public Cursor reverseCursor(long leftKey, long rightKey) throws Exception {
+        return new Cursor(this, leftKey, rightKey, true);
+    }
+
+    //从树中删除键为key、数据为uid的索引项，返回是否找到并删除了。删除只修改叶子节点，不合并节点
+    public boolean delete(long key, long uid) throws Exception {
+        long leafUid = searchFirstLeaf(key);
         while (true) {
             Node leaf = Node.loadNode(this, leafUid);
-            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
+            Node.LeafDeleteRes res = leaf.leafDelete(uid, key);
             leaf.release();
-            uids.addAll(res.uids);
-            //如果遍历的叶子节点中为遍历完就已经不符合遍历条件则不会有兄弟节点即查找完毕
+            if(res.deleted) {
+                return true;
+            }
             if(res.siblingUid == 0) {
-                break;
-            } else {
-                //如果兄弟节点不为0，则表示上面查找key对应的数据时将所查叶子节点遍历完仍符合key要求，则还需要到兄弟节点查
-                leafUid = res.siblingUid;
+                return false;
             }
+            leafUid = res.siblingUid;
         }
-        //返回查找到的数据项的uid
-        return uids;
     }
 
     //向当前树中插入数据即数据id和key
@@ -145,7 +242,7 @@ public class BPlusTree {
         InsertRes res = insert(rootUid, uid, key);
         assert res != null;
         if(res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+            insertAbove(rootUid, res.newNode, res.newKey);
         }
     }
 
@@ -157,9 +254,7 @@ public class BPlusTree {
     //向nodeUid对应的节点插入新节点地址和其对应的键，即索引表中操作
     private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
         //加载被插入数据的节点
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
+        boolean isLeaf = innerNode(nodeUid) == null;
         InsertRes res = null;
         //如果是叶子节点则直接插入数据
         if(isLeaf) {
@@ -167,7 +262,7 @@ public class BPlusTree {
         } else {
             //不是叶子节点则往非叶子节点也插入数据，作为索引用
             long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(nodeUid, uid, key);
+            InsertRes ir = insert(next, uid, key);
             //判断非叶子节点是否分裂
             if(ir.newNode != 0) {
                 //分裂了则需要插入新分裂出的节点
@@ -0,0 +1,190 @@
+package com.xjx.mydb.server.im;
+
+import com.xjx.mydb.common.Error;
+import com.xjx.mydb.server.common.SubArray;
+import com.xjx.mydb.server.dm.DataManager;
+import com.xjx.mydb.server.dm.dataItem.DataItem;
+import com.xjx.mydb.server.tm.TransactionManagerImpl;
+import com.xjx.mydb.server.utils.Parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/21 - 10:15
+ * 从按键有序的(key, uid)自底向上批量建一棵B+树：叶子节点按填充因子依次装满，每产生一个节点就把它的最小键交给上一层，
+ * 上一层同样按填充因子组成索引节点，一遍输入就建好所有层，最后剩下一个节点的那一层就是根。
+ * 每个节点只通过DM插入一次，只写一条插入日志，不像逐个插入那样每个键都要重写整个节点的日志。
+ * 节点插入之前要知道右边兄弟的uid，所以每层的节点先在内存中攒一批，同一批从右往左插入，
+ * 只有每批最后一个节点需要在下一批插入后再修改一次兄弟指针
+ * 用法：依次add，最后finish得到树的bootUid，之后和BPlusTree.create返回的一样用BPlusTree.load加载
+ */
+public class BulkLoader {
+    //默认的填充因子，节点留出少量空间，之后的插入不会马上引起分裂
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+    //每层每批在内存中攒的节点数
+    private static final int BATCH = 64;
+
+    private final DataManager dm;
+    private final int balance;
+    //每个节点放的项数
+    private final int perNode;
+    //从叶子开始的各层
+    private final List<Level> levels;
+    private long lastKey;
+    private long count;
+
+    private BulkLoader(DataManager dm, int balance, int perNode) {
+        this.dm = dm;
+        this.balance = balance;
+        this.perNode = perNode;
+        this.levels = new ArrayList<>();
+        this.lastKey = Long.MIN_VALUE;
+        levels.add(new Level(0));
+    }
+
+    //节点大小由页面大小决定，使用默认的填充因子
+    public static BulkLoader create(DataManager dm) throws Exception {
+        return create(dm, Node.balanceNumber(dm.getPageSize()), DEFAULT_FILL_FACTOR);
+    }
+
+    //平衡因子为balance的树，每个节点装满最大键数的fillFactor
+    public static BulkLoader create(DataManager dm, int balance, double fillFactor) throws Exception {
+        if(balance < 2 || balance > Node.maxBalanceNumber(dm.getPageSize())) {
+            throw Error.InvalidNodeSizeException;
+        }
+        if(!(fillFactor > 0 && fillFactor <= 1)) {
+            throw Error.InvalidFillFactorException;
+        }
+        //节点达到平衡因子的两倍就会分裂，最多只能装到两倍减一
+        int perNode = Math.max(2, Math.min(balance * 2 - 1, (int) (balance * 2 * fillFactor)));
+        return new BulkLoader(dm, balance, perNode);
+    }
+
+    //加入一项，键必须不小于之前加入的键
+    public void add(long key, long uid) throws Exception {
+        if(key < lastKey) {
+            throw Error.UnsortedBulkLoadException;
+        }
+        lastKey = key;
+        count++;
+        levels.get(0).add(key, uid);
+    }
+
+    //把剩下的项组成节点，逐层向上直到只剩一个节点作为根，返回树的bootUid
+    public long finish() throws Exception {
+        if(count == 0) {
+            return BPlusTree.create(dm, balance);
+        }
+        long rootUid = 0;
+        for(int i = 0; rootUid == 0; i++) {
+            Level level = levels.get(i);
+            level.finish();
+            if(level.noNodes == 1) {
+                rootUid = level.lastUid;
+            }
+        }
+        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+    }
+
+    private Level parent(int level) {
+        if(levels.size() == level + 1) {
+            levels.add(new Level(level + 1));
+        }
+        return levels.get(level + 1);
+    }
+
+    //树中的一层
+    private class Level {
+        final int level;
+        //还没有组成节点的项，叶子层是数据的键和uid，索引层是子节点的最小键和子节点uid
+        long[] keys, uids;
+        int size;
+        //已经组好还没有插入的节点，以及它们的最小键
+        List<byte[]> batch;
+        long[] lowKeys;
+        //最后插入的节点，下一批插入之后要把它的兄弟指向下一批的第一个节点
+        long lastUid;
+        int noNodes;
+
+        Level(int level) {
+            this.level = level;
+            this.keys = new long[perNode + 1];
+            this.uids = new long[perNode + 1];
+            this.batch = new ArrayList<>();
+            this.lowKeys = new long[BATCH];
+        }
+
+        void add(long key, long uid) throws Exception {
+            keys[size] = key;
+            uids[size] = uid;
+            size++;
+            //索引节点最后一个键是下一个子节点的最小键，所以要等下一个子节点来了才能组成节点
+            if(level == 0 && size == perNode) {
+                makeNode(perNode, 0);
+            } else if(level > 0 && size == perNode + 1) {
+                makeNode(perNode, keys[perNode]);
+            }
+        }
+
+        //用前n项组成一个节点，索引节点的最后一个键为highKey
+        void makeNode(int n, long highKey) throws Exception {
+            int nodeSize = Node.nodeSize(balance);
+            SubArray raw = new SubArray(new byte[nodeSize], 0, nodeSize);
+            Node.setRawLevel(raw, level);
+            Node.setRawNoKeys(raw, n);
+            for(int i = 0; i < n; i++) {
+                Node.setRawKthSon(raw, uids[i], i);
+                //索引节点中子节点对应的键是它右边子节点的最小键
+                long key = level == 0 ? keys[i] : (i + 1 < n ? keys[i + 1] : highKey);
+                Node.setRawKthKey(raw, key, i);
+            }
+            lowKeys[batch.size()] = keys[0];
+            batch.add(raw.raw);
+            System.arraycopy(keys, n, keys, 0, size - n);
+            System.arraycopy(uids, n, uids, 0, size - n);
+            size -= n;
+            if(batch.size() == BATCH) {
+                flush();
+            }
+        }
+
+        //从右往左插入这一批节点，再把它们交给上一层
+        void flush() throws Exception {
+            int n = batch.size();
+            long[] nodeUids = new long[n];
+            long sibling = 0;
+            for(int i = n - 1; i >= 0; i--) {
+                SubArray raw = new SubArray(batch.get(i), 0, batch.get(i).length);
+                Node.setRawSibling(raw, sibling);
+                nodeUids[i] = dm.insert(TransactionManagerImpl.SUPER_XID, raw.raw);
+                sibling = nodeUids[i];
+            }
+            if(lastUid != 0) {
+                //上一批最后一个节点插入时还不知道右边兄弟，这里补上，每批只有这一次修改
+                DataItem last = dm.read(lastUid);
+                last.before();
+                Node.setRawSibling(last.data(), nodeUids[0]);
+                last.after(TransactionManagerImpl.SUPER_XID);
+                last.release();
+            }
+            lastUid = nodeUids[n - 1];
+            noNodes += n;
+            batch.clear();
+            for(int i = 0; i < n; i++) {
+                parent(level).add(lowKeys[i], nodeUids[i]);
+            }
+        }
+
+        //剩下的项组成这一层最后一个节点，它是这一层最右边的节点，最后一个键为最大值
+        void finish() throws Exception {
+            if(size > 0) {
+                makeNode(size, Long.MAX_VALUE);
+            }
+            if(!batch.isEmpty()) {
+                flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.xjx.mydb.server.im;
+
+import java.util.Arrays;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/20 - 09:45
+ * B+树上的范围游标：按键的顺序（或逆序）逐个取出[leftKey, rightKey]范围内的键和uid，不需要先把结果全部放进列表。
+ * 游标每次读一个叶子节点，把其中范围内的项解码到两个long数组中，取完之后再沿兄弟节点读下一个叶子节点，
+ * 读完一个叶子节点就释放它，两次next之间不持有任何节点，调用者随时可以不再往下取。
+ * 叶子节点只有指向右边兄弟的指针，所以逆序游标先从左往右走一遍范围内的叶子节点，只记下它们的uid，
+ * 再从最后一个叶子节点开始往前逐个读出
+ */
+public class Cursor implements IndexCursor {
+    private final BPlusTree tree;
+    private final long leftKey, rightKey;
+    private final boolean reverse;
+
+    //当前叶子节点中范围内的键和uid，以及下一个要取的位置
+    private long[] keys = new long[0];
+    private long[] uids = new long[0];
+    private int count, pos;
+    //正序：下一个要读的叶子节点，0表示没有了
+    private long nextLeaf;
+    //逆序：范围内的叶子节点，从后往前读
+    private long[] leaves;
+    private int noLeaves;
+
+    private long key, uid;
+
+    Cursor(BPlusTree tree, long leftKey, long rightKey, boolean reverse) throws Exception {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.reverse = reverse;
+        long first = leftKey > rightKey ? 0 : tree.searchFirstLeaf(leftKey);
+        if(reverse) {
+            collectLeaves(first);
+        } else {
+            nextLeaf = first;
+        }
+    }
+
+    //移动到下一项，返回是否还有
+    @Override
+    public boolean next() throws Exception {
+        while (pos >= count) {
+            if(!readLeaf()) {
+                return false;
+            }
+        }
+        int i = reverse ? count - 1 - pos : pos;
+        key = keys[i];
+        uid = uids[i];
+        pos++;
+        return true;
+    }
+
+    //当前项的键
+    public long getKey() {
+        return key;
+    }
+
+    //当前项的uid
+    @Override
+    public long getUid() {
+        return uid;
+    }
+
+    //读入下一个叶子节点中范围内的项，没有叶子节点了返回false
+    private boolean readLeaf() throws Exception {
+        long leafUid;
+        if(reverse) {
+            if(noLeaves == 0) {
+                return false;
+            }
+            leafUid = leaves[--noLeaves];
+        } else {
+            if(nextLeaf == 0) {
+                return false;
+            }
+            leafUid = nextLeaf;
+        }
+        long sibling = scan(leafUid);
+        if(!reverse) {
+            nextLeaf = sibling;
+        }
+        return true;
+    }
+
+    //把叶子节点中范围内的项读入数组，返回还需要继续读的兄弟节点
+    private long scan(long leafUid) throws Exception {
+        Node leaf = Node.loadNode(tree, leafUid);
+        try {
+            int capacity = leaf.capacity();
+            if(keys.length < capacity) {
+                keys = new long[capacity];
+                uids = new long[capacity];
+            }
+            Node.LeafScanRes res = leaf.leafScan(leftKey, rightKey, keys, uids);
+            count = res.count;
+            pos = 0;
+            return res.siblingUid;
+        } finally {
+            leaf.release();
+        }
+    }
+
+    //逆序游标从左往右记下范围内有数据的叶子节点
+    private void collectLeaves(long leafUid) throws Exception {
+        leaves = new long[16];
+        while (leafUid != 0) {
+            long sibling = scan(leafUid);
+            if(count > 0) {
+                if(noLeaves == leaves.length) {
+                    leaves = Arrays.copyOf(leaves, noLeaves * 2);
+                }
+                leaves[noLeaves++] = leafUid;
+            }
+            leafUid = sibling;
+        }
+        count = pos = 0;
+    }
+}
@@ -0,0 +1,14 @@
+package com.xjx.mydb.server.im;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/22 - 17:20
+ * 索引范围游标，Cursor和VarKeyCursor的共同接口，上层只需要按顺序取出范围内记录的uid
+ */
+public interface IndexCursor {
+    //移动到下一项，返回是否还有
+    boolean next() throws Exception;
+
+    //当前项的uid
+    long getUid();
+}
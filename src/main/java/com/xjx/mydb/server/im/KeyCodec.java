@@ -0,0 +1,119 @@
+package com.xjx.mydb.server.im;
+
+import com.xjx.mydb.server.utils.ParseStringRes;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/22 - 10:05
+ * 索引键的编码：把字段值编码成字节串，按无符号字节逐个比较字节串的大小和比较原来的值的大小一致，
+ * 这样索引只需要比较字节，不需要知道字段类型，多个字段的编码直接拼起来就是按字段依次比较的组合键。
+ * int32和int64是定长的大端补码，最高位取反，使负数排在正数前面；
+ * 字符串是UTF-8字节，其中的0x00写成0x00 0xFF，最后以0x00 0x00结尾，较短的字符串排在以它开头的字符串前面。
+ * 每种编码都不会是同类型另一个值的编码的前缀，所以组合键中的每一段都能确定地切分出来
+ */
+public class KeyCodec {
+    private static final int SIGN_INT = 0x80;
+    private static final byte ESCAPE = (byte) 0xFF;
+
+    public static byte[] encodeInt(int value) {
+        byte[] key = new byte[4];
+        for(int i = 0; i < 4; i++) {
+            key[i] = (byte) (value >>> (24 - i * 8));
+        }
+        key[0] ^= SIGN_INT;
+        return key;
+    }
+
+    public static byte[] encodeLong(long value) {
+        byte[] key = new byte[8];
+        for(int i = 0; i < 8; i++) {
+            key[i] = (byte) (value >>> (56 - i * 8));
+        }
+        key[0] ^= SIGN_INT;
+        return key;
+    }
+
+    public static byte[] encodeString(String value) {
+        byte[] raw = value.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length + 2);
+        for(byte b : raw) {
+            out.write(b);
+            if(b == 0) {
+                out.write(ESCAPE);
+            }
+        }
+        out.write(0);
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    //按字段值的类型编码，支持Integer、Long和String
+    public static byte[] encode(Object value) {
+        if(value instanceof Integer) {
+            return encodeInt((Integer) value);
+        } else if(value instanceof Long) {
+            return encodeLong((Long) value);
+        } else if(value instanceof String) {
+            return encodeString((String) value);
+        }
+        throw new IllegalArgumentException("Unsupported key type: " + value);
+    }
+
+    //多个字段组成的组合键，依次比较每个字段
+    public static byte[] composite(Object... values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(Object value : values) {
+            byte[] part = encode(value);
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    public static int decodeInt(byte[] key, int offset) {
+        int value = 0;
+        for(int i = 0; i < 4; i++) {
+            value = (value << 8) | (key[offset + i] & 0xFF);
+        }
+        return value ^ (SIGN_INT << 24);
+    }
+
+    public static long decodeLong(byte[] key, int offset) {
+        long value = 0;
+        for(int i = 0; i < 8; i++) {
+            value = (value << 8) | (key[offset + i] & 0xFF);
+        }
+        return value ^ ((long) SIGN_INT << 56);
+    }
+
+    //从key的offset处解码出一个字符串，next是这个字符串编码的字节数
+    public static ParseStringRes decodeString(byte[] key, int offset) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int i = offset;
+        while (true) {
+            byte b = key[i++];
+            if(b == 0) {
+                //0x00后面是0x00表示结束，是0xFF表示原来的0x00
+                if(key[i++] == 0) {
+                    break;
+                }
+            }
+            out.write(b);
+        }
+        return new ParseStringRes(new String(out.toByteArray(), StandardCharsets.UTF_8), i - offset);
+    }
+
+    //按无符号字节比较两个键，一个是另一个的前缀时较短的小
+    public static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for(int i = 0; i < n; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if(c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+}
@@ -2,33 +2,56 @@ package com.xjx.mydb.server.im;
 
 import com.xjx.mydb.server.common.SubArray;
 import com.xjx.mydb.server.dm.dataItem.DataItem;
+import com.xjx.mydb.server.dm.page.PageX;
 import com.xjx.mydb.server.tm.TransactionManagerImpl;
 import com.xjx.mydb.server.utils.Parser;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * @Author: Xjx
  * @Create: 2023/1/24 - 14:42
  * Node结构如下：
- * [LeafFlag][KeyNumber][SiblingUid]
+ * [Level][KeyNumber][SiblingUid]
  * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
+ * Level是节点所在的层，叶子节点为0，根节点分裂时新根的层数加一。同一层的节点通过SiblingUid连成链表（B-link树），
+ * 节点的最后一个键同时是它的上界，要找的键不小于它时说明节点已经分裂，沿兄弟节点向右找，所以写者每次只需要锁住一个节点。
+ * 读节点使用乐观读，不加锁，读完后检查期间节点没有被修改过，读者不会阻塞写者
+ * 平衡因子随页面大小变化，16KB页面时为32。节点的大小由平衡因子决定，反过来平衡因子也可以由节点数据的长度算出，
+ * 所以每个节点按自己的长度分裂，不受创建它时的页面大小影响
  */
 public class Node {
-    //0下标处为叶子节点的标志位
-    static final int IS_LEAF_OFFSET = 0;
+    //0下标处为节点所在的层，叶子节点为0
+    static final int LEVEL_OFFSET = 0;
     //1下标处为该节点中key的个数,占两个字节
-    static final int NO_KEYS_OFFSET = IS_LEAF_OFFSET + 1;
+    static final int NO_KEYS_OFFSET = LEVEL_OFFSET + 1;
     //3下标处为该节点的兄弟节点存储在DM的UID
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET + 2;
     //每个节点的头大小
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET + 8;
-    //平衡因子，非根节点最小key数量
-    static final int BALANCE_NUMBER = 32;
-    //节点的最大内存大小
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2);
+    //每这么多字节的页面大小对应一个平衡因子，16KB页面的平衡因子为32
+    private static final int PAGE_BYTES_PER_BALANCE = 512;
+
+    //页面大小为pageSize时默认的平衡因子，即非根节点最小key数量
+    static int balanceNumber(int pageSize) {
+        return pageSize / PAGE_BYTES_PER_BALANCE;
+    }
+
+    //页面大小为pageSize时允许的最大平衡因子，节点作为数据项要能放进一个页面
+    static int maxBalanceNumber(int pageSize) {
+        int maxNodeSize = PageX.maxFreeSpace(pageSize) - DataItem.HEADER_SIZE;
+        return ((maxNodeSize - NODE_HEADER_SIZE) / (2 * 8) - 2) / 2;
+    }
+
+    //平衡因子为balance时节点的最大内存大小
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (2 * 8) * (balance * 2 + 2);
+    }
+
+    //根据节点数据的长度反推它的平衡因子
+    static int getRawBalanceNumber(SubArray raw) {
+        return ((raw.end - raw.start - NODE_HEADER_SIZE) / (2 * 8) - 2) / 2;
+    }
 
     //节点有自己所属的那颗树的引用
     BPlusTree tree;
@@ -39,18 +62,19 @@ public class Node {
     //节点对应数据的uid地址
     long uid;
 
-    //设置一个节点是否为叶子节点
-    static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
-        if (isLeaf) {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte) 1;
-        } else {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte) 0;
-        }
+    //设置一个节点所在的层
+    static void setRawLevel(SubArray raw, int level) {
+        raw.raw[raw.start + LEVEL_OFFSET] = (byte) level;
+    }
+
+    //查询一个节点所在的层
+    static int getRawLevel(SubArray raw) {
+        return Byte.toUnsignedInt(raw.raw[raw.start + LEVEL_OFFSET]);
     }
 
     //判断一个节点是否是叶子节点
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte) 1;
+        return getRawLevel(raw) == 0;
     }
 
     //修改一个节点中key的总数
@@ -60,7 +84,7 @@ public class Node {
 
     //查询一个节点中key总数
     static int getRawNoKey(SubArray raw) {
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+        return (int) Parser.parseShort(raw.raw, raw.start + NO_KEYS_OFFSET);
     }
 
     //设置一个节点的兄弟节点
@@ -70,7 +94,7 @@ public class Node {
 
     //查询一个节点的兄弟节点
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+        return Parser.parseLong(raw.raw, raw.start + SIBLING_OFFSET);
     }
 
     //设置该节点的第k个键对应的子节点地址
@@ -82,7 +106,7 @@ public class Node {
     //得到该节点的第k个键对应的子节点地址
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return Parser.parseLong(raw.raw, offset);
     }
 
     //设置该节点的第k键
@@ -94,7 +118,21 @@ public class Node {
     //得到该节点的第k键,kth=0即为第一个键，因为随机存取
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return Parser.parseLong(raw.raw, offset);
+    }
+
+    //在节点的前noKeys个键中二分查找第一个不小于key的键，所有键都小于key时返回noKeys
+    static int lowerBound(SubArray raw, int noKeys, long key) {
+        int low = 0, high = noKeys;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getRawKthKey(raw, mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
     }
 
     //将从第kth开始的节点全部复制到另一个树上，这里kth=0是第一个节点，32则为第33个节点
@@ -106,18 +144,25 @@ public class Node {
     //从某个指定键的节点开始（包括此节点）将节点都向后移动一个节点，此方法用于插入结点时方便插入
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
-        int end = raw.start + NODE_SIZE - 1;
+        int end = raw.end - 1;
         for (int i = end; i >= begin; i--) {
             raw.raw[i] = raw.raw[i - (8 * 2)];
         }
     }
 
-    //生成一个根节点
-    static byte[] newRootRaw(long left, long right, long key) {
+    //把第kth个节点之后的节点都向前移动一个节点，覆盖掉第kth个节点，此方法用于删除结点
+    static void unshiftRawKth(SubArray raw, int kth) {
+        int begin = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
+        System.arraycopy(raw.raw, begin + 8 * 2, raw.raw, begin, raw.end - begin - 8 * 2);
+    }
+
+    //生成一个level层的根节点，它的两个子节点在下一层
+    static byte[] newRootRaw(int balance, int level, long left, long right, long key) {
         //生成一个等于节点大小的数组
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-        //设置为非子节点
-        setRawIsLeaf(raw, false);
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
+        //根节点比子节点高一层
+        setRawLevel(raw, level);
         //新根节点默认有两个初始左右子节点，所以节点个数为2
         setRawNoKeys(raw, 2);
         //根节点没有兄弟节点
@@ -133,9 +178,10 @@ public class Node {
     }
 
     //生成一个空的根节点数据
-    static byte[] newNilRootRaw() {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-        setRawIsLeaf(raw, true);
+    static byte[] newNilRootRaw(int balance) {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
+        setRawLevel(raw, 0);
         setRawNoKeys(raw, 0);
         setRawSibling(raw, 0);
         return raw.raw;
@@ -158,94 +204,93 @@ public class Node {
         dataItem.release();
     }
 
-    public boolean isLeaf() {
+    //先不加锁读节点，读的期间节点被修改过（读到的可能是写了一半的数据，甚至因此越界）就加读锁重新读一次
+    static <T> T optimisticRead(DataItem dataItem, Supplier<T> reader) {
+        long stamp = dataItem.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T res = reader.get();
+                if (dataItem.validate(stamp)) {
+                    return res;
+                }
+            } catch (RuntimeException e) {
+                if (dataItem.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
         dataItem.rLock();
         try {
-            return getRawIfLeaf(raw);
+            return reader.get();
         } finally {
             dataItem.rUnlock();
         }
     }
 
-    //为了查找方便，创建一个查找结点类
-    class SearchNextRes {
-        long uid;
-        long siblingUid;
+    public int getLevel() {
+        return optimisticRead(dataItem, () -> getRawLevel(raw));
     }
 
-    //寻找传入的key的下一个键及其数据
-    public SearchNextRes searchNext(long key) {
-        dataItem.rLock();
-        try {
-            SearchNextRes res = new SearchNextRes();
-            //得到当前节点中的总key数，然后遍历
-            int noKeys = getRawNoKey(raw);
-            for (int i = 0; i < noKeys; i++) {
-                long ik = getRawKthKey(raw, i);
-                //找到第一个节点中键大小大于传入的key的就是此key下一个键，返回其对应数据
-                if (key < ik) {
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
-            }
-            //找不到则返回兄弟节点
-            res.uid = 0;
-            //节点的兄弟节点记录在此此节点中
-            res.siblingUid = getRawSibling(raw);
-            return res;
-        } finally {
-            dataItem.rUnlock();
+    //把索引节点解码成数组形式放入树的节点缓存并返回，叶子节点不缓存，返回null
+    NodeCache.Entry decodeInner(NodeCache.Entry seen) {
+        NodeCache.Entry entry = optimisticRead(dataItem, () -> getRawIfLeaf(raw) ? null : decode());
+        if (entry != null) {
+            tree.nodeCache.install(seen, entry);
+        }
+        return entry;
+    }
+
+    private NodeCache.Entry decode() {
+        int noKeys = getRawNoKey(raw);
+        long[] keys = new long[noKeys];
+        long[] sons = new long[noKeys];
+        for (int i = 0; i < noKeys; i++) {
+            keys[i] = getRawKthKey(raw, i);
+            sons[i] = getRawKthSon(raw, i);
         }
+        return new NodeCache.Entry(uid, getRawLevel(raw), keys, sons, getRawSibling(raw));
     }
 
-    //范围查找结点类，找到的所有符合要求的键对应的数据都放入这个类的对象中
-    class LeafSearchRangeRes {
-        List<Long> uids;
+    //节点最多能放下的键数
+    int capacity() {
+        return getRawBalanceNumber(raw) * 2 + 2;
+    }
+
+    //叶子节点范围扫描的结果，范围内的键和uid放在调用者给的数组中
+    class LeafScanRes {
+        int count;
         long siblingUid;
     }
 
-    //在当前节点进行范围查找，范围是 [leftKey, rightKey]
+    //在当前节点进行范围查找，范围是 [leftKey, rightKey]，把范围内的键和uid依次放入keys和uids，数组至少要有capacity()大
     //这里约定如果rightKey大于等于该节点的最大的 key, 则还同时返回兄弟节点的 UID，方便继续搜索下一个节点。
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
-        try {
+    public LeafScanRes leafScan(long leftKey, long rightKey, long[] keys, long[] uids) {
+        return optimisticRead(dataItem, () -> {
             //获得节点的总键数
             int noKeys = getRawNoKey(raw);
-            int kth = 0;
-            //遍历节点
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                //因为是范围查找，找到左边界就先退出，因为这里的键对应的数据就符合我们的要求需要收集起来
-                if (leftKey <= ik) {
-                    break;
-                }
-                kth++;
-            }
-            List<Long> uids = new ArrayList<>();
+            //因为是范围查找，先二分找到左边界，从这里开始的键对应的数据就符合我们的要求需要收集起来
+            int kth = lowerBound(raw, noKeys, leftKey);
+            int count = 0;
             while (kth < noKeys) {
                 long ik = getRawKthKey(raw, kth);
                 //从左边界一直遍历，直到不符合要求的键退出
                 if (ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
+                    keys[count] = ik;
+                    uids[count] = getRawKthSon(raw, kth);
+                    count++;
                     kth++;
                 } else {
                     break;
                 }
             }
-            long siblingUid = 0;
+            LeafScanRes res = new LeafScanRes();
+            res.count = count;
             //如果当前节点所有键都查完了，说明兄弟节点可能也有符合范围的答案，把兄弟节点也返回
             if (kth == noKeys) {
-                siblingUid = getRawSibling(raw);
+                res.siblingUid = getRawSibling(raw);
             }
-            //返回范围查找结果对象
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
             return res;
-        } finally {
-            dataItem.rUnlock();
-        }
+        });
     }
 
     //插入数据的节点对象，保存兄弟节点，新节点地址即uid，新key
@@ -276,14 +321,16 @@ public class Node {
                     SplitRes r = split();
                     res.newSon = r.newSon;
                     res.newKey = r.newKey;
-                    return res;
                 } catch (Exception e) {
                     err = e;
                     throw e;
                 }
-            } else {
-                return res;
             }
+            //索引节点被修改了，趁还持有写锁把新的解码结果放入缓存，替换掉旧的
+            if (!getRawIfLeaf(raw)) {
+                tree.nodeCache.put(decode());
+            }
+            return res;
         } finally {
             //插入成功，需要记录redo日志
             if (err == null && success) {
@@ -297,19 +344,8 @@ public class Node {
 
     private boolean insert(long uid, long key) {
         int noKeys = getRawNoKey(raw);
-        int kth = 0;
-        //遍历节点所有键找到第一个可插入位置
-        while (kth < noKeys) {
-            //根据传入的要插入的节点的key进行比对找
-            long ik = getRawKthKey(raw, kth);
-            //大于则当前遍历的键则不是
-            if (ik < key) {
-                kth++;
-            } else {
-                //小于等于则是，因为可能中间键差较大，我们找的是第一个可插入位置
-                break;
-            }
-        }
+        //二分找到第一个可插入位置，即第一个不小于key的键
+        int kth = lowerBound(raw, noKeys, key);
         //查遍整个节点都没有找到可插入位置并且这个节点有兄弟节点返回插入失败
         if (kth == noKeys && getRawSibling(raw) != 0) return false;
         //执行到这里表示找到了可插入位置
@@ -333,9 +369,50 @@ public class Node {
         return true;
     }
 
-    //一旦当前节点的键达到了64个就需要分裂节点了
+    //删除叶子节点中数据的结果，没有删除并且兄弟节点中可能还有这个键时返回兄弟节点
+    class LeafDeleteRes {
+        boolean deleted;
+        long siblingUid;
+    }
+
+    //从叶子节点中删除键为key、数据为uid的一项。删除之后不合并节点，节点中的键可以少于平衡因子甚至为空
+    public LeafDeleteRes leafDelete(long uid, long key) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKey(raw);
+            //从第一个等于key的键开始，在相同的键中找数据为uid的一项
+            int kth = lowerBound(raw, noKeys, key);
+            while (kth < noKeys) {
+                long ik = getRawKthKey(raw, kth);
+                if (ik > key) {
+                    break;
+                }
+                if (ik == key && getRawKthSon(raw, kth) == uid) {
+                    unshiftRawKth(raw, kth);
+                    setRawNoKeys(raw, noKeys - 1);
+                    res.deleted = true;
+                    return res;
+                }
+                kth++;
+            }
+            //当前节点中所有键都不大于key，相同的键可能在分裂时被分到了兄弟节点
+            if (kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
+        } finally {
+            if (res.deleted) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    //一旦当前节点的键达到了平衡因子的两倍就需要分裂节点了
     private boolean needSplit() {
-        return BALANCE_NUMBER * 2 == getRawNoKey(raw);
+        return getRawBalanceNumber(raw) * 2 == getRawNoKey(raw);
     }
 
     class SplitRes {
@@ -344,21 +421,23 @@ public class Node {
 
     //分裂节点
     private SplitRes split() throws Exception {
-        //创建一个和节点大小相等的共享数组
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        //创建一个和当前节点大小相等的共享数组
+        int balance = getRawBalanceNumber(raw);
+        int size = raw.end - raw.start;
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size);
         //将当前节点的数据转移到这个共享数组里
-        //首先是节点的是否叶节点的标志信息
-        setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
+        //首先是节点所在的层，分裂出的节点和原节点在同一层
+        setRawLevel(nodeRaw, getRawLevel(raw));
         //然后设置分裂后节点的键数，因为分裂节点是一分为2，所以键数=平衡因子
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        setRawNoKeys(nodeRaw, balance);
         //设置分裂之后的兄弟节点即原节点的兄弟节点
         setRawSibling(nodeRaw, getRawSibling(raw));
-        //将当前节点第32个键之后的键分裂到新建的节点
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        //将当前节点第balance个键之后的键分裂到新建的节点
+        copyRawFromKth(raw, nodeRaw, balance);
         //将这个新分裂出的节点插入到dm中，让dm管理，因为节点本质上还是数据项DataItem
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        //修改分裂后的当前节点中键数为32
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        //修改分裂后的当前节点中键数为平衡因子
+        setRawNoKeys(raw, balance);
         //设置当前节点的新兄弟节点的地址，即新建的分裂节点
         setRawSibling(raw, son);
         //返回分裂后的新建节点的uid以及这个节点的第一个key对应的数据
@@ -372,7 +451,7 @@ public class Node {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("Is leaf: ").append(getRawIfLeaf(raw)).append("\n");
+        sb.append("Level: ").append(getRawLevel(raw)).append("\n");
         int KeyNumber = getRawNoKey(raw);
         sb.append("KeyNumber: ").append(KeyNumber).append("\n");
         sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
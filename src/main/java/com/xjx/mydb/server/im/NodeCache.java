@@ -0,0 +1,79 @@
+package com.xjx.mydb.server.im;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/19 - 10:30
+ * 解码后的索引节点缓存：索引节点的键和子节点解码成long数组，从根往下查找时命中的索引节点不需要经过DM读数据项和解析字节，也不分配内存。
+ * 缓存是直接映射的：uid散列到固定的一格，后来的节点直接替换掉同一格中的旧节点，不需要加锁，也不需要淘汰算法。
+ * 索引节点每次被修改（插入新的子节点或者分裂）后，修改者在持有节点写锁期间把新的解码结果放入缓存；
+ * 读者只有在这一格没有被别人改过时才放入自己解码的结果，所以不会用旧的解码结果覆盖修改者放入的新结果。
+ * 即使读到修改者放入新结果之前的旧结果也没有关系：索引节点只会增加键和分裂，旧结果把key引向的子节点不会在正确的子节点右边，
+ * 往下一层后通过兄弟节点向右找就能找到
+ * 叶子节点修改频繁，不缓存
+ */
+public class NodeCache {
+    //默认缓存的格数
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    //解码后的索引节点，创建后不再修改
+    static class Entry {
+        final long uid;
+        final int level;
+        final long[] keys;
+        final long[] sons;
+        final long sibling;
+
+        Entry(long uid, int level, long[] keys, long[] sons, long sibling) {
+            this.uid = uid;
+            this.level = level;
+            this.keys = keys;
+            this.sons = sons;
+            this.sibling = sibling;
+        }
+
+        //二分找第一个大于key的键对应的子节点，所有键都不大于key时返回0，这时要到兄弟节点找
+        long searchNext(long key) {
+            int low = 0, high = keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] <= key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low == keys.length ? 0 : sons[low];
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+
+    public NodeCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    private int index(long uid) {
+        long h = uid * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    //取出uid所在格中的节点，可能是别的节点，调用者需比较uid
+    Entry slot(long uid) {
+        return slots.get(index(uid));
+    }
+
+    //读者放入解码结果，只有uid所在格仍是之前看到的seen时才放入
+    void install(Entry seen, Entry entry) {
+        slots.compareAndSet(index(entry.uid), seen, entry);
+    }
+
+    //修改者放入修改后的解码结果，直接覆盖
+    void put(Entry entry) {
+        slots.set(index(entry.uid), entry);
+    }
+}
@@ -0,0 +1,255 @@
+package com.xjx.mydb.server.im;
+
+import com.xjx.mydb.common.Error;
+import com.xjx.mydb.server.common.SubArray;
+import com.xjx.mydb.server.dm.DataManager;
+import com.xjx.mydb.server.dm.dataItem.DataItem;
+import com.xjx.mydb.server.tm.TransactionManagerImpl;
+import com.xjx.mydb.server.utils.Parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/22 - 16:10
+ * 键为变长字节串的B-link树，用于字符串和多个字段组成的组合键，键由KeyCodec编码，按无符号字节比较。
+ * 并发规则和BPlusTree相同：从上往下逐个节点进行，同一时刻最多锁住一个节点，读者乐观读，根节点分裂时以根节点没有变化为条件更换根节点。
+ * 查找范围的左边界时在索引节点中找第一个不小于它的键，从可能存有它的最左边的叶子节点开始，插入时找第一个大于它的键。
+ * 范围的边界按前缀比较：键的前边界长度个字节和边界相等就算等于边界，所以用一个字段的编码作为边界，可以查找以这个字段开头的组合键
+ */
+public class VarKeyBPlusTree {
+    DataManager dm;
+    long bootUid;
+    DataItem bootDataItem;
+    Lock bootLock;
+    //节点的大小，和创建树时的根节点一致
+    int nodeSize;
+    //允许插入的最长的键
+    int maxKeySize;
+
+    //创建一棵节点大小由页面大小决定的树
+    public static long create(DataManager dm) throws Exception {
+        return create(dm, VarKeyNode.defaultNodeSize(dm.getPageSize()));
+    }
+
+    //创建一棵节点大小为nodeSize字节的树，节点越大树越矮，但节点不能超过一个页面能放下的大小
+    public static long create(DataManager dm, int nodeSize) throws Exception {
+        if(nodeSize < VarKeyNode.MIN_NODE_SIZE || nodeSize > VarKeyNode.maxNodeSize(dm.getPageSize())) {
+            throw Error.InvalidNodeSizeException;
+        }
+        long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, VarKeyNode.newNilRootRaw(nodeSize));
+        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+    }
+
+    public static VarKeyBPlusTree load(long bootUid, DataManager dm) throws Exception {
+        DataItem bootDataItem = dm.read(bootUid);
+        assert bootDataItem != null;
+        VarKeyBPlusTree t = new VarKeyBPlusTree();
+        t.bootUid = bootUid;
+        t.dm = dm;
+        t.bootDataItem = bootDataItem;
+        t.bootLock = new ReentrantLock();
+        VarKeyNode root = VarKeyNode.loadNode(t, t.rootUid());
+        t.nodeSize = root.raw.end - root.raw.start;
+        root.release();
+        t.maxKeySize = VarKeyNode.maxKeySize(t.nodeSize);
+        return t;
+    }
+
+    long rootUid() {
+        SubArray sa = bootDataItem.data();
+        return Node.optimisticRead(bootDataItem, () -> Parser.parseLong(sa.raw, sa.start));
+    }
+
+    //left分裂出了right，把right插入到left的上一层，和BPlusTree.insertAbove相同
+    private void insertAbove(long left, long right, byte[] rightKey) throws Exception {
+        while (true) {
+            long rootUid;
+            bootLock.lock();
+            try {
+                rootUid = rootUid();
+                if(rootUid == left) {
+                    updateRootUid(left, right, rightKey);
+                    return;
+                }
+            } finally {
+                bootLock.unlock();
+            }
+            long parent = searchLevel(rootUid, rightKey, nodeLevel(left) + 1);
+            InsertRes res = insertAndSplit(parent, right, rightKey);
+            if(res.newNode == 0) {
+                return;
+            }
+            left = parent;
+            right = res.newNode;
+            rightKey = res.newKey;
+        }
+    }
+
+    //更新根节点uid，调用者需持有bootLock
+    private void updateRootUid(long left, long right, byte[] rightKey) throws Exception {
+        byte[] rootRaw = VarKeyNode.newRootRaw(nodeSize, nodeLevel(left) + 1, left, right, rightKey);
+        long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
+        bootDataItem.before();
+        SubArray diRaw = bootDataItem.data();
+        System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+        bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+    }
+
+    private int nodeLevel(long nodeUid) throws Exception {
+        VarKeyNode node = VarKeyNode.loadNode(this, nodeUid);
+        try {
+            return node.getLevel();
+        } finally {
+            node.release();
+        }
+    }
+
+    //从nodeUid往下找到第level层中key所在的节点
+    private long searchLevel(long nodeUid, byte[] key, int level) throws Exception {
+        while (nodeLevel(nodeUid) > level) {
+            nodeUid = searchNext(nodeUid, key, false);
+        }
+        return nodeUid;
+    }
+
+    //在索引节点中找key所在的子节点，节点已经分裂时沿兄弟节点向右找
+    private long searchNext(long nodeUid, byte[] key, boolean inclusive) throws Exception {
+        while (true) {
+            VarKeyNode node = VarKeyNode.loadNode(this, nodeUid);
+            VarKeyNode.SearchNextRes res = node.searchNext(key, inclusive);
+            node.release();
+            if(res.uid != 0) return res.uid;
+            nodeUid = res.siblingUid;
+        }
+    }
+
+    //找到第一个可能存有不小于key的键的叶子节点，key为null时是最左边的叶子节点
+    long searchFirstLeaf(byte[] key) throws Exception {
+        long nodeUid = rootUid();
+        while (nodeLevel(nodeUid) > 0) {
+            nodeUid = key == null ? firstSon(nodeUid) : searchNext(nodeUid, key, true);
+        }
+        return nodeUid;
+    }
+
+    private long firstSon(long nodeUid) throws Exception {
+        VarKeyNode node = VarKeyNode.loadNode(this, nodeUid);
+        try {
+            return Node.optimisticRead(node.dataItem, () -> VarKeyNode.getRawKthSon(node.raw, 0));
+        } finally {
+            node.release();
+        }
+    }
+
+    //查找键等于key的所有数据uid
+    public List<Long> search(byte[] key) throws Exception {
+        return searchRange(key, true, key, true);
+    }
+
+    //查找left到right之间的所有数据uid，边界为null表示这一边没有边界
+    public List<Long> searchRange(byte[] left, boolean leftInclusive, byte[] right, boolean rightInclusive) throws Exception {
+        VarKeyCursor cursor = cursor(left, leftInclusive, right, rightInclusive);
+        List<Long> uids = new ArrayList<>();
+        while (cursor.next()) {
+            uids.add(cursor.getUid());
+        }
+        return uids;
+    }
+
+    //按键从小到大遍历left到right之间的游标
+    public VarKeyCursor cursor(byte[] left, boolean leftInclusive, byte[] right, boolean rightInclusive) throws Exception {
+        return new VarKeyCursor(this, left, leftInclusive, right, rightInclusive);
+    }
+
+    //从树中删除键为key、数据为uid的索引项，返回是否找到并删除了
+    public boolean delete(byte[] key, long uid) throws Exception {
+        long leafUid = searchFirstLeaf(key);
+        while (true) {
+            VarKeyNode leaf = VarKeyNode.loadNode(this, leafUid);
+            VarKeyNode.LeafUpdateRes res = leaf.leafDelete(key, uid);
+            leaf.release();
+            if(res.done) {
+                return true;
+            }
+            if(res.siblingUid == 0) {
+                return false;
+            }
+            leafUid = res.siblingUid;
+        }
+    }
+
+    //修改键为key、数据为uid的一项的标志位，新插入的项标志位为false，返回是否找到了这一项
+    public boolean setFlag(byte[] key, long uid, boolean flag) throws Exception {
+        long leafUid = searchFirstLeaf(key);
+        while (true) {
+            VarKeyNode leaf = VarKeyNode.loadNode(this, leafUid);
+            VarKeyNode.LeafUpdateRes res = leaf.leafSetFlag(key, uid, flag);
+            leaf.release();
+            if(res.done) {
+                return true;
+            }
+            if(res.siblingUid == 0) {
+                return false;
+            }
+            leafUid = res.siblingUid;
+        }
+    }
+
+    //允许插入的最长的键，上层在写入记录之前用它检查索引键
+    public int getMaxKeySize() {
+        return maxKeySize;
+    }
+
+    //插入键为key、数据为uid的一项，键不能超过节点大小允许的长度
+    public void insert(byte[] key, long uid) throws Exception {
+        if(key.length > maxKeySize) {
+            throw Error.KeyTooLargeException;
+        }
+        long rootUid = rootUid();
+        InsertRes res = insert(rootUid, uid, key);
+        if(res.newNode != 0) {
+            insertAbove(rootUid, res.newNode, res.newKey);
+        }
+    }
+
+    class InsertRes {
+        long newNode;
+        byte[] newKey;
+    }
+
+    private InsertRes insert(long nodeUid, long uid, byte[] key) throws Exception {
+        if(nodeLevel(nodeUid) == 0) {
+            return insertAndSplit(nodeUid, uid, key);
+        }
+        long next = searchNext(nodeUid, key, false);
+        InsertRes ir = insert(next, uid, key);
+        if(ir.newNode != 0) {
+            return insertAndSplit(nodeUid, ir.newNode, ir.newKey);
+        }
+        return new InsertRes();
+    }
+
+    private InsertRes insertAndSplit(long nodeUid, long uid, byte[] key) throws Exception {
+        while (true) {
+            VarKeyNode node = VarKeyNode.loadNode(this, nodeUid);
+            VarKeyNode.InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
+            node.release();
+            if(iasr.siblingUid != 0) {
+                nodeUid = iasr.siblingUid;
+            } else {
+                InsertRes res = new InsertRes();
+                res.newNode = iasr.newSon;
+                res.newKey = iasr.newKey;
+                return res;
+            }
+        }
+    }
+
+    public void close() {
+        bootDataItem.release();
+    }
+}
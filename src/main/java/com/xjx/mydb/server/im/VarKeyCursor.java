@@ -0,0 +1,81 @@
+package com.xjx.mydb.server.im;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/22 - 17:05
+ * 变长键B+树上的范围游标，和Cursor一样每次读一个叶子节点，把范围内的项取到数组中，两次next之间不持有任何节点
+ */
+public class VarKeyCursor implements IndexCursor {
+    private final VarKeyBPlusTree tree;
+    private final byte[] left, right;
+    private final boolean leftInclusive, rightInclusive;
+
+    private byte[][] keys = new byte[0][];
+    private long[] uids = new long[0];
+    private boolean[] flags = new boolean[0];
+    private int count, pos;
+    //下一个要读的叶子节点，0表示没有了
+    private long nextLeaf;
+
+    private byte[] key;
+    private long uid;
+    private boolean flag;
+
+    VarKeyCursor(VarKeyBPlusTree tree, byte[] left, boolean leftInclusive, byte[] right, boolean rightInclusive) throws Exception {
+        this.tree = tree;
+        this.left = left;
+        this.leftInclusive = leftInclusive;
+        this.right = right;
+        this.rightInclusive = rightInclusive;
+        this.nextLeaf = tree.searchFirstLeaf(left);
+    }
+
+    @Override
+    public boolean next() throws Exception {
+        while (pos >= count) {
+            if(nextLeaf == 0) {
+                return false;
+            }
+            nextLeaf = scan(nextLeaf);
+        }
+        key = keys[pos];
+        uid = uids[pos];
+        flag = flags[pos];
+        pos++;
+        return true;
+    }
+
+    //当前项完整的键
+    public byte[] getKey() {
+        return key;
+    }
+
+    @Override
+    public long getUid() {
+        return uid;
+    }
+
+    //当前项的标志位
+    public boolean getFlag() {
+        return flag;
+    }
+
+    //把叶子节点中范围内的项读入数组，返回还需要继续读的兄弟节点
+    private long scan(long leafUid) throws Exception {
+        VarKeyNode leaf = VarKeyNode.loadNode(tree, leafUid);
+        try {
+            int capacity = leaf.capacity();
+            if(uids.length < capacity) {
+                keys = new byte[capacity][];
+                uids = new long[capacity];
+                flags = new boolean[capacity];
+            }
+            VarKeyNode.LeafScanRes res = leaf.leafScan(left, leftInclusive, right, rightInclusive, keys, uids, flags);
+            count = res.count;
+            pos = 0;
+            return res.siblingUid;
+        } finally {
+            leaf.release();
+        }
+    }
+}
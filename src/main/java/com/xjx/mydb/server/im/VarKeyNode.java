@@ -0,0 +1,525 @@
+package com.xjx.mydb.server.im;
+
+import com.xjx.mydb.server.common.SubArray;
+import com.xjx.mydb.server.dm.dataItem.DataItem;
+import com.xjx.mydb.server.dm.page.PageX;
+import com.xjx.mydb.server.tm.TransactionManagerImpl;
+import com.xjx.mydb.server.utils.Parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/22 - 14:30
+ * 变长键的B+树节点，键是KeyCodec编码后的字节串。节点的大小固定，能放多少项由键的长度决定。
+ * VarKeyNode结构如下：
+ * [Level][KeyNumber][SiblingUid][PrefixLen][Prefix]
+ * [Offset0][Offset1]...[OffsetN]
+ * ...空闲空间...
+ * [SonN][SuffixLenN][SuffixN]...[Son0][SuffixLen0][Suffix0]
+ * 节点中所有键的公共前缀只存一次，每一项只存去掉前缀后的后缀（前缀压缩），项从节点末尾往前存放，
+ * Offset是第k项在节点中的位置，按键的顺序排列，二分查找时通过它随机访问每一项。
+ * 索引节点最右边一项的键是无穷大，SuffixLen记为0xFFFF，不参与公共前缀。
+ * 键的长度不超过节点的四分之一，SuffixLen的最高位用不到，叶子节点中把它作为每一项的标志位，由上层决定含义（覆盖索引用作可见性提示）。
+ * 分层、兄弟指针、最后一个键作为上界以及乐观读的规则都和Node一样；
+ * 修改节点时把所有项解码出来修改后重新编码写回，放不下时按字节数分成两半
+ */
+public class VarKeyNode {
+    static final int LEVEL_OFFSET = 0;
+    static final int NO_KEYS_OFFSET = LEVEL_OFFSET + 1;
+    static final int SIBLING_OFFSET = NO_KEYS_OFFSET + 2;
+    static final int PREFIX_LEN_OFFSET = SIBLING_OFFSET + 8;
+    static final int NODE_HEADER_SIZE = PREFIX_LEN_OFFSET + 2;
+    //每一项在节点中的位置占两个字节
+    static final int OFFSET_SIZE = 2;
+    //每一项的[Son][SuffixLen]
+    static final int ENTRY_HEADER_SIZE = 8 + 2;
+    //无穷大键的SuffixLen
+    private static final int INFINITE = 0xFFFF;
+    //SuffixLen中的标志位
+    private static final int FLAG = 0x8000;
+    //节点最小的大小
+    static final int MIN_NODE_SIZE = 128;
+    //默认每个页面的四分之一作为一个节点
+    private static final int PAGES_PER_NODE = 4;
+
+    //页面大小为pageSize时默认的节点大小
+    static int defaultNodeSize(int pageSize) {
+        return pageSize / PAGES_PER_NODE;
+    }
+
+    //页面大小为pageSize时允许的最大节点大小，节点作为数据项要能放进一个页面，位置也要能用两个字节表示
+    static int maxNodeSize(int pageSize) {
+        return Math.min(PageX.maxFreeSpace(pageSize) - DataItem.HEADER_SIZE, INFINITE);
+    }
+
+    //节点大小为nodeSize时允许的最长的键，保证一个节点至少能放下四项，分裂出的两半都能放下
+    static int maxKeySize(int nodeSize) {
+        return (nodeSize - NODE_HEADER_SIZE) / 4 - ENTRY_HEADER_SIZE - OFFSET_SIZE;
+    }
+
+    //解码后的一项，key为null表示无穷大
+    static class Entry {
+        long son;
+        byte[] key;
+        boolean flag;
+
+        Entry(long son, byte[] key) {
+            this.son = son;
+            this.key = key;
+        }
+    }
+
+    VarKeyBPlusTree tree;
+    DataItem dataItem;
+    SubArray raw;
+    long uid;
+
+    static int getRawLevel(SubArray raw) {
+        return Byte.toUnsignedInt(raw.raw[raw.start + LEVEL_OFFSET]);
+    }
+
+    static boolean getRawIfLeaf(SubArray raw) {
+        return getRawLevel(raw) == 0;
+    }
+
+    static int getRawNoKeys(SubArray raw) {
+        return Parser.parseShort(raw.raw, raw.start + NO_KEYS_OFFSET) & 0xFFFF;
+    }
+
+    static long getRawSibling(SubArray raw) {
+        return Parser.parseLong(raw.raw, raw.start + SIBLING_OFFSET);
+    }
+
+    static int getRawPrefixLen(SubArray raw) {
+        return Parser.parseShort(raw.raw, raw.start + PREFIX_LEN_OFFSET) & 0xFFFF;
+    }
+
+    //第k项在raw.raw中的位置
+    static int getRawKthOffset(SubArray raw, int kth) {
+        int pos = raw.start + NODE_HEADER_SIZE + getRawPrefixLen(raw) + kth * OFFSET_SIZE;
+        return raw.start + (Parser.parseShort(raw.raw, pos) & 0xFFFF);
+    }
+
+    static long getRawKthSon(SubArray raw, int kth) {
+        return Parser.parseLong(raw.raw, getRawKthOffset(raw, kth));
+    }
+
+    //第k项的SuffixLen，包括标志位
+    private static int getRawKthLenField(SubArray raw, int kth) {
+        return Parser.parseShort(raw.raw, getRawKthOffset(raw, kth) + 8) & 0xFFFF;
+    }
+
+    //第k项的后缀长度，无穷大返回-1
+    static int getRawKthSuffixLen(SubArray raw, int kth) {
+        int len = getRawKthLenField(raw, kth);
+        return len == INFINITE ? -1 : len & ~FLAG;
+    }
+
+    //第k项的标志位
+    static boolean getRawKthFlag(SubArray raw, int kth) {
+        int len = getRawKthLenField(raw, kth);
+        return len != INFINITE && (len & FLAG) != 0;
+    }
+
+    //修改第k项的标志位
+    static void setRawKthFlag(SubArray raw, int kth, boolean flag) {
+        int len = getRawKthLenField(raw, kth);
+        len = flag ? len | FLAG : len & ~FLAG;
+        System.arraycopy(Parser.short2Byte((short) len), 0, raw.raw, getRawKthOffset(raw, kth) + 8, 2);
+    }
+
+    //取出第k项完整的键，无穷大返回null
+    static byte[] getRawKthKey(SubArray raw, int kth) {
+        int suffixLen = getRawKthSuffixLen(raw, kth);
+        if(suffixLen < 0) {
+            return null;
+        }
+        int prefixLen = getRawPrefixLen(raw);
+        byte[] key = new byte[prefixLen + suffixLen];
+        System.arraycopy(raw.raw, raw.start + NODE_HEADER_SIZE, key, 0, prefixLen);
+        System.arraycopy(raw.raw, getRawKthOffset(raw, kth) + ENTRY_HEADER_SIZE, key, prefixLen, suffixLen);
+        return key;
+    }
+
+    //比较第k项的键和key，不把键拼出来。truncate为true时第k项的键只取前key.length个字节比较，
+    //key是某个值完整的编码时，等于0就表示第k项的键以这个值开头（组合键的第一个字段等于它）
+    static int compareKth(SubArray raw, int kth, byte[] key, boolean truncate) {
+        int entry = getRawKthOffset(raw, kth);
+        int suffixLen = Parser.parseShort(raw.raw, entry + 8) & 0xFFFF;
+        if(suffixLen == INFINITE) {
+            return 1;
+        }
+        suffixLen &= ~FLAG;
+        int prefixLen = getRawPrefixLen(raw);
+        int prefixStart = raw.start + NODE_HEADER_SIZE;
+        int suffixStart = entry + ENTRY_HEADER_SIZE - prefixLen;
+        int keyLen = prefixLen + suffixLen;
+        if(truncate) {
+            keyLen = Math.min(keyLen, key.length);
+        }
+        int n = Math.min(keyLen, key.length);
+        for(int i = 0; i < n; i++) {
+            byte b = i < prefixLen ? raw.raw[prefixStart + i] : raw.raw[suffixStart + i];
+            int c = (b & 0xFF) - (key[i] & 0xFF);
+            if(c != 0) {
+                return c;
+            }
+        }
+        return keyLen - key.length;
+    }
+
+    //二分查找第一个不小于key的键，所有键都小于key时返回noKeys
+    static int lowerBound(SubArray raw, int noKeys, byte[] key) {
+        int low = 0, high = noKeys;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if(compareKth(raw, mid, key, false) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    //二分查找第一个大于key的键，所有键都不大于key时返回noKeys
+    static int upperBound(SubArray raw, int noKeys, byte[] key) {
+        int low = 0, high = noKeys;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if(compareKth(raw, mid, key, false) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    //解码出节点中所有的项
+    static List<Entry> decodeEntries(SubArray raw) {
+        int noKeys = getRawNoKeys(raw);
+        List<Entry> entries = new ArrayList<>(noKeys + 1);
+        for(int i = 0; i < noKeys; i++) {
+            Entry e = new Entry(getRawKthSon(raw, i), getRawKthKey(raw, i));
+            e.flag = getRawKthFlag(raw, i);
+            entries.add(e);
+        }
+        return entries;
+    }
+
+    //有序的项的公共前缀长度，就是第一个和最后一个有限键的公共前缀
+    private static int commonPrefix(List<Entry> entries) {
+        int last = entries.size() - 1;
+        if(last >= 0 && entries.get(last).key == null) {
+            last--;
+        }
+        if(last < 0) {
+            return 0;
+        }
+        byte[] a = entries.get(0).key, b = entries.get(last).key;
+        int n = Math.min(Math.min(a.length, b.length), INFINITE - 1);
+        int i = 0;
+        while (i < n && a[i] == b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    //把entries编码成节点后的大小
+    static int encodedSize(List<Entry> entries) {
+        int prefixLen = commonPrefix(entries);
+        int size = NODE_HEADER_SIZE + prefixLen;
+        for(Entry e : entries) {
+            size += OFFSET_SIZE + ENTRY_HEADER_SIZE + (e.key == null ? 0 : e.key.length - prefixLen);
+        }
+        return size;
+    }
+
+    //把entries编码成大小为nodeSize的节点数据，调用者需保证放得下
+    static byte[] encode(int nodeSize, int level, long sibling, List<Entry> entries) {
+        byte[] raw = new byte[nodeSize];
+        int prefixLen = commonPrefix(entries);
+        raw[LEVEL_OFFSET] = (byte) level;
+        System.arraycopy(Parser.short2Byte((short) entries.size()), 0, raw, NO_KEYS_OFFSET, 2);
+        System.arraycopy(Parser.long2Byte(sibling), 0, raw, SIBLING_OFFSET, 8);
+        System.arraycopy(Parser.short2Byte((short) prefixLen), 0, raw, PREFIX_LEN_OFFSET, 2);
+        if(prefixLen > 0) {
+            System.arraycopy(entries.get(0).key, 0, raw, NODE_HEADER_SIZE, prefixLen);
+        }
+        int dir = NODE_HEADER_SIZE + prefixLen;
+        int end = nodeSize;
+        for(int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            int suffixLen = e.key == null ? 0 : e.key.length - prefixLen;
+            end -= ENTRY_HEADER_SIZE + suffixLen;
+            System.arraycopy(Parser.long2Byte(e.son), 0, raw, end, 8);
+            short len = (short) (e.key == null ? INFINITE : (e.flag ? suffixLen | FLAG : suffixLen));
+            System.arraycopy(Parser.short2Byte(len), 0, raw, end + 8, 2);
+            if(suffixLen > 0) {
+                System.arraycopy(e.key, prefixLen, raw, end + ENTRY_HEADER_SIZE, suffixLen);
+            }
+            System.arraycopy(Parser.short2Byte((short) end), 0, raw, dir + i * OFFSET_SIZE, 2);
+        }
+        return raw;
+    }
+
+    //生成一个level层的根节点，它的两个子节点在下一层
+    static byte[] newRootRaw(int nodeSize, int level, long left, long right, byte[] key) {
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry(left, key));
+        entries.add(new Entry(right, null));
+        return encode(nodeSize, level, 0, entries);
+    }
+
+    //生成一个空的根节点数据
+    static byte[] newNilRootRaw(int nodeSize) {
+        return encode(nodeSize, 0, 0, new ArrayList<>());
+    }
+
+    static VarKeyNode loadNode(VarKeyBPlusTree tree, long uid) throws Exception {
+        DataItem di = tree.dm.read(uid);
+        assert di != null;
+        VarKeyNode n = new VarKeyNode();
+        n.tree = tree;
+        n.dataItem = di;
+        n.raw = di.data();
+        n.uid = uid;
+        return n;
+    }
+
+    public void release() {
+        dataItem.release();
+    }
+
+    public int getLevel() {
+        return Node.optimisticRead(dataItem, () -> getRawLevel(raw));
+    }
+
+    //节点最多能放下的项数
+    int capacity() {
+        return (raw.end - raw.start - NODE_HEADER_SIZE) / (OFFSET_SIZE + ENTRY_HEADER_SIZE);
+    }
+
+    class SearchNextRes {
+        long uid;
+        long siblingUid;
+    }
+
+    //在索引节点中找key所在的子节点。inclusive为true时找第一个不小于key的键，用于找可能存有key的最左边的叶子节点，
+    //否则找第一个大于key的键，用于插入。所有键都不满足时uid为0，这时要到兄弟节点找
+    public SearchNextRes searchNext(byte[] key, boolean inclusive) {
+        return Node.optimisticRead(dataItem, () -> {
+            int noKeys = getRawNoKeys(raw);
+            int kth = inclusive ? lowerBound(raw, noKeys, key) : upperBound(raw, noKeys, key);
+            SearchNextRes res = new SearchNextRes();
+            if(kth < noKeys) {
+                res.uid = getRawKthSon(raw, kth);
+            } else {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
+        });
+    }
+
+    class LeafScanRes {
+        int count;
+        long siblingUid;
+    }
+
+    //在叶子节点中扫描left到right之间的项，边界为null表示没有边界，边界和键按前缀比较（见compareKth）。
+    //范围内的键、uid和标志位依次放入keys、uids和flags，数组至少要有capacity()大。扫完整个节点时返回兄弟节点
+    public LeafScanRes leafScan(byte[] left, boolean leftInclusive, byte[] right, boolean rightInclusive,
+                                byte[][] keys, long[] uids, boolean[] flags) {
+        return Node.optimisticRead(dataItem, () -> {
+            int noKeys = getRawNoKeys(raw);
+            int kth = left == null ? 0 : lowerBound(raw, noKeys, left);
+            if(left != null && !leftInclusive) {
+                while (kth < noKeys && compareKth(raw, kth, left, true) == 0) {
+                    kth++;
+                }
+            }
+            int count = 0;
+            while (kth < noKeys) {
+                if(right != null) {
+                    int c = compareKth(raw, kth, right, true);
+                    if(c > 0 || (c == 0 && !rightInclusive)) {
+                        break;
+                    }
+                }
+                keys[count] = getRawKthKey(raw, kth);
+                uids[count] = getRawKthSon(raw, kth);
+                flags[count] = getRawKthFlag(raw, kth);
+                count++;
+                kth++;
+            }
+            LeafScanRes res = new LeafScanRes();
+            res.count = count;
+            if(kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
+        });
+    }
+
+    class InsertAndSplitRes {
+        long siblingUid, newSon;
+        byte[] newKey;
+    }
+
+    //向节点插入一项，叶子节点插入键和数据uid，索引节点插入分裂出的子节点和它的最小键。节点放不下时分裂
+    public InsertAndSplitRes insertAndSplit(long son, byte[] key) throws Exception {
+        InsertAndSplitRes res = new InsertAndSplitRes();
+        boolean success = false;
+        dataItem.before();
+        try {
+            List<Entry> entries = decodeEntries(raw);
+            int noKeys = entries.size();
+            int kth = lowerBound(raw, noKeys, key);
+            long sibling = getRawSibling(raw);
+            if(kth == noKeys && sibling != 0) {
+                res.siblingUid = sibling;
+                return res;
+            }
+            if(getRawIfLeaf(raw)) {
+                entries.add(kth, new Entry(son, key));
+            } else {
+                //新的子节点放在第kth个子节点右边，原来第kth项的键归新的子节点
+                Entry e = entries.get(kth);
+                entries.add(kth + 1, new Entry(son, e.key));
+                e.key = key;
+            }
+            int nodeSize = raw.end - raw.start;
+            int level = getRawLevel(raw);
+            if(encodedSize(entries) <= nodeSize) {
+                write(encode(nodeSize, level, sibling, entries));
+            } else {
+                int mid = splitPoint(entries);
+                List<Entry> right = entries.subList(mid, entries.size());
+                long newSon = tree.dm.insert(TransactionManagerImpl.SUPER_XID, encode(nodeSize, level, sibling, right));
+                res.newSon = newSon;
+                res.newKey = right.get(0).key;
+                write(encode(nodeSize, level, newSon, entries.subList(0, mid)));
+            }
+            success = true;
+            return res;
+        } finally {
+            if(success) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    //按键的字节数找到分裂的位置，两边都至少有一项，右边第一项不能是无穷大，因为它要作为分隔键插入父节点
+    private static int splitPoint(List<Entry> entries) {
+        int total = 0;
+        for(Entry e : entries) {
+            total += e.key == null ? 0 : e.key.length;
+            total += OFFSET_SIZE + ENTRY_HEADER_SIZE;
+        }
+        int mid = 0, size = 0;
+        while (mid < entries.size() - 1 && size * 2 < total) {
+            Entry e = entries.get(mid);
+            size += (e.key == null ? 0 : e.key.length) + OFFSET_SIZE + ENTRY_HEADER_SIZE;
+            mid++;
+        }
+        mid = Math.max(mid, 1);
+        if(entries.get(mid).key == null) {
+            mid--;
+        }
+        return mid;
+    }
+
+    private void write(byte[] data) {
+        System.arraycopy(data, 0, raw.raw, raw.start, data.length);
+    }
+
+    //修改叶子节点中一项的结果，没有找到这一项并且兄弟节点中可能还有这个键时返回兄弟节点
+    class LeafUpdateRes {
+        boolean done;
+        long siblingUid;
+    }
+
+    //从叶子节点中删除键为key、数据为uid的一项，不合并节点
+    public LeafUpdateRes leafDelete(byte[] key, long uid) {
+        LeafUpdateRes res = new LeafUpdateRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, key);
+            while (kth < noKeys && compareKth(raw, kth, key, false) == 0) {
+                if(getRawKthSon(raw, kth) == uid) {
+                    List<Entry> entries = decodeEntries(raw);
+                    entries.remove(kth);
+                    write(encode(raw.end - raw.start, getRawLevel(raw), getRawSibling(raw), entries));
+                    res.done = true;
+                    return res;
+                }
+                kth++;
+            }
+            if(kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
+        } finally {
+            if(res.done) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    //修改叶子节点中键为key、数据为uid的一项的标志位，只改这两个字节，不重新编码节点
+    public LeafUpdateRes leafSetFlag(byte[] key, long uid, boolean flag) {
+        LeafUpdateRes res = new LeafUpdateRes();
+        boolean changed = false;
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, key);
+            while (kth < noKeys && compareKth(raw, kth, key, false) == 0) {
+                if(getRawKthSon(raw, kth) == uid) {
+                    if(getRawKthFlag(raw, kth) != flag) {
+                        setRawKthFlag(raw, kth, flag);
+                        changed = true;
+                    }
+                    res.done = true;
+                    return res;
+                }
+                kth++;
+            }
+            if(kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
+        } finally {
+            if(changed) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Level: ").append(getRawLevel(raw)).append("\n");
+        int noKeys = getRawNoKeys(raw);
+        sb.append("KeyNumber: ").append(noKeys).append("\n");
+        sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
+        for(int i = 0; i < noKeys; i++) {
+            byte[] key = getRawKthKey(raw, i);
+            sb.append("son: ").append(getRawKthSon(raw, i))
+                    .append(", key: ").append(key == null ? "INF" : Arrays.toString(key))
+                    .append(getRawKthFlag(raw, i) ? ", flag" : "").append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -327,25 +327,29 @@ public class Parser {
             String next = tokenizer.peek();
             if(",".equals(next)) {
                 continue;
-            } else if ("".equals(next)) {
-                throw Error.TableNoIndexException;
-            } else if("(".equals(next)) {
+            } else if ("".equals(next) || "(".equals(next)) {
                 break;
             } else {
                 throw Error.InvalidCommandException;
             }
         }
-        //退出循环表示建表字段都遍历完了，接下来遍历索引，每张表中都有一个索引，因为MyDB 只支持索引查询
+        //退出循环表示建表字段都遍历完了，接下来遍历索引。索引可以没有，这时查询按页面顺序扫描整张表
         create.fieldName = fNames.toArray(new String[fNames.size()]);
         create.fieldType = fTypes.toArray(new String[fTypes.size()]);
+        if("".equals(tokenizer.peek())) {
+            create.index = new String[0];
+            create.include = new String[0][];
+            return create;
+        }
         tokenizer.pop();
         if(!"index".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
 
         List<String> indexes = new ArrayList<>();
+        List<String[]> includes = new ArrayList<>();
+        tokenizer.pop();
         while (true) {
-            tokenizer.pop();
             String field = tokenizer.peek();
             if(")".equals(field)) {
                 break;
@@ -354,9 +358,12 @@ public class Parser {
                 throw Error.InvalidCommandException;
             } else {
                 indexes.add(field);
+                tokenizer.pop();
+                includes.add(parseInclude(tokenizer));
             }
         }
         create.index = indexes.toArray(new String[indexes.size()]);
+        create.include = includes.toArray(new String[includes.size()][]);
         tokenizer.pop();
         if(!"".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
@@ -364,6 +371,30 @@ public class Parser {
         return create;
     }
 
+    //索引字段后面可以用括号列出这个索引额外携带的字段，如 (index name(age city))，查询只用到这些字段时不需要读记录
+    private static String[] parseInclude(Tokenizer tokenizer) throws Exception {
+        if(!"(".equals(tokenizer.peek())) {
+            return new String[0];
+        }
+        List<String> include = new ArrayList<>();
+        while (true) {
+            tokenizer.pop();
+            String field = tokenizer.peek();
+            if(")".equals(field)) {
+                break;
+            }
+            if(!isName(field)) {
+                throw Error.InvalidCommandException;
+            }
+            include.add(field);
+        }
+        if(include.isEmpty()) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return include.toArray(new String[include.size()]);
+    }
+
     private static Abort parseAbort(Tokenizer tokenizer) throws Exception {
         //如果abort语句后还有token表示sql语句出错
         if(!"".equals(tokenizer.peek())) {
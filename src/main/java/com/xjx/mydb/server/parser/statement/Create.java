@@ -9,5 +9,7 @@ public class Create {
     public String[] fieldName;
     public String[] fieldType;
     public String[] index;
+    //每个索引额外携带的字段，和index一一对应，没有时为空数组
+    public String[][] include;
 
 }
@@ -2,23 +2,31 @@ package com.xjx.mydb.server.tbm;
 
 import com.google.common.primitives.Bytes;
 import com.xjx.mydb.common.Error;
+import com.xjx.mydb.server.dm.DataManager;
 import com.xjx.mydb.server.im.BPlusTree;
+import com.xjx.mydb.server.im.IndexCursor;
+import com.xjx.mydb.server.im.KeyCodec;
+import com.xjx.mydb.server.im.VarKeyBPlusTree;
+import com.xjx.mydb.server.im.VarKeyCursor;
 import com.xjx.mydb.server.parser.statement.SingleExpression;
 import com.xjx.mydb.server.tm.TransactionManagerImpl;
 import com.xjx.mydb.server.utils.Panic;
 import com.xjx.mydb.server.utils.ParseStringRes;
 import com.xjx.mydb.server.utils.Parser;
 
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 
 /**
  * @Author: Xjx
  * @Create: 2023/2/8 - 11:29
  * Field 表示字段信息
  * 二进制格式为：
- * [FieldName][TypeName][IndexUid]
+ * [FieldName][TypeName][IndexUid][Include1Name]...[IncludeNName]
  * 如果field无索引，IndexUid为0
+ * int32和int64字段的索引是键为long的BPlusTree，string字段的索引是键为KeyCodec编码的VarKeyBPlusTree，
+ * 字符串按原值比较，可以做范围查询，也不会有不同字符串散列到同一个键的问题
+ * 索引可以额外携带其他字段的值（覆盖索引）：索引键是本字段和这些字段组成的组合键，总是使用VarKeyBPlusTree，
+ * 叶子节点中每一项的标志位是可见性提示，为true时这一项对应的版本对所有事务都可见，查询可以直接从索引键中取出字段值，不读记录
  */
 public class Field {
     //字段上索引对应的索引二叉树的根节点的uid
@@ -27,7 +35,10 @@ public class Field {
     String fieldName;
     String fieldType;
     private long index;
+    //索引额外携带的字段名
+    String[] include = new String[0];
     private BPlusTree bt;
+    private VarKeyBPlusTree vbt;
 
     //通过一个字段的uid去对应表中加载出字段信息
     public static Field loadField(Table tb, long uid) {
@@ -66,11 +77,20 @@ public class Field {
         position += res.next;
         //解析字段信息中的索引信息
         this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
+        position += 8;
+        //之后是索引携带的字段名，没有携带字段时字段信息到此结束
+        List<String> names = new ArrayList<>();
+        while (position < raw.length) {
+            res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+            names.add(res.str);
+            position += res.next;
+        }
+        this.include = names.toArray(new String[names.size()]);
         //字段可能没有索引，所以判断一下
         if(index != 0) {
             try {
                 //把索引对应的二叉树加载进来赋值给这个字段的二叉树属性，bt指向这个索引二叉树，这棵树持有根节点的uid。
-                bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+                loadIndex();
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -79,15 +99,16 @@ public class Field {
     }
 
     //根据传入的字段相关参数信息创建一个字段出来
-    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+    //include为索引额外携带的字段，只有indexed时有意义
+    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed, String[] include) throws Exception {
         typeCheck(fieldType);
         Field f = new Field(tb, fieldName, fieldType, 0);
         if(indexed) {
+            f.include = include;
             //如果字段有索引，就去这个表中穿件一个索引树出来
-            long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm);
-            BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
-            f.index = index;
-            f.bt = bt;
+            DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+            f.index = f.isVarKey() ? VarKeyBPlusTree.create(dm) : BPlusTree.create(dm);
+            f.loadIndex();
         }
         f.persistSelf(xid);
         return f;
@@ -99,7 +120,11 @@ public class Field {
         byte[] nameRaw = Parser.string2Byte(fieldName);
         byte[] typeRaw = Parser.string2Byte(fieldType);
         byte[] indexRaw = Parser.long2Byte(index);
-        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        byte[] raw = Bytes.concat(nameRaw, typeRaw, indexRaw);
+        for(String name : include) {
+            raw = Bytes.concat(raw, Parser.string2Byte(name));
+        }
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, raw);
     }
 
     //对字段类型进行类型检查，MyDB中只有下面三种类型
@@ -109,18 +134,154 @@ public class Field {
         }
     }
 
+    //字符串字段和覆盖索引的索引键是变长的
+    private boolean isVarKey() {
+        return "string".equals(fieldType) || isCovering();
+    }
+
+    //索引是否额外携带了其他字段
+    public boolean isCovering() {
+        return include.length > 0;
+    }
+
+    //names中的字段是否都能从索引键中取出
+    public boolean covers(Collection<String> names) {
+        for(String name : names) {
+            if(!name.equals(fieldName) && !Arrays.asList(include).contains(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //一条记录在索引中的键，覆盖索引是本字段和携带字段的组合键
+    byte[] indexKey(Map<String, Object> entry) {
+        Object[] values = new Object[include.length + 1];
+        values[0] = entry.get(fieldName);
+        for(int i = 0; i < include.length; i++) {
+            values[i + 1] = entry.get(include[i]);
+        }
+        return KeyCodec.composite(values);
+    }
+
+    private void loadIndex() throws Exception {
+        DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+        if(isVarKey()) {
+            vbt = VarKeyBPlusTree.load(index, dm);
+        } else {
+            bt = BPlusTree.load(index, dm);
+        }
+    }
+
     public boolean isIndexed() {
         return index != 0;
     }
 
-    public void insert(Object key, long uid) throws Exception {
-        long uKey = value2Uid(key);
-        bt.insert(uKey, uid);
+    //记录entry在变长键索引中的键超过了索引允许的长度时抛出异常，long键的索引没有限制
+    public void checkIndexKey(Map<String, Object> entry) throws Exception {
+        if(isVarKey() && indexKey(entry).length > vbt.getMaxKeySize()) {
+            throw Error.KeyTooLargeException;
+        }
+    }
+
+    //把记录entry的uid插入索引
+    public void insert(Map<String, Object> entry, long uid) throws Exception {
+        if(isVarKey()) {
+            vbt.insert(indexKey(entry), uid);
+        } else {
+            bt.insert(value2Uid(entry.get(fieldName)), uid);
+        }
+    }
+
+    //从索引中删除记录entry的uid
+    public boolean remove(Map<String, Object> entry, long uid) throws Exception {
+        if(isVarKey()) {
+            return vbt.delete(indexKey(entry), uid);
+        }
+        return bt.delete(value2Uid(entry.get(fieldName)), uid);
+    }
+
+    //设置覆盖索引中键为key、记录为uid的一项的可见性提示
+    public boolean setVisibleHint(byte[] key, long uid, boolean visible) throws Exception {
+        return vbt.setFlag(key, uid, visible);
+    }
+
+    //覆盖索引的游标，可以取出每一项的键和可见性提示
+    public VarKeyCursor coveringCursor(FieldCalRes range) throws Exception {
+        return vbt.cursor(range.left, range.leftInclusive, range.right, range.rightInclusive);
+    }
+
+    //从覆盖索引的键中取出本字段和携带字段的值
+    public Map<String, Object> parseIndexKey(byte[] key) {
+        Map<String, Object> entry = new HashMap<>();
+        ParseValueRes res = parseKey(key, 0);
+        entry.put(fieldName, res.v);
+        int position = res.shift;
+        for(String name : include) {
+            res = tb.field(name).parseKey(key, position);
+            entry.put(name, res.v);
+            position += res.shift;
+        }
+        return entry;
     }
 
-    //根据一个左右key去查找B树中的数据，这里应该是去查找字段数据，因为字段信息也保存在树中
-    public List<Long> search(long left, long right) throws Exception {
-        return bt.searchRange(left, right);
+    //从索引键的offset处解码出一个本字段类型的值
+    ParseValueRes parseKey(byte[] key, int offset) {
+        ParseValueRes res = new ParseValueRes();
+        switch (fieldType) {
+            case "int32":
+                res.v = KeyCodec.decodeInt(key, offset);
+                res.shift = 4;
+                break;
+            case "int64":
+                res.v = KeyCodec.decodeLong(key, offset);
+                res.shift = 8;
+                break;
+            case "string":
+                ParseStringRes r = KeyCodec.decodeString(key, offset);
+                res.v = r.str;
+                res.shift = r.next;
+                break;
+        }
+        return res;
+    }
+
+    //查找范围内所有记录的uid
+    public List<Long> search(FieldCalRes range) throws Exception {
+        IndexCursor cursor = cursor(range);
+        List<Long> uids = new ArrayList<>();
+        while (cursor.next()) {
+            uids.add(cursor.getUid());
+        }
+        return uids;
+    }
+
+    //按键从小到大逐个取出范围内记录uid的游标，结果不需要全部放入内存
+    public IndexCursor cursor(FieldCalRes range) throws Exception {
+        if(isVarKey()) {
+            return vbt.cursor(range.left, range.leftInclusive, range.right, range.rightInclusive);
+        }
+        //数值字段的边界解码回long，开区间换成相邻的值
+        long left = Long.MIN_VALUE, right = Long.MAX_VALUE;
+        if(range.left != null) {
+            left = key2Long(range.left);
+            if(!range.leftInclusive) {
+                if(left == Long.MAX_VALUE) return bt.cursor(Long.MAX_VALUE, Long.MIN_VALUE);
+                left++;
+            }
+        }
+        if(range.right != null) {
+            right = key2Long(range.right);
+            if(!range.rightInclusive) {
+                if(right == Long.MIN_VALUE) return bt.cursor(Long.MAX_VALUE, Long.MIN_VALUE);
+                right--;
+            }
+        }
+        return bt.cursor(left, right);
+    }
+
+    private long key2Long(byte[] key) {
+        return "int32".equals(fieldType) ? KeyCodec.decodeInt(key, 0) : KeyCodec.decodeLong(key, 0);
     }
 
     //将传进来的参数值转换成字段对应的类型数据
@@ -217,32 +378,24 @@ public class Field {
         return str;
     }
 
-    //筛选条件中出现比较表达时调用此方法比较字段
+    //筛选条件中出现比较表达时调用此方法比较字段，范围的边界是字段值编码后的索引键
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
-        Object v = null;
         FieldCalRes res = new FieldCalRes();
+        //将比较值转化成对应的字段值，再编码成和索引键一样可以按字节比较的形式
+        byte[] v = KeyCodec.encode(string2Value(exp.value));
         switch (exp.compareOp) {
             case "<":
-                //小于号表示比较表达式左边是字段
-                res.left = 0;
-                //将比较值转化成对应的字段值
-                v = string2Value(exp.value);
-                //然后将字段值转换成可比较的值，如果数值则转化成数值类型，字符串则是比较uid等同于hashcode
-                res.right = value2Uid(v);
-                if(res.right > 0) {
-                    res.right--;
-                }
+                //小于号表示字段小于某个值即v
+                res.right = v;
+                res.rightInclusive = false;
                 break;
             case "=":
-                v = string2Value(exp.value);
-                res.left = value2Uid(v);
-                res.right = res.left;
+                res.left = v;
+                res.right = v;
                 break;
             case ">":
-                //小于号表示字段小于某个值即v
-                res.right = Long.MAX_VALUE;
-                v = string2Value(exp.value);
-                res.left = value2Uid(v) + 1;
+                res.left = v;
+                res.leftInclusive = false;
                 break;
         }
         return res;
@@ -255,6 +408,7 @@ public class Field {
                 .append(", ")
                 .append(fieldType)
                 .append(index != 0 ? ", Index":", NoIndex")
+                .append(include.length > 0 ? " " + Arrays.toString(include) : "")
                 .append(")")
                 .toString();
     }
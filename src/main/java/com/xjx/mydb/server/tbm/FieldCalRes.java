@@ -3,8 +3,12 @@ package com.xjx.mydb.server.tbm;
 /**
  * @Author: Xjx
  * @Create: 2023/2/8 - 19:29
+ * 字段上的一个查找范围，边界是KeyCodec编码后的索引键，null表示这一边没有边界，默认是整个索引
  */
 public class FieldCalRes {
-    public long left;
-    public long right;
+    public byte[] left;
+    public byte[] right;
+    //边界本身是否在范围内
+    public boolean leftInclusive = true;
+    public boolean rightInclusive = true;
 }
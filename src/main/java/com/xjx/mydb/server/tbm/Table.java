@@ -2,11 +2,16 @@ package com.xjx.mydb.server.tbm;
 
 import com.google.common.primitives.Bytes;
 import com.xjx.mydb.common.Error;
+import com.xjx.mydb.server.dm.HeapCursor;
+import com.xjx.mydb.server.im.IndexCursor;
+import com.xjx.mydb.server.im.KeyCodec;
+import com.xjx.mydb.server.im.VarKeyCursor;
 import com.xjx.mydb.server.parser.statement.*;
 import com.xjx.mydb.server.tm.TransactionManagerImpl;
 import com.xjx.mydb.server.utils.Panic;
 import com.xjx.mydb.server.utils.ParseStringRes;
 import com.xjx.mydb.server.utils.Parser;
+import com.xjx.mydb.server.vm.VersionManager;
 
 import java.util.*;
 
@@ -50,16 +55,24 @@ public class Table {
             String fieldName = create.fieldName[i];
             String fieldType = create.fieldType[i];
             boolean indexed = false;
+            String[] include = new String[0];
             //遍历一个字段就遍历索引
             for(int j = 0; j < create.index.length; j++) {
                 //如果索引名称等于字段名则此字段有索引
                 if(fieldName.equals(create.index[j])) {
                     indexed = true;
+                    include = create.include[j];
                     break;
                 }
             }
+            //索引携带的字段必须是表中的其他字段
+            for(String name : include) {
+                if(name.equals(fieldName) || !Arrays.asList(create.fieldName).contains(name)) {
+                    throw Error.FieldNotFoundException;
+                }
+            }
             //将遍历到的字段及其索引信息加入表结构中的字段集合中
-            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
+            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed, include));
         }
         return tb.persistSelf(xid);
     }
@@ -104,13 +117,54 @@ public class Table {
         return this;
     }
 
+    //根据表中的字段名找字段，没有时返回null
+    Field field(String name) {
+        for(Field field : fields) {
+            if(field.fieldName.equals(name)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    //表上是否有覆盖索引
+    private boolean hasCoveringIndex() {
+        for(Field field : fields) {
+            if(field.isIndexed() && field.isCovering()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //版本被删除后清除它在覆盖索引中的可见性提示。必须在设置了删除事务之后清除，
+    //这样和清理线程并发设置提示时，要么清理线程设置后的复查看到了删除，要么这里的清除发生在设置之后
+    private void clearVisibleHints(Map<String, Object> entry, long uid) throws Exception {
+        for(Field field : fields) {
+            if(field.isIndexed() && field.isCovering()) {
+                field.setVisibleHint(field.indexKey(entry), uid, false);
+            }
+        }
+    }
+
     //根据删除token中的信息，将表中对应的字段信息删除掉，同时需要记录事务id
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
+        List<Long> uids = parseWhere(xid, delete.where);
+        boolean covering = hasCoveringIndex();
         int count = 0;
         for(Long uid : uids) {
+            //有覆盖索引时要先读出记录，删除后才能找到它在覆盖索引中的项
+            Map<String, Object> entry = null;
+            if(covering) {
+                byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+                if(raw == null) continue;
+                entry = parseEntry(raw);
+            }
             if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
                 count ++;
+                if(entry != null) {
+                    clearVisibleHints(entry, uid);
+                }
             }
         }
         return count;
@@ -119,7 +173,7 @@ public class Table {
     //根据更新token中的信息，将表中对应的字段信息进行更新，同时需要记录事务id
     public int update(long xid, Update update) throws Exception {
         //找到所有符合更新要求的字段id
-        List<Long> uids = parseWhere(update.where);
+        List<Long> uids = parseWhere(xid, update.where);
         Field field = null;
         //遍历当前类中的字段属性找到要进行修改的那个字段
         for (Field f : fields) {
@@ -133,23 +187,37 @@ public class Table {
         }
         //取出新值
         Object value = field.string2Value(update.value);
-        int count = 0;
+        //先读出所有要更新的记录并检查新记录的索引键，有一条放不进索引就拒绝整条语句，这时还没有修改任何记录
+        List<Long> visible = new ArrayList<>();
+        List<Map<String, Object>> olds = new ArrayList<>();
+        List<Map<String, Object>> news = new ArrayList<>();
         for(Long uid : uids) {
             //根据记录的id读出记录数据
             byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
             if(raw == null) continue;
+            Map<String, Object> entry = parseEntry(raw);
+            Map<String, Object> updated = new HashMap<>(entry);
+            updated.put(field.fieldName, value);
+            checkIndexKeys(updated);
+            visible.add(uid);
+            olds.add(entry);
+            news.add(updated);
+        }
+        int count = 0;
+        for(int i = 0; i < visible.size(); i++) {
+            long uid = visible.get(i);
             //将旧记录删除
             ((TableManagerImpl)tbm).vm.delete(xid, uid);
-            Map<String, Object> entry = parseEntry(raw);
-            entry.put(field.fieldName, value);
-            raw = entry2Raw(entry);
+            clearVisibleHints(olds.get(i), uid);
+            Map<String, Object> entry = news.get(i);
+            byte[] raw = entry2Raw(entry);
             //插入新纪录即为更新数据
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, this.uid, raw);
             count++;
             //然后找出带索引的字段，将对应字段记录上索引属性
             for(Field fd : fields) {
                 if(fd.isIndexed()) {
-                    fd.insert(entry.get(fd.fieldName), uuid);
+                    fd.insert(entry, uuid);
                 }
             }
         }
@@ -158,33 +226,158 @@ public class Table {
 
     //根据查询语句中的表名字段和过滤条件读数据
     public String read(long xid, Select read) throws Exception {
-        //解析where语句找出符合条件的记录
-        List<Long> uids = parseWhere(read.where);
+        //要输出的字段
+        List<Field> projection = projection(read.fields);
+        //解析where语句找出要查找的索引和范围
+        CalWhereRes res = parseWhereRange(read.where, projection);
         StringBuilder sb = new StringBuilder();
-        //读取记录
-        for(Long uid : uids) {
-            //去表中读取记录
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
-            //然后根据记录格式转换成集合
-            Map<String, Object> entry = parseEntry(raw);
-            //然后输出
-            sb.append(printEntry(entry)).append("\n");
+        if(res.field == null) {
+            //没有可用的索引，按页面顺序扫描整张表
+            HeapCursor cursor = ((TableManagerImpl)tbm).dm.scan(uid);
+            while (cursor.next()) {
+                Map<String, Object> entry = readEntry(xid, cursor.getUid());
+                if(entry != null && res.filter.matches(entry)) {
+                    sb.append(printEntry(entry, projection)).append("\n");
+                }
+            }
+            return sb.toString();
+        }
+        //通过游标逐个读取范围内的记录，不需要先把所有uid取出来
+        readRange(xid, res.field, res.r0, res.filter, projection, sb);
+        if(!res.single) {
+            readRange(xid, res.field, res.r1, res.filter, projection, sb);
         }
         return sb.toString();
     }
 
+    //读出记录并解析成字段值，记录对事务不可见时返回null
+    private Map<String, Object> readEntry(long xid, long uid) throws Exception {
+        byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+        return raw == null ? null : parseEntry(raw);
+    }
+
+    //查询语句中的字段，*为所有字段
+    private List<Field> projection(String[] names) throws Exception {
+        if(names.length == 1 && "*".equals(names[0])) {
+            return fields;
+        }
+        List<Field> projection = new ArrayList<>();
+        for(String name : names) {
+            Field field = field(name);
+            if(field == null) {
+                throw Error.FieldNotFoundException;
+            }
+            projection.add(field);
+        }
+        return projection;
+    }
+
+    //覆盖索引是否携带了要输出的所有字段
+    private boolean covers(Field fd, List<Field> projection) {
+        if(!fd.isCovering()) {
+            return false;
+        }
+        List<String> names = new ArrayList<>();
+        for(Field field : projection) {
+            names.add(field.fieldName);
+        }
+        return fd.covers(names);
+    }
+
+    //filter不为null时索引只用到了where的一部分，读出的记录还要用整个where过滤
+    private void readRange(long xid, Field fd, FieldCalRes range, RowFilter filter, List<Field> projection, StringBuilder sb) throws Exception {
+        if(filter == null && covers(fd, projection)) {
+            VarKeyCursor cursor = fd.coveringCursor(range);
+            while (cursor.next()) {
+                Map<String, Object> entry;
+                if(cursor.getFlag()) {
+                    //可见性提示说明这个版本对所有事务都可见，直接从索引键中取出字段值，不读记录
+                    entry = fd.parseIndexKey(cursor.getKey());
+                } else {
+                    entry = readEntry(xid, cursor.getUid());
+                    if(entry == null) continue;
+                }
+                sb.append(printEntry(entry, projection)).append("\n");
+            }
+            return;
+        }
+        IndexCursor cursor = fd.cursor(range);
+        while (cursor.next()) {
+            //去表中读取记录，然后根据记录格式转换成集合
+            Map<String, Object> entry = readEntry(xid, cursor.getUid());
+            if(entry == null || (filter != null && !filter.matches(entry))) continue;
+            //然后输出
+            sb.append(printEntry(entry, projection)).append("\n");
+        }
+    }
+
     //将插入数据解析对应字段形式
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
+        //索引键放不下时在写入记录之前拒绝，否则提交后会留下一条索引中找不到的记录
+        checkIndexKeys(entry);
         //将遍历出的字段集合解析成记录行格式
         byte[] raw = entry2Raw(entry);
-        //将记录行插入表中
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+        //将记录行插入表中，表的记录都放在属于这张表的页面中
+        long uid = ((TableManagerImpl)tbm).vm.insert(xid, this.uid, raw);
         //然后找出有索引的字段，将字段信息插入字段中
         for (Field field : fields) {
             if(field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
+                field.insert(entry, uid);
+            }
+        }
+    }
+
+    //检查记录在每个索引中的键是否超过了索引允许的长度
+    private void checkIndexKeys(Map<String, Object> entry) throws Exception {
+        for(Field field : fields) {
+            if(field.isIndexed()) {
+                field.checkIndexKey(entry);
+            }
+        }
+    }
+
+    //清理这张表中已经对所有事务都不可见的旧版本，返回回收的版本数
+    //按页面顺序扫描表中所有版本，死亡的版本先从所有索引中删除索引项，再回收版本本身，
+    //这样中途崩溃最多留下一个找不到的死亡版本，而不会留下指向已回收空间的索引项
+    public int vacuum() throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        int count = 0;
+        HeapCursor cursor = ((TableManagerImpl)tbm).dm.scan(uid);
+        while (cursor.next()) {
+            long uid = cursor.getUid();
+            byte[] raw = vm.readDead(uid);
+            if(raw == null) continue;
+            Map<String, Object> entry = parseEntry(raw);
+            for(Field field : fields) {
+                if(field.isIndexed()) {
+                    field.remove(entry, uid);
+                }
+            }
+            vm.purge(uid);
+            count++;
+        }
+        setVisibleHints(vm);
+        return count;
+    }
+
+    //给覆盖索引中已经对所有事务都可见的版本设置可见性提示，之后只用到索引字段的查询不再读这些记录。
+    //设置之后再检查一次，期间版本被删除时删除者可能在设置之前就清除过提示了，这时由这里清除
+    private void setVisibleHints(VersionManager vm) throws Exception {
+        for(Field field : fields) {
+            if(!field.isIndexed() || !field.isCovering()) {
+                continue;
+            }
+            VarKeyCursor cursor = field.coveringCursor(new FieldCalRes());
+            while (cursor.next()) {
+                long uid = cursor.getUid();
+                if(cursor.getFlag() || !vm.isAllVisible(uid)) {
+                    continue;
+                }
+                field.setVisibleHint(cursor.getKey(), uid, true);
+                if(!vm.isAllVisible(uid)) {
+                    field.setVisibleHint(cursor.getKey(), uid, false);
+                }
             }
         }
     }
@@ -204,55 +397,85 @@ public class Table {
         return entry;
     }
 
-    //解析where语句
-    private List<Long> parseWhere(Where where) throws Exception {
-        long l0 = 0, r0 = 0, l1 = 0, r1 = 0;
-        boolean single = false;
-        Field fd = null;
-        //过滤条件为null则看看那个字段有索引，因为MyDB只能靠索引查找。
-        if(where == null) {
-            for(Field field : fields) {
-                if(field.isIndexed()) {
-                    fd = field;
-                    break;
+    //解析where语句，找出符合条件的记录的uid。删除和更新会修改索引和表的页面，所以先把uid全部取出来再修改
+    private List<Long> parseWhere(long xid, Where where) throws Exception {
+        CalWhereRes res = parseWhereRange(where, fields);
+        List<Long> uids = new ArrayList<>();
+        if(res.field == null) {
+            HeapCursor cursor = ((TableManagerImpl)tbm).dm.scan(uid);
+            while (cursor.next()) {
+                Map<String, Object> entry = readEntry(xid, cursor.getUid());
+                if(entry != null && res.filter.matches(entry)) {
+                    uids.add(cursor.getUid());
                 }
             }
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
-            single = true;
-        } else {
-            //where不为null则表示有过滤条件，则此时where中的语句必有索引，因为MyDB只能支持索引查找
+            return uids;
+        }
+        //根据解析出来的要过滤字段的左右边界查询对应记录的uid
+        uids.addAll(res.field.search(res.r0));
+        if(!res.single) {
+            uids.addAll(res.field.search(res.r1));
+        }
+        if(res.filter == null) {
+            return uids;
+        }
+        List<Long> matched = new ArrayList<>();
+        for(long u : uids) {
+            Map<String, Object> entry = readEntry(xid, u);
+            if(entry != null && res.filter.matches(entry)) {
+                matched.add(u);
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * 解析where语句，得到用来过滤的索引字段和要查找的一个或两个范围。
+     * 第一个表达式的字段有索引时使用这个索引，and的另一个表达式是其他字段时读出记录后再用整个where过滤；
+     * 没有可用的索引时（字段没有索引、or连接了两个字段）按页面顺序扫描整张表。
+     * 没有where时只有携带了projection中所有字段的覆盖索引比扫描表更好，否则也扫描整张表
+     */
+    private CalWhereRes parseWhereRange(Where where, List<Field> projection) throws Exception {
+        CalWhereRes res = new CalWhereRes();
+        if(where == null) {
             for(Field field : fields) {
-                if(field.fieldName.equals(where.singleExp1.field)) {
-                    if(!field.isIndexed()) {
-                        throw Error.FieldNotFoundException;
-                    }
-                    fd = field;
-                    break;
+                if(field.isIndexed() && covers(field, projection)) {
+                    res.field = field;
+                    //没有边界即整个索引
+                    res.r0 = new FieldCalRes();
+                    res.single = true;
+                    return res;
                 }
             }
-            if(fd == null) {
-                throw Error.FieldNotFoundException;
-            }
-            //根据where过滤字段解析where语句，然后取出左右边界
-            CalWhereRes res = calWhere(fd, where);
-            l0 = res.l0;
-            r0 = res.r0;
-            l1 = res.l1;
-            r1 = res.r1;
-            single = res.single;
+            res.filter = new RowFilter(null);
+            return res;
         }
-        //根据解析出来的要过滤字段的左右边界查询对应记录的uid
-        List<Long> uids = fd.search(l0, r0);
-        if(!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+        RowFilter filter = new RowFilter(where);
+        Field fd = filter.f1;
+        boolean sameField = "".equals(where.logicOp) || fd.fieldName.equals(where.singleExp2.field);
+        if(!fd.isIndexed() || (!sameField && !"and".equals(where.logicOp))) {
+            res.filter = filter;
+            return res;
+        }
+        if(sameField) {
+            //根据where过滤字段解析where语句，然后取出左右边界
+            res = calWhere(fd, where);
+        } else {
+            res.single = true;
+            res.r0 = fd.calExp(where.singleExp1);
+            res.filter = filter;
         }
-        return uids;
+        res.field = fd;
+        return res;
     }
 
     class CalWhereRes {
-        long l0, r0, l1, r1;
+        //用来过滤的索引字段，为null时扫描整张表
+        Field field;
+        //需要对每一行记录再检查的条件，只用索引就能过滤时为null
+        RowFilter filter;
+        //一个或两个查找范围
+        FieldCalRes r0, r1;
         //是否只有一次过滤，or有两次
         boolean single;
     }
@@ -262,31 +485,18 @@ public class Table {
         switch (where.logicOp) {
             case "":
                 res.single = true;
-                FieldCalRes r = field.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
+                res.r0 = field.calExp(where.singleExp1);
                 break;
             case "or":
                 //or需要过滤两次
                 res.single = false;
                 //解析where条件中的表达式
-                r = field.calExp(where.singleExp1);
-                res.l0 = r.left;
-                res.r0 = r.right;
-                r = field.calExp(where.singleExp2);
-                res.l1 = r.left;
-                res.r1 = r.right;
+                res.r0 = field.calExp(where.singleExp1);
+                res.r1 = field.calExp(where.singleExp2);
                 break;
             case "and":
                 res.single = true;
-                r = field.calExp(where.singleExp1);
-                res.l0 = r.left;
-                res.r0 = r.right;
-                r = field.calExp(where.singleExp2);
-                res.l1 = r.left;
-                res.r1 = r.right;
-                //结果集中左边要最大的，右边要最小的
-                if(res.l1 > res.l0) res.l0 = res.l1;
-                if(res.r1 < res.r0) res.r0 = res.r1;
+                res.r0 = intersect(field.calExp(where.singleExp1), field.calExp(where.singleExp2));
                 break;
             default:
                 throw Error.InvalidLogOpException;
@@ -294,13 +504,94 @@ public class Table {
         return res;
     }
 
-    //将一行记录的字段值打印出来
-    private String printEntry(Map<String, Object> entry) {
+    //顺序扫描时每一行记录要满足的where条件，每个表达式先算成字段上的范围，每行只需要编码字段值再比较，和索引查找的结果一致
+    class RowFilter {
+        Field f1, f2;
+        FieldCalRes r1, r2;
+        String logicOp;
+
+        //where为null时所有记录都满足
+        RowFilter(Where where) throws Exception {
+            if(where == null) {
+                logicOp = "";
+                return;
+            }
+            logicOp = where.logicOp;
+            f1 = whereField(where.singleExp1.field);
+            r1 = f1.calExp(where.singleExp1);
+            switch (logicOp) {
+                case "":
+                    break;
+                case "and":
+                case "or":
+                    f2 = whereField(where.singleExp2.field);
+                    r2 = f2.calExp(where.singleExp2);
+                    break;
+                default:
+                    throw Error.InvalidLogOpException;
+            }
+        }
+
+        boolean matches(Map<String, Object> entry) {
+            if(f1 == null) {
+                return true;
+            }
+            boolean m1 = inRange(r1, KeyCodec.encode(entry.get(f1.fieldName)));
+            switch (logicOp) {
+                case "and":
+                    return m1 && inRange(r2, KeyCodec.encode(entry.get(f2.fieldName)));
+                case "or":
+                    return m1 || inRange(r2, KeyCodec.encode(entry.get(f2.fieldName)));
+                default:
+                    return m1;
+            }
+        }
+    }
+
+    private Field whereField(String name) throws Exception {
+        Field field = field(name);
+        if(field == null) {
+            throw Error.FieldNotFoundException;
+        }
+        return field;
+    }
+
+    //编码后的字段值是否在范围内
+    private static boolean inRange(FieldCalRes range, byte[] v) {
+        if(range.left != null) {
+            int c = KeyCodec.compare(v, range.left);
+            if(c < 0 || (c == 0 && !range.leftInclusive)) {
+                return false;
+            }
+        }
+        if(range.right != null) {
+            int c = KeyCodec.compare(v, range.right);
+            if(c > 0 || (c == 0 && !range.rightInclusive)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //两个范围的交集，结果集中左边要最大的，右边要最小的，边界相同时只要有一边不包含就不包含
+    private FieldCalRes intersect(FieldCalRes a, FieldCalRes b) {
+        FieldCalRes res = new FieldCalRes();
+        int c = a.left == null ? -1 : b.left == null ? 1 : KeyCodec.compare(a.left, b.left);
+        res.left = c >= 0 ? a.left : b.left;
+        res.leftInclusive = c > 0 ? a.leftInclusive : c < 0 ? b.leftInclusive : a.leftInclusive && b.leftInclusive;
+        c = a.right == null ? 1 : b.right == null ? -1 : KeyCodec.compare(a.right, b.right);
+        res.right = c <= 0 ? a.right : b.right;
+        res.rightInclusive = c < 0 ? a.rightInclusive : c > 0 ? b.rightInclusive : a.rightInclusive && b.rightInclusive;
+        return res;
+    }
+
+    //将一行记录中projection里的字段值打印出来
+    private String printEntry(Map<String, Object> entry, List<Field> projection) {
         StringBuilder sb = new StringBuilder("[");
-        for(int i = 0; i < fields.size(); i++) {
-            Field field = fields.get(i);
+        for(int i = 0; i < projection.size(); i++) {
+            Field field = projection.get(i);
             sb.append(field.printValue(entry.get(field.fieldName)));
-            if(i == fields.size() - 1) {
+            if(i == projection.size() - 1) {
                 sb.append("]");
             } else {
                 sb.append(",");
@@ -19,6 +19,8 @@ public interface TableManager {
     byte[] read(long xid, Select select) throws Exception;
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
+    //清理所有表中已经对所有事务都不可见的旧版本，返回回收的版本数
+    int vacuum() throws Exception;
 
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
@@ -28,6 +30,8 @@ public interface TableManager {
 
     public static TableManager open(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.open(path);
-        return new TableManagerImpl(vm, dm, booter);
+        TableManagerImpl tbm = new TableManagerImpl(vm, dm, booter);
+        tbm.startVacuum();
+        return tbm;
     }
 }
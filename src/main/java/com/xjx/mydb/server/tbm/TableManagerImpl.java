@@ -3,6 +3,7 @@ package com.xjx.mydb.server.tbm;
 import com.xjx.mydb.common.Error;
 import com.xjx.mydb.server.dm.DataManager;
 import com.xjx.mydb.server.parser.statement.*;
+import com.xjx.mydb.server.utils.Panic;
 import com.xjx.mydb.server.utils.Parser;
 import com.xjx.mydb.server.vm.VersionManager;
 
@@ -18,6 +19,9 @@ import java.util.concurrent.locks.ReentrantLock;
  * @Create: 2023/2/14 - 10:55
  */
 public class TableManagerImpl implements TableManager {
+    //后台清理旧版本的间隔
+    private static final long VACUUM_INTERVAL_MILLIS = 60 * 1000;
+
     //tbm基于vm来查询表和字段数据的
     VersionManager vm;
     DataManager dm;
@@ -38,6 +42,22 @@ public class TableManagerImpl implements TableManager {
         loadTables();
     }
 
+    //启动后台清理线程，每隔一段时间清理一次所有表
+    void startVacuum() {
+        Thread vacuum = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(VACUUM_INTERVAL_MILLIS);
+                    vacuum();
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+            }
+        }, "mydb-vacuum");
+        vacuum.setDaemon(true);
+        vacuum.start();
+    }
+
     private void loadTables() {
         long uid = firstTableUid();
         while (uid != 0) {
@@ -164,6 +184,18 @@ public class TableManagerImpl implements TableManager {
         return ("update" + count).getBytes();
     }
 
+    @Override
+    public int vacuum() throws Exception {
+        lock.lock();
+        List<Table> tables = new ArrayList<>(tableCache.values());
+        lock.unlock();
+        int count = 0;
+        for(Table table : tables) {
+            count += table.vacuum();
+        }
+        return count;
+    }
+
     //对外提供的删除API
     @Override
     public byte[] delete(long xid, Delete delete) throws Exception {
@@ -0,0 +1,571 @@
+package com.xjx.mydb.server.tm;
+
+import com.xjx.mydb.common.Error;
+import com.xjx.mydb.server.utils.Panic;
+import com.xjx.mydb.server.utils.Parser;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/12 - 10:20
+ * 类似CLOG的事务状态存储：每个事务只占2位，按SEGMENT_XIDS个事务分段，每段一个文件。
+ * XID文件只保存文件头：[Magic][XidCounter]，段文件为 path.xid.段号，冻结的段为 path.xid.段号.z
+ * 段内所有事务都早于当前最老的活跃事务时，这一段的状态不会再变化，就把它压缩成.z文件并删除原文件（冻结）。
+ * 活跃段常驻内存，冻结段按需解压并缓存最近使用的几段，查询状态只是一次数组读取。
+ * 状态修改的写回方式和TransactionManagerImpl相同：提交时成批写回并force，开始和回滚随下一批写回，检查点回收日志之前调用flush()全部写回。
+ */
+public class ClogTransactionManagerImpl implements TransactionManager {
+    static final int MAGIC = 0x434C4F47;
+    // 文件头：[Magic 4][XidCounter 8]
+    private static final int OF_COUNTER = 4;
+    private static final int CLOG_HEADER_LENGTH = OF_COUNTER + 8;
+    private static final String FROZEN_SUFFIX = ".z";
+    private static final String TMP_SUFFIX = ".tmp";
+    // 事务的三种状态，每个事务2位
+    private static final long FIELD_TRAN_ACTIVE = 0;
+    private static final long FIELD_TRAN_COMMITTED = 1;
+    private static final long FIELD_TRAN_ABORTED = 2;
+    private static final int BITS_PER_XID = 2;
+    private static final int XIDS_PER_WORD = Long.SIZE / BITS_PER_XID;
+    // 每段的事务个数，一段占256KB
+    private static final int SEGMENT_SHIFT = 20;
+    private static final int SEGMENT_XIDS = 1 << SEGMENT_SHIFT;
+    private static final int WORDS_PER_SEGMENT = SEGMENT_XIDS / XIDS_PER_WORD;
+    // 缓存的冻结段个数
+    private static final int FROZEN_CACHE_SIZE = 8;
+
+    private final String path;
+    private final RandomAccessFile file;
+    private final FileChannel fc;
+    //已经开始的最大事务号
+    private volatile long xidCounter;
+    //段号小于它的段都已经冻结，冻结总是从小到大依次进行
+    private volatile long frozenBelow;
+    //锁，用于创建事务和修改事务状态
+    private final Lock counterLock;
+    //活跃段：段号 -> 段
+    private final ConcurrentHashMap<Long, Segment> segments;
+    //冻结段的缓存：段号 -> 解压后的状态，读取不加锁，按时钟算法淘汰
+    private final ConcurrentHashMap<Long, Frozen> frozenCache;
+    //本进程开始且还没结束的事务，决定哪些段可以冻结，由counterLock保护
+    private final TreeSet<Long> running;
+    //每次状态修改的序号，以及已经落盘的最大序号，changeSeq由counterLock保护
+    private long changeSeq;
+    private volatile long durableSeq;
+    //同一时间只有一个线程写回，冻结也在写回时进行
+    private final Lock flushLock;
+
+    private static class Segment {
+        final AtomicLongArray words = new AtomicLongArray(WORDS_PER_SEGMENT);
+        //还没有写回的字，由counterLock保护
+        final BitSet dirty = new BitSet(WORDS_PER_SEGMENT);
+        RandomAccessFile raf;
+        FileChannel fc;
+    }
+
+    //缓存的一个冻结段，同一段只由放入缓存的线程解压一次，其他读者等待它完成
+    private static class Frozen {
+        final CompletableFuture<long[]> words = new CompletableFuture<>();
+        //最近被读过，淘汰时跳过一轮
+        volatile boolean referenced = true;
+    }
+
+    //一段连续的待写回的字
+    private static class Run {
+        Segment segment;
+        int firstWord;
+        long[] values;
+    }
+
+    private ClogTransactionManagerImpl(String path, RandomAccessFile raf, FileChannel fc) {
+        this.path = path;
+        this.file = raf;
+        this.fc = fc;
+        counterLock = new ReentrantLock();
+        flushLock = new ReentrantLock();
+        segments = new ConcurrentHashMap<>();
+        running = new TreeSet<>();
+        frozenCache = new ConcurrentHashMap<>();
+    }
+
+    //创建一个CLOG格式的XID文件
+    static ClogTransactionManagerImpl create(String path) {
+        File f = new File(path + XID_SUFFIX);
+        try {
+            if(!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        ClogTransactionManagerImpl tm = openFile(path, f);
+        ByteBuffer header = ByteBuffer.allocate(CLOG_HEADER_LENGTH);
+        header.putInt(MAGIC).putLong(0).flip();
+        try {
+            while (header.hasRemaining()) {
+                tm.fc.write(header, header.position());
+            }
+            tm.fc.force(false);
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        return tm;
+    }
+
+    //打开一个CLOG格式的XID文件，加载活跃段并推算事务数
+    static ClogTransactionManagerImpl open(String path) {
+        File f = new File(path + XID_SUFFIX);
+        if(!f.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        ClogTransactionManagerImpl tm = openFile(path, f);
+        tm.load();
+        return tm;
+    }
+
+    private static ClogTransactionManagerImpl openFile(String path, File f) {
+        if(!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWExcepiton);
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        return new ClogTransactionManagerImpl(path, raf, raf.getChannel());
+    }
+
+    //判断一个XID文件是不是CLOG格式，旧格式开头是事务数的高4字节，不可能等于MAGIC
+    static boolean isClog(FileChannel fc) {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        try {
+            while (buf.hasRemaining()) {
+                if(fc.read(buf, buf.position()) < 0) {
+                    return false;
+                }
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        return buf.getInt(0) == MAGIC;
+    }
+
+    private void load() {
+        ByteBuffer header = ByteBuffer.allocate(CLOG_HEADER_LENGTH);
+        try {
+            while (header.hasRemaining()) {
+                if(fc.read(header, header.position()) < 0) {
+                    Panic.panic(Error.BadXIDFileException);
+                }
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        if(header.getInt(0) != MAGIC || header.getLong(OF_COUNTER) < 0) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        long counter = header.getLong(OF_COUNTER);
+        //冻结是依次进行的，开头连续的.z文件就是所有冻结段；冻结后删除原文件前崩溃会留下原文件，以.z为准
+        long seg = 0;
+        while (new File(frozenPath(seg)).exists()) {
+            new File(segmentPath(seg)).delete();
+            seg++;
+        }
+        frozenBelow = seg;
+        //文件头和状态不是原子写入的，事务数以文件头和最后一个非0状态中较大的为准
+        for(seg = Math.max(frozenBelow, counter >> SEGMENT_SHIFT); new File(segmentPath(seg)).exists(); seg++) {
+            Segment s = activeSegment(seg);
+            for(int w = WORDS_PER_SEGMENT - 1; w >= 0; w--) {
+                long word = s.words.get(w);
+                if(word != 0) {
+                    int bit = (Long.SIZE - 1 - Long.numberOfLeadingZeros(word)) / BITS_PER_XID;
+                    counter = Math.max(counter, (seg << SEGMENT_SHIFT) + (long) w * XIDS_PER_WORD + bit);
+                    break;
+                }
+            }
+        }
+        xidCounter = counter;
+    }
+
+    private String segmentPath(long seg) {
+        return path + XID_SUFFIX + "." + seg;
+    }
+
+    private String frozenPath(long seg) {
+        return segmentPath(seg) + FROZEN_SUFFIX;
+    }
+
+    //获取活跃段，不在内存中则从段文件加载；段已经冻结时返回null
+    private Segment activeSegment(long seg) {
+        Segment s = segments.get(seg);
+        if(s != null) {
+            return s;
+        }
+        return segments.computeIfAbsent(seg, no -> no < frozenBelow ? null : loadSegment(no));
+    }
+
+    private Segment loadSegment(long seg) {
+        Segment s = new Segment();
+        try {
+            s.raf = new RandomAccessFile(segmentPath(seg), "rw");
+            s.fc = s.raf.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(WORDS_PER_SEGMENT * 8);
+            long pos = 0;
+            while (buf.hasRemaining()) {
+                int n = s.fc.read(buf, pos);
+                if(n < 0) {
+                    break;
+                }
+                pos += n;
+            }
+            //超出文件长度的部分为0即active
+            buf.clear();
+            for(int w = 0; w < WORDS_PER_SEGMENT; w++) {
+                s.words.set(w, buf.getLong());
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        return s;
+    }
+
+    //读取冻结段，先查缓存，缓存中没有时只有一个线程解压
+    private long[] frozenSegment(long seg) {
+        Frozen frozen = frozenCache.get(seg);
+        if(frozen == null) {
+            Frozen created = new Frozen();
+            frozen = frozenCache.putIfAbsent(seg, created);
+            if(frozen == null) {
+                frozen = created;
+                created.words.complete(readFrozen(seg));
+                evictFrozen(seg);
+            }
+        }
+        frozen.referenced = true;
+        return frozen.words.join();
+    }
+
+    //解压一个.z文件
+    private long[] readFrozen(long seg) {
+        long[] words = new long[WORDS_PER_SEGMENT];
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+                new BufferedInputStream(new FileInputStream(frozenPath(seg)))))) {
+            for(int w = 0; w < WORDS_PER_SEGMENT; w++) {
+                words[w] = in.readLong();
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        return words;
+    }
+
+    //把刚写好的冻结段放入缓存，替换掉旧的内容
+    private void cacheFrozen(long seg, long[] words) {
+        Frozen frozen = new Frozen();
+        frozen.words.complete(words);
+        frozenCache.put(seg, frozen);
+        evictFrozen(seg);
+    }
+
+    //缓存超过上限时按时钟算法淘汰：最近读过的清掉标记跳过，没有标记的移除，刚放入的段不淘汰
+    private void evictFrozen(long keep) {
+        for(int round = 0; round < 2 && frozenCache.size() > FROZEN_CACHE_SIZE; round++) {
+            for(Map.Entry<Long, Frozen> entry : frozenCache.entrySet()) {
+                if(frozenCache.size() <= FROZEN_CACHE_SIZE) {
+                    return;
+                }
+                Frozen frozen = entry.getValue();
+                if(entry.getKey() == keep) {
+                    continue;
+                }
+                if(frozen.referenced) {
+                    frozen.referenced = false;
+                } else {
+                    frozenCache.remove(entry.getKey(), frozen);
+                }
+            }
+        }
+    }
+
+    //把一段状态压缩写入.z文件，先写临时文件并force，再原子替换
+    private void writeFrozen(long seg, long[] words) {
+        File tmp = new File(frozenPath(seg) + TMP_SUFFIX);
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            GZIPOutputStream gz = new GZIPOutputStream(fos);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(gz));
+            for(long word : words) {
+                out.writeLong(word);
+            }
+            out.flush();
+            gz.finish();
+            fos.getFD().sync();
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(frozenPath(seg)).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+    }
+
+    private static long statusOf(long word, long xid) {
+        int shift = (int)(xid & (XIDS_PER_WORD - 1)) * BITS_PER_XID;
+        return (word >>> shift) & 3;
+    }
+
+    private static long withStatus(long word, long xid, long status) {
+        int shift = (int)(xid & (XIDS_PER_WORD - 1)) * BITS_PER_XID;
+        return (word & ~(3L << shift)) | (status << shift);
+    }
+
+    private static int wordOf(long xid) {
+        return (int)((xid & (SEGMENT_XIDS - 1)) / XIDS_PER_WORD);
+    }
+
+    @Override
+    public long begin() {
+        counterLock.lock();
+        try {
+            long xid = xidCounter + 1;
+            updateXID(xid, FIELD_TRAN_ACTIVE);
+            running.add(xid);
+            return xid;
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    //更新xid事务的状态为status，返回这次修改的序号，调用者需持有counterLock
+    private long updateXID(long xid, long status) {
+        //恢复时回滚崩溃前没有记入文件头的事务，中间跳过的事务都没有执行完，一律视为回滚
+        for(long x = xidCounter + 1; x < xid; x++) {
+            setStatus(x, FIELD_TRAN_ABORTED);
+        }
+        setStatus(xid, status);
+        if(xid > xidCounter) {
+            xidCounter = xid;
+        }
+        return ++changeSeq;
+    }
+
+    private void setStatus(long xid, long status) {
+        long seg = xid >> SEGMENT_SHIFT;
+        int w = wordOf(xid);
+        Segment s = activeSegment(seg);
+        if(s != null) {
+            s.words.set(w, withStatus(s.words.get(w), xid, status));
+            s.dirty.set(w);
+            return;
+        }
+        //冻结段只在恢复时回滚崩溃前遗留的事务才会被修改，直接重写压缩文件
+        long[] words = frozenSegment(seg).clone();
+        words[w] = withStatus(words[w], xid, status);
+        writeFrozen(seg, words);
+        cacheFrozen(seg, words);
+    }
+
+    // 提交XID事务，返回前状态已经落盘
+    @Override
+    public void commit(long xid) {
+        long seq;
+        counterLock.lock();
+        try {
+            seq = updateXID(xid, FIELD_TRAN_COMMITTED);
+            running.remove(xid);
+        } finally {
+            counterLock.unlock();
+        }
+        flush(seq);
+    }
+
+    // 回滚状态丢失时事务仍是active，只要日志还在，恢复时会被重新回滚，所以不需要等待落盘，回收日志前检查点会先flush
+    @Override
+    public void abort(long xid) {
+        counterLock.lock();
+        try {
+            updateXID(xid, FIELD_TRAN_ABORTED);
+            running.remove(xid);
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    //把序号不超过seq的修改写回文件，然后冻结不会再变化的段
+    private void flush(long seq) {
+        if(durableSeq >= seq) {
+            return;
+        }
+        flushLock.lock();
+        try {
+            if(durableSeq >= seq) {
+                return;
+            }
+            List<Run> runs = new ArrayList<>();
+            long upTo;
+            long counter;
+            counterLock.lock();
+            try {
+                for(Segment s : segments.values()) {
+                    for(int w = s.dirty.nextSetBit(0); w >= 0; ) {
+                        int end = s.dirty.nextClearBit(w);
+                        Run run = new Run();
+                        run.segment = s;
+                        run.firstWord = w;
+                        run.values = new long[end - w];
+                        for(int i = w; i < end; i++) {
+                            run.values[i - w] = s.words.get(i);
+                        }
+                        runs.add(run);
+                        w = s.dirty.nextSetBit(end);
+                    }
+                    s.dirty.clear();
+                }
+                upTo = changeSeq;
+                counter = xidCounter;
+            } finally {
+                counterLock.unlock();
+            }
+            write(runs, counter);
+            durableSeq = upTo;
+            freeze();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    //写回一批字，每个段force一次，最后写文件头并force
+    private void write(List<Run> runs, long counter) {
+        try {
+            Set<Segment> touched = new HashSet<>();
+            for(Run run : runs) {
+                ByteBuffer buf = ByteBuffer.allocate(run.values.length * 8);
+                for(long v : run.values) {
+                    buf.putLong(v);
+                }
+                buf.flip();
+                long pos = (long) run.firstWord * 8;
+                while (buf.hasRemaining()) {
+                    pos += run.segment.fc.write(buf, pos);
+                }
+                touched.add(run.segment);
+            }
+            for(Segment s : touched) {
+                s.fc.force(false);
+            }
+            ByteBuffer header = ByteBuffer.wrap(Parser.long2Byte(counter));
+            long pos = OF_COUNTER;
+            while (header.hasRemaining()) {
+                pos += fc.write(header, pos);
+            }
+            fc.force(false);
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+    }
+
+    //冻结所有早于最老活跃事务所在段的段，调用者需持有flushLock
+    private void freeze() {
+        counterLock.lock();
+        try {
+            long oldest = running.isEmpty() ? xidCounter + 1 : running.first();
+            long target = oldest >> SEGMENT_SHIFT;
+            while (frozenBelow < target) {
+                long seg = frozenBelow;
+                Segment s = activeSegment(seg);
+                long[] words = new long[WORDS_PER_SEGMENT];
+                for(int w = 0; w < WORDS_PER_SEGMENT; w++) {
+                    words[w] = s.words.get(w);
+                }
+                //.z文件写好之后才让读者转向冻结段，读者在这之前仍然可以读活跃段
+                writeFrozen(seg, words);
+                cacheFrozen(seg, words);
+                frozenBelow = seg + 1;
+                segments.remove(seg);
+                s.raf.close();
+                new File(segmentPath(seg)).delete();
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isActive(long xid) {
+        if(xid == SUPER_XID) return false;
+        return checkXID(xid, FIELD_TRAN_ACTIVE);
+    }
+
+    @Override
+    public boolean isCommitted(long xid) {
+        if(xid == SUPER_XID) return true;
+        return checkXID(xid, FIELD_TRAN_COMMITTED);
+    }
+
+    @Override
+    public boolean isAborted(long xid) {
+        if(xid == SUPER_XID) return false;
+        return checkXID(xid, FIELD_TRAN_ABORTED);
+    }
+
+    private boolean checkXID(long xid, long status) {
+        if(xid > xidCounter) {
+            //还没有开始过的事务视为active
+            return status == FIELD_TRAN_ACTIVE;
+        }
+        long seg = xid >> SEGMENT_SHIFT;
+        int w = wordOf(xid);
+        while (true) {
+            if(seg < frozenBelow) {
+                return statusOf(frozenSegment(seg)[w], xid) == status;
+            }
+            //段可能正好在这时被冻结，activeSegment返回null，重新判断
+            Segment s = activeSegment(seg);
+            if(s != null) {
+                return statusOf(s.words.get(w), xid) == status;
+            }
+        }
+    }
+
+    //写回到目前为止的所有修改
+    @Override
+    public void flush() {
+        long seq;
+        counterLock.lock();
+        try {
+            seq = changeSeq;
+        } finally {
+            counterLock.unlock();
+        }
+        flush(seq);
+    }
+
+    @Override
+    public void close() {
+        flush();
+        try {
+            for(Segment s : segments.values()) {
+                s.raf.close();
+            }
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
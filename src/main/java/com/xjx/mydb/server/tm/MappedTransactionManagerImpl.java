@@ -0,0 +1,191 @@
+package com.xjx.mydb.server.tm;
+
+import com.xjx.mydb.server.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/10 - 14:05
+ * 内存映射方式的TM，XID文件格式和TransactionManagerImpl完全相同，两种实现可以打开同一个文件。
+ * 文件按MAP_SIZE字节一段映射进内存，事务数超出已映射的范围时再映射下一段（文件随之扩展，末尾多出的0不算事务）。
+ * 开始、回滚、查询都只是读写映射内存，只有提交需要force事务状态所在的那一段；检查点回收日志之前会调用flush()force所有的段。
+ */
+public class MappedTransactionManagerImpl implements TransactionManager {
+    // 每个事务的占用长度
+    private static final int XID_FIELD_SIZE = 1;
+    // 事务的三种状态
+    private static final byte FIELD_TRAN_ACTIVE = 0;
+    private static final byte FIELD_TRAN_COMMITTED = 1;
+    private static final byte FIELD_TRAN_ABORTED = 2;
+    // 每段映射的大小
+    private static final int MAP_SHIFT = 20;
+    private static final int MAP_SIZE = 1 << MAP_SHIFT;
+    private static final int MAP_MASK = MAP_SIZE - 1;
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+    //已经映射的段，只会增加，增加时整体替换数组
+    private volatile MappedByteBuffer[] maps;
+    //xid文件头的事务个数
+    private volatile long xidCounter;
+    //锁，用于创建事务和修改事务状态
+    private Lock counterLock;
+    //状态的写入发生在这个volatile写之前，读状态前先读它，保证其他线程能看到最新的状态
+    private volatile long published;
+
+    MappedTransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
+        this.file = raf;
+        this.fc = fc;
+        counterLock = new ReentrantLock();
+        maps = new MappedByteBuffer[0];
+        xidCounter = TransactionManagerImpl.readXIDCounter(fc);
+        //映射到当前最后一个事务所在的段
+        ensureMapped(getXidPosition(xidCounter + 1));
+    }
+
+    // 根据事务xid取得其在xid文件中对应的位置
+    private long getXidPosition(long xid) {
+        return XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
+    }
+
+    //保证文件中pos位置已经被映射，调用者需持有counterLock（构造时除外）
+    private void ensureMapped(long pos) {
+        int seg = (int)(pos >> MAP_SHIFT);
+        if(seg < maps.length) {
+            return;
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(maps, seg + 1);
+        try {
+            for(int i = maps.length; i <= seg; i++) {
+                //映射超出文件长度的部分时文件会被扩展
+                grown[i] = fc.map(FileChannel.MapMode.READ_WRITE, (long) i << MAP_SHIFT, MAP_SIZE);
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        maps = grown;
+    }
+
+    private MappedByteBuffer segmentOf(long pos) {
+        return maps[(int)(pos >> MAP_SHIFT)];
+    }
+
+    @Override
+    public long begin() {
+        counterLock.lock();
+        try {
+            long xid = xidCounter + 1;
+            updateXID(xid, FIELD_TRAN_ACTIVE);
+            return xid;
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    //更新映射内存中xid事务的状态，返回状态所在的位置，调用者需持有counterLock
+    private long updateXID(long xid, byte status) {
+        long pos = getXidPosition(xid);
+        ensureMapped(pos);
+        //恢复时回滚崩溃前没有记入文件头的事务，中间跳过的事务都没有执行完，一律视为回滚
+        for(long x = xidCounter + 1; x < xid; x++) {
+            long p = getXidPosition(x);
+            segmentOf(p).put((int)(p & MAP_MASK), FIELD_TRAN_ABORTED);
+        }
+        segmentOf(pos).put((int)(pos & MAP_MASK), status);
+        if(xid > xidCounter) {
+            xidCounter = xid;
+            maps[0].putLong(0, xid);
+        }
+        published++;
+        return pos;
+    }
+
+    // 提交XID事务，force状态所在的段后返回
+    @Override
+    public void commit(long xid) {
+        MappedByteBuffer seg;
+        counterLock.lock();
+        try {
+            seg = segmentOf(updateXID(xid, FIELD_TRAN_COMMITTED));
+        } finally {
+            counterLock.unlock();
+        }
+        //文件头不需要一起force，打开时会根据最后一个非0状态推算事务数
+        seg.force();
+    }
+
+    // 回滚状态丢失时事务仍是active，只要日志还在，恢复时会被重新回滚，所以不需要force，回收日志前检查点会先flush
+    @Override
+    public void abort(long xid) {
+        counterLock.lock();
+        try {
+            updateXID(xid, FIELD_TRAN_ABORTED);
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isActive(long xid) {
+        if(xid == SUPER_XID) return false;
+        return checkXID(xid, FIELD_TRAN_ACTIVE);
+    }
+
+    @Override
+    public boolean isCommitted(long xid) {
+        if(xid == SUPER_XID) return true;
+        return checkXID(xid, FIELD_TRAN_COMMITTED);
+    }
+
+    @Override
+    public boolean isAborted(long xid) {
+        if(xid == SUPER_XID) return false;
+        return checkXID(xid, FIELD_TRAN_ABORTED);
+    }
+
+    // 检测XID事务是否处于status状态，直接读映射内存
+    private boolean checkXID(long xid, byte status) {
+        //先读一次published（它不会小于0），和updateXID中对它的写配对
+        if(published < 0 || xid > xidCounter) {
+            //还没有开始过的事务视为active
+            return status == FIELD_TRAN_ACTIVE;
+        }
+        long pos = getXidPosition(xid);
+        return segmentOf(pos).get((int)(pos & MAP_MASK)) == status;
+    }
+
+    //force所有映射的段，持有counterLock时不会有新的修改
+    @Override
+    public void flush() {
+        counterLock.lock();
+        try {
+            for(MappedByteBuffer map : maps) {
+                map.force();
+            }
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    //关闭时force所有映射的段，然后断开与XID文件的IO连接
+    @Override
+    public void close() {
+        flush();
+        counterLock.lock();
+        try {
+            file.close();
+            fc.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            counterLock.unlock();
+        }
+    }
+}
@@ -28,6 +28,8 @@ public interface TransactionManager {
     void commit(long xid);
     // 取消一个事务
     void abort(long xid);
+    // 把已经修改的事务状态全部落盘，检查点回收日志之前调用
+    void flush();
     // 关闭TM
     void close();
     // 查询一个事务的状态是否是正在进行的状态
@@ -66,8 +68,9 @@ public interface TransactionManager {
         //把字节缓冲中的数据写入XID文件
         try {
             //写入文件位置为文件头
-            fc.position(0);
-            fc.write(buffer);
+            while (buffer.hasRemaining()) {
+                fc.write(buffer, buffer.position());
+            }
         } catch (IOException ioException) {
             Panic.panic(ioException);
         }
@@ -75,8 +78,29 @@ public interface TransactionManager {
         return new TransactionManagerImpl(raf,fc);
     }
 
+    //创建一个 xid 文件并创建 TM，mapped为true时使用内存映射方式的TM
+    public static TransactionManager create(String path, boolean mapped) {
+        TransactionManagerImpl tm = create(path);
+        if(!mapped) {
+            return tm;
+        }
+        tm.close();
+        return open(path, true);
+    }
+
+    //创建一个CLOG格式的 xid 文件并创建 TM，每个事务只占2位，早于最老活跃事务的段会被压缩
+    public static TransactionManager createClog(String path) {
+        return ClogTransactionManagerImpl.create(path);
+    }
+
     //从一个已有的 xid 文件来创建 TM
     public static TransactionManager open(String path){
+        return open(path, false);
+    }
+
+    //从一个已有的 xid 文件来创建 TM，mapped为true时使用内存映射方式的TM，两种方式的文件格式相同
+    //CLOG格式的文件根据文件头识别，总是使用ClogTransactionManagerImpl，与mapped无关
+    public static TransactionManager open(String path, boolean mapped){
         File file = new File(path + TransactionManagerImpl.XID_SUFFIX);
         if(!file.exists()){
             Panic.panic(Error.FileNotExistsException);
@@ -92,6 +116,17 @@ public interface TransactionManager {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
+        if(ClogTransactionManagerImpl.isClog(fc)) {
+            try {
+                raf.close();
+            } catch (IOException ioException) {
+                Panic.panic(ioException);
+            }
+            return ClogTransactionManagerImpl.open(path);
+        }
+        if(mapped) {
+            return new MappedTransactionManagerImpl(raf, fc);
+        }
         return new TransactionManagerImpl(raf, fc);
     }
 }
@@ -8,12 +8,22 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Author: Xjx
  * @Create: 2022/12/21 - 11:45
+ * 事务状态常驻内存：XID文件按CHUNK_SIZE个事务一块读进内存，查询状态只是一次数组读取。
+ * 最近的HOT_CHUNKS块（热窗口）一直在内存中，更早的块按需从文件加载，干净的冷块超过上限时会被丢弃。
+ * 状态修改先写内存并记入待写集合，由提交线程成批写回XID文件并force一次：
+ * 提交必须落盘后才返回，同时等待的提交共享同一次force；开始和回滚不单独刷盘，随下一批一起写回，
+ * 检查点回收一个已结束事务的日志之前会调用flush()，保证回收日志时它的回滚状态和事务数已经落盘。
+ * 文件读写全部使用带位置的FileChannel.read/write(buf, pos)，加载块和写回可以并发进行，不会互相改掉对方的position。
  */
 public class TransactionManagerImpl implements TransactionManager {
     // 每个事务的占用长度
@@ -22,27 +32,63 @@ public class TransactionManagerImpl implements TransactionManager {
     private static final byte FIELD_TRAN_ACTIVE = 0;
     private static final byte FIELD_TRAN_COMMITTED = 1;
     private static final byte FIELD_TRAN_ABORTED = 2;
+    // 内存中每块保存的事务个数
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    // 热窗口的块数，最近的这么多块不会被丢弃
+    private static final int HOT_CHUNKS = 16;
+    // 热窗口以外最多保留的块数
+    private static final int MAX_COLD_CHUNKS = 64;
     //file和fc是Nio读取文件的两个类对象。file是读取之后的xid文件
     private RandomAccessFile file;
     private FileChannel fc;
     //xid文件头的事务个数
-    private long xidCounter;
-    //锁，用于创建事务时修改事务数
+    private volatile long xidCounter;
+    //锁，用于创建事务和修改事务状态
     private Lock counterLock;
+    //块号 -> 这一块事务的状态
+    private final ConcurrentHashMap<Long, byte[]> chunks;
+    //已经修改但还没有写回文件的事务，由counterLock保护
+    private TreeSet<Long> pending;
+    //每次状态修改的序号，以及已经落盘的最大序号
+    private long changeSeq;
+    private volatile long durableSeq;
+    //同一时间只有一个线程写回，其他提交线程等在这把锁上，拿到锁时往往已经被上一批覆盖
+    private final Lock flushLock;
+    //状态数组的写入发生在这个volatile写之前，读状态前先读它，保证其他线程能看到最新的状态
+    private volatile long published;
 
     //通过传入的XID文件创建出TM，文件读写使用的是NIO的FileChannel
     TransactionManagerImpl(RandomAccessFile raf, FileChannel fc){
         this.file = raf;
         this.fc = fc;
         counterLock = new ReentrantLock();
+        flushLock = new ReentrantLock();
+        chunks = new ConcurrentHashMap<>();
+        pending = new TreeSet<>();
         checkXIDCounter();
+        //把热窗口预先读进内存
+        long last = xidCounter >> CHUNK_SHIFT;
+        for(long c = Math.max(0, last - HOT_CHUNKS + 1); c <= last; c++) {
+            getChunk(c);
+        }
     }
     //检验读取的XID文件是否合法
     private void checkXIDCounter() {
-        //方式就是比较文件的理论长度和实际长度
+        this.xidCounter = readXIDCounter(fc);
+    }
+
+    /**
+     * 读出XID文件中的事务数。文件头和状态不是原子写入的，崩溃后两者可能不一致：
+     * 文件头之后还有非0的状态，说明这些事务已经开始（甚至已经提交）但文件头没来得及写回，事务数以最后一个非0状态为准；
+     * 文件比文件头记录的短，缺少的事务状态读出来是0即active；
+     * 文件末尾全是0的部分可能是内存映射预先扩展出来的，不算作已经开始的事务。
+     */
+    static long readXIDCounter(FileChannel fc) {
         long fileLen = 0;
         try {
-            fileLen = file.length();
+            fileLen = fc.size();
         } catch (IOException ioException){
             //文件读取失败，直接强制停机
             Panic.panic(Error.BadXIDFileException);
@@ -53,24 +99,45 @@ public class TransactionManagerImpl implements TransactionManager {
             Panic.panic(Error.BadXIDFileException);
         }
         //把xid的文件头的事务总数读取进字节缓冲
-        //首先分配一个等于文件头大小的字节缓冲区
         ByteBuffer buf = ByteBuffer.allocate(XID_HEADER_LENGTH);
+        readFully(fc, buf, 0);
+        long counter = Parser.parseLong(buf.array());
+        if(counter < 0) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        //从文件末尾向前找最后一个非0的状态，找到文件头记录的位置为止
+        long headerEnd = XID_HEADER_LENGTH + counter * XID_FIELD_SIZE;
+        long end = fileLen;
+        ByteBuffer block = ByteBuffer.allocate(1 << 16);
+        while (end > headerEnd) {
+            long start = Math.max(headerEnd, end - block.capacity());
+            block.clear();
+            block.limit((int)(end - start));
+            readFully(fc, block, start);
+            for(int i = block.limit() - 1; i >= 0; i--) {
+                if(block.get(i) != FIELD_TRAN_ACTIVE) {
+                    return (start + i + 1 - XID_HEADER_LENGTH) / XID_FIELD_SIZE;
+                }
+            }
+            end = start;
+        }
+        return counter;
+    }
+
+    //使用带位置的读，不修改也不依赖fc的position
+    private static void readFully(FileChannel fc, ByteBuffer buf, long pos) {
         try {
-            //Nio方式读取字节缓冲中的值
-            fc.position(0);
-            fc.read(buf);
+            while (buf.hasRemaining()) {
+                int n = fc.read(buf, pos);
+                if(n < 0) {
+                    Panic.panic(Error.BadXIDFileException);
+                }
+                pos += n;
+            }
         } catch (IOException ioException) {
             //IO读取失败，直接强制停机
             Panic.panic(ioException);
         }
-        //因为字节缓冲区中的值我们无法直接读出来，所以使用解析器解析成long类型
-        this.xidCounter = Parser.parseLong(buf.array());
-        //获取最后一个事务所在地址，+1是因为还有一个0号超级事务即XID文件默认最少有一个超级事务且要计算的地址是事务结束地址因为比较长度
-        long end = getXidPosition(this.xidCounter + 1);
-        //如果最后一个事务的地址即文件理论长度不等于文件实际长度那么就认为这个XID文件不合法，直接强制停机，并报XID文件错误
-        if(end != fileLen) {
-            Panic.panic(Error.BadXIDFileException);
-        }
     }
 
     // 根据事务xid取得其在xid文件中对应的位置
@@ -78,63 +145,179 @@ public class TransactionManagerImpl implements TransactionManager {
         return XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
     }
 
+    //获取事务状态所在的块，不在内存中则从文件加载
+    private byte[] getChunk(long chunkNo) {
+        byte[] chunk = chunks.get(chunkNo);
+        if(chunk != null) {
+            return chunk;
+        }
+        return chunks.computeIfAbsent(chunkNo, this::loadChunk);
+    }
+
+    //从XID文件读出一块事务的状态，超出文件长度的部分为0即active
+    private byte[] loadChunk(long chunkNo) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        //0号超级事务不在文件中
+        long first = Math.max(1, chunkNo << CHUNK_SHIFT);
+        int off = (int)(first & CHUNK_MASK);
+        ByteBuffer buf = ByteBuffer.wrap(chunk, off, CHUNK_SIZE - off);
+        try {
+            long pos = getXidPosition(first);
+            while (buf.hasRemaining()) {
+                int n = fc.read(buf, pos);
+                if(n < 0) {
+                    break;
+                }
+                pos += n;
+            }
+        } catch (IOException ioException) {
+            Panic.panic(ioException);
+        }
+        return chunk;
+    }
+
     // 开始一个事务，并返回这个新增事务的XID
     @Override
     public long begin() {
         //开始事务过程需要加锁，需要保证下面过程不能出现并发问题，否则事务服务就会出错
         counterLock.lock();
         try {
-            //计算当前事务XID
+            //计算当前事务XID，更改新建事务的状态为active，文件头随下一批写回
             long xid = xidCounter + 1;
-            //更改新建事务的状态为active
             updateXID(xid, FIELD_TRAN_ACTIVE);
-            //需要修改XID文件Header中的事务总数
-            incrXIDCounter();
             return xid;
         } finally {
             counterLock.unlock();
         }
     }
 
-    //将XID加一，并更新XID Header
-    private void incrXIDCounter() {
-        xidCounter++;
-        ByteBuffer buffer = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    //在内存中更新xid事务的状态为status，并记入待写集合，返回这次修改的序号，调用者需持有counterLock
+    private long updateXID(long xid, byte status) {
+        //崩溃前开始的事务可能没来得及写回文件头，恢复时回滚它们会越过当前的事务数，中间的事务都没有执行完，一律视为回滚
+        for(long x = xidCounter + 1; x < xid; x++) {
+            getChunk(x >> CHUNK_SHIFT)[(int)(x & CHUNK_MASK)] = FIELD_TRAN_ABORTED;
+            pending.add(x);
+        }
+        getChunk(xid >> CHUNK_SHIFT)[(int)(xid & CHUNK_MASK)] = status;
+        pending.add(xid);
+        if(xid > xidCounter) {
+            xidCounter = xid;
+        }
+        published = ++changeSeq;
+        return changeSeq;
+    }
+
+    // 提交XID事务，返回前状态已经落盘
+    @Override
+    public void commit(long xid) {
+        long seq;
+        counterLock.lock();
         try {
-            fc.position(0);
-            fc.write(buffer);
-            //向文件中写入数据之后要手动强制将数据刷入文件中，防止数据丢失
-            fc.force(false);
-        } catch (IOException ioException) {
-            Panic.panic(ioException);
+            seq = updateXID(xid, FIELD_TRAN_COMMITTED);
+        } finally {
+            counterLock.unlock();
         }
+        flush(seq);
     }
 
-    //更新xid事务的状态为status
-    private void updateXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        byte[] tmp = new byte[XID_FIELD_SIZE];
-        tmp[0] = status;
-        ByteBuffer buffer = ByteBuffer.wrap(tmp);
+    // 回滚XID事务，不需要等待落盘：状态丢失时事务仍是active，只要日志还在，恢复时会被重新回滚，回收日志前检查点会先flush
+    @Override
+    public void abort(long xid) {
+        counterLock.lock();
         try {
-            fc.position(offset);
-            fc.write(buffer);
+            updateXID(xid, FIELD_TRAN_ABORTED);
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    //把序号不超过seq的修改写回文件，同时在等待的线程由拿到锁的线程一起写回
+    private void flush(long seq) {
+        if(durableSeq >= seq) {
+            return;
+        }
+        flushLock.lock();
+        try {
+            if(durableSeq >= seq) {
+                return;
+            }
+            TreeSet<Long> batch;
+            long upTo;
+            long counter;
+            counterLock.lock();
+            try {
+                batch = pending;
+                pending = new TreeSet<>();
+                upTo = changeSeq;
+                counter = xidCounter;
+            } finally {
+                counterLock.unlock();
+            }
+            write(batch, counter);
+            durableSeq = upTo;
+            evictColdChunks(counter);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    //把一批事务的状态写回文件，相邻的事务合并成一次写，最后写文件头并force一次
+    private void write(TreeSet<Long> batch, long counter) {
+        try {
+            Iterator<Long> it = batch.iterator();
+            Long next = it.hasNext() ? it.next() : null;
+            while (next != null) {
+                //一段连续且在同一块中的事务
+                long start = next;
+                long end = start;
+                next = null;
+                while (it.hasNext()) {
+                    long x = it.next();
+                    if(x == end + 1 && (x >> CHUNK_SHIFT) == (start >> CHUNK_SHIFT)) {
+                        end = x;
+                    } else {
+                        next = x;
+                        break;
+                    }
+                }
+                byte[] chunk = getChunk(start >> CHUNK_SHIFT);
+                ByteBuffer buf = ByteBuffer.wrap(chunk, (int)(start & CHUNK_MASK), (int)(end - start + 1));
+                long pos = getXidPosition(start);
+                while (buf.hasRemaining()) {
+                    pos += fc.write(buf, pos);
+                }
+            }
+            ByteBuffer header = ByteBuffer.wrap(Parser.long2Byte(counter));
+            while (header.hasRemaining()) {
+                fc.write(header, header.position());
+            }
+            //向文件中写入数据之后要手动强制将数据刷入文件中，防止数据丢失
             fc.force(false);
         } catch (IOException ioException) {
             Panic.panic(ioException);
         }
     }
 
-    // 提交XID事务
-    @Override
-    public void commit(long xid) {
-        updateXID(xid, FIELD_TRAN_COMMITTED);
-    }
-
-    // 回滚XID事务
-    @Override
-    public void abort(long xid) {
-        updateXID(xid, FIELD_TRAN_ABORTED);
+    //丢弃热窗口以外多余的冷块，有未写回修改的块不能丢弃，调用者需持有flushLock
+    private void evictColdChunks(long counter) {
+        long hotStart = (counter >> CHUNK_SHIFT) - HOT_CHUNKS + 1;
+        if(chunks.size() <= HOT_CHUNKS + MAX_COLD_CHUNKS) {
+            return;
+        }
+        counterLock.lock();
+        try {
+            for(Map.Entry<Long, byte[]> entry : chunks.entrySet()) {
+                long c = entry.getKey();
+                if(c >= hotStart) {
+                    continue;
+                }
+                if(pending.subSet(c << CHUNK_SHIFT, (c + 1) << CHUNK_SHIFT).isEmpty()) {
+                    chunks.remove(c, entry.getValue());
+                }
+            }
+        } finally {
+            counterLock.unlock();
+        }
     }
 
     @Override
@@ -155,23 +338,33 @@ public class TransactionManagerImpl implements TransactionManager {
         return checkXID(xid, FIELD_TRAN_ABORTED);
     }
 
-    // 检测XID事务是否处于status状态
+    // 检测XID事务是否处于status状态，直接读内存中的状态数组
     private boolean checkXID(long xid, byte status) {
-        //根据要比较的事务id去XID文件中取出对应事务的状态
-        long offset = getXidPosition(xid);
-        ByteBuffer buffer = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
+        //先读一次published（它不会小于0），和updateXID中对它的写配对
+        if(published < 0 || xid > xidCounter) {
+            //还没有开始过的事务（比如崩溃前没写回文件头的事务）视为active
+            return status == FIELD_TRAN_ACTIVE;
+        }
+        return getChunk(xid >> CHUNK_SHIFT)[(int)(xid & CHUNK_MASK)] == status;
+    }
+
+    //写回到目前为止的所有修改
+    @Override
+    public void flush() {
+        long seq;
+        counterLock.lock();
         try {
-            fc.position(offset);
-            fc.read(buffer);
-        } catch (IOException ioException) {
-            Panic.panic(ioException);
+            seq = changeSeq;
+        } finally {
+            counterLock.unlock();
         }
-        return buffer.array()[0] == status;
+        flush(seq);
     }
 
-    //TM关闭时断开与XID文件的IO连接
+    //TM关闭时写回所有修改，然后断开与XID文件的IO连接
     @Override
     public void close() {
+        flush();
         try {
             file.close();
             fc.close();
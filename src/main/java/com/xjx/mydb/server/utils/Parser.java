@@ -23,6 +23,15 @@ public class Parser {
         return buffer.getLong();
     }
 
+    //从buf的offset处直接解析出一个long，不拷贝也不分配内存，用于频繁读取的索引节点
+    public static long parseLong(byte[] buf, int offset) {
+        long value = 0;
+        for(int i = 0; i < 8; i++) {
+            value = (value << 8) | (buf[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
     public static byte[] int2Byte(int value) {
         return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
     }
@@ -41,6 +50,11 @@ public class Parser {
         return buffer.getShort();
     }
 
+    //从buf的offset处直接解析出一个short
+    public static short parseShort(byte[] buf, int offset) {
+        return (short) (((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF));
+    }
+
     public static ParseStringRes parseString(byte[] raw) {
         int length = parseInt(Arrays.copyOf(raw, 4));
         String str = new String(Arrays.copyOfRange(raw, 4, 4 + length));
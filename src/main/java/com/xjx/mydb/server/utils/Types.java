@@ -5,9 +5,11 @@ package com.xjx.mydb.server.utils;
  * @Create: 2023/1/8 - 17:26
  */
 public class Types {
-    public static long addressToUid(int pgno, short offset) {
+    //uid由页号和数据项在页内的槽号组成
+    public static long addressToUid(int pgno, short slot) {
         long u0 = (long)pgno;
-        long u1 = (long)offset;
+        //槽号按无符号数处理，不能符号扩展到页号上
+        long u1 = (long)Short.toUnsignedInt(slot);
         return u0 << 32 | u1;
     }
 }
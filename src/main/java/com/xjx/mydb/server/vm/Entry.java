@@ -33,8 +33,12 @@ public class Entry {
     }
 
     //根据一个uid和一个版本管理器加载一条记录，记录存在数据项中，所以最后会调用dm从缓存中取数据项
+    //数据项已经无效（被撤销或者被清理回收）时返回null
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         DataItem di = ((VersionManagerImpl)vm).dm.read(uid);
+        if(di == null) {
+            return null;
+        }
         return newEntry(vm, di, uid);
     }
 
@@ -10,7 +10,15 @@ import com.xjx.mydb.server.tm.TransactionManager;
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    //插入一条属于owner的记录，DM把同一个所有者的记录放在它自己的页面中
+    long insert(long xid, long owner, byte[] data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
+    //uid对应的版本已经对所有事务都不可见时返回它的数据（清理时用来删除索引项），否则返回null
+    byte[] readDead(long uid) throws Exception;
+    //回收一个readDead确认过的版本，它的数据项被标记为无效，空间交还给DM
+    void purge(long uid) throws Exception;
+    //uid对应的版本是否已经提交、没有被删除，并且对所有现在和以后的事务都可见（覆盖索引用它设置可见性提示）
+    boolean isAllVisible(long uid) throws Exception;
 
     long begin(int level);
     void commit(long xid) throws Exception;
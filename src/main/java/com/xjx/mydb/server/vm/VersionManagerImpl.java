@@ -72,6 +72,11 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     //插入一条新记录
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, 0, data);
+    }
+
+    @Override
+    public long insert(long xid, long owner, byte[] data) throws Exception {
         lock.lock();
         //判断一下当前事务是否出过错，有错则不执行
         Transaction t = activeTransaction.get(xid);
@@ -81,7 +86,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
         //将插入数据包装成记录，然后插入到对应的数据项中
         byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid, raw);
+        return dm.insert(xid, owner, raw);
     }
 
     //根据uid和xid删除这个的记录,要判断当前这个记录对事务是否可见
@@ -146,6 +151,85 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    /**
+     * 判断一个版本是否已经死亡：创建它的事务回滚了，或者删除它的事务已经提交并且早于所有活跃事务的快照。
+     * 必须先确认删除事务已经提交再计算快照边界，之后开始的事务的快照中不会有这个删除事务
+     */
+    @Override
+    public byte[] readDead(long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch (Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            long xmin = entry.getXmin();
+            long xmax = entry.getXmax();
+            if(tm.isAborted(xmin) || (xmax != 0 && tm.isCommitted(xmax) && xmax < oldestSnapshot())) {
+                return entry.data();
+            }
+            return null;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 创建版本的事务已经提交并且早于所有活跃事务的快照，版本又没有被删除（包括还没提交的删除），
+     * 那么现在所有的事务都能看到它，之后开始的事务也一样，直到它被删除
+     */
+    @Override
+    public boolean isAllVisible(long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch (Exception e) {
+            if(e == Error.NullEntryException) {
+                return false;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            long xmin = entry.getXmin();
+            return entry.getXmax() == 0 && tm.isCommitted(xmin) && xmin < oldestSnapshot();
+        } finally {
+            entry.release();
+        }
+    }
+
+    //所有活跃的可重复读事务能看到的最早的事务：事务自身以及它快照中的事务，读已提交事务看不到已提交的删除
+    private long oldestSnapshot() {
+        lock.lock();
+        try {
+            long oldest = Long.MAX_VALUE;
+            for(Transaction t : activeTransaction.values()) {
+                if(t.level == 0) {
+                    continue;
+                }
+                oldest = Math.min(oldest, t.xid);
+                for(long x : t.snaphot.keySet()) {
+                    if(x != TransactionManagerImpl.SUPER_XID) {
+                        oldest = Math.min(oldest, x);
+                    }
+                }
+            }
+            return oldest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void purge(long uid) throws Exception {
+        dm.free(uid);
+    }
+
     //开启一个新事务
     @Override
     public long begin(int level) {
@@ -1,5 +1,6 @@
 package com.xjx.mydb.server;
 
+import com.xjx.mydb.common.Error;
 import com.xjx.mydb.server.dm.DataManager;
 import com.xjx.mydb.server.tbm.TableManager;
 import com.xjx.mydb.server.tm.TransactionManager;
@@ -44,6 +45,8 @@ public class ExecutorTest {
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
         new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".own").delete();
         new File(path + ".xid").delete();
     }
 
@@ -76,6 +79,228 @@ public class ExecutorTest {
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
         new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".own").delete();
+        new File(path + ".xid").delete();
+    }
+
+    //更新产生的旧版本在可重复读事务结束前不能清理，之后清理掉它们和它们的索引项
+    @Test
+    public void testVacuum() throws Exception {
+        String path = "/tmp/mydb_vacuum";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table vac id int32, v int64 (index id v)".getBytes());
+        int rows = 100;
+        for(int i = 0; i < rows; i++) {
+            exe.execute(("insert into vac values " + i + " " + i).getBytes());
+        }
+
+        Executor reader = new Executor(tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        assert "update100".equals(new String(exe.execute("update vac set v = 7 where id < 1000".getBytes())));
+        //旧版本对可重复读事务仍然可见
+        assert tbm.vacuum() == 0;
+        assert "[5,5]\n".equals(new String(reader.execute("select * from vac where id = 5".getBytes())));
+        reader.execute("commit".getBytes());
+
+        assert tbm.vacuum() == rows;
+        assert tbm.vacuum() == 0;
+        assert "[5,7]\n".equals(new String(exe.execute("select * from vac where id = 5".getBytes())));
+        assert "".equals(new String(exe.execute("select * from vac where v = 5".getBytes())));
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".own").delete();
+        new File(path + ".xid").delete();
+    }
+
+    //字符串字段的索引按原值比较，可以做范围查询
+    @Test
+    public void testStringIndex() throws Exception {
+        String path = "/tmp/mydb_string";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table person name string, age int32 (index name age)".getBytes());
+        String[] names = {"bob", "alice", "carol", "dave", "al", "eve"};
+        for(int i = 0; i < names.length; i++) {
+            //负数需要加引号
+            exe.execute(("insert into person values " + names[i] + " '" + (i - 2) + "'").getBytes());
+        }
+
+        assert "[carol,0]\n".equals(new String(exe.execute("select * from person where name = carol".getBytes())));
+        assert "[al,2]\n[alice,-1]\n".equals(new String(exe.execute("select * from person where name < b".getBytes())));
+        assert "[alice,-1]\n[bob,-2]\n[carol,0]\n".equals(new String(exe.execute("select * from person where name > al and name < d".getBytes())));
+        assert "[dave,1]\n[eve,3]\n".equals(new String(exe.execute("select * from person where name > carol".getBytes())));
+        //数值索引包含负数
+        assert "[bob,-2]\n[alice,-1]\n".equals(new String(exe.execute("select * from person where age < 0".getBytes())));
+        assert "update1".equals(new String(exe.execute("update person set age = 9 where name = eve".getBytes())));
+        assert "[eve,9]\n".equals(new String(exe.execute("select * from person where age > 5".getBytes())));
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".own").delete();
+        new File(path + ".xid").delete();
+    }
+
+    //覆盖索引携带了查询需要的字段，清理线程设置可见性提示后直接从索引中取值，更新和删除之后提示失效，仍然读记录判断可见性
+    @Test
+    public void testCoveringIndex() throws Exception {
+        String path = "/tmp/mydb_covering";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table person name string, age int32, city string (index name(age city) age)".getBytes());
+        exe.execute("insert into person values bob 30 paris".getBytes());
+        exe.execute("insert into person values alice 25 rome".getBytes());
+        exe.execute("insert into person values carol 41 oslo".getBytes());
+
+        String all = "[alice,rome]\n[bob,paris]\n[carol,oslo]\n";
+        assert all.equals(new String(exe.execute("select name, city from person".getBytes())));
+        assert tbm.vacuum() == 0;
+        //设置了可见性提示之后结果不变
+        assert all.equals(new String(exe.execute("select name, city from person".getBytes())));
+        assert "[30,bob]\n".equals(new String(exe.execute("select age, name from person where name = bob".getBytes())));
+        //没有被携带的字段通过索引找到记录再读出
+        assert "[bob,30,paris]\n".equals(new String(exe.execute("select * from person where age = 30".getBytes())));
+
+        //更新后旧版本的提示被清除，读已提交事务看到新值
+        Executor reader = new Executor(tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        assert "update1".equals(new String(exe.execute("update person set city = lyon where name = bob".getBytes())));
+        assert "[bob,lyon]\n".equals(new String(exe.execute("select name, city from person where name = bob".getBytes())));
+        //之前开始的可重复读事务仍然看到旧值
+        assert "[bob,paris]\n".equals(new String(reader.execute("select name, city from person where name = bob".getBytes())));
+
+        //没有提交的删除对其他事务不可见，删除事务自己已经看不到
+        Executor writer = new Executor(tbm);
+        writer.execute("begin".getBytes());
+        assert "delete1".equals(new String(writer.execute("delete from person where name = carol".getBytes())));
+        assert "".equals(new String(writer.execute("select name from person where name = carol".getBytes())));
+        assert "[carol]\n".equals(new String(exe.execute("select name from person where name = carol".getBytes())));
+        writer.execute("commit".getBytes());
+        assert "".equals(new String(exe.execute("select name from person where name = carol".getBytes())));
+        reader.execute("commit".getBytes());
+
+        assert tbm.vacuum() == 2;
+        assert "[alice,rome]\n[bob,lyon]\n".equals(new String(exe.execute("select name, city from person".getBytes())));
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".own").delete();
+        new File(path + ".xid").delete();
+    }
+
+    //索引键超过索引允许的长度时在写入记录之前拒绝语句，事务提交后不会留下索引中找不到的记录
+    @Test
+    public void testKeyTooLarge() throws Exception {
+        String path = "/tmp/mydb_bigkey";
+        TransactionManager tm = TransactionManager.create(path);
+        //8KB的页面上默认的索引节点允许的键不到500字节
+        DataManager dm = DataManager.create(path, mem, tm, 1 << 13);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table doc title string, n int32 (index title)".getBytes());
+        StringBuilder big = new StringBuilder();
+        for(int i = 0; i < 600; i++) {
+            big.append('a');
+        }
+
+        exe.execute("begin".getBytes());
+        exe.execute("insert into doc values short 1".getBytes());
+        Exception err = null;
+        try {
+            exe.execute(("insert into doc values " + big + " 2").getBytes());
+        } catch (Exception e) {
+            err = e;
+        }
+        assert err == Error.KeyTooLargeException;
+        err = null;
+        try {
+            exe.execute(("update doc set title = " + big + " where title = short").getBytes());
+        } catch (Exception e) {
+            err = e;
+        }
+        assert err == Error.KeyTooLargeException;
+        exe.execute("commit".getBytes());
+
+        //按表扫描也只有一条记录，并且能通过索引找到
+        assert "[short,1]\n".equals(new String(exe.execute("select * from doc where n > 0".getBytes())));
+        assert "[short,1]\n".equals(new String(exe.execute("select * from doc where title = short".getBytes())));
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".own").delete();
+        new File(path + ".xid").delete();
+    }
+
+    //没有可用索引的查询按页面顺序扫描整张表，逐行检查where条件，没有索引的表也能更新、删除和清理
+    @Test
+    public void testHeapScan() throws Exception {
+        String path = "/tmp/mydb_heap";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table log msg string, level int32".getBytes());
+        exe.execute("create table person name string, age int32, city string (index age)".getBytes());
+        int rows = 300;
+        for(int i = 0; i < rows; i++) {
+            exe.execute(("insert into log values m" + i + " " + (i % 5)).getBytes());
+            exe.execute(("insert into person values p" + i + " " + i + " c" + (i % 7)).getBytes());
+        }
+
+        //两张表的记录在各自的页面中，扫描一张表不会读到另一张表的记录
+        assert new String(exe.execute("select * from log".getBytes())).split("\n").length == rows;
+        assert "[m7,2]\n".equals(new String(exe.execute("select * from log where msg = m7".getBytes())));
+        assert new String(exe.execute("select msg from log where level > 3".getBytes())).split("\n").length == rows / 5;
+        assert "[p3]\n[p10]\n".equals(new String(exe.execute("select name from person where city = c3 and age < 15".getBytes())));
+        //or连接了两个字段时不能用索引
+        assert "[p1]\n[p2]\n".equals(new String(exe.execute("select name from person where age = 1 or name = p2".getBytes())));
+        //第一个字段有索引时用索引查找，再用另一个字段过滤
+        assert new String(exe.execute("select name from person where age > 10 and city = c0".getBytes())).startsWith("[p14]\n[p21]\n");
+
+        assert ("update" + rows / 5).equals(new String(exe.execute("update log set msg = high where level = 4".getBytes())));
+        assert new String(exe.execute("select * from log where msg = high".getBytes())).split("\n").length == rows / 5;
+        assert ("delete" + rows / 5).equals(new String(exe.execute("delete from log where level = 0".getBytes())));
+        assert "".equals(new String(exe.execute("select * from log where level = 0".getBytes())));
+        //更新和删除留下的旧版本通过扫描找到并回收
+        assert tbm.vacuum() == rows / 5 * 2;
+        assert new String(exe.execute("select * from log".getBytes())).split("\n").length == rows / 5 * 4;
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".own").delete();
         new File(path + ".xid").delete();
     }
 }
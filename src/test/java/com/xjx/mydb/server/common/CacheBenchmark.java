@@ -0,0 +1,124 @@
+package com.xjx.mydb.server.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/2 - 10:12
+ * 多线程下缓存命中/未命中的微基准，对比新的AbstractCache与旧的SynchronizedCache
+ * 热key在开始前被固定在缓存中（命中），冷key每次都要从"数据源"加载（未命中），加载时模拟一次磁盘读延迟
+ * 运行：mvn test-compile 之后用 test classpath 执行本类的 main 方法
+ */
+public class CacheBenchmark {
+    //热key个数，这些key被预先引用一次，保证常驻缓存
+    private static final int HOT_KEYS = 64;
+    //冷key的范围
+    private static final int COLD_KEYS = 1 << 16;
+    //一次未命中时模拟的加载延迟
+    private static final long LOAD_NANOS = 20_000;
+    private static final int OPS_PER_THREAD = 20_000;
+
+    interface BenchCache {
+        Long get(long key) throws Exception;
+        void release(long key);
+    }
+
+    static class NewCache extends AbstractCache<Long> implements BenchCache {
+        NewCache() {
+            super(0);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            LockSupport.parkNanos(LOAD_NANOS);
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {}
+
+        @Override
+        public Long get(long key) throws Exception {
+            return super.get(key);
+        }
+
+        @Override
+        public void release(long key) {
+            super.release(key);
+        }
+    }
+
+    static class OldCache extends SynchronizedCache<Long> implements BenchCache {
+        OldCache() {
+            super(0);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            LockSupport.parkNanos(LOAD_NANOS);
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {}
+
+        @Override
+        public Long get(long key) throws Exception {
+            return super.get(key);
+        }
+
+        @Override
+        public void release(long key) {
+            super.release(key);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] threads = {1, 4, 16, 64};
+        //命中率：90%的请求访问热key
+        int hitPercent = 90;
+        System.out.println("threads\told ops/s\tnew ops/s");
+        for(int t : threads) {
+            double oldOps = run(new OldCache(), t, hitPercent);
+            double newOps = run(new NewCache(), t, hitPercent);
+            System.out.printf("%d\t%.0f\t%.0f%n", t, oldOps, newOps);
+        }
+    }
+
+    private static double run(BenchCache cache, int noThreads, int hitPercent) throws Exception {
+        for(long k = 0; k < HOT_KEYS; k++) {
+            cache.get(k);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(noThreads);
+        for(int i = 0; i < noThreads; i++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    for(int op = 0; op < OPS_PER_THREAD; op++) {
+                        long key;
+                        if(random.nextInt(100) < hitPercent) {
+                            key = random.nextInt(HOT_KEYS);
+                        } else {
+                            key = HOT_KEYS + random.nextInt(COLD_KEYS);
+                        }
+                        cache.get(key);
+                        cache.release(key);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return (double) noThreads * OPS_PER_THREAD * 1e9 / elapsed;
+    }
+}
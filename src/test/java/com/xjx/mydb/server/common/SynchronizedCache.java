@@ -0,0 +1,88 @@
+package com.xjx.mydb.server.common;
+
+import com.xjx.mydb.common.Error;
+
+import java.util.HashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Author: Xjx
+ * @Create: 2022/12/22 - 14:29
+ * 旧版AbstractCache的副本：get()对整个缓存加synchronized，并用Thread.sleep(1)轮询正在加载的key
+ * 只用于CacheBenchmark中与新的缓存实现做对比
+ */
+public abstract class SynchronizedCache<T> {
+    private HashMap<Long, T> cache;
+    private HashMap<Long, Integer> references;
+    private HashMap<Long, Boolean> getting;
+    private int maxResource;
+    private int count = 0;
+    private Lock lock;
+
+    public SynchronizedCache(int maxResource) {
+        this.maxResource = maxResource;
+        cache = new HashMap<>();
+        references = new HashMap<>();
+        getting = new HashMap<>();
+        lock = new ReentrantLock();
+    }
+
+    protected synchronized T get(long key) throws Exception {
+        while (true) {
+            if(getting.containsKey(key)) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+            if(cache.containsKey(key)) {
+                T obj = cache.get(key);
+                references.put(key, references.get(key) + 1);
+                return obj;
+            }
+            if(maxResource > 0 && count == maxResource) {
+                throw Error.CacheFullException;
+            }
+            count++;
+            getting.put(key, true);
+            break;
+        }
+        T obj = null;
+        try {
+            obj = getForCache(key);
+        } catch (Exception e) {
+            count--;
+            getting.remove(key);
+            throw e;
+        }
+        getting.remove(key);
+        cache.put(key, obj);
+        references.put(key, 1);
+        return obj;
+    }
+
+    protected void release(long key) {
+        lock.lock();
+        try {
+            int ref = references.get(key) - 1;
+            if(ref == 0) {
+                T obj = cache.get(key);
+                releaseForCache(obj);
+                references.remove(key);
+                cache.remove(key);
+                count--;
+            } else {
+                references.put(key, ref);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected abstract T getForCache(long key) throws Exception;
+
+    protected abstract void releaseForCache(T obj);
+}
@@ -2,7 +2,9 @@ package com.xjx.mydb.server.dm;
 
 import com.xjx.mydb.server.common.SubArray;
 import com.xjx.mydb.server.dm.dataItem.DataItem;
+import com.xjx.mydb.server.dm.page.PageX;
 import com.xjx.mydb.server.dm.pageCache.PageCache;
+import com.xjx.mydb.server.dm.pageIndex.FreeSpaceMap;
 import com.xjx.mydb.server.tm.MockTransactionManager;
 import com.xjx.mydb.server.tm.TransactionManager;
 import com.xjx.mydb.server.utils.Panic;
@@ -13,8 +15,11 @@ import java.io.File;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -115,6 +120,8 @@ public class DataManagerTest {
 
         new File("/tmp/TESTDMSingle.db").delete();
         new File("/tmp/TESTDMSingle.log").delete();
+        new File("/tmp/TESTDMSingle.fsm").delete();
+        new File("/tmp/TESTDMSingle.own").delete();
     }
 
     @Test
@@ -134,6 +141,8 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
         new File("/tmp/TestDMMulti.db").delete();
         new File("/tmp/TestDMMulti.log").delete();
+        new File("/tmp/TestDMMulti.fsm").delete();
+        new File("/tmp/TestDMMulti.own").delete();
     }
 
     @Test
@@ -146,6 +155,10 @@ public class DataManagerTest {
         initUids();
         int workerNums = 10;
         for(int i = 0; i < 8; i ++) {
+            //从第二轮开始不关闭上一轮的dm直接重新打开，模拟崩溃
+            if(i > 0) {
+                ((DataManagerImpl) dm0).crash();
+            }
             dm0 = DataManager.open("/tmp/TestRecoverySimple", PageCache.PAGE_SIZE*10, tm0);
             CountDownLatch cdl = new CountDownLatch(workerNums);
             for(int k = 0; k < workerNums; k ++) {
@@ -158,6 +171,370 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
         new File("/tmp/TestRecoverySimple.db").delete();
         new File("/tmp/TestRecoverySimple.log").delete();
+        new File("/tmp/TestRecoverySimple.fsm").delete();
+        new File("/tmp/TestRecoverySimple.own").delete();
         new File("/tmp/TestRecoverySimple.xid").delete();
     }
+
+    @Test
+    public void testCheckpointRecovery() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestCheckpointRecovery");
+        DataManager dm0 = DataManager.create("/tmp/TestCheckpointRecovery", PageCache.PAGE_SIZE*30, tm0);
+        File logFile = new File("/tmp/TestCheckpointRecovery.log");
+
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 200; i++) {
+            long xid = tm0.begin();
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm0.insert(xid, data));
+            datas.add(data);
+            tm0.commit(xid);
+        }
+        //检查点时仍然活跃的事务，它的日志不能被回收
+        long active = tm0.begin();
+        long activeUid = dm0.insert(active, RandomUtil.randomBytes(60));
+        long before = logFile.length();
+        dm0.checkpoint();
+        assert logFile.length() < before;
+
+        //检查点之后的修改只存在于日志中
+        for(int i = 0; i < 50; i++) {
+            long xid = tm0.begin();
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm0.insert(xid, data));
+            datas.add(data);
+            tm0.commit(xid);
+        }
+        long xid = tm0.begin();
+        DataItem di = dm0.read(uids.get(0));
+        byte[] newData = RandomUtil.randomBytes(60);
+        di.before();
+        SubArray sa = di.data();
+        System.arraycopy(newData, 0, sa.raw, sa.start, 60);
+        di.after(xid);
+        di.release();
+        datas.set(0, newData);
+        tm0.commit(xid);
+
+        //不关闭dm0直接重新打开，模拟崩溃
+        ((DataManagerImpl) dm0).crash();
+        DataManager dm1 = DataManager.open("/tmp/TestCheckpointRecovery", PageCache.PAGE_SIZE*30, tm0);
+        for(int i = 0; i < uids.size(); i++) {
+            DataItem item = dm1.read(uids.get(i));
+            assert item != null;
+            SubArray s = item.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(s.raw, s.start, s.end));
+            item.release();
+        }
+        assert dm1.read(activeUid) == null;
+        assert tm0.isAborted(active);
+        dm1.close();
+        tm0.close();
+
+        new File("/tmp/TestCheckpointRecovery.db").delete();
+        logFile.delete();
+        new File("/tmp/TestCheckpointRecovery.fsm").delete();
+        new File("/tmp/TestCheckpointRecovery.own").delete();
+        new File("/tmp/TestCheckpointRecovery.xid").delete();
+    }
+
+    @Test
+    public void testPageSizes() throws Exception {
+        for(int pageSize : new int[]{PageCache.MIN_PAGE_SIZE, PageCache.MAX_PAGE_SIZE}) {
+            String path = "/tmp/TestPageSize" + pageSize;
+            TransactionManager tm0 = TransactionManager.create(path);
+            DataManager dm0 = DataManager.create(path, (long) pageSize * 10, tm0, pageSize);
+            assert dm0.getPageSize() == pageSize;
+            //数据大小覆盖从很小到接近一整页，64KB页面中的偏移量会超过32KB
+            int maxData = pageSize - 64;
+            List<Long> uids = new ArrayList<>();
+            List<byte[]> datas = new ArrayList<>();
+            for(int i = 0; i < 40; i++) {
+                long xid = tm0.begin();
+                byte[] data = RandomUtil.randomBytes(i % 4 == 0 ? maxData : random.nextInt(maxData / 3) + 1);
+                uids.add(dm0.insert(xid, data));
+                datas.add(data);
+                tm0.commit(xid);
+            }
+            boolean tooLarge = false;
+            try {
+                dm0.insert(TransactionManager.SUPER_XID, new byte[pageSize]);
+            } catch (Exception e) {
+                tooLarge = true;
+            }
+            assert tooLarge;
+
+            //崩溃后重新打开，页面大小从第一页中读出，恢复也按这个大小进行
+            ((DataManagerImpl) dm0).crash();
+            DataManager dm1 = DataManager.open(path, (long) pageSize * 10, tm0);
+            assert dm1.getPageSize() == pageSize;
+            for(int i = 0; i < uids.size(); i++) {
+                DataItem item = dm1.read(uids.get(i));
+                assert item != null;
+                SubArray s = item.data();
+                assert Arrays.equals(datas.get(i), Arrays.copyOfRange(s.raw, s.start, s.end));
+                item.release();
+            }
+            dm1.close();
+            tm0.close();
+
+            assert new File(path + ".db").length() % pageSize == 0;
+            new File(path + ".db").delete();
+            new File(path + ".log").delete();
+            new File(path + ".fsm").delete();
+            new File(path + ".own").delete();
+            new File(path + ".xid").delete();
+        }
+    }
+
+    @Test
+    public void testFreeSpaceMap() throws Exception {
+        String path = "/tmp/TestFreeSpaceMap";
+        int pageSize = PageCache.MIN_PAGE_SIZE;
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, (long) pageSize * 10, tm0, pageSize);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            long xid = tm0.begin();
+            byte[] data = RandomUtil.randomBytes(random.nextInt(pageSize / 2) + 1);
+            uids.add(dm0.insert(xid, data));
+            datas.add(data);
+            tm0.commit(xid);
+        }
+        dm0.close();
+
+        //地图记录了所有页面，重新打开后小数据应该放进已有页面的空闲空间，而不是新建页面
+        FreeSpaceMap fsm = FreeSpaceMap.open(path, pageSize);
+        int noPages = fsm.getNoPages();
+        assert noPages == (int) (new File(path + ".db").length() / pageSize);
+        //让地图记录的空闲空间比实际大，模拟崩溃前地图比数据页先写回
+        int fullPage = (int) (uids.get(0) >>> 32);
+        fsm.set(fullPage, PageX.maxFreeSpace(pageSize));
+        fsm.close();
+
+        DataManager dm1 = DataManager.open(path, (long) pageSize * 10, tm0);
+        for(int i = 0; i < 21; i++) {
+            long xid = tm0.begin();
+            //第一条数据会先选中地图记录有误的页面，确认页面放不下之后放进一个新页面，之后的小数据都能放进已有页面
+            byte[] data = RandomUtil.randomBytes(i == 0 ? pageSize / 2 : 8);
+            uids.add(dm1.insert(xid, data));
+            datas.add(data);
+            tm0.commit(xid);
+        }
+        for(int i = 0; i < uids.size(); i++) {
+            DataItem item = dm1.read(uids.get(i));
+            SubArray s = item.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(s.raw, s.start, s.end));
+            item.release();
+        }
+        assert ((DataManagerImpl) dm1).pc.getPageNumber() <= noPages + 1;
+        dm1.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".own").delete();
+        new File(path + ".xid").delete();
+    }
+
+    //崩溃时未提交事务插入的数据项在恢复时被撤销，之后的插入整理页面重用它们的空间，页面数不再增长
+    @Test
+    public void testCompaction() throws Exception {
+        String path = "/tmp/TestCompaction";
+        int pageSize = PageCache.MIN_PAGE_SIZE;
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, (long) pageSize * 20, tm0, pageSize);
+        List<Long> committed = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        List<Long> aborted = new ArrayList<>();
+        long xid = tm0.begin();
+        long active = tm0.begin();
+        for(int i = 0; i < 200; i++) {
+            byte[] data = RandomUtil.randomBytes(100);
+            if(i % 2 == 0) {
+                committed.add(dm0.insert(xid, data));
+                datas.add(data);
+            } else {
+                aborted.add(dm0.insert(active, data));
+            }
+        }
+        tm0.commit(xid);
+        int noPages = ((DataManagerImpl) dm0).pc.getPageNumber();
+        ((DataManagerImpl) dm0).crash();
+
+        DataManager dm1 = DataManager.open(path, (long) pageSize * 20, tm0);
+        xid = tm0.begin();
+        for(int i = 0; i < 100; i++) {
+            byte[] data = RandomUtil.randomBytes(100);
+            committed.add(dm1.insert(xid, data));
+            datas.add(data);
+        }
+        tm0.commit(xid);
+        assert ((DataManagerImpl) dm1).pc.getPageNumber() == noPages;
+        for(int i = 0; i < committed.size(); i++) {
+            DataItem item = dm1.read(committed.get(i));
+            SubArray s = item.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(s.raw, s.start, s.end));
+            item.release();
+        }
+        for(long uid : aborted) {
+            assert dm1.read(uid) == null;
+        }
+        dm1.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".own").delete();
+        new File(path + ".xid").delete();
+    }
+
+    //回收的数据项读不到，它们的空间交还给页面索引，之后的插入整理页面重用这些空间
+    @Test
+    public void testFree() throws Exception {
+        String path = "/tmp/TestFree";
+        int pageSize = PageCache.MIN_PAGE_SIZE;
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create(path, (long) pageSize * 20, tm0, pageSize);
+        List<Long> freed = new ArrayList<>();
+        for(int i = 0; i < 200; i++) {
+            freed.add(dm0.insert(0, RandomUtil.randomBytes(100)));
+        }
+        int noPages = ((DataManagerImpl) dm0).pc.getPageNumber();
+        for(long uid : freed) {
+            dm0.free(uid);
+        }
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 200; i++) {
+            byte[] data = RandomUtil.randomBytes(100);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        assert ((DataManagerImpl) dm0).pc.getPageNumber() == noPages;
+        for(long uid : freed) {
+            assert dm0.read(uid) == null;
+        }
+        for(int i = 0; i < uids.size(); i++) {
+            DataItem item = dm0.read(uids.get(i));
+            SubArray s = item.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(s.raw, s.start, s.end));
+            item.release();
+        }
+        dm0.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".own").delete();
+    }
+
+    private static Set<Long> scan(DataManager dm, long owner) throws Exception {
+        Set<Long> uids = new HashSet<>();
+        HeapCursor cursor = dm.scan(owner);
+        long last = 0;
+        while (cursor.next()) {
+            //按页号和槽号的顺序
+            assert cursor.getUid() > last;
+            last = cursor.getUid();
+            uids.add(last);
+        }
+        return uids;
+    }
+
+    //不同所有者的数据项放在各自的页面中，扫描只找到自己的有效数据项；重新打开后从地图加载的表的页面不会被公共数据使用
+    @Test
+    public void testOwnedPages() throws Exception {
+        String path = "/tmp/TestOwnedPages";
+        int pageSize = PageCache.MIN_PAGE_SIZE;
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create(path, (long) pageSize * 20, tm0, pageSize);
+        List<Set<Long>> owned = new ArrayList<>();
+        for(int owner = 0; owner < 3; owner++) {
+            owned.add(new HashSet<>());
+        }
+        for(int i = 0; i < 300; i++) {
+            owned.get(i % 3).add(dm0.insert(0, i % 3, RandomUtil.randomBytes(100)));
+        }
+        Iterator<Long> it = owned.get(1).iterator();
+        for(int i = 0; i < 50; i++) {
+            dm0.free(it.next());
+            it.remove();
+        }
+        for(int owner = 0; owner < 3; owner++) {
+            assert scan(dm0, owner).equals(owned.get(owner));
+        }
+        dm0.close();
+
+        DataManager dm1 = DataManager.open(path, (long) pageSize * 20, tm0);
+        for(int i = 0; i < 300; i++) {
+            owned.get(i % 3).add(dm1.insert(0, i % 3, RandomUtil.randomBytes(100)));
+        }
+        for(int owner = 0; owner < 3; owner++) {
+            assert scan(dm1, owner).equals(owned.get(owner));
+        }
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".own").delete();
+    }
+
+    //重新打开后表的插入先用回表原来的页面，崩溃后检查点之后新建的表页面也能从日志中找回所有者
+    @Test
+    public void testOwnedPagesReuseAfterReopen() throws Exception {
+        String path = "/tmp/TestOwnedReuse";
+        int pageSize = PageCache.MIN_PAGE_SIZE;
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, (long) pageSize * 20, tm0, pageSize);
+        List<Long> freed = new ArrayList<>();
+        for(int i = 0; i < 200; i++) {
+            freed.add(dm0.insert(TransactionManager.SUPER_XID, 1, RandomUtil.randomBytes(100)));
+        }
+        Set<Integer> pages = new HashSet<>();
+        for(long uid : freed) {
+            pages.add((int) (uid >>> 32));
+        }
+        for(long uid : freed) {
+            dm0.free(uid);
+        }
+        int noPages = ((DataManagerImpl) dm0).pc.getPageNumber();
+        dm0.close();
+
+        DataManager dm1 = DataManager.open(path, (long) pageSize * 20, tm0);
+        Set<Long> owned = new HashSet<>();
+        for(int i = 0; i < 200; i++) {
+            long uid = dm1.insert(TransactionManager.SUPER_XID, 1, RandomUtil.randomBytes(100));
+            assert pages.contains((int) (uid >>> 32));
+            owned.add(uid);
+        }
+        assert ((DataManagerImpl) dm1).pc.getPageNumber() == noPages;
+        //公共数据不会用表的页面
+        for(int i = 0; i < 50; i++) {
+            assert !pages.contains((int) (dm1.insert(TransactionManager.SUPER_XID, RandomUtil.randomBytes(100)) >>> 32));
+        }
+        Set<Long> other = new HashSet<>();
+        for(int i = 0; i < 100; i++) {
+            other.add(dm1.insert(TransactionManager.SUPER_XID, 2, RandomUtil.randomBytes(100)));
+        }
+
+        //不关闭dm1直接重新打开，模拟崩溃
+        ((DataManagerImpl) dm1).crash();
+        DataManager dm2 = DataManager.open(path, (long) pageSize * 20, tm0);
+        assert scan(dm2, 1).equals(owned);
+        assert scan(dm2, 2).equals(other);
+        dm2.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".own").delete();
+        new File(path + ".xid").delete();
+    }
 }
@@ -0,0 +1,90 @@
+package com.xjx.mydb.server.dm;
+
+import com.xjx.mydb.server.dm.logger.LoggerImpl;
+import com.xjx.mydb.server.dm.pageCache.PageCacheImpl;
+import com.xjx.mydb.server.dm.pageIndex.FreeSpaceMap;
+import com.xjx.mydb.server.dm.pageIndex.OwnerMap;
+import com.xjx.mydb.server.tm.MockTransactionManager;
+import com.xjx.mydb.server.tm.TransactionManager;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/15 - 09:40
+ * 多线程插入的基准：每种线程数都在一个新建的数据库上让每个线程各插入一批数据，统计DataManager.insert的吞吐量
+ * 以及相对单线程的加速比，用来观察插入路径上（页面索引、页面缓存、日志）的并发瓶颈
+ * 参数：每个线程插入的条数，默认20000；之后是要测试的线程数，默认1、2、4...直到CPU数的两倍
+ * 运行：mvn test-compile 之后用 test classpath 执行本类的 main 方法
+ */
+public class InsertBenchmark {
+    private static final String PATH = "/tmp/mydb_insert_bench";
+    private static final long MEM = 1L << 28;
+    private static final int DATA_SIZE = 100;
+
+    public static void main(String[] args) throws Exception {
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int[] threads;
+        if(args.length > 1) {
+            threads = new int[args.length - 1];
+            for(int i = 1; i < args.length; i++) {
+                threads[i - 1] = Integer.parseInt(args[i]);
+            }
+        } else {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            int n = 32 - Integer.numberOfLeadingZeros(cpus * 2);
+            threads = new int[n];
+            for(int i = 0; i < n; i++) {
+                threads[i] = 1 << i;
+            }
+        }
+
+        double base = 0;
+        for(int noThreads : threads) {
+            double opsPerSec = run(noThreads, perThread);
+            if(base == 0) {
+                base = opsPerSec / noThreads;
+            }
+            System.out.printf("threads=%-3d inserts/s=%-10.0f speedup=%.2f%n",
+                    noThreads, opsPerSec, opsPerSec / base);
+        }
+    }
+
+    private static double run(int noThreads, int perThread) throws Exception {
+        clean();
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create(PATH, MEM, tm);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(noThreads);
+        for(int t = 0; t < noThreads; t++) {
+            new Thread(() -> {
+                byte[] data = new byte[DATA_SIZE];
+                try {
+                    start.await();
+                    for(int i = 0; i < perThread; i++) {
+                        dm.insert(TransactionManager.SUPER_XID, data);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        dm.close();
+        clean();
+        return (double) noThreads * perThread / (elapsed / 1e9);
+    }
+
+    private static void clean() {
+        new File(PATH + PageCacheImpl.DB_SUFFIX).delete();
+        new File(PATH + LoggerImpl.LOG_SUFFIX).delete();
+        new File(PATH + FreeSpaceMap.FSM_SUFFIX).delete();
+        new File(PATH + OwnerMap.OWNER_SUFFIX).delete();
+    }
+}
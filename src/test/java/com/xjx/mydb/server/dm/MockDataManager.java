@@ -3,6 +3,7 @@ package com.xjx.mydb.server.dm;
 import com.xjx.mydb.server.common.SubArray;
 import com.xjx.mydb.server.dm.dataItem.DataItem;
 import com.xjx.mydb.server.dm.dataItem.MockDataItem;
+import com.xjx.mydb.server.dm.pageCache.PageCache;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -54,6 +55,35 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    //测试用的DM不区分页面，所有者被忽略
+    @Override
+    public long insert(long xid, long owner, byte[] data) throws Exception {
+        return insert(xid, data);
+    }
+
+    @Override
+    public HeapCursor scan(long owner) throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void free(long uid) throws Exception {
+        lock.lock();
+        try {
+            cache.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void close() {}
+
+    @Override
+    public int getPageSize() {
+        return PageCache.PAGE_SIZE;
+    }
+
+    @Override
+    public void checkpoint() {}
 }
@@ -0,0 +1,96 @@
+package com.xjx.mydb.server.dm;
+
+import com.xjx.mydb.server.dm.dataItem.DataItem;
+import com.xjx.mydb.server.dm.logger.Logger;
+import com.xjx.mydb.server.dm.logger.LoggerImpl;
+import com.xjx.mydb.server.dm.page.PageOne;
+import com.xjx.mydb.server.dm.page.PageX;
+import com.xjx.mydb.server.dm.pageCache.PageCache;
+import com.xjx.mydb.server.dm.pageCache.PageCacheImpl;
+import com.xjx.mydb.server.dm.pageIndex.FreeSpaceMap;
+import com.xjx.mydb.server.dm.pageIndex.OwnerMap;
+import com.xjx.mydb.server.tm.TransactionManager;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/8 - 16:12
+ * 崩溃恢复的基准：直接构造一个没有正常关闭的数据库，日志里是大量已提交的插入日志和少量未完成事务的日志，
+ * 然后统计DataManager.open()（即恢复）所用的时间
+ * 参数：日志大小（MB），默认2048；数据页数，默认2048
+ * 运行：mvn test-compile 之后用 test classpath 执行本类的 main 方法
+ */
+public class RecoveryBenchmark {
+    private static final String PATH = "/tmp/mydb_recovery_bench";
+    private static final long MEM = (long) PageCache.PAGE_SIZE * 4096;
+    private static final int DATA_SIZE = 100;
+    //每追加这么多条日志等待一次落盘，避免未落盘的日志在内存里堆积
+    private static final int FLUSH_EVERY = 4096;
+
+    public static void main(String[] args) throws Exception {
+        long logMB = args.length > 0 ? Long.parseLong(args[0]) : 2048;
+        int noPages = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+        clean();
+
+        long begin = System.nanoTime();
+        TransactionManager tm = build(logMB << 20, noPages);
+        long logSize = new File(PATH + LoggerImpl.LOG_SUFFIX).length();
+        System.out.printf("log generated: %.1f MB in %.1f s%n",
+                logSize / 1048576.0, (System.nanoTime() - begin) / 1e9);
+
+        begin = System.nanoTime();
+        DataManager dm = DataManager.open(PATH, MEM, tm);
+        long elapsed = System.nanoTime() - begin;
+        System.out.printf("time-to-open: %.2f s (%.1f MB/s, %d workers)%n", elapsed / 1e9,
+                logSize / 1048576.0 / (elapsed / 1e9), Runtime.getRuntime().availableProcessors());
+
+        dm.close();
+        tm.close();
+        clean();
+    }
+
+    //构造一个崩溃后的数据库：第一页没有写入正常关闭的校验字节，日志中的修改都还没有写回数据页
+    private static TransactionManager build(long logSize, int noPages) {
+        PageCache pc = PageCache.create(PATH, MEM);
+        pc.newPage(PageOne.InitRaw(PageCache.PAGE_SIZE));
+        for(int i = 0; i < noPages; i++) {
+            pc.newPage(PageX.initRaw(PageCache.PAGE_SIZE));
+        }
+        pc.close();
+
+        TransactionManager tm = TransactionManager.create(PATH);
+        long activeXid = tm.begin();
+        Logger lg = Logger.create(PATH);
+        Random random = new Random(42);
+        byte[] raw = DataItem.wrapDataItemRaw(new byte[DATA_SIZE]);
+        //每个数据项还要占用一个4字节的槽，一页最多能放下这么多数据项
+        int slotsPerPage = PageX.maxFreeSpace(PageCache.PAGE_SIZE) / (raw.length + 4);
+        long written = 0;
+        long lsn = 0;
+        for(long i = 0; written < logSize; i++) {
+            //每1000条中有一条属于未提交的事务，恢复时需要撤销
+            long xid = i % 1000 == 0 ? activeXid : TransactionManager.SUPER_XID;
+            int pgno = 2 + random.nextInt(noPages);
+            short slot = (short) random.nextInt(slotsPerPage);
+            byte[] log = Recover.insertLog(xid, pgno, slot, raw);
+            lsn = lg.append(log);
+            written += log.length;
+            if(i % FLUSH_EVERY == 0) {
+                lg.flush(lsn);
+            }
+        }
+        lg.flush(lsn);
+        lg.close();
+        return tm;
+    }
+
+    private static void clean() {
+        new File(PATH + PageCacheImpl.DB_SUFFIX).delete();
+        new File(PATH + LoggerImpl.LOG_SUFFIX).delete();
+        new File(PATH + FreeSpaceMap.FSM_SUFFIX).delete();
+        new File(PATH + OwnerMap.OWNER_SUFFIX).delete();
+        new File(PATH + TransactionManager.XID_SUFFIX).delete();
+    }
+}
@@ -75,6 +75,17 @@ public class MockDataItem implements DataItem {
         rLock.unlock();
     }
 
+    //不支持乐观读，读者总是加读锁
+    @Override
+    public long tryOptimisticRead() {
+        return 0;
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return false;
+    }
+
     @Override
     public Page page() {
         return null;
@@ -0,0 +1,56 @@
+package com.xjx.mydb.server.dm.logger;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/4 - 15:26
+ * 日志提交吞吐的基准：并发线程数逐渐增加，每个线程不停地调用log()等待自己的日志落盘
+ * maxBatch=1时每条日志单独force一次，相当于旧的逐条刷盘实现；默认配置下并发的日志共享一次force
+ * 运行：mvn test-compile 之后用 test classpath 执行本类的 main 方法
+ */
+public class LoggerBenchmark {
+    private static final String PATH = "/tmp/mydb_logger_bench";
+    private static final int LOGS_PER_THREAD = 500;
+    private static final byte[] DATA = new byte[64];
+
+    public static void main(String[] args) throws Exception {
+        int[] threads = {1, 4, 16, 64};
+        System.out.println("threads\tper-record fsync ops/s\tgroup commit ops/s\tgroup commit(200us) ops/s");
+        for(int t : threads) {
+            double single = run(t, 0, 1);
+            double group = run(t, LoggerImpl.DEFAULT_MAX_DELAY_MICROS, LoggerImpl.DEFAULT_MAX_BATCH);
+            double delayed = run(t, 200, LoggerImpl.DEFAULT_MAX_BATCH);
+            System.out.printf("%d\t%.0f\t%.0f\t%.0f%n", t, single, group, delayed);
+        }
+    }
+
+    private static double run(int noThreads, long maxDelayMicros, int maxBatch) throws Exception {
+        new File(PATH + LoggerImpl.LOG_SUFFIX).delete();
+        Logger lg = Logger.create(PATH, maxDelayMicros, maxBatch);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(noThreads);
+        for(int i = 0; i < noThreads; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for(int j = 0; j < LOGS_PER_THREAD; j++) {
+                        lg.log(DATA);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        lg.close();
+        new File(PATH + LoggerImpl.LOG_SUFFIX).delete();
+        return (double) noThreads * LOGS_PER_THREAD * 1e9 / elapsed;
+    }
+}
@@ -2,7 +2,14 @@ package com.xjx.mydb.server.dm.logger;
 
 import org.junit.Test;
 
+import com.google.common.primitives.Bytes;
+import com.xjx.mydb.server.utils.Parser;
+
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * @Author: Xjx
@@ -46,4 +53,153 @@ public class LoggerTest {
 
         assert new File("D:\\JavaProject\\MyDB\\tmp\\logger_test.log").delete();
     }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        Logger lg = Logger.create("D:\\JavaProject\\MyDB\\tmp\\logger_group_test", 200, 16);
+        int noWorkers = 8, noLogs = 200;
+        CountDownLatch cdl = new CountDownLatch(noWorkers);
+        for(int i = 0; i < noWorkers; i++) {
+            int w = i;
+            new Thread(() -> {
+                long last = 0;
+                for(int j = 0; j < noLogs; j++) {
+                    byte[] data = (w + "-" + j).getBytes();
+                    //一半直接log，一半先append最后统一flush
+                    if(j % 2 == 0) {
+                        lg.log(data);
+                    } else {
+                        long lsn = lg.append(data);
+                        assert lsn > last;
+                        last = lsn;
+                    }
+                }
+                lg.flush(last);
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        lg.close();
+
+        Logger lg2 = Logger.open("D:\\JavaProject\\MyDB\\tmp\\logger_group_test");
+        lg2.rewind();
+        Set<String> logs = new HashSet<>();
+        byte[] log;
+        while((log = lg2.next()) != null) {
+            logs.add(new String(log));
+        }
+        assert logs.size() == noWorkers * noLogs;
+        for(int i = 0; i < noWorkers; i++) {
+            for(int j = 0; j < noLogs; j++) {
+                assert logs.contains(i + "-" + j);
+            }
+        }
+        lg2.close();
+
+        assert new File("D:\\JavaProject\\MyDB\\tmp\\logger_group_test.log").delete();
+    }
+
+    @Test
+    public void testBadTail() throws Exception {
+        Logger lg = Logger.create("D:\\JavaProject\\MyDB\\tmp\\logger_tail_test");
+        lg.log("aaaaaa".getBytes());
+        lg.log("bbbbbb".getBytes());
+        lg.close();
+
+        //模拟写到一半崩溃：末尾只写了一条日志的一部分
+        File file = new File("D:\\JavaProject\\MyDB\\tmp\\logger_tail_test.log");
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(length);
+            raf.write(new byte[]{0, 0, 0, 6, 1, 2, 3});
+        }
+
+        lg = Logger.open("D:\\JavaProject\\MyDB\\tmp\\logger_tail_test");
+        assert file.length() == length;
+        lg.log("cccccc".getBytes());
+        lg.close();
+
+        lg = Logger.open("D:\\JavaProject\\MyDB\\tmp\\logger_tail_test");
+        lg.rewind();
+        assert "aaaaaa".equals(new String(lg.next()));
+        assert "bbbbbb".equals(new String(lg.next()));
+        assert "cccccc".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+
+        assert file.delete();
+    }
+
+    @Test
+    public void testTruncateBefore() {
+        Logger lg = Logger.create("D:\\JavaProject\\MyDB\\tmp\\logger_truncate_test");
+        long[] lsns = new long[5];
+        for(int i = 0; i < 5; i++) {
+            lsns[i] = lg.append(("log" + i).getBytes());
+        }
+        lg.flush(lsns[4]);
+        lg.truncateBefore(lsns[2]);
+        long next = lg.append("log5".getBytes());
+        assert next > lsns[4];
+        lg.flush(next);
+        lg.close();
+
+        //截掉前缀之后LSN不变，日志从lsns[2]开始
+        lg = Logger.open("D:\\JavaProject\\MyDB\\tmp\\logger_truncate_test");
+        lg.rewind();
+        assert lg.position() == lsns[2];
+        for(int i = 2; i <= 5; i++) {
+            assert ("log" + i).equals(new String(lg.next()));
+        }
+        assert lg.next() == null;
+        lg.rewind(lsns[4]);
+        assert "log4".equals(new String(lg.next()));
+        lg.close();
+
+        assert new File("D:\\JavaProject\\MyDB\\tmp\\logger_truncate_test.log").delete();
+    }
+
+    @Test
+    public void testLegacyMigration() throws Exception {
+        //按旧格式手工写一个日志文件：[XChecksum] [Size][Checksum][Data] ...
+        File file = new File("D:\\JavaProject\\MyDB\\tmp\\logger_legacy_test.log");
+        String[] datas = {"aaaaaa", "bbbbbb", "cccccc"};
+        byte[] body = new byte[0];
+        int xChecksum = 0;
+        for(String d : datas) {
+            byte[] data = d.getBytes();
+            byte[] log = Bytes.concat(Parser.int2Byte(data.length), Parser.int2Byte(legacyChecksum(0, data)), data);
+            xChecksum = legacyChecksum(xChecksum, log);
+            body = Bytes.concat(body, log);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(Bytes.concat(Parser.int2Byte(xChecksum), body));
+        }
+
+        Logger lg = Logger.open("D:\\JavaProject\\MyDB\\tmp\\logger_legacy_test");
+        lg.rewind();
+        for(String d : datas) {
+            assert d.equals(new String(lg.next()));
+        }
+        assert lg.next() == null;
+        lg.log("dddddd".getBytes());
+        lg.close();
+
+        lg = Logger.open("D:\\JavaProject\\MyDB\\tmp\\logger_legacy_test");
+        lg.rewind();
+        for(String d : datas) {
+            assert d.equals(new String(lg.next()));
+        }
+        assert "dddddd".equals(new String(lg.next()));
+        lg.close();
+
+        assert file.delete();
+    }
+
+    private int legacyChecksum(int xCheck, byte[] log) {
+        for(byte b : log) {
+            xCheck = xCheck * 123456 + b;
+        }
+        return xCheck;
+    }
 }
@@ -52,4 +52,12 @@ public class MockPage implements Page {
     public byte[] getData() {
         return data;
     }
+
+    @Override
+    public void setLsn(long lsn) {}
+
+    @Override
+    public long getLsn() {
+        return 0;
+    }
 }
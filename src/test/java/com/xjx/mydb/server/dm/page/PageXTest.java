@@ -0,0 +1,100 @@
+package com.xjx.mydb.server.dm.page;
+
+import com.xjx.mydb.server.dm.dataItem.DataItem;
+import com.xjx.mydb.server.dm.pageCache.PageCache;
+import com.xjx.mydb.server.utils.RandomUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/16 - 10:05
+ */
+public class PageXTest {
+    private static byte[] read(Page page, short slot, int length) {
+        int offset = PageX.getOffset(page, slot);
+        return Arrays.copyOfRange(page.getData(), offset, offset + length);
+    }
+
+    //整理页面回收无效数据项的空间，有效数据项移动后通过原来的槽号还能读到，无效数据项的槽失效，页面的所有者不变
+    @Test
+    public void testCompact() {
+        int pageSize = PageCache.MIN_PAGE_SIZE;
+        Page page = MockPage.newMockPage(2, PageX.initRaw(pageSize, 7));
+        List<byte[]> raws = new ArrayList<>();
+        while (true) {
+            byte[] raw = DataItem.wrapDataItemRaw(RandomUtil.randomBytes(100));
+            if(!PageX.fits(page, raw.length)) {
+                break;
+            }
+            short slot = PageX.insert(page, raw);
+            assert slot == raws.size();
+            raws.add(raw);
+        }
+        //撤销一半的插入，空间计入碎片但还不能直接使用
+        for(int i = 0; i < raws.size(); i += 2) {
+            byte[] raw = raws.get(i);
+            DataItem.setDataItemRawInvalid(raw);
+            PageX.recoverInsert(page, raw, (short) i);
+        }
+        byte[] raw = DataItem.wrapDataItemRaw(RandomUtil.randomBytes(100));
+        assert !PageX.fits(page, raw.length);
+        assert PageX.getFreeSpace(page) >= raws.size() / 2 * raw.length;
+        assert PageX.validSlots(page).length == raws.size() / 2;
+
+        PageX.compact(page);
+        assert PageX.fits(page, raw.length);
+        assert PageX.getOwner(page) == 7;
+        for(int i = 0; i < raws.size(); i++) {
+            if(i % 2 == 0) {
+                assert PageX.getOffset(page, (short) i) == -1;
+            } else {
+                assert Arrays.equals(raws.get(i), read(page, (short) i, raw.length));
+            }
+        }
+        //失效的槽不再分配，新数据项使用新的槽
+        short slot = PageX.insert(page, raw);
+        assert slot == raws.size();
+        assert Arrays.equals(raw, read(page, slot, raw.length));
+        short[] valid = PageX.validSlots(page);
+        assert valid.length == raws.size() / 2 + 1;
+        for(int i = 0; i < valid.length - 1; i++) {
+            assert valid[i] == i * 2 + 1;
+        }
+        assert valid[valid.length - 1] == slot;
+    }
+
+    //恢复时按槽号重做插入：槽目录不够长时扩展，重复重做覆盖原来的数据项，失效的槽不再恢复
+    @Test
+    public void testRecoverInsert() {
+        int pageSize = PageCache.MIN_PAGE_SIZE;
+        Page page = MockPage.newMockPage(2, new byte[pageSize]);
+        byte[] raw0 = DataItem.wrapDataItemRaw(RandomUtil.randomBytes(50));
+        byte[] raw5 = DataItem.wrapDataItemRaw(RandomUtil.randomBytes(80));
+        PageX.recoverInsert(page, raw5, (short) 5);
+        PageX.recoverInsert(page, raw0, (short) 0);
+        PageX.recoverInsert(page, raw5, (short) 5);
+        assert Arrays.equals(raw0, read(page, (short) 0, raw0.length));
+        assert Arrays.equals(raw5, read(page, (short) 5, raw5.length));
+        //中间的槽是空闲槽，下一次插入使用它们
+        assert PageX.getOffset(page, (short) 3) == -1;
+        assert PageX.nextSlot(page) == 1;
+
+        byte[] newRaw5 = Arrays.copyOf(raw5, raw5.length);
+        newRaw5[raw5.length - 1]++;
+        PageX.recoverUpdate(page, newRaw5, (short) 5);
+        assert Arrays.equals(newRaw5, read(page, (short) 5, raw5.length));
+
+        //撤销插入后整理页面，之后重做同一条插入日志不会再恢复这个数据项
+        DataItem.setDataItemRawInvalid(raw0);
+        PageX.recoverInsert(page, raw0, (short) 0);
+        PageX.compact(page);
+        assert PageX.getOffset(page, (short) 0) == -1;
+        PageX.recoverInsert(page, raw0, (short) 0);
+        assert PageX.getOffset(page, (short) 0) == -1;
+        assert Arrays.equals(newRaw5, read(page, (short) 5, raw5.length));
+    }
+}
@@ -1,5 +1,6 @@
 package com.xjx.mydb.server.dm.pageCache;
 
+import com.xjx.mydb.server.dm.logger.Logger;
 import com.xjx.mydb.server.dm.page.MockPage;
 import com.xjx.mydb.server.dm.page.Page;
 
@@ -57,6 +58,17 @@ public class MockPageCache implements PageCache {
     @Override
     public void truncateByBgno(int maxPgno) {}
 
+    @Override
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
+
+    //测试用的缓存不记录pin计数，当作页面一直被其他调用者持有
+    @Override
+    public int getPinCount(int pgno) {
+        return Integer.MAX_VALUE;
+    }
+
     @Override
     public int getPageNumber() {
         return noPages.intValue();
@@ -64,4 +76,19 @@ public class MockPageCache implements PageCache {
 
     @Override
     public void flushPage(Page pg) {}
+
+    //内存中的页面不需要写回
+    @Override
+    public Map<Integer, byte[]> snapshotDirtyPages() {
+        return new HashMap<>();
+    }
+
+    @Override
+    public void writeSnapshot(Map<Integer, byte[]> pages) {}
+
+    @Override
+    public void setLogger(Logger logger) {}
+
+    @Override
+    public void readAhead(int pgno, int count) {}
 }
@@ -1,19 +1,24 @@
 package com.xjx.mydb.server.dm.pageCache;
 
+import com.xjx.mydb.server.dm.logger.Logger;
 import com.xjx.mydb.server.dm.page.Page;
 import com.xjx.mydb.server.utils.Panic;
 import com.xjx.mydb.server.utils.RandomUtil;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static org.junit.Assert.assertThrows;
+
 /**
  * @Author: Xjx
  * @Create: 2022/12/27 - 14:04
@@ -51,6 +56,130 @@ public class PageCacheTest {
         assert new File("D:\\JavaProject\\MyDB\\tmp\\pcacher_simple_test0.db").delete();
     }
 
+    //测试缓冲池满时驱逐未被pin的页面，脏页面写回后仍能读到，所有帧都被pin时才报错
+    @Test
+    public void testPageCacheEviction() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_eviction_test", PageCache.PAGE_SIZE * 10);
+        for(int i = 0; i < 100; i++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        //只有10个帧，反复访问100个页面，页面必须被驱逐和写回
+        for(int k = 0; k < 3; k++) {
+            for(int i = 1; i <= 100; i++) {
+                Page pg = pc.getPage(i);
+                pg.getData()[0] = (byte)(i + k);
+                pg.setDirty(true);
+                pg.release();
+            }
+        }
+        for(int i = 1; i <= 100; i++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)(i + 2);
+            pg.release();
+        }
+        //pin住全部10个帧之后再请求新页面才会失败
+        Page[] pinned = new Page[10];
+        for(int i = 0; i < 10; i++) {
+            pinned[i] = pc.getPage(i + 1);
+        }
+        assertThrows(RuntimeException.class, () -> pc.getPage(50));
+        for(Page pg : pinned) {
+            pg.release();
+        }
+        pc.getPage(50).release();
+        pc.close();
+        assert new File("/tmp/pcacher_eviction_test.db").delete();
+    }
+
+    //预读把连续的页面一次读入缓冲池，最多占用四分之一的帧，已经在缓冲池中的页面不被覆盖，预读的页面不被pin住
+    @Test
+    public void testReadAhead() throws Exception {
+        String path = "/tmp/pcacher_readahead_test";
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE * 40);
+        for(int i = 1; i <= 30; i++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte) i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        PageCache pc1 = PageCache.open(path, PageCache.PAGE_SIZE * 40);
+        Page pg = pc1.getPage(5);
+        pg.getData()[0] = 100;
+        pg.setDirty(true);
+        pg.release();
+        pc1.readAhead(1, 100);
+        //绕过缓冲池修改文件，之后读出旧内容的页面是预读进来的
+        RandomAccessFile raf = new RandomAccessFile(path + ".db", "rw");
+        for(int i = 1; i <= 30; i++) {
+            raf.seek((long) (i - 1) * PageCache.PAGE_SIZE);
+            raf.write(0);
+        }
+        raf.close();
+        for(int i = 1; i <= 30; i++) {
+            assert pc1.getPinCount(i) == 0;
+            pg = pc1.getPage(i);
+            int expect = i == 5 ? 100 : i <= 10 ? i : 0;
+            assert pg.getData()[0] == expect;
+            pg.release();
+        }
+        //超出文件末尾的部分不预读
+        pc1.readAhead(25, 10);
+        assert pc1.getPageNumber() == 30;
+        pc1.close();
+        assert new File(path + ".db").delete();
+    }
+
+    //脏页面不被驱逐也会由后台写线程写回，写回前日志必须先刷到页面的LSN
+    @Test
+    public void testBackgroundWriter() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_writer_test", PageCache.PAGE_SIZE * 20);
+        AtomicLong flushedLsn = new AtomicLong(0);
+        pc.setLogger(new Logger() {
+            @Override public void log(byte[] data) {}
+            @Override public long append(byte[] data) { return 0; }
+            @Override public void flush(long lsn) { flushedLsn.accumulateAndGet(lsn, Math::max); }
+            @Override public void truncate(long x) {}
+            @Override public void truncateBefore(long lsn) {}
+            @Override public byte[] next() { return null; }
+            @Override public void rewind() {}
+            @Override public void rewind(long lsn) {}
+            @Override public long position() { return 0; }
+            @Override public void close() {}
+        });
+        for(int i = 1; i <= 5; i++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        for(int i = 1; i <= 5; i++) {
+            Page pg = pc.getPage(i);
+            pg.getData()[100] = (byte)i;
+            pg.setDirty(true);
+            pg.setLsn(1000 + i);
+            pg.release();
+        }
+        //页面仍在缓冲池中，只有后台写线程会把它们写进文件
+        boolean written = false;
+        for(int k = 0; k < 50 && !written; k++) {
+            Thread.sleep(100);
+            written = true;
+            try (RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_writer_test.db", "r")) {
+                for(int i = 1; i <= 5; i++) {
+                    raf.seek((long)(i - 1) * PageCache.PAGE_SIZE + 100);
+                    written &= raf.readByte() == (byte)i;
+                }
+            }
+        }
+        assert written;
+        assert flushedLsn.get() >= 1005;
+        for(int i = 1; i <= 5; i++) {
+            Page pg = pc.getPage(i);
+            assert !pg.isDirty();
+            pg.release();
+        }
+        pc.close();
+        assert new File("/tmp/pcacher_writer_test.db").delete();
+    }
+
     //测试高并发环境下缓存是否可用
     private PageCache pc1;
     private CountDownLatch cdl1;
@@ -0,0 +1,63 @@
+package com.xjx.mydb.server.dm.pageIndex;
+
+import com.xjx.mydb.server.dm.pageCache.PageCache;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/14 - 15:40
+ */
+public class FreeSpaceMapTest {
+    //地图记录的是空闲空间的下限，关闭后重新打开还能读出来，跨越多个FSM页
+    @Test
+    public void testReopen() {
+        String path = "/tmp/TestFreeSpaceMapReopen";
+        int pageSize = PageCache.MIN_PAGE_SIZE;
+        int noPages = pageSize * 3 + 5;
+        FreeSpaceMap fsm = FreeSpaceMap.create(path, pageSize);
+        for(int pgno = 2; pgno <= noPages; pgno++) {
+            fsm.set(pgno, pgno % pageSize);
+        }
+        fsm.close();
+
+        fsm = FreeSpaceMap.open(path, pageSize);
+        assert fsm.getNoPages() == noPages;
+        for(int pgno = 2; pgno <= noPages; pgno++) {
+            int freeSpace = fsm.get(pgno);
+            assert freeSpace <= pgno % pageSize;
+            assert freeSpace > pgno % pageSize - pageSize / 256;
+        }
+        //没有记录过的页面没有空闲空间
+        assert fsm.get(noPages + 1) == 0;
+        fsm.close();
+        assert new File(path + FreeSpaceMap.FSM_SUFFIX).delete();
+    }
+
+    //索引中没有合适的页面时才从地图中加载，加载过的页面不会重复出现
+    @Test
+    public void testLazyLoad() {
+        String path = "/tmp/TestFreeSpaceMapLazy";
+        int pageSize = PageCache.MIN_PAGE_SIZE;
+        FreeSpaceMap fsm = FreeSpaceMap.create(path, pageSize);
+        for(int pgno = 2; pgno <= 100; pgno++) {
+            fsm.set(pgno, pageSize / 2);
+        }
+        fsm.close();
+
+        fsm = FreeSpaceMap.open(path, pageSize);
+        PageIndex pIndex = new PageIndex(pageSize, fsm);
+        pIndex.loadLazily(fsm.getNoPages());
+        boolean[] seen = new boolean[101];
+        for(int i = 2; i <= 100; i++) {
+            PageInfo pi = pIndex.select(pageSize / 4);
+            assert pi != null;
+            assert !seen[pi.pgno];
+            seen[pi.pgno] = true;
+        }
+        assert pIndex.select(pageSize / 4) == null;
+        fsm.close();
+        assert new File(path + FreeSpaceMap.FSM_SUFFIX).delete();
+    }
+}
@@ -26,4 +26,33 @@ public class PageIndexTest {
             }
         }
     }
+
+    //空闲空间变大的页面移动到新的区间，已经被取出的页面不会因为update重复出现
+    @Test
+    public void testUpdate() {
+        PageIndex pIndex = new PageIndex();
+        int threshold = PageCache.PAGE_SIZE / 40;
+        pIndex.add(2, 0);
+        pIndex.add(3, threshold);
+        assert pIndex.select(threshold * 2) == null;
+
+        pIndex.update(2, threshold * 10);
+        PageInfo pi = pIndex.select(threshold * 2);
+        assert pi != null && pi.pgno == 2;
+        pIndex.update(2, threshold * 20);
+        assert pIndex.select(threshold * 2) == null;
+
+        pi = pIndex.select(0);
+        assert pi != null && pi.pgno == 3;
+        assert pIndex.select(0) == null;
+
+        //多次移动的页面只有最新的页面信息有效，旧区间中作废的页面信息被跳过
+        pIndex.add(4, threshold);
+        for(int i = 2; i <= 30; i++) {
+            pIndex.update(4, threshold * i);
+        }
+        pi = pIndex.select(0);
+        assert pi != null && pi.pgno == 4 && pi.freeSpace == threshold * 30;
+        assert pIndex.select(0) == null;
+    }
 }
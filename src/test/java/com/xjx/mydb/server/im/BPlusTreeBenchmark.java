@@ -0,0 +1,100 @@
+package com.xjx.mydb.server.im;
+
+import com.xjx.mydb.server.dm.DataManager;
+import com.xjx.mydb.server.dm.logger.LoggerImpl;
+import com.xjx.mydb.server.dm.pageCache.PageCacheImpl;
+import com.xjx.mydb.server.dm.pageIndex.FreeSpaceMap;
+import com.xjx.mydb.server.dm.pageIndex.OwnerMap;
+import com.xjx.mydb.server.tm.MockTransactionManager;
+import com.xjx.mydb.server.tm.TransactionManager;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/18 - 14:20
+ * B+树插入和查找混合负载的基准：每种线程数都新建一棵预先插入了一批键的树，每个线程按比例随机插入新键或查找已有的键，
+ * 统计总的操作吞吐量以及相对单线程的加速比，用来观察节点锁和根节点分裂对并发的影响
+ * 参数：每个线程的操作数，默认20000；插入操作所占的百分比，默认50；之后是要测试的线程数，默认1、2、4...64
+ * 运行：mvn test-compile 之后用 test classpath 执行本类的 main 方法
+ */
+public class BPlusTreeBenchmark {
+    private static final String PATH = "/tmp/mydb_tree_bench";
+    private static final long MEM = 1L << 28;
+    //预先插入的键数，查找在这些键中进行
+    private static final int PRELOAD = 100000;
+
+    public static void main(String[] args) throws Exception {
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int insertPercent = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int[] threads;
+        if(args.length > 2) {
+            threads = new int[args.length - 2];
+            for(int i = 2; i < args.length; i++) {
+                threads[i - 2] = Integer.parseInt(args[i]);
+            }
+        } else {
+            threads = new int[] {1, 2, 4, 8, 16, 32, 64};
+        }
+
+        double base = 0;
+        for(int noThreads : threads) {
+            double opsPerSec = run(noThreads, perThread, insertPercent);
+            if(base == 0) {
+                base = opsPerSec / noThreads;
+            }
+            System.out.printf("threads=%-3d ops/s=%-10.0f speedup=%.2f%n",
+                    noThreads, opsPerSec, opsPerSec / base);
+        }
+    }
+
+    private static double run(int noThreads, int perThread, int insertPercent) throws Exception {
+        clean();
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create(PATH, MEM, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        //预先插入偶数键，之后插入的都是奇数键，不会和查找的键冲突
+        for(int i = 0; i < PRELOAD; i++) {
+            tree.insert(i * 2L, i);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(noThreads);
+        for(int t = 0; t < noThreads; t++) {
+            final long seed = t;
+            new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    start.await();
+                    for(int i = 0; i < perThread; i++) {
+                        if(random.nextInt(100) < insertPercent) {
+                            tree.insert(random.nextInt(PRELOAD) * 2L + 1, i);
+                        } else {
+                            tree.search(random.nextInt(PRELOAD) * 2L);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        tree.close();
+        dm.close();
+        clean();
+        return (double) noThreads * perThread / (elapsed / 1e9);
+    }
+
+    private static void clean() {
+        new File(PATH + PageCacheImpl.DB_SUFFIX).delete();
+        new File(PATH + LoggerImpl.LOG_SUFFIX).delete();
+        new File(PATH + FreeSpaceMap.FSM_SUFFIX).delete();
+        new File(PATH + OwnerMap.OWNER_SUFFIX).delete();
+    }
+}
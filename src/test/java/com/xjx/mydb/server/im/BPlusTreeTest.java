@@ -1,5 +1,6 @@
 package com.xjx.mydb.server.im;
 
+import com.xjx.mydb.common.Error;
 import com.xjx.mydb.server.dm.DataManager;
 import com.xjx.mydb.server.dm.pageCache.PageCache;
 import com.xjx.mydb.server.tm.MockTransactionManager;
@@ -8,6 +9,8 @@ import org.junit.Test;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @Author: Xjx
@@ -35,5 +38,264 @@ public class BPlusTreeTest {
 
         assert new File("/tmp/TestTreeSingle.db").delete();
         assert new File("/tmp/TestTreeSingle.log").delete();
+        assert new File("/tmp/TestTreeSingle.fsm").delete();
+        assert new File("/tmp/TestTreeSingle.own").delete();
+    }
+
+    @Test
+    public void testTreeSmallPage() throws Exception {
+        //4KB页面的平衡因子更小，同样的数据会分裂出更多层
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeSmallPage", PageCache.MIN_PAGE_SIZE*10, tm, PageCache.MIN_PAGE_SIZE);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        assert tree.balance == Node.balanceNumber(PageCache.MIN_PAGE_SIZE);
+
+        int lim = 3000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert((i * 7919L) % lim, i);
+        }
+
+        List<Long> uids = tree.searchRange(0, lim - 1);
+        assert uids.size() == lim;
+        for(int i = 0; i < lim; i += 97) {
+            assert tree.search((i * 7919L) % lim).get(0) == i;
+        }
+        dm.close();
+
+        assert new File("/tmp/TestTreeSmallPage.db").delete();
+        assert new File("/tmp/TestTreeSmallPage.log").delete();
+        assert new File("/tmp/TestTreeSmallPage.fsm").delete();
+        assert new File("/tmp/TestTreeSmallPage.own").delete();
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        //大量相同的键会分裂到多个叶子节点中，删除时要能找到每一项
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeDelete", PageCache.MIN_PAGE_SIZE*10, tm, PageCache.MIN_PAGE_SIZE);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 2000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i % 10 == 0 ? 5 : i, i);
+        }
+        assert tree.search(5).size() == lim / 10 + 1;
+
+        for(int i = 0; i < lim; i += 2) {
+            assert tree.delete(i % 10 == 0 ? 5 : i, i);
+        }
+        //已经删除过或者键不对应的项删除失败
+        assert !tree.delete(2, 2);
+        assert !tree.delete(4, 3);
+
+        List<Long> uids = tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        assert uids.size() == lim / 2;
+        for(long uid : uids) {
+            assert uid % 2 == 1;
+        }
+        assert tree.search(5).size() == 1;
+        dm.close();
+
+        assert new File("/tmp/TestTreeDelete.db").delete();
+        assert new File("/tmp/TestTreeDelete.log").delete();
+        assert new File("/tmp/TestTreeDelete.fsm").delete();
+        assert new File("/tmp/TestTreeDelete.own").delete();
+    }
+
+    @Test
+    public void testConcurrentInsert() throws Exception {
+        //多个线程同时插入，根节点会被并发地分裂多次，同时还有线程在查找，插入完成后每个键都要能找到
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeConcurrent", PageCache.MIN_PAGE_SIZE*20, tm, PageCache.MIN_PAGE_SIZE);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int noThreads = 8, perThread = 1000;
+        CountDownLatch cdl = new CountDownLatch(noThreads);
+        AtomicBoolean error = new AtomicBoolean(false);
+        for(int t = 0; t < noThreads; t ++) {
+            final int tt = t;
+            new Thread(() -> {
+                try {
+                    for(int i = 0; i < perThread; i ++) {
+                        long key = (long) i * noThreads + tt;
+                        tree.insert(key, key);
+                        if(tree.search(key).size() != 1) {
+                            error.set(true);
+                        }
+                    }
+                } catch (Exception e) {
+                    error.set(true);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert !error.get();
+
+        int lim = noThreads * perThread;
+        List<Long> uids = tree.searchRange(0, lim);
+        assert uids.size() == lim;
+        for(int i = 0; i < lim; i ++) {
+            assert uids.get(i) == i;
+        }
+        Node rootNode = Node.loadNode(tree, tree.rootUid());
+        assert rootNode.getLevel() >= 2;
+        rootNode.release();
+        dm.close();
+
+        assert new File("/tmp/TestTreeConcurrent.db").delete();
+        assert new File("/tmp/TestTreeConcurrent.log").delete();
+        assert new File("/tmp/TestTreeConcurrent.fsm").delete();
+        assert new File("/tmp/TestTreeConcurrent.own").delete();
+    }
+
+    @Test
+    public void testNodeCache() throws Exception {
+        //索引节点被修改后缓存中的解码结果要跟着更新；缓存很小时节点互相替换，查找结果也不受影响
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeNodeCache", PageCache.MIN_PAGE_SIZE*10, tm, PageCache.MIN_PAGE_SIZE);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        tree.nodeCache = new NodeCache(2);
+
+        int lim = 3000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+            if(i % 100 == 0) {
+                assert tree.search(i / 2).get(0) == i / 2;
+            }
+        }
+        for(int i = 0; i < lim; i ++) {
+            assert tree.search(i).get(0) == i;
+        }
+
+        //先查找一次把根节点放入缓存，之后的插入会修改根节点，缓存中的根节点要和节点数据一致
+        tree.nodeCache = new NodeCache(NodeCache.DEFAULT_CAPACITY);
+        tree.search(0);
+        for(int i = lim; i < lim * 3; i ++) {
+            tree.insert(i, i);
+        }
+        long rootUid = tree.rootUid();
+        NodeCache.Entry entry = tree.nodeCache.slot(rootUid);
+        assert entry != null && entry.uid == rootUid;
+        Node rootNode = Node.loadNode(tree, rootUid);
+        assert entry.keys.length == Node.getRawNoKey(rootNode.raw);
+        for(int i = 0; i < entry.keys.length; i ++) {
+            assert entry.keys[i] == Node.getRawKthKey(rootNode.raw, i);
+            assert entry.sons[i] == Node.getRawKthSon(rootNode.raw, i);
+        }
+        rootNode.release();
+        dm.close();
+
+        assert new File("/tmp/TestTreeNodeCache.db").delete();
+        assert new File("/tmp/TestTreeNodeCache.log").delete();
+        assert new File("/tmp/TestTreeNodeCache.fsm").delete();
+        assert new File("/tmp/TestTreeNodeCache.own").delete();
+    }
+
+    @Test
+    public void testWideNode() throws Exception {
+        //节点大小可以单独指定，最宽的节点正好能放进一个页面，超过时创建失败
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeWideNode", PageCache.MIN_PAGE_SIZE*10, tm, PageCache.MIN_PAGE_SIZE);
+
+        int balance = Node.maxBalanceNumber(PageCache.MIN_PAGE_SIZE);
+        assert balance > Node.balanceNumber(PageCache.MIN_PAGE_SIZE);
+        Exception err = null;
+        try {
+            BPlusTree.create(dm, balance + 1);
+        } catch (Exception e) {
+            err = e;
+        }
+        assert err == Error.InvalidNodeSizeException;
+
+        long root = BPlusTree.create(dm, balance);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        assert tree.balance == balance;
+
+        int lim = 5000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert((i * 7919L) % lim, i);
+        }
+        //重新加载后平衡因子从根节点得到，和创建时一致
+        tree = BPlusTree.load(root, dm);
+        assert tree.balance == balance;
+        List<Long> uids = tree.searchRange(100, 199);
+        assert uids.size() == 100;
+        for(int i = 0; i < lim; i += 89) {
+            assert tree.search((i * 7919L) % lim).get(0) == i;
+        }
+        dm.close();
+
+        assert new File("/tmp/TestTreeWideNode.db").delete();
+        assert new File("/tmp/TestTreeWideNode.log").delete();
+        assert new File("/tmp/TestTreeWideNode.fsm").delete();
+        assert new File("/tmp/TestTreeWideNode.own").delete();
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        //正序和逆序游标都按键的顺序取出范围内的项，相同的键跨越多个叶子节点也不会漏掉，可以随时停止
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeCursor", PageCache.MIN_PAGE_SIZE*10, tm, PageCache.MIN_PAGE_SIZE);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 2000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i % 10 == 0 ? 500 : (i * 7919L) % lim, i);
+        }
+
+        int count = 0;
+        long last = Long.MIN_VALUE;
+        Cursor cursor = tree.cursor(100, 1500);
+        while (cursor.next()) {
+            assert cursor.getKey() >= last && cursor.getKey() >= 100 && cursor.getKey() <= 1500;
+            last = cursor.getKey();
+            count ++;
+        }
+        List<Long> uids = tree.searchRange(100, 1500);
+        assert count == uids.size();
+
+        count = 0;
+        last = Long.MAX_VALUE;
+        cursor = tree.reverseCursor(100, 1500);
+        while (cursor.next()) {
+            assert cursor.getKey() <= last && cursor.getKey() >= 100 && cursor.getKey() <= 1500;
+            last = cursor.getKey();
+            count ++;
+        }
+        assert count == uids.size();
+
+        //相同的键的所有项都能取到
+        count = 0;
+        cursor = tree.reverseCursor(500, 500);
+        while (cursor.next()) {
+            count ++;
+        }
+        assert count == tree.search(500).size() && count >= lim / 10;
+
+        //只取前几项
+        cursor = tree.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        for(int i = 0; i < 3; i ++) {
+            assert cursor.next();
+        }
+        assert !tree.cursor(1, 0).next();
+        assert !tree.reverseCursor(lim, Long.MAX_VALUE).next();
+        dm.close();
+
+        assert new File("/tmp/TestTreeCursor.db").delete();
+        assert new File("/tmp/TestTreeCursor.log").delete();
+        assert new File("/tmp/TestTreeCursor.fsm").delete();
+        assert new File("/tmp/TestTreeCursor.own").delete();
     }
 }
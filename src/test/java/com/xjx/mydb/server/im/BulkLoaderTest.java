@@ -0,0 +1,101 @@
+package com.xjx.mydb.server.im;
+
+import com.xjx.mydb.common.Error;
+import com.xjx.mydb.server.dm.DataManager;
+import com.xjx.mydb.server.dm.pageCache.PageCache;
+import com.xjx.mydb.server.tm.MockTransactionManager;
+import com.xjx.mydb.server.tm.TransactionManager;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/21 - 15:30
+ */
+public class BulkLoaderTest {
+    private static final String PATH = "/tmp/TestBulkLoader";
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        //批量建出的树和逐个插入的树一样可以查找，之后还能继续插入和删除
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create(PATH, PageCache.MIN_PAGE_SIZE*20, tm, PageCache.MIN_PAGE_SIZE);
+
+        for(double fillFactor : new double[] {1.0, 0.5}) {
+            BulkLoader loader = BulkLoader.create(dm, Node.balanceNumber(PageCache.MIN_PAGE_SIZE), fillFactor);
+            //每个键有三项，相同的键会跨越叶子节点
+            int lim = 20000;
+            for(int i = 0; i < lim; i ++) {
+                loader.add(i / 3, i);
+            }
+            BPlusTree tree = BPlusTree.load(loader.finish(), dm);
+
+            for(int i = 0; i < lim; i += 3) {
+                List<Long> uids = tree.search(i / 3);
+                assert uids.size() == Math.min(3, lim - i);
+                assert uids.get(0) == i;
+            }
+            assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size() == lim;
+            long last = Long.MAX_VALUE;
+            int count = 0;
+            Cursor cursor = tree.reverseCursor(100, 200);
+            while (cursor.next()) {
+                assert cursor.getUid() < last;
+                last = cursor.getUid();
+                count ++;
+            }
+            assert count == 101 * 3;
+
+            for(int i = 0; i < 2000; i ++) {
+                tree.insert(i * 7L, lim + i);
+            }
+            assert tree.search(7).size() == 4;
+            assert tree.delete(7, 21);
+            assert tree.search(7).size() == 3;
+            assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size() == lim + 2000 - 1;
+        }
+        dm.close();
+        clean();
+    }
+
+    @Test
+    public void testBadInput() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create(PATH, PageCache.MIN_PAGE_SIZE*10, tm, PageCache.MIN_PAGE_SIZE);
+
+        //没有输入时得到一棵空树
+        BPlusTree tree = BPlusTree.load(BulkLoader.create(dm).finish(), dm);
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).isEmpty();
+        tree.insert(1, 1);
+        assert tree.search(1).size() == 1;
+
+        BulkLoader loader = BulkLoader.create(dm);
+        loader.add(2, 2);
+        Exception err = null;
+        try {
+            loader.add(1, 1);
+        } catch (Exception e) {
+            err = e;
+        }
+        assert err == Error.UnsortedBulkLoadException;
+
+        err = null;
+        try {
+            BulkLoader.create(dm, Node.balanceNumber(PageCache.MIN_PAGE_SIZE), 0);
+        } catch (Exception e) {
+            err = e;
+        }
+        assert err == Error.InvalidFillFactorException;
+        dm.close();
+        clean();
+    }
+
+    private static void clean() {
+        assert new File(PATH + ".db").delete();
+        assert new File(PATH + ".log").delete();
+        assert new File(PATH + ".fsm").delete();
+        assert new File(PATH + ".own").delete();
+    }
+}
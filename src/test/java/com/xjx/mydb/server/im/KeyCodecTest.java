@@ -0,0 +1,53 @@
+package com.xjx.mydb.server.im;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/22 - 18:10
+ */
+public class KeyCodecTest {
+    private static int sign(int c) {
+        return Integer.compare(c, 0);
+    }
+
+    @Test
+    public void testNumberOrder() {
+        Random random = new Random(1);
+        int[] edges = {Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE};
+        for(int i = 0; i < 10000; i++) {
+            int a = i < 25 ? edges[i / 5] : random.nextInt();
+            int b = i < 25 ? edges[i % 5] : random.nextInt();
+            assert sign(KeyCodec.compare(KeyCodec.encodeInt(a), KeyCodec.encodeInt(b))) == Integer.compare(a, b);
+            assert KeyCodec.decodeInt(KeyCodec.encodeInt(a), 0) == a;
+
+            long la = random.nextLong(), lb = i % 3 == 0 ? -la : random.nextLong();
+            assert sign(KeyCodec.compare(KeyCodec.encodeLong(la), KeyCodec.encodeLong(lb))) == Long.compare(la, lb);
+            assert KeyCodec.decodeLong(KeyCodec.encodeLong(la), 0) == la;
+        }
+    }
+
+    @Test
+    public void testStringOrder() {
+        String[] strs = {"", "\0", "\0\0", "a", "a\0", "a\0b", "ab", "abc", "b", "é", "中文"};
+        for(String a : strs) {
+            for(String b : strs) {
+                int expect = sign(a.compareTo(b));
+                assert sign(KeyCodec.compare(KeyCodec.encodeString(a), KeyCodec.encodeString(b))) == expect;
+            }
+        }
+    }
+
+    @Test
+    public void testComposite() {
+        //按第一个字段比较，相等时再比较第二个字段，较短的字符串不会因为后面的字段排到较长的字符串后面
+        byte[] k1 = KeyCodec.composite("ab", 100);
+        byte[] k2 = KeyCodec.composite("ab", -5);
+        byte[] k3 = KeyCodec.composite("abc", -100);
+        assert KeyCodec.compare(k2, k1) < 0;
+        assert KeyCodec.compare(k1, k3) < 0;
+        assert KeyCodec.compare(KeyCodec.composite(3, "z"), KeyCodec.composite(4, "a")) < 0;
+    }
+}
@@ -0,0 +1,177 @@
+package com.xjx.mydb.server.im;
+
+import com.xjx.mydb.common.Error;
+import com.xjx.mydb.server.dm.DataManager;
+import com.xjx.mydb.server.dm.pageCache.PageCache;
+import com.xjx.mydb.server.tm.MockTransactionManager;
+import com.xjx.mydb.server.tm.TransactionManager;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @Author: Xjx
+ * @Create: 2023/3/22 - 18:30
+ */
+public class VarKeyBPlusTreeTest {
+    private static String name(int i) {
+        //公共前缀很长的字符串，长度也各不相同
+        return "user_name_" + (i * 7919 % 10007) + (i % 3 == 0 ? "_x" : "");
+    }
+
+    @Test
+    public void testStringKeys() throws Exception {
+        //小节点会分裂出多层，字符串的范围查询和TreeMap的结果一致
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestVarKeyTree", PageCache.MIN_PAGE_SIZE*20, tm, PageCache.MIN_PAGE_SIZE);
+
+        long root = VarKeyBPlusTree.create(dm, 256);
+        VarKeyBPlusTree tree = VarKeyBPlusTree.load(root, dm);
+
+        int lim = 3000;
+        TreeMap<String, Long> expect = new TreeMap<>();
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(KeyCodec.encodeString(name(i)), i);
+            expect.put(name(i), (long) i);
+        }
+        VarKeyNode rootNode = VarKeyNode.loadNode(tree, tree.rootUid());
+        assert rootNode.getLevel() >= 2;
+        rootNode.release();
+
+        for(int i = 0; i < lim; i += 7) {
+            List<Long> uids = tree.search(KeyCodec.encodeString(name(i)));
+            assert uids.size() == 1 && uids.get(0) == i;
+        }
+        assert tree.search(KeyCodec.encodeString("user_name_")).isEmpty();
+
+        String from = name(100), to = name(200);
+        if(from.compareTo(to) > 0) {
+            String tmp = from; from = to; to = tmp;
+        }
+        VarKeyCursor cursor = tree.cursor(KeyCodec.encodeString(from), false, KeyCodec.encodeString(to), true);
+        for(Map.Entry<String, Long> e : expect.subMap(from, false, to, true).entrySet()) {
+            assert cursor.next();
+            assert KeyCodec.compare(cursor.getKey(), KeyCodec.encodeString(e.getKey())) == 0;
+            assert cursor.getUid() == e.getValue();
+        }
+        assert !cursor.next();
+        assert tree.searchRange(null, true, null, true).size() == lim;
+        assert tree.searchRange(null, true, KeyCodec.encodeString(to), false).size() == expect.headMap(to).size();
+
+        //重新加载后节点大小从根节点得到，超过节点允许长度的键不能插入
+        tree = VarKeyBPlusTree.load(root, dm);
+        assert tree.nodeSize == 256;
+        Exception err = null;
+        try {
+            tree.insert(new byte[VarKeyNode.maxKeySize(256) + 1], 0);
+        } catch (Exception e) {
+            err = e;
+        }
+        assert err == Error.KeyTooLargeException;
+        dm.close();
+
+        assert new File("/tmp/TestVarKeyTree.db").delete();
+        assert new File("/tmp/TestVarKeyTree.log").delete();
+        assert new File("/tmp/TestVarKeyTree.fsm").delete();
+        assert new File("/tmp/TestVarKeyTree.own").delete();
+    }
+
+    @Test
+    public void testCompositeAndDelete() throws Exception {
+        //组合键可以只用第一个字段作为边界查找，相同的第一个字段跨越多个叶子节点，删除时要能找到每一项
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestVarKeyComposite", PageCache.MIN_PAGE_SIZE*20, tm, PageCache.MIN_PAGE_SIZE);
+
+        long root = VarKeyBPlusTree.create(dm, 256);
+        VarKeyBPlusTree tree = VarKeyBPlusTree.load(root, dm);
+
+        int lim = 2000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(KeyCodec.composite("g" + (i % 5), i), i);
+        }
+        byte[] g2 = KeyCodec.encodeString("g2");
+        List<Long> uids = tree.searchRange(g2, true, g2, true);
+        assert uids.size() == lim / 5;
+        for(int i = 0; i < uids.size(); i ++) {
+            assert uids.get(i) == i * 5 + 2;
+        }
+        assert tree.searchRange(g2, false, null, true).size() == lim / 5 * 2;
+        assert tree.searchRange(null, true, g2, false).size() == lim / 5 * 2;
+
+        //标志位在节点分裂和删除其他项时保持不变
+        for(int i = 0; i < lim; i += 3) {
+            assert tree.setFlag(KeyCodec.composite("g" + (i % 5), i), i, true);
+        }
+        assert !tree.setFlag(KeyCodec.composite("g0", 1), 1, true);
+        for(int i = 0; i < lim; i += 2) {
+            assert tree.delete(KeyCodec.composite("g" + (i % 5), i), i);
+        }
+        VarKeyCursor cursor = tree.cursor(null, true, null, true);
+        while (cursor.next()) {
+            assert cursor.getFlag() == (cursor.getUid() % 3 == 0);
+        }
+        assert !tree.delete(KeyCodec.composite("g0", 0), 0);
+        assert !tree.delete(KeyCodec.composite("g1", 1), 2);
+        uids = tree.searchRange(null, true, null, true);
+        assert uids.size() == lim / 2;
+        for(long uid : uids) {
+            assert uid % 2 == 1;
+        }
+        dm.close();
+
+        assert new File("/tmp/TestVarKeyComposite.db").delete();
+        assert new File("/tmp/TestVarKeyComposite.log").delete();
+        assert new File("/tmp/TestVarKeyComposite.fsm").delete();
+        assert new File("/tmp/TestVarKeyComposite.own").delete();
+    }
+
+    @Test
+    public void testConcurrentInsert() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestVarKeyConcurrent", PageCache.MIN_PAGE_SIZE*20, tm, PageCache.MIN_PAGE_SIZE);
+
+        long root = VarKeyBPlusTree.create(dm, 256);
+        VarKeyBPlusTree tree = VarKeyBPlusTree.load(root, dm);
+
+        int noThreads = 8, perThread = 500;
+        CountDownLatch cdl = new CountDownLatch(noThreads);
+        AtomicBoolean error = new AtomicBoolean(false);
+        for(int t = 0; t < noThreads; t ++) {
+            final int tt = t;
+            new Thread(() -> {
+                try {
+                    for(int i = 0; i < perThread; i ++) {
+                        int key = i * noThreads + tt;
+                        tree.insert(KeyCodec.encodeString(name(key)), key);
+                        if(tree.search(KeyCodec.encodeString(name(key))).size() != 1) {
+                            error.set(true);
+                        }
+                    }
+                } catch (Exception e) {
+                    error.set(true);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert !error.get();
+
+        int lim = noThreads * perThread;
+        assert tree.searchRange(null, true, null, true).size() == lim;
+        for(int i = 0; i < lim; i += 11) {
+            assert tree.search(KeyCodec.encodeString(name(i))).get(0) == i;
+        }
+        dm.close();
+
+        assert new File("/tmp/TestVarKeyConcurrent.db").delete();
+        assert new File("/tmp/TestVarKeyConcurrent.log").delete();
+        assert new File("/tmp/TestVarKeyConcurrent.fsm").delete();
+        assert new File("/tmp/TestVarKeyConcurrent.own").delete();
+    }
+}
@@ -24,6 +24,32 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testCreateInclude() throws Exception {
+        //索引字段后面的括号中是索引携带的字段
+        String stat = "create table student id int32, name string, age int32 (index name(age id) id)";
+        Create create = (Create)Parser.parse(stat.getBytes());
+        assert Arrays.equals(create.index, new String[]{"name", "id"});
+        assert Arrays.equals(create.include[0], new String[]{"age", "id"});
+        assert create.include[1].length == 0;
+
+        Exception err = null;
+        try {
+            Parser.parse("create table student id int32 (index id())".getBytes());
+        } catch (Exception e) {
+            err = e;
+        }
+        assert err != null;
+    }
+
+    @Test
+    public void testCreateNoIndex() throws Exception {
+        //没有索引的表只能顺序扫描
+        Create create = (Create)Parser.parse("create table log msg string, level int32".getBytes());
+        assert Arrays.equals(create.fieldName, new String[]{"msg", "level"});
+        assert create.index.length == 0 && create.include.length == 0;
+    }
+
     @Test
     public void testBegin() throws Exception {
         String stat = "begin isolation level read committed";
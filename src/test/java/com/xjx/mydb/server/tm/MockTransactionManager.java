@@ -18,6 +18,10 @@ public class MockTransactionManager implements TransactionManager{
     public void abort(long xid) {
     }
 
+    @Override
+    public void flush() {
+    }
+
     @Override
     public void close() {
     }
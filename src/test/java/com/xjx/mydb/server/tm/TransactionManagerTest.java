@@ -3,12 +3,16 @@ package com.xjx.mydb.server.tm;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -46,6 +50,252 @@ public class TransactionManagerTest {
         assert new File("D:\\JavaProject\\MyDB\\tmp\\trans_test.xid").delete();
     }
 
+    @Test
+    public void testReopen() {
+        String path = "/tmp/trans_reopen_test";
+        new File(path + TransactionManager.XID_SUFFIX).delete();
+        tm = TransactionManager.create(path);
+        //跨过好几个内存块，保证写回时既有合并的连续写也有分散的写
+        int n = 200000;
+        for(int i = 1; i <= n; i++) {
+            long xid = tm.begin();
+            assert xid == i;
+            //提交每次都要落盘，只提交少量事务
+            if(i % 1000 == 0) {
+                tm.commit(xid);
+            } else if(i % 2 == 1) {
+                tm.abort(xid);
+            }
+        }
+        tm.close();
+        tm = TransactionManager.open(path);
+        for(int i = 1; i <= n; i++) {
+            if(i % 1000 == 0) {
+                assert tm.isCommitted(i);
+            } else if(i % 2 == 1) {
+                assert tm.isAborted(i);
+            } else {
+                assert tm.isActive(i);
+            }
+        }
+        long next = tm.begin();
+        assert next == n + 1;
+        tm.close();
+        assert new File(path + TransactionManager.XID_SUFFIX).delete();
+    }
+
+    //多个线程同时开始、提交、回滚并查询事务状态，不加任何外部锁，结束后文件必须和内存中的状态完全一致
+    @Test
+    public void testConcurrentStress() throws Exception {
+        stress(false, false);
+    }
+
+    @Test
+    public void testMappedConcurrentStress() throws Exception {
+        stress(true, false);
+    }
+
+    @Test
+    public void testClogConcurrentStress() throws Exception {
+        stress(false, true);
+    }
+
+    private void stress(boolean mapped, boolean clog) throws Exception {
+        String path = "/tmp/trans_stress_test";
+        deleteXidFiles(path);
+        TransactionManager stm = clog ? TransactionManager.createClog(path) : TransactionManager.create(path, mapped);
+        Map<Long, Byte> states = new ConcurrentHashMap<>();
+        int noThreads = 32;
+        int noOps = 1000;
+        CountDownLatch done = new CountDownLatch(noThreads);
+        AtomicInteger errors = new AtomicInteger(0);
+        for(int t = 0; t < noThreads; t++) {
+            new Thread(() -> {
+                Random r = new Random();
+                try {
+                    for(int i = 0; i < noOps; i++) {
+                        long xid = stm.begin();
+                        if(!stm.isActive(xid) || states.putIfAbsent(xid, (byte)0) != null) {
+                            errors.incrementAndGet();
+                        }
+                        int op = r.nextInt(3);
+                        if(op == 1) {
+                            stm.commit(xid);
+                            states.put(xid, (byte)1);
+                            if(!stm.isCommitted(xid)) errors.incrementAndGet();
+                        } else if(op == 2) {
+                            stm.abort(xid);
+                            states.put(xid, (byte)2);
+                            if(!stm.isAborted(xid)) errors.incrementAndGet();
+                        }
+                        //已经结束的事务状态不会再变化，随便抽查一个
+                        long other = 1 + r.nextInt((int)xid);
+                        Byte status = states.get(other);
+                        if(status != null && status == 1 && !stm.isCommitted(other)) errors.incrementAndGet();
+                        if(status != null && status == 2 && !stm.isAborted(other)) errors.incrementAndGet();
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assert errors.get() == 0;
+        stm.close();
+
+        long total = (long) noThreads * noOps;
+        assert states.size() == total;
+        //文件头中的事务数必须一致，内存映射方式的文件末尾会多出预先扩展的部分
+        File file = new File(path + TransactionManager.XID_SUFFIX);
+        if(!clog) {
+            assert mapped || file.length() == TransactionManager.XID_HEADER_LENGTH + total;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                assert raf.readLong() == total;
+            }
+        }
+        //换另一种实现打开，两者的文件格式必须相同，CLOG格式会被自动识别
+        TransactionManager reopened = TransactionManager.open(path, !mapped);
+        for(long xid = 1; xid <= total; xid++) {
+            switch (states.get(xid)) {
+                case 0:
+                    assert reopened.isActive(xid);
+                    break;
+                case 1:
+                    assert reopened.isCommitted(xid);
+                    break;
+                case 2:
+                    assert reopened.isAborted(xid);
+                    break;
+            }
+        }
+        long next = reopened.begin();
+        assert next == total + 1;
+        reopened.close();
+        deleteXidFiles(path);
+    }
+
+    //内存映射方式跨过多个映射段，关闭后用普通方式打开检查，再反过来
+    @Test
+    public void testMappedReopen() {
+        String path = "/tmp/trans_mapped_test";
+        new File(path + TransactionManager.XID_SUFFIX).delete();
+        TransactionManager mtm = TransactionManager.create(path, true);
+        int n = (1 << 20) + 1000;
+        for(int i = 1; i <= n; i++) {
+            long xid = mtm.begin();
+            if(i % 1000 == 0) {
+                mtm.commit(xid);
+            } else if(i % 2 == 1) {
+                mtm.abort(xid);
+            }
+        }
+        mtm.close();
+        TransactionManager ctm = TransactionManager.open(path, false);
+        checkStates(ctm, n);
+        long next = ctm.begin();
+        assert next == n + 1;
+        ctm.commit(next);
+        ctm.close();
+        mtm = TransactionManager.open(path, true);
+        checkStates(mtm, n);
+        assert mtm.isCommitted(n + 1);
+        next = mtm.begin();
+        assert next == n + 2;
+        mtm.close();
+        assert new File(path + TransactionManager.XID_SUFFIX).delete();
+    }
+
+    //CLOG格式：超过两段的事务全部结束后，前面的段被压缩冻结，重新打开后状态不变
+    @Test
+    public void testClogFreeze() throws Exception {
+        String path = "/tmp/trans_clog_test";
+        deleteXidFiles(path);
+        TransactionManager ctm = TransactionManager.createClog(path);
+        int n = (2 << 20) + 1000;
+        //第0段中留下一个活跃事务，模拟崩溃前遗留的事务，这个进程里它一直在运行，不会冻结
+        long leftover = 2;
+        for(int i = 1; i <= n; i++) {
+            long xid = ctm.begin();
+            if(i % 1000 == 0) {
+                ctm.commit(xid);
+            } else if(xid != leftover && (i % 2 == 1 || i <= 2 << 20)) {
+                ctm.abort(xid);
+            }
+        }
+        File seg0 = new File(path + TransactionManager.XID_SUFFIX + ".0");
+        File frozen0 = new File(path + TransactionManager.XID_SUFFIX + ".0.z");
+        File frozen1 = new File(path + TransactionManager.XID_SUFFIX + ".1.z");
+        File frozen2 = new File(path + TransactionManager.XID_SUFFIX + ".2.z");
+        assert seg0.exists() && !frozen0.exists();
+        ctm.close();
+
+        //重新打开后遗留事务不在本进程的运行集合中，最后一段中还有活跃事务，前两段可以冻结
+        ctm = TransactionManager.open(path);
+        long last = ctm.begin();
+        ctm.commit(last);
+        assert !seg0.exists() && frozen0.exists() && frozen1.exists() && !frozen2.exists();
+        //一段256KB，状态很有规律，压缩之后要小得多
+        assert frozen0.length() < (64 << 10);
+        checkClogFreeze(ctm, n, leftover);
+        assert ctm.isActive(leftover);
+        assert ctm.isCommitted(last);
+
+        //恢复时回滚崩溃前遗留的事务，它所在的段已经冻结，要重写压缩文件
+        byte[] before = Files.readAllBytes(frozen0.toPath());
+        ctm.abort(leftover);
+        assert ctm.isAborted(leftover);
+        assert !Arrays.equals(before, Files.readAllBytes(frozen0.toPath()));
+        assert !seg0.exists();
+        ctm.close();
+
+        ctm = TransactionManager.open(path);
+        checkClogFreeze(ctm, n, leftover);
+        assert ctm.isAborted(leftover);
+        assert ctm.isCommitted(last);
+        long next = ctm.begin();
+        assert next == last + 1;
+        ctm.abort(next);
+        ctm.close();
+        deleteXidFiles(path);
+    }
+
+    private void checkClogFreeze(TransactionManager ctm, int n, long leftover) {
+        for(int i = 1; i <= n; i++) {
+            if(i == leftover) {
+                continue;
+            }
+            if(i % 1000 == 0) {
+                assert ctm.isCommitted(i);
+            } else if(i % 2 == 1 || i <= 2 << 20) {
+                assert ctm.isAborted(i);
+            } else {
+                assert ctm.isActive(i);
+            }
+        }
+    }
+
+    private void deleteXidFiles(String path) {
+        File f = new File(path);
+        File[] files = f.getParentFile().listFiles((dir, name) -> name.startsWith(f.getName() + TransactionManager.XID_SUFFIX));
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private void checkStates(TransactionManager tm, int n) {
+        for(int i = 1; i <= n; i++) {
+            if(i % 1000 == 0) {
+                assert tm.isCommitted(i);
+            } else if(i % 2 == 1) {
+                assert tm.isAborted(i);
+            } else {
+                assert tm.isActive(i);
+            }
+        }
+    }
+
     private void worker() {
         //事务是否正在进行的标志
         boolean inTrans = false;